@@ -0,0 +1,386 @@
+package com.dounanshi.libgdx.util.destructable.mappreprocessor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import com.badlogic.gdx.ApplicationListener;
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.Pixmap.Blending;
+import com.dounanshi.libgdx.util.destructable.LevelTileFile;
+
+/**
+ * Preprocesses many maps without a display or file dialogs. See
+ * {@link HeadlessMain} for the command line.
+ *
+ * Each input is either a level image and the cim file to write, or a directory
+ * of level images and the directory to write their cim files to. Maps whose
+ * outputs are not older than their level image are skipped.
+ */
+public class BatchPreprocessor implements ApplicationListener {
+
+    private static final String LOG_TAG = "BatchPreprocessor";
+
+    public static final String USAGE = "Usage: [--jobs n] [--smooth n] [--force]"
+            + " [--cache | --cache-dir dir] [--cache-mb n]"
+            + " [--stream [--strip-rows n] | --tiles]"
+            + " <level image or dir> <cim file or dir> [<input> <output> ...]";
+
+    public static final int EXIT_SUCCESS = 0;
+    public static final int EXIT_FAILURE = 1;
+    public static final int EXIT_USAGE = 2;
+
+    // Level images in input directories.
+    private static final String[] IMAGE_EXTENSIONS = { "png", "jpg", "jpeg", "bmp" };
+
+    private final List<FileHandle> inputs = new ArrayList<FileHandle>();
+    private final List<FileHandle> outputs = new ArrayList<FileHandle>();
+
+    // Number of maps processed at the same time. Bounds the memory used, since
+    // every map in flight holds its level and collision pixmaps.
+    private int jobs = 2;
+    private int projectionSmooth = MapPreprocessor.PROJECTION_SMOOTH;
+    private boolean force;
+
+    // Whether to keep a cache of collision tiles shared by all maps, in
+    // cacheDir or, if that is null, next to the first output.
+    private boolean cache;
+    private FileHandle cacheDir;
+    private long cacheBytes = CollisionTileCache.DEFAULT_MAX_BYTES;
+
+    // Whether to read and write maps in strips instead of whole pixmaps. Does
+    // not use the tile cache, which needs the whole map.
+    private boolean stream;
+    private int stripRows = StreamingPreprocessor.DEFAULT_STRIP_ROWS;
+
+    // Whether to also write the level tile file that LevelRenderer loads
+    // instead of slicing the level image. Needs the whole level image, so it
+    // can't be streamed.
+    private boolean tiles;
+
+    private int exitStatus = EXIT_FAILURE;
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    /**
+     * Parses the command line arguments.
+     *
+     * @throws IllegalArgumentException
+     *             if the arguments are not valid.
+     */
+    public BatchPreprocessor(String[] args) {
+        List<String> paths = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--force")) {
+                force = true;
+            } else if (arg.equals("--stream")) {
+                stream = true;
+            } else if (arg.equals("--tiles")) {
+                tiles = true;
+            } else if (arg.equals("--strip-rows")) {
+                stripRows = parseInt(arg, args, ++i, 1);
+            } else if (arg.equals("--cache")) {
+                cache = true;
+            } else if (arg.equals("--cache-dir")) {
+                if (++i >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + arg);
+                }
+                cache = true;
+                cacheDir = new FileHandle(args[i]);
+            } else if (arg.equals("--cache-mb")) {
+                cacheBytes = parseInt(arg, args, ++i, 0) * 1024L * 1024;
+            } else if (arg.equals("--jobs")) {
+                jobs = parseInt(arg, args, ++i, 1);
+            } else if (arg.equals("--smooth")) {
+                projectionSmooth = parseInt(arg, args, ++i, 0);
+            } else if (arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            } else {
+                paths.add(arg);
+            }
+        }
+        if (stream && tiles) {
+            throw new IllegalArgumentException("--tiles can't be used with --stream");
+        }
+        if (paths.isEmpty() || paths.size() % 2 != 0) {
+            throw new IllegalArgumentException("Expected pairs of input and output paths");
+        }
+        for (int i = 0; i < paths.size(); i += 2) {
+            inputs.add(new FileHandle(paths.get(i)));
+            outputs.add(new FileHandle(paths.get(i + 1)));
+        }
+    }
+
+    private static int parseInt(String option, String[] args, int i, int min) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + option);
+        }
+        try {
+            int value = Integer.parseInt(args[i]);
+            if (value >= min) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below.
+        }
+        throw new IllegalArgumentException("Expected a number >= " + min + " for " + option
+                + ": " + args[i]);
+    }
+
+    @Override
+    public void create() {
+        try {
+            exitStatus = run();
+        } finally {
+            done.countDown();
+            Gdx.app.exit();
+        }
+    }
+
+    /**
+     * Blocks until the maps are processed and returns the process exit status:
+     * {@link #EXIT_SUCCESS} if every map was processed or skipped, otherwise
+     * {@link #EXIT_FAILURE}.
+     */
+    public int waitForExitStatus() throws InterruptedException {
+        done.await();
+        return exitStatus;
+    }
+
+    /**
+     * Processes all the maps and returns the exit status.
+     */
+    int run() {
+        // IMPORTANT! This allows you to set pixels to the exact bits.
+        Pixmap.setBlending(Blending.None);
+
+        List<FileHandle> levelFiles = new ArrayList<FileHandle>();
+        List<FileHandle> cimFiles = new ArrayList<FileHandle>();
+        int failures = 0;
+        for (int i = 0; i < inputs.size(); i++) {
+            FileHandle input = inputs.get(i);
+            FileHandle output = outputs.get(i);
+            if (!input.exists()) {
+                Gdx.app.error(LOG_TAG, "No such file or directory: " + input);
+                failures++;
+            } else if (input.isDirectory()) {
+                for (FileHandle levelFile : listLevelImages(input)) {
+                    levelFiles.add(levelFile);
+                    cimFiles.add(output.child(levelFile.nameWithoutExtension() + ".cim"));
+                }
+            } else {
+                levelFiles.add(input);
+                cimFiles.add(output);
+            }
+        }
+
+        final CollisionPixmapBuilder builder = new CollisionPixmapBuilder(projectionSmooth);
+        final CollisionTileCache cache = this.cache && !stream ? new CollisionTileCache(
+                getCacheDirectory(), CollisionTileCache.DEFAULT_TILE_SIZE, cacheBytes) : null;
+        final StreamingPreprocessor streamer = stream ? new StreamingPreprocessor(builder,
+                stripRows) : null;
+        ExecutorService executor = Executors.newFixedThreadPool(jobs);
+        final ForkJoinPool pool = new ForkJoinPool();
+        int processed = 0;
+        int skipped = 0;
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            List<FileHandle> submitted = new ArrayList<FileHandle>();
+            for (int i = 0; i < levelFiles.size(); i++) {
+                final FileHandle levelFile = levelFiles.get(i);
+                final FileHandle cimFile = cimFiles.get(i);
+                if (!force && isUpToDate(levelFile, cimFile)) {
+                    Gdx.app.log(LOG_TAG, "Up to date: " + cimFile);
+                    skipped++;
+                    continue;
+                }
+                submitted.add(levelFile);
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        if (streamer != null) {
+                            process(levelFile, cimFile, streamer);
+                        } else {
+                            process(levelFile, cimFile, builder, cache, pool);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                    processed++;
+                } catch (ExecutionException e) {
+                    Gdx.app.error(LOG_TAG, "Failed to process " + submitted.get(i), e.getCause());
+                    failures++;
+                } catch (InterruptedException e) {
+                    Gdx.app.error(LOG_TAG, "Interrupted", e);
+                    Thread.currentThread().interrupt();
+                    return EXIT_FAILURE;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            pool.shutdown();
+        }
+
+        if (cache != null) {
+            Gdx.app.log(LOG_TAG, "Tile cache " + cache.getDirectory() + ": " + cache.getHits()
+                    + " hits, " + cache.getMisses() + " misses, " + cache.getEvictions()
+                    + " evicted");
+        }
+        Gdx.app.log(LOG_TAG, "Processed " + processed + ", skipped " + skipped + ", failed "
+                + failures);
+        return failures == 0 ? EXIT_SUCCESS : EXIT_FAILURE;
+    }
+
+    /**
+     * Returns the cache directory given on the command line, or the default
+     * one in the directory of the first output.
+     */
+    private FileHandle getCacheDirectory() {
+        if (cacheDir != null) {
+            return cacheDir;
+        }
+        FileHandle output = outputs.get(0);
+        return CollisionTileCache.defaultDirectory(inputs.get(0).isDirectory() ? output
+                : output.parent());
+    }
+
+    /**
+     * Builds and saves the collision files of one map. Deletes its outputs if
+     * it fails, so that partly written ones are not mistaken for up to date
+     * ones.
+     */
+    private void process(FileHandle levelFile, FileHandle cimFile,
+            CollisionPixmapBuilder builder, CollisionTileCache cache, ForkJoinPool pool) {
+        Gdx.app.log(LOG_TAG, "Processing " + levelFile + " -> " + cimFile);
+        try {
+            Pixmap levelPixmap = new Pixmap(levelFile);
+            try {
+                Pixmap collisionPixmap = cache != null ? cache.build(levelPixmap, builder, pool)
+                        : builder.build(levelPixmap, pool);
+                try {
+                    MapPreprocessor.writeCollisionFiles(collisionPixmap, cimFile);
+                } finally {
+                    collisionPixmap.dispose();
+                }
+                if (tiles) {
+                    LevelTileFile.write(levelPixmap, MapPreprocessor.levelTileFile(cimFile));
+                }
+            } finally {
+                levelPixmap.dispose();
+            }
+        } catch (RuntimeException e) {
+            deleteOutputs(cimFile);
+            throw e;
+        }
+    }
+
+    /**
+     * Same as {@link #process(FileHandle, FileHandle, CollisionPixmapBuilder,
+     * CollisionTileCache, ForkJoinPool)}, but streams the map in strips.
+     */
+    private void process(FileHandle levelFile, FileHandle cimFile,
+            StreamingPreprocessor streamer) {
+        Gdx.app.log(LOG_TAG, "Streaming " + levelFile + " -> " + cimFile);
+        try {
+            streamer.process(levelFile.file(), cimFile);
+        } catch (RuntimeException e) {
+            deleteOutputs(cimFile);
+            throw e;
+        }
+    }
+
+    private void deleteOutputs(FileHandle cimFile) {
+        for (FileHandle output : outputFiles(cimFile)) {
+            output.delete();
+        }
+    }
+
+    private FileHandle[] outputFiles(FileHandle cimFile) {
+        if (tiles) {
+            return new FileHandle[] { cimFile, MapPreprocessor.collisionMapFile(cimFile),
+                    MapPreprocessor.distanceFieldFile(cimFile),
+                    MapPreprocessor.levelTileFile(cimFile) };
+        }
+        return new FileHandle[] { cimFile, MapPreprocessor.collisionMapFile(cimFile),
+                MapPreprocessor.distanceFieldFile(cimFile) };
+    }
+
+    /**
+     * Returns true iff all output files exist and are not older than the
+     * level image. Modification times often only have second precision, so
+     * outputs written in the same second as the image count as up to date.
+     */
+    private boolean isUpToDate(FileHandle levelFile, FileHandle cimFile) {
+        long levelModified = levelFile.lastModified();
+        for (FileHandle output : outputFiles(cimFile)) {
+            if (!output.exists() || output.lastModified() < levelModified) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the level images in the directory sorted by name.
+     */
+    private static List<FileHandle> listLevelImages(FileHandle dir) {
+        List<FileHandle> images = new ArrayList<FileHandle>();
+        for (FileHandle file : dir.list()) {
+            if (!file.isDirectory() && isImage(file)) {
+                images.add(file);
+            }
+        }
+        FileHandle[] sorted = images.toArray(new FileHandle[images.size()]);
+        Arrays.sort(sorted, new Comparator<FileHandle>() {
+            @Override
+            public int compare(FileHandle a, FileHandle b) {
+                return a.name().compareTo(b.name());
+            }
+        });
+        return Arrays.asList(sorted);
+    }
+
+    private static boolean isImage(FileHandle file) {
+        String extension = file.extension().toLowerCase();
+        for (String imageExtension : IMAGE_EXTENSIONS) {
+            if (imageExtension.equals(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void dispose() {
+    }
+
+    @Override
+    public void pause() {
+    }
+
+    @Override
+    public void render() {
+    }
+
+    @Override
+    public void resize(int arg0, int arg1) {
+    }
+
+    @Override
+    public void resume() {
+    }
+}
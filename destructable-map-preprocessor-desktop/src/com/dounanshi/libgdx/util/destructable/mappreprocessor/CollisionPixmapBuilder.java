@@ -0,0 +1,372 @@
+package com.dounanshi.libgdx.util.destructable.mappreprocessor;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.Pixmap.Blending;
+import com.badlogic.gdx.graphics.Pixmap.Format;
+import com.dounanshi.libgdx.util.destructable.CollisionMap;
+
+/**
+ * Builds a collision {@link Pixmap} from a {@link Pixmap} of the level.
+ *
+ * The surface normal of an edge pixel points away from the solid pixels in
+ * the window of projectionSmooth pixels around it. Window sums are read from
+ * summed-area tables (solid count, sum of x and sum of y of the solid pixels),
+ * so every pixel costs the same no matter how large the window is.
+ *
+ * The level is split into bands of rows that are built in parallel. Each band
+ * computes its own tables starting from the halo rows above it, and keeps only
+ * the table rows that the current row's windows reach. Any rectangle of the
+ * level can be built the same way on its own, see {@link CollisionTileCache}.
+ * Pixels are read from and written to the pixmap buffers directly.
+ */
+public class CollisionPixmapBuilder {
+
+    private static final String LOG_TAG = "CollisionPixmapBuilder";
+
+    // Number of rows below which a band stops splitting.
+    private static final int BAND_ROWS = 128;
+
+    private final int projectionSmooth;
+
+    // Number of rows above and below a pixel that its windows reach.
+    private final int reach;
+
+    /**
+     * @param projectionSmooth
+     *            Number of pixels to look around when calculating the surface
+     *            normal. For more curvy maps, a higher number is better.
+     */
+    public CollisionPixmapBuilder(int projectionSmooth) {
+        if (projectionSmooth < 0) {
+            throw new IllegalArgumentException("projectionSmooth must not be negative: "
+                    + projectionSmooth);
+        }
+        this.projectionSmooth = projectionSmooth;
+        // isEdgePixel always needs the 8 surrounding pixels.
+        this.reach = Math.max(projectionSmooth, 1);
+    }
+
+    public int getProjectionSmooth() {
+        return projectionSmooth;
+    }
+
+    /**
+     * Creates a collision {@link Pixmap} from a {@link Pixmap} of the level,
+     * using all available processors. The caller is responsible for disposing
+     * it.
+     */
+    public Pixmap build(Pixmap levelPixmap) {
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            return build(levelPixmap, pool);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Same as {@link #build(Pixmap)}, but builds the bands on the pool.
+     */
+    public Pixmap build(Pixmap levelPixmap, ForkJoinPool pool) {
+        long start = System.nanoTime();
+        int w = levelPixmap.getWidth();
+        int h = levelPixmap.getHeight();
+        Pixmap rgbaPixmap = levelPixmap;
+        if (levelPixmap.getFormat() != Format.RGBA8888) {
+            rgbaPixmap = toRGBA8888(levelPixmap);
+        }
+        Pixmap collisionPixmap = new Pixmap(w, h, Format.RGBA8888);
+        try {
+            pool.invoke(new BandTask(rgbaPixmap.getPixels(), collisionPixmap.getPixels(), w, h,
+                    0, h));
+        } finally {
+            if (rgbaPixmap != levelPixmap) {
+                rgbaPixmap.dispose();
+            }
+        }
+
+        float seconds = (System.nanoTime() - start) / 1e9f;
+        Gdx.app.log(LOG_TAG, "Built " + w + "x" + h + " collision map in " + seconds + " s ("
+                + (w * (float) h / 1e6f / seconds) + " MP/s)");
+        return collisionPixmap;
+    }
+
+    /**
+     * Returns the number of pixels around a pixel that its collision pixel
+     * depends on.
+     */
+    int getReach() {
+        return reach;
+    }
+
+    /**
+     * Builds the collision pixels of [x0, x1) x [y0, y1) of a level.
+     *
+     * @param levelPixels
+     *            RGBA8888 pixels of the whole level.
+     *
+     * @return the encoded pixels in row-major order.
+     */
+    int[] buildRegion(ByteBuffer levelPixels, int w, int h, int x0, int y0, int x1, int y1) {
+        return buildRegion(levelPixels, 0, w, h, x0, y0, x1, y1);
+    }
+
+    /**
+     * Same as {@link #buildRegion(ByteBuffer, int, int, int, int, int, int)},
+     * but levelPixels only holds the level rows starting at firstRow. Those
+     * must include the rows within {@link #getReach()} of [y0, y1).
+     */
+    int[] buildRegion(ByteBuffer levelPixels, int firstRow, int w, int h, int x0, int y0,
+            int x1, int y1) {
+        int regionWidth = x1 - x0;
+        int[] pixels = new int[regionWidth * (y1 - y0)];
+        new Region(levelPixels, firstRow, w, h).build(x0, y0, x1, y1, IntBuffer.wrap(pixels), 0,
+                regionWidth);
+        return pixels;
+    }
+
+    /**
+     * Returns an RGBA8888 copy of the pixmap.
+     */
+    static Pixmap toRGBA8888(Pixmap pixmap) {
+        Pixmap copy = new Pixmap(pixmap.getWidth(), pixmap.getHeight(), Format.RGBA8888);
+        // Blending is global, so leave it alone if it is already off in case
+        // other maps are being converted at the same time.
+        Blending blending = Pixmap.getBlending();
+        if (blending == Blending.None) {
+            copy.drawPixmap(pixmap, 0, 0);
+            return copy;
+        }
+        Pixmap.setBlending(Blending.None);
+        copy.drawPixmap(pixmap, 0, 0);
+        Pixmap.setBlending(blending);
+        return copy;
+    }
+
+    /**
+     * Builds the collision pixels of the rows [y0, y1), splitting them in half
+     * until they are at most BAND_ROWS rows.
+     */
+    private class BandTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ByteBuffer levelPixels;
+        private final ByteBuffer collisionPixels;
+        private final int w;
+        private final int h;
+        private final int y0;
+        private final int y1;
+
+        BandTask(ByteBuffer levelPixels, ByteBuffer collisionPixels, int w, int h, int y0, int y1) {
+            this.levelPixels = levelPixels;
+            this.collisionPixels = collisionPixels;
+            this.w = w;
+            this.h = h;
+            this.y0 = y0;
+            this.y1 = y1;
+        }
+
+        @Override
+        protected void compute() {
+            if (y1 - y0 > BAND_ROWS) {
+                int mid = (y0 + y1) >>> 1;
+                invokeAll(new BandTask(levelPixels, collisionPixels, w, h, y0, mid),
+                        new BandTask(levelPixels, collisionPixels, w, h, mid, y1));
+                return;
+            }
+            new Region(levelPixels, 0, w, h).build(0, y0, w, y1, asInts(collisionPixels), y0 * w,
+                    w);
+        }
+    }
+
+    /**
+     * Builds the collision pixels of rectangles of a level. The summed-area
+     * tables only cover the halo around the rectangle that its windows reach.
+     */
+    private class Region {
+
+        private final ByteBuffer level;
+        private final int firstRow;
+        private final int w;
+        private final int h;
+
+        // First level row and column covered by the tables. Table row i holds
+        // the sums over the pixels in rows [baseRow, i) and columns
+        // [baseCol, baseCol + c) at index c.
+        private int baseRow;
+        private int baseCol;
+
+        // Ring of table rows.
+        private int[][] counts;
+        private int[][] sumsX;
+        private int[][] sumsY;
+
+        /**
+         * @param levelPixels
+         *            RGBA8888 pixels of the level rows starting at firstRow. Not
+         *            modified.
+         */
+        Region(ByteBuffer levelPixels, int firstRow, int w, int h) {
+            // Own view so that positions are not shared between threads.
+            this.level = levelPixels.duplicate();
+            this.level.clear();
+            this.firstRow = firstRow;
+            this.w = w;
+            this.h = h;
+        }
+
+        /**
+         * Builds the collision pixels of [x0, x1) x [y0, y1) and puts each row
+         * into out, starting at offset and stride apart.
+         */
+        void build(int x0, int y0, int x1, int y1, IntBuffer out, int offset, int stride) {
+            // Halo rows and columns around the rectangle are only used for
+            // the tables. Table row baseRow is all zeros, which the new arrays
+            // already are.
+            baseRow = Math.max(y0 - reach, 0);
+            baseCol = Math.max(x0 - reach, 0);
+            int cols = Math.min(x1 + reach, w) - baseCol;
+            int ringRows = 2 * reach + 2;
+            counts = new int[ringRows][cols + 1];
+            sumsX = new int[ringRows][cols + 1];
+            sumsY = new int[ringRows][cols + 1];
+            int[] row = new int[x1 - x0];
+
+            int tableRows = baseRow + 1;
+            for (int y = y0; y < y1; y++) {
+                int lastRow = Math.min(y + reach + 1, h);
+                while (tableRows <= lastRow) {
+                    addTableRow(tableRows);
+                    tableRows++;
+                }
+                for (int x = x0; x < x1; x++) {
+                    row[x - x0] = getColor(x, y);
+                }
+                out.position(offset + (y - y0) * stride);
+                out.put(row);
+            }
+        }
+
+        /**
+         * Computes table row i from table row i - 1 and pixel row i - 1.
+         *
+         * Sums of coordinates can overflow for large maps, but window sums are
+         * differences of table entries and come out exact with wraparound.
+         */
+        private void addTableRow(int i) {
+            int y = i - 1;
+            int[] prevCount = counts[ring(y)];
+            int[] prevSumX = sumsX[ring(y)];
+            int[] prevSumY = sumsY[ring(y)];
+            int[] count = counts[ring(i)];
+            int[] sumX = sumsX[ring(i)];
+            int[] sumY = sumsY[ring(i)];
+            int rowCount = 0;
+            int rowSumX = 0;
+            int rowSumY = 0;
+            int cols = count.length - 1;
+            int alpha = ((y - firstRow) * w + baseCol) * 4 + 3;
+            for (int c = 0; c < cols; c++, alpha += 4) {
+                if (level.get(alpha) != 0) {
+                    rowCount++;
+                    rowSumX += baseCol + c;
+                    rowSumY += y;
+                }
+                count[c + 1] = prevCount[c + 1] + rowCount;
+                sumX[c + 1] = prevSumX[c + 1] + rowSumX;
+                sumY[c + 1] = prevSumY[c + 1] + rowSumY;
+            }
+        }
+
+        /**
+         * Returns a 32 bit color for the pixel at (x, y).
+         *
+         * @param x
+         *            x coordinate of the pixel. 0 is the leftmost column.
+         * @param y
+         *            y coordinate of the pixel. 0 is the topmost row.
+         *
+         * @return the color of the pixel.
+         */
+        private int getColor(int x, int y) {
+            if (windowSum(counts, x, y, x + 1, y + 1) == 0) {
+                return CollisionMap.encodeBlankPixelData();
+            }
+            if (!isEdgePixel(x, y)) {
+                return CollisionMap.encodeSolidPixelData(0, 0);
+            }
+
+            // Window clipped to the level. Pixels outside of it are not solid.
+            int x0 = Math.max(x - projectionSmooth, 0);
+            int wy0 = Math.max(y - projectionSmooth, 0);
+            int x1 = Math.min(x + projectionSmooth + 1, w);
+            int wy1 = Math.min(y + projectionSmooth + 1, h);
+            int count = windowSum(counts, x0, wy0, x1, wy1);
+            // Solid pixels that are not in the same column or row as (x, y).
+            boolean hasHorz = count - windowSum(counts, x, wy0, x + 1, wy1) > 0;
+            boolean hasVert = count - windowSum(counts, x0, y, x1, y + 1) > 0;
+            // snx is the sum of -dx and sny the sum of dy over the solid
+            // pixels.
+            int snx = count * x - windowSum(sumsX, x0, wy0, x1, wy1);
+            int sny = windowSum(sumsY, x0, wy0, x1, wy1) - count * y;
+            if (snx == 0 && sny == 0) {
+                if (hasHorz && hasVert) {
+                    // This should never happen.
+                    Gdx.app.log("getColor", "Wtf? hasHorz && hasVert at (" + x + ", " + y + ")");
+                    sny = 1;
+                } else if (!hasHorz && !hasVert) {
+                    sny = 1;
+                } else if (hasHorz) {
+                    sny = 1;
+                } else if (hasVert) {
+                    snx = 1;
+                }
+            }
+            return CollisionMap.encodeSolidPixelData(snx, sny);
+        }
+
+        /**
+         * Returns true iff one of the 8 surrounding pixels is not solid.
+         */
+        private boolean isEdgePixel(int x, int y) {
+            if (x == 0 || y == 0 || x == w - 1 || y == h - 1) {
+                // Pixels outside of the level are not solid.
+                return true;
+            }
+            return windowSum(counts, x - 1, y - 1, x + 2, y + 2) < 9;
+        }
+
+        /**
+         * Returns the sum of the table over the pixels in [x0, x1) x [y0, y1).
+         */
+        private int windowSum(int[][] table, int x0, int y0, int x1, int y1) {
+            int[] top = table[ring(y0)];
+            int[] bottom = table[ring(y1)];
+            x0 -= baseCol;
+            x1 -= baseCol;
+            return bottom[x1] - bottom[x0] - top[x1] + top[x0];
+        }
+
+        private int ring(int tableRow) {
+            return tableRow % counts.length;
+        }
+    }
+
+    /**
+     * Returns an int view of the pixels of an RGBA8888 pixmap. Each int has the
+     * same value as {@link Pixmap#getPixel(int, int)}.
+     */
+    static IntBuffer asInts(ByteBuffer pixels) {
+        ByteBuffer bytes = pixels.duplicate();
+        bytes.clear();
+        return bytes.order(ByteOrder.BIG_ENDIAN).asIntBuffer();
+    }
+}
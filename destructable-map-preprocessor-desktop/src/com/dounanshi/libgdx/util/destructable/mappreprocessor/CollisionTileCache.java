@@ -0,0 +1,422 @@
+package com.dounanshi.libgdx.util.destructable.mappreprocessor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.Pixmap.Format;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+import com.badlogic.gdx.utils.StreamUtils;
+
+/**
+ * Local cache of encoded collision tiles, so that rebuilding a level after a
+ * small edit only recomputes the tiles around the edit.
+ *
+ * The level is split into square tiles. The collision pixels of a tile only
+ * depend on the solid pixels within the builder's reach of the tile and on
+ * where the edges of the level are, so a tile's key is a hash of exactly that
+ * plus the builder settings. Each key is stored as one compressed file in the
+ * cache directory, and identical tiles anywhere in any level share a file.
+ *
+ * The cache is only used when asked for, and lives next to the outputs by
+ * default, see {@link #defaultDirectory(FileHandle)}. It is bounded by
+ * maxBytes: after each build, the tiles that were used least recently are
+ * deleted until the rest fit.
+ */
+public class CollisionTileCache {
+
+    private static final String LOG_TAG = "CollisionTileCache";
+
+    public static final int DEFAULT_TILE_SIZE = 256;
+
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+    /**
+     * Name of the cache directory in the output directory.
+     */
+    public static final String DIRECTORY_NAME = ".collision-tile-cache";
+
+    // Change this whenever the collision pixel encoding or the key changes,
+    // so that stale tiles are never used.
+    private static final int FORMAT_VERSION = 1;
+
+    private static final String TILE_EXTENSION = ".tile";
+
+    private static final int BUFFER_SIZE = 32000;
+
+    private final FileHandle dir;
+    private final int tileSize;
+    private final long maxBytes;
+
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+    private final AtomicInteger evictions = new AtomicInteger();
+
+    public CollisionTileCache(FileHandle dir) {
+        this(dir, DEFAULT_TILE_SIZE, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxBytes
+     *            size of the tile files that is kept after each build.
+     */
+    public CollisionTileCache(FileHandle dir, int tileSize, long maxBytes) {
+        if (tileSize < 1) {
+            throw new IllegalArgumentException("tileSize must be positive: " + tileSize);
+        }
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes must not be negative: " + maxBytes);
+        }
+        this.dir = dir;
+        this.tileSize = tileSize;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the cache directory for maps written to the output directory.
+     */
+    public static FileHandle defaultDirectory(FileHandle outputDir) {
+        return outputDir.child(DIRECTORY_NAME);
+    }
+
+    public FileHandle getDirectory() {
+        return dir;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Returns the number of tiles that were read from the cache so far.
+     */
+    public int getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of tiles that had to be built so far.
+     */
+    public int getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of tiles deleted to stay within maxBytes so far.
+     */
+    public int getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Same as {@link CollisionPixmapBuilder#build(Pixmap)}, but only builds the
+     * tiles that are not in the cache yet.
+     */
+    public Pixmap build(Pixmap levelPixmap, CollisionPixmapBuilder builder) {
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            return build(levelPixmap, builder, pool);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Same as {@link #build(Pixmap, CollisionPixmapBuilder)}, but builds the
+     * tiles on the pool.
+     */
+    public Pixmap build(Pixmap levelPixmap, CollisionPixmapBuilder builder, ForkJoinPool pool) {
+        long start = System.nanoTime();
+        int hitsBefore = hits.get();
+        int missesBefore = misses.get();
+        int w = levelPixmap.getWidth();
+        int h = levelPixmap.getHeight();
+        Pixmap rgbaPixmap = levelPixmap;
+        if (levelPixmap.getFormat() != Format.RGBA8888) {
+            rgbaPixmap = CollisionPixmapBuilder.toRGBA8888(levelPixmap);
+        }
+        Pixmap collisionPixmap = new Pixmap(w, h, Format.RGBA8888);
+        try {
+            dir.mkdirs();
+            int cols = (w + tileSize - 1) / tileSize;
+            int rows = (h + tileSize - 1) / tileSize;
+            if (cols * rows > 0) {
+                pool.invoke(new TileTask(builder, rgbaPixmap.getPixels(),
+                        collisionPixmap.getPixels(), w, h, cols, 0, cols * rows));
+            }
+        } finally {
+            if (rgbaPixmap != levelPixmap) {
+                rgbaPixmap.dispose();
+            }
+        }
+        trim();
+
+        float seconds = (System.nanoTime() - start) / 1e9f;
+        Gdx.app.log(LOG_TAG, "Built " + w + "x" + h + " collision map in " + seconds + " s, "
+                + (hits.get() - hitsBefore) + " cached tiles, " + (misses.get() - missesBefore)
+                + " built tiles");
+        return collisionPixmap;
+    }
+
+    /**
+     * Fills in the collision pixels of the tile [x0, x1) x [y0, y1), from the
+     * cache if possible.
+     */
+    private void buildTile(CollisionPixmapBuilder builder, ByteBuffer level, int w, int h,
+            int x0, int y0, int x1, int y1, IntBuffer collision) {
+        int tileWidth = x1 - x0;
+        int tileHeight = y1 - y0;
+        FileHandle file = dir.child(key(builder, level, w, h, x0, y0, x1, y1) + TILE_EXTENSION);
+        int[] pixels = null;
+        if (file.exists()) {
+            pixels = readTile(file, tileWidth, tileHeight);
+        }
+        if (pixels != null) {
+            hits.incrementAndGet();
+            // Modification times order the tiles by last use for trim().
+            file.file().setLastModified(System.currentTimeMillis());
+        } else {
+            misses.incrementAndGet();
+            pixels = builder.buildRegion(level, w, h, x0, y0, x1, y1);
+            writeTile(file, tileWidth, tileHeight, pixels);
+        }
+        for (int y = y0; y < y1; y++) {
+            collision.position(y * w + x0);
+            collision.put(pixels, (y - y0) * tileWidth, tileWidth);
+        }
+    }
+
+    /**
+     * Deletes the least recently used tiles until the rest take at most
+     * maxBytes. Builds running at the same time rebuild tiles that are
+     * deleted under them.
+     */
+    public void trim() {
+        File[] files = dir.file().listFiles();
+        if (files == null) {
+            return;
+        }
+        List<File> tiles = new ArrayList<File>();
+        long bytes = 0;
+        for (File file : files) {
+            if (file.getName().endsWith(TILE_EXTENSION)) {
+                tiles.add(file);
+                bytes += file.length();
+            }
+        }
+        if (bytes <= maxBytes) {
+            return;
+        }
+        // Read the times once, since hits may change them while sorting.
+        final Map<File, Long> lastUsed = new HashMap<File, Long>();
+        for (File tile : tiles) {
+            lastUsed.put(tile, tile.lastModified());
+        }
+        Collections.sort(tiles, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long usedA = lastUsed.get(a);
+                long usedB = lastUsed.get(b);
+                return usedA < usedB ? -1 : usedA > usedB ? 1 : 0;
+            }
+        });
+        for (int i = 0; i < tiles.size() && bytes > maxBytes; i++) {
+            File tile = tiles.get(i);
+            long length = tile.length();
+            if (tile.delete()) {
+                bytes -= length;
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Returns a hash of everything the collision pixels of the tile depend
+     * on: the builder settings, the tile size, how far the halo around the
+     * tile reaches before the edges of the level and which halo pixels are
+     * solid. The position of the tile is left out on purpose.
+     */
+    private String key(CollisionPixmapBuilder builder, ByteBuffer level, int w, int h, int x0,
+            int y0, int x1, int y1) {
+        int reach = builder.getReach();
+        int haloX0 = Math.max(x0 - reach, 0);
+        int haloY0 = Math.max(y0 - reach, 0);
+        int haloX1 = Math.min(x1 + reach, w);
+        int haloY1 = Math.min(y1 + reach, h);
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new GdxRuntimeException(e);
+        }
+        ByteBuffer header = ByteBuffer.allocate(8 * 4);
+        header.putInt(FORMAT_VERSION).putInt(builder.getProjectionSmooth());
+        header.putInt(x1 - x0).putInt(y1 - y0);
+        header.putInt(x0 - haloX0).putInt(y0 - haloY0).putInt(haloX1 - x1).putInt(haloY1 - y1);
+        digest.update(header.array());
+
+        // One bit per halo pixel, same solid test as the builder.
+        byte[] row = new byte[(haloX1 - haloX0 + 7) / 8];
+        for (int y = haloY0; y < haloY1; y++) {
+            Arrays.fill(row, (byte) 0);
+            int alpha = (y * w + haloX0) * 4 + 3;
+            for (int i = 0; i < haloX1 - haloX0; i++, alpha += 4) {
+                if (level.get(alpha) != 0) {
+                    row[i >> 3] |= 1 << (i & 7);
+                }
+            }
+            digest.update(row);
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Returns the pixels of a cached tile, or null if the file is not a valid
+     * tile of that size.
+     */
+    private static int[] readTile(FileHandle file, int tileWidth, int tileHeight) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new InflaterInputStream(file.read()),
+                    BUFFER_SIZE));
+            if (in.readInt() != FORMAT_VERSION || in.readInt() != tileWidth
+                    || in.readInt() != tileHeight) {
+                return null;
+            }
+            int[] pixels = new int[tileWidth * tileHeight];
+            byte[] bytes = new byte[BUFFER_SIZE];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            int read = 0;
+            while (read < pixels.length) {
+                int n = Math.min(bytes.length / 4, pixels.length - read);
+                in.readFully(bytes, 0, n * 4);
+                buffer.clear();
+                buffer.asIntBuffer().get(pixels, read, n);
+                read += n;
+            }
+            return pixels;
+        } catch (IOException e) {
+            Gdx.app.error(LOG_TAG, "Ignoring unreadable cached tile '" + file + "'", e);
+            return null;
+        } catch (GdxRuntimeException e) {
+            Gdx.app.error(LOG_TAG, "Ignoring unreadable cached tile '" + file + "'", e);
+            return null;
+        } finally {
+            StreamUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Writes a tile to a temporary file first and then moves it into place,
+     * so that other builds never see half written tiles.
+     */
+    private static void writeTile(FileHandle file, int tileWidth, int tileHeight, int[] pixels) {
+        FileHandle tmpFile = file.sibling(file.name() + "." + Thread.currentThread().getId()
+                + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(
+                    tmpFile.write(false)), BUFFER_SIZE));
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(tileWidth);
+            out.writeInt(tileHeight);
+            byte[] bytes = new byte[BUFFER_SIZE];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            int written = 0;
+            while (written < pixels.length) {
+                int n = Math.min(bytes.length / 4, pixels.length - written);
+                buffer.clear();
+                buffer.asIntBuffer().put(pixels, written, n);
+                out.write(bytes, 0, n * 4);
+                written += n;
+            }
+        } catch (IOException e) {
+            throw new GdxRuntimeException("Couldn't write cached tile '" + tmpFile + "'", e);
+        } finally {
+            StreamUtils.closeQuietly(out);
+        }
+        tmpFile.moveTo(file);
+    }
+
+    /**
+     * Builds the tiles [start, end), numbered in row-major order, splitting
+     * them in half until there is one left.
+     */
+    private class TileTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final CollisionPixmapBuilder builder;
+        private final ByteBuffer levelPixels;
+        private final ByteBuffer collisionPixels;
+        private final int w;
+        private final int h;
+        private final int cols;
+        private final int start;
+        private final int end;
+
+        TileTask(CollisionPixmapBuilder builder, ByteBuffer levelPixels,
+                ByteBuffer collisionPixels, int w, int h, int cols, int start, int end) {
+            this.builder = builder;
+            this.levelPixels = levelPixels;
+            this.collisionPixels = collisionPixels;
+            this.w = w;
+            this.h = h;
+            this.cols = cols;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > 1) {
+                int mid = (start + end) >>> 1;
+                invokeAll(new TileTask(builder, levelPixels, collisionPixels, w, h, cols, start,
+                        mid), new TileTask(builder, levelPixels, collisionPixels, w, h, cols,
+                        mid, end));
+                return;
+            }
+            // Own views so that positions are not shared between threads.
+            ByteBuffer level = levelPixels.duplicate();
+            level.clear();
+            IntBuffer collision = CollisionPixmapBuilder.asInts(collisionPixels);
+            int x0 = start % cols * tileSize;
+            int y0 = start / cols * tileSize;
+            buildTile(builder, level, w, h, x0, y0, Math.min(x0 + tileSize, w),
+                    Math.min(y0 + tileSize, h), collision);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.dounanshi.libgdx.util.destructable.mappreprocessor;
+
+import com.badlogic.gdx.backends.headless.HeadlessApplication;
+
+public class HeadlessMain {
+	public static void main (String[] arg) throws InterruptedException {
+		BatchPreprocessor preprocessor;
+		try {
+			preprocessor = new BatchPreprocessor(arg);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println(BatchPreprocessor.USAGE);
+			System.exit(BatchPreprocessor.EXIT_USAGE);
+			return;
+		}
+		new HeadlessApplication(preprocessor);
+		System.exit(preprocessor.waitForExitStatus());
+	}
+}
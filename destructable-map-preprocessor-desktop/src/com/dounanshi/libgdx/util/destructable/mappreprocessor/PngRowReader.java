@@ -0,0 +1,329 @@
+package com.dounanshi.libgdx.util.destructable.mappreprocessor;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.InflaterInputStream;
+
+import com.badlogic.gdx.utils.GdxRuntimeException;
+import com.badlogic.gdx.utils.StreamUtils;
+
+/**
+ * Decodes the alpha of a PNG image one row after another, in a single pass
+ * over the file, keeping only the current and the previous row in memory.
+ *
+ * Alpha is the same as in a {@link com.badlogic.gdx.graphics.Pixmap} loaded
+ * from the file: grayscale images without transparency are loaded as alpha
+ * pixmaps, so their gray level is the alpha, and grayscale and RGB images with
+ * a transparent color have an alpha of 0 for that color and 255 otherwise.
+ * Only non-interlaced images with up to 8 bits per sample are read; pixmaps
+ * can't load 16-bit images. Pixmaps also get filtered rows wrong in images
+ * with less than 8 bits per pixel, which are decoded as the PNG spec says
+ * here.
+ */
+class PngRowReader implements StreamingPreprocessor.RowReader {
+
+    private static final byte[] SIGNATURE = { (byte) 137, 'P', 'N', 'G', '\r', '\n', 26, '\n' };
+
+    private static final int IHDR = 0x49484452;
+    private static final int TRNS = 0x74524e53;
+    private static final int IDAT = 0x49444154;
+
+    private static final int COLOR_GRAY = 0;
+    private static final int COLOR_RGB = 2;
+    private static final int COLOR_PALETTE = 3;
+    private static final int COLOR_GRAY_ALPHA = 4;
+    private static final int COLOR_RGBA = 6;
+
+    private static final int FILTER_NONE = 0;
+    private static final int FILTER_SUB = 1;
+    private static final int FILTER_UP = 2;
+    private static final int FILTER_AVERAGE = 3;
+    private static final int FILTER_PAETH = 4;
+
+    private final DataInputStream chunks;
+    private final int width;
+    private final int height;
+    private final int bitDepth;
+    private final int colorType;
+
+    // Alpha of each palette entry.
+    private final byte[] paletteAlpha = new byte[256];
+    // Samples of the transparent color, or null if there is none.
+    private int[] transparent;
+
+    private DataInputStream pixels;
+    // Bytes between a byte and the same byte of the pixel to the left.
+    private final int pixelBytes;
+    private byte[] row;
+    private byte[] previousRow;
+    private int rowIndex;
+
+    /**
+     * Returns a reader for the image, or null if it is not a PNG image or
+     * one that this class can't read.
+     */
+    static PngRowReader open(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+                file)));
+        try {
+            byte[] signature = new byte[SIGNATURE.length];
+            in.readFully(signature);
+            if (!Arrays.equals(signature, SIGNATURE) || in.readInt() != 13
+                    || in.readInt() != IHDR) {
+                return null;
+            }
+            int width = in.readInt();
+            int height = in.readInt();
+            int bitDepth = in.readUnsignedByte();
+            int colorType = in.readUnsignedByte();
+            int compression = in.readUnsignedByte();
+            int filter = in.readUnsignedByte();
+            int interlace = in.readUnsignedByte();
+            in.readInt(); // CRC
+            if (width <= 0 || height <= 0 || bitDepth > 8 || compression != 0 || filter != 0
+                    || interlace != 0 || channels(colorType) == 0) {
+                return null;
+            }
+            PngRowReader reader = new PngRowReader(in, width, height, bitDepth, colorType);
+            in = null;
+            return reader;
+        } catch (EOFException e) {
+            return null;
+        } finally {
+            StreamUtils.closeQuietly(in);
+        }
+    }
+
+    private PngRowReader(DataInputStream chunks, int width, int height, int bitDepth,
+            int colorType) {
+        this.chunks = chunks;
+        this.width = width;
+        this.height = height;
+        this.bitDepth = bitDepth;
+        this.colorType = colorType;
+        Arrays.fill(paletteAlpha, (byte) 255);
+        int bitsPerPixel = channels(colorType) * bitDepth;
+        pixelBytes = Math.max(bitsPerPixel / 8, 1);
+        row = new byte[(int) (((long) width * bitsPerPixel + 7) / 8)];
+        previousRow = new byte[row.length];
+    }
+
+    /**
+     * Returns the number of samples per pixel, or 0 if the color type is not
+     * valid.
+     */
+    private static int channels(int colorType) {
+        switch (colorType) {
+        case COLOR_GRAY:
+        case COLOR_PALETTE:
+            return 1;
+        case COLOR_GRAY_ALPHA:
+            return 2;
+        case COLOR_RGB:
+            return 3;
+        case COLOR_RGBA:
+            return 4;
+        default:
+            return 0;
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public void readAlpha(byte[] alpha, int offset, int stride) throws IOException {
+        if (rowIndex >= height) {
+            throw new GdxRuntimeException("Read past the last row");
+        }
+        if (pixels == null) {
+            readHeaderChunks();
+        }
+        byte[] swap = previousRow;
+        previousRow = row;
+        row = swap;
+        int filter = pixels.readUnsignedByte();
+        pixels.readFully(row);
+        unfilter(filter);
+        rowIndex++;
+
+        switch (colorType) {
+        case COLOR_RGBA:
+        case COLOR_GRAY_ALPHA:
+            int channels = channels(colorType);
+            for (int x = 0, i = channels - 1; x < width; x++, i += channels) {
+                alpha[offset + x * stride] = row[i];
+            }
+            break;
+        case COLOR_RGB:
+            for (int x = 0, i = 0; x < width; x++, i += 3) {
+                boolean clear = transparent != null && (row[i] & 0xff) == transparent[0]
+                        && (row[i + 1] & 0xff) == transparent[1]
+                        && (row[i + 2] & 0xff) == transparent[2];
+                alpha[offset + x * stride] = clear ? 0 : (byte) 255;
+            }
+            break;
+        case COLOR_PALETTE:
+            for (int x = 0; x < width; x++) {
+                alpha[offset + x * stride] = paletteAlpha[sample(x)];
+            }
+            break;
+        default:
+            // Gray levels scaled up to 8 bits, e.g. 0xf becomes 0xff.
+            int scale = 255 / ((1 << bitDepth) - 1);
+            for (int x = 0; x < width; x++) {
+                int sample = sample(x);
+                if (transparent != null) {
+                    alpha[offset + x * stride] = sample == transparent[0] ? 0 : (byte) 255;
+                } else {
+                    alpha[offset + x * stride] = (byte) (sample * scale);
+                }
+            }
+            break;
+        }
+    }
+
+    /**
+     * Returns the sample of pixel x in an image with one sample per pixel.
+     */
+    private int sample(int x) {
+        if (bitDepth == 8) {
+            return row[x] & 0xff;
+        }
+        int bit = x * bitDepth;
+        int shift = 8 - bitDepth - (bit & 7);
+        return (row[bit >> 3] >> shift) & ((1 << bitDepth) - 1);
+    }
+
+    /**
+     * Reads the chunks up to the first IDAT chunk, and starts inflating the
+     * image data.
+     */
+    private void readHeaderChunks() throws IOException {
+        while (true) {
+            int length = chunks.readInt();
+            int type = chunks.readInt();
+            if (type == IDAT) {
+                pixels = new DataInputStream(new BufferedInputStream(new InflaterInputStream(
+                        new ImageDataInputStream(chunks, length))));
+                return;
+            }
+            byte[] data = new byte[length];
+            chunks.readFully(data);
+            chunks.readInt(); // CRC
+            if (type == TRNS) {
+                if (colorType == COLOR_PALETTE) {
+                    System.arraycopy(data, 0, paletteAlpha, 0, Math.min(length, 256));
+                } else if (colorType == COLOR_GRAY && length >= 2) {
+                    transparent = new int[] { readShort(data, 0) };
+                } else if (colorType == COLOR_RGB && length >= 6) {
+                    transparent = new int[] { readShort(data, 0), readShort(data, 2),
+                            readShort(data, 4) };
+                }
+            }
+        }
+    }
+
+    private static int readShort(byte[] data, int i) {
+        return (data[i] & 0xff) << 8 | data[i + 1] & 0xff;
+    }
+
+    private void unfilter(int filter) throws IOException {
+        byte[] cur = row;
+        byte[] prev = previousRow;
+        int n = cur.length;
+        int bpp = pixelBytes;
+        switch (filter) {
+        case FILTER_NONE:
+            break;
+        case FILTER_SUB:
+            for (int i = bpp; i < n; i++) {
+                cur[i] += cur[i - bpp];
+            }
+            break;
+        case FILTER_UP:
+            for (int i = 0; i < n; i++) {
+                cur[i] += prev[i];
+            }
+            break;
+        case FILTER_AVERAGE:
+            for (int i = 0; i < n; i++) {
+                int left = i >= bpp ? cur[i - bpp] & 0xff : 0;
+                cur[i] += (left + (prev[i] & 0xff)) >> 1;
+            }
+            break;
+        case FILTER_PAETH:
+            for (int i = 0; i < n; i++) {
+                int a = i >= bpp ? cur[i - bpp] & 0xff : 0;
+                int b = prev[i] & 0xff;
+                int c = i >= bpp ? prev[i - bpp] & 0xff : 0;
+                int p = a + b - c;
+                int pa = Math.abs(p - a);
+                int pb = Math.abs(p - b);
+                int pc = Math.abs(p - c);
+                cur[i] += pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+            }
+            break;
+        default:
+            throw new IOException("Invalid PNG filter " + filter + " in row " + rowIndex);
+        }
+    }
+
+    @Override
+    public void close() {
+        StreamUtils.closeQuietly(pixels);
+        StreamUtils.closeQuietly(chunks);
+    }
+
+    /**
+     * The data of consecutive IDAT chunks as one stream.
+     */
+    private static class ImageDataInputStream extends InputStream {
+
+        private final DataInputStream chunks;
+        // Bytes left in the current IDAT chunk, or -1 after the last one.
+        private int remaining;
+
+        ImageDataInputStream(DataInputStream chunks, int length) {
+            this.chunks = chunks;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (remaining == 0) {
+                chunks.readInt(); // CRC
+                int length = chunks.readInt();
+                remaining = chunks.readInt() == IDAT ? length : -1;
+            }
+            if (remaining < 0) {
+                return -1;
+            }
+            int n = chunks.read(b, off, Math.min(len, remaining));
+            if (n < 0) {
+                throw new EOFException("PNG image data ends early");
+            }
+            remaining -= n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package com.dounanshi.libgdx.util.destructable.mappreprocessor;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Iterator;
+import java.util.zip.DeflaterOutputStream;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.graphics.Pixmap.Format;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+import com.badlogic.gdx.utils.StreamUtils;
+import com.dounanshi.libgdx.util.destructable.CollisionMap;
+import com.dounanshi.libgdx.util.destructable.CollisionMapFile;
+import com.dounanshi.libgdx.util.destructable.DistanceField;
+
+/**
+ * Preprocesses maps that are too large to hold in memory as pixmaps.
+ *
+ * The level image is read in horizontal strips of stripRows rows, keeping
+ * only the halo rows around the current strip that its collision pixels and
+ * distances depend on. PNG images are decoded in one pass from top to bottom
+ * by {@link PngRowReader}. Other images, and PNG images it can't read, are
+ * read with {@link ImageIO} one strip at a time, which for most formats
+ * decodes the image from the top again for every strip. Each strip is written straight
+ * to the cim, collision map and distance field files as soon as it is built,
+ * so memory use is bounded by the strip size and the width of the map, not by
+ * its height. The output is the same as {@link MapPreprocessor}'s.
+ */
+public class StreamingPreprocessor {
+
+    private static final String LOG_TAG = "StreamingPreprocessor";
+
+    public static final int DEFAULT_STRIP_ROWS = 256;
+
+    private final CollisionPixmapBuilder builder;
+    private final int stripRows;
+
+    public StreamingPreprocessor(CollisionPixmapBuilder builder, int stripRows) {
+        if (stripRows < 1) {
+            throw new IllegalArgumentException("stripRows must be positive: " + stripRows);
+        }
+        this.builder = builder;
+        this.stripRows = stripRows;
+    }
+
+    /**
+     * Writes the collision map of the level image to the cim file, and the
+     * collision map file and signed distance layer next to it.
+     */
+    public void process(File levelFile, FileHandle cimFile) {
+        long start = System.nanoTime();
+        RowReader reader = null;
+        try {
+            reader = PngRowReader.open(levelFile);
+            if (reader == null) {
+                reader = ImageIORowReader.open(levelFile, stripRows);
+            }
+            int w = reader.getWidth();
+            int h = reader.getHeight();
+            process(reader, w, h, cimFile);
+
+            float seconds = (System.nanoTime() - start) / 1e9f;
+            Gdx.app.log(LOG_TAG, "Streamed " + w + "x" + h + " collision map in " + seconds
+                    + " s (" + (w * (float) h / 1e6f / seconds) + " MP/s)");
+        } catch (IOException e) {
+            throw new GdxRuntimeException("Couldn't read level image '" + levelFile + "'", e);
+        } finally {
+            if (reader != null) {
+                reader.close();
+            }
+        }
+    }
+
+    private void process(RowReader reader, int w, int h, FileHandle cimFile)
+            throws IOException {
+        // Rows around a strip that are kept for building it.
+        int halo = Math.max(builder.getReach(),
+                DistanceField.Writer.getMargin(MapPreprocessor.DISTANCE_FIELD_MAX));
+        int maxRows = stripRows + 2 * halo;
+        // RGBA8888 layout for the builder, but only the alpha bytes are used.
+        ByteBuffer level = ByteBuffer.allocate(maxRows * w * 4);
+        IntBuffer solidGrid = IntBuffer.allocate(maxRows * w);
+        int solidPixel = CollisionMap.encodeSolidPixelData(0, 0);
+        int blankPixel = CollisionMap.encodeBlankPixelData();
+        byte[] rowBytes = new byte[w * 4];
+        IntBuffer rowInts = ByteBuffer.wrap(rowBytes).asIntBuffer();
+
+        DataOutputStream cim = null;
+        CollisionMapFile.Writer cmap = null;
+        DistanceField.Writer sdf = null;
+        try {
+            // Same layout as PixmapIO.writeCIM.
+            cim = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(
+                    cimFile.write(false))));
+            cim.writeInt(w);
+            cim.writeInt(h);
+            cim.writeInt(Format.toGdx2DPixmapFormat(Format.RGBA8888));
+            cmap = new CollisionMapFile.Writer(MapPreprocessor.collisionMapFile(cimFile), w, h,
+                    CollisionMapFile.DEFAULT_TILE_ROWS, CollisionMapFile.COMPRESSION_NONE);
+            sdf = new DistanceField.Writer(MapPreprocessor.distanceFieldFile(cimFile), w, h,
+                    MapPreprocessor.DISTANCE_FIELD_MAX);
+
+            // The buffer holds level rows [bufferStart, bufferEnd).
+            int bufferStart = 0;
+            int bufferEnd = 0;
+            for (int y0 = 0; y0 < h; y0 += stripRows) {
+                int y1 = Math.min(y0 + stripRows, h);
+                int neededStart = Math.max(y0 - halo, 0);
+                int neededEnd = Math.min(y1 + halo, h);
+
+                // Keep the rows that are still needed and read the new ones.
+                byte[] bytes = level.array();
+                System.arraycopy(bytes, (neededStart - bufferStart) * w * 4, bytes, 0,
+                        (bufferEnd - neededStart) * w * 4);
+                bufferStart = neededStart;
+                for (int y = bufferEnd; y < neededEnd; y++) {
+                    reader.readAlpha(bytes, (y - bufferStart) * w * 4 + 3, 4);
+                }
+                bufferEnd = neededEnd;
+
+                int[] collision = builder.buildRegion(level, bufferStart, w, h, 0, y0, w, y1);
+                for (int y = y0; y < y1; y++) {
+                    rowInts.clear();
+                    rowInts.put(collision, (y - y0) * w, w);
+                    cim.write(rowBytes);
+                }
+                cmap.writeRows(collision, 0, y1 - y0);
+
+                int rows = bufferEnd - bufferStart;
+                for (int i = 0; i < rows * w; i++) {
+                    solidGrid.put(i, bytes[i * 4 + 3] != 0 ? solidPixel : blankPixel);
+                }
+                sdf.writeStrip(new CollisionMap(w, rows, solidGrid), bufferStart, y0, y1);
+            }
+            cim.close();
+            cim = null;
+            cmap.close();
+            cmap = null;
+            sdf.close();
+            sdf = null;
+        } finally {
+            StreamUtils.closeQuietly(cim);
+            if (cmap != null) {
+                cmap.dispose();
+            }
+            if (sdf != null) {
+                sdf.dispose();
+            }
+        }
+    }
+
+    /**
+     * Reads the rows of a level image from top to bottom.
+     */
+    interface RowReader extends Closeable {
+
+        int getWidth();
+
+        int getHeight();
+
+        /**
+         * Reads the alpha of the next row, as in a pixmap of the image, into
+         * alpha[offset + x * stride].
+         */
+        void readAlpha(byte[] alpha, int offset, int stride) throws IOException;
+
+        @Override
+        void close();
+    }
+
+    /**
+     * Reads the rows of any image that {@link ImageIO} can read, stripRows
+     * rows at a time.
+     */
+    private static class ImageIORowReader implements RowReader {
+
+        private final ImageInputStream in;
+        private final ImageReader reader;
+        private final int stripRows;
+        private final int width;
+        private final int height;
+
+        private final int[] argb;
+        // The strip that holds the next row, which starts at level row
+        // stripStart, or null before the first row.
+        private BufferedImage strip;
+        private int stripStart;
+        private int rowIndex;
+
+        static ImageIORowReader open(File file, int stripRows) throws IOException {
+            ImageInputStream in = ImageIO.createImageInputStream(file);
+            if (in == null) {
+                throw new GdxRuntimeException("Couldn't open level image '" + file + "'");
+            }
+            try {
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+                if (!readers.hasNext()) {
+                    throw new GdxRuntimeException("Unsupported level image '" + file + "'");
+                }
+                ImageReader reader = readers.next();
+                reader.setInput(in);
+                ImageIORowReader rowReader = new ImageIORowReader(in, reader, stripRows);
+                in = null;
+                return rowReader;
+            } finally {
+                if (in != null) {
+                    closeQuietly(in);
+                }
+            }
+        }
+
+        private ImageIORowReader(ImageInputStream in, ImageReader reader, int stripRows)
+                throws IOException {
+            this.in = in;
+            this.reader = reader;
+            this.stripRows = stripRows;
+            width = reader.getWidth(0);
+            height = reader.getHeight(0);
+            argb = new int[width];
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public void readAlpha(byte[] alpha, int offset, int stride) throws IOException {
+            if (rowIndex >= height) {
+                throw new GdxRuntimeException("Read past the last row");
+            }
+            if (strip == null || rowIndex >= stripStart + strip.getHeight()) {
+                stripStart = rowIndex;
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(new Rectangle(0, stripStart, width, Math.min(stripRows,
+                        height - stripStart)));
+                strip = reader.read(0, param);
+            }
+            strip.getRGB(0, rowIndex - stripStart, width, 1, argb, 0, width);
+            for (int x = 0; x < width; x++) {
+                alpha[offset + x * stride] = (byte) (argb[x] >>> 24);
+            }
+            rowIndex++;
+        }
+
+        @Override
+        public void close() {
+            reader.dispose();
+            closeQuietly(in);
+        }
+
+        private static void closeQuietly(ImageInputStream in) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Nothing was written to it.
+            }
+        }
+    }
+}
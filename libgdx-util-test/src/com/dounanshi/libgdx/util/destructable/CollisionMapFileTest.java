@@ -0,0 +1,152 @@
+package com.dounanshi.libgdx.util.destructable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+
+public class CollisionMapFileTest {
+
+  private static final int W = 90;
+  private static final int H = 70;
+
+  // Doesn't divide H, so the last tile is short.
+  private static final int TILE_ROWS = 16;
+
+  private CollisionMap collisionMap;
+  private FileHandle file;
+
+  @Before
+  public void setUp() throws IOException {
+    collisionMap = TestMaps.hills(W, H);
+    collisionMap.addHole(40, 30, 6);
+    file = new FileHandle(File.createTempFile("collision-map", ".cmap"));
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Test
+  public void testMappedRoundTrip() {
+    CollisionMapFile.write(collisionMap, file, TILE_ROWS, CollisionMapFile.COMPRESSION_NONE);
+    CollisionMap read = CollisionMap.open(file);
+    assertSame(collisionMap, read);
+
+    // Holes change the map but not the file it was mapped from.
+    read.addHole(60, 20, 8);
+    collisionMap.addHole(60, 20, 8);
+    assertSame(collisionMap, read);
+    CollisionMap reread = CollisionMap.open(file);
+    assertFalse(read.isSolid(60.5f, 20.5f));
+    assertTrue(reread.isSolid(60.5f, 20.5f));
+  }
+
+  /**
+   * Read-only files are mapped read-only, and only the bands of rows that
+   * holes change are copied.
+   */
+  @Test
+  public void testReadOnlyMapping() throws IOException {
+    CollisionMapFile.write(collisionMap, file, TILE_ROWS, CollisionMapFile.COMPRESSION_NONE);
+    RandomAccessFile raf = new RandomAccessFile(file.file(), "r");
+    MappedCollisionGrid grid;
+    try {
+      FileChannel channel = raf.getChannel();
+      ByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+      buffer.position(48);
+      grid = new MappedCollisionGrid(W, H, buffer.slice().order(ByteOrder.LITTLE_ENDIAN)
+          .asIntBuffer());
+    } finally {
+      raf.close();
+    }
+    CollisionMap read = new CollisionMap(grid);
+    assertSame(collisionMap, read);
+    assertEquals(0, grid.getCopiedBands());
+    CollisionMap unchanged = CollisionMap.open(file);
+
+    // In the first band only.
+    read.addHole(30, H - 10, 5);
+    collisionMap.addHole(30, H - 10, 5);
+    assertSame(collisionMap, read);
+    assertEquals(1, grid.getCopiedBands());
+
+    // Across both bands.
+    read.addHole(70, H - MappedCollisionGrid.BAND_ROWS, 4);
+    collisionMap.addHole(70, H - MappedCollisionGrid.BAND_ROWS, 4);
+    assertSame(collisionMap, read);
+    assertEquals(2, grid.getCopiedBands());
+    assertSame(unchanged, CollisionMap.open(file));
+  }
+
+  @Test
+  public void testDeflatedRoundTrip() {
+    CollisionMapFile.write(collisionMap, file, TILE_ROWS, CollisionMapFile.COMPRESSION_DEFLATE);
+    assertSame(collisionMap, CollisionMap.open(file));
+  }
+
+  @Test
+  public void testIncompleteFileIsRejected() {
+    CollisionMapFile.Writer writer = new CollisionMapFile.Writer(file, W, H, TILE_ROWS,
+        CollisionMapFile.COMPRESSION_NONE);
+    writer.writeRows(new int[W * TILE_ROWS], 0, TILE_ROWS);
+    writer.dispose();
+    try {
+      CollisionMap.open(file);
+      fail();
+    } catch (GdxRuntimeException e) {
+      // Expected.
+    }
+  }
+
+  /**
+   * A file whose index starts before the end of the uncompressed tiles,
+   * with the tile index itself intact.
+   */
+  @Test
+  public void testTruncatedTilesAreRejected() {
+    CollisionMapFile.write(collisionMap, file, TILE_ROWS, CollisionMapFile.COMPRESSION_NONE);
+    byte[] bytes = file.readBytes();
+    ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    int indexOffset = (int) buffer.getLong(40);
+    int cut = (H % TILE_ROWS) * W * 4;
+    ByteBuffer truncated = ByteBuffer.allocate(bytes.length - cut).order(
+        ByteOrder.LITTLE_ENDIAN);
+    truncated.put(bytes, 0, indexOffset - cut);
+    truncated.put(bytes, indexOffset, bytes.length - indexOffset);
+    truncated.putLong(40, indexOffset - cut);
+    file.writeBytes(truncated.array(), false);
+    try {
+      CollisionMap.open(file);
+      fail();
+    } catch (GdxRuntimeException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains(file.toString()));
+    }
+  }
+
+  private static void assertSame(CollisionMap expected, CollisionMap actual) {
+    assertEquals(expected.getWidth(), actual.getWidth());
+    assertEquals(expected.getHeight(), actual.getHeight());
+    for (int py = 0; py < expected.getHeight(); py++) {
+      for (int px = 0; px < expected.getWidth(); px++) {
+        assertEquals("(" + px + ", " + py + ")", expected.pixel(px, py), actual.pixel(px, py));
+      }
+    }
+  }
+}
@@ -0,0 +1,221 @@
+package com.dounanshi.libgdx.util.destructable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.nio.IntBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.Pixmap.Blending;
+import com.badlogic.gdx.graphics.Pixmap.Format;
+import com.badlogic.gdx.math.Vector2;
+import com.badlogic.gdx.utils.GdxNativesLoader;
+
+public class CollisionMapTest {
+
+  private static final int W = 64;
+  private static final int H = 64;
+  // Level y of the top row of the ground.
+  private static final int GROUND = 32;
+  private static final float ERR = 0.0001f;
+  private static final int CALLS = 10000;
+
+  private CollisionMap collisionMap;
+
+  @Before
+  public void setUp() {
+    collisionMap = new CollisionMap(W, H, flatGround());
+  }
+
+  @Test
+  public void testSurfaceNormal() {
+    assertNull(collisionMap.surfaceNormal(10.5f, GROUND + 1.5f));
+    Vector2 n = collisionMap.surfaceNormal(10.5f, GROUND + 0.5f);
+    assertEquals(0, n.x, ERR);
+    assertEquals(1, n.y, ERR);
+
+    Vector2 out = new Vector2(7, 7);
+    assertFalse(collisionMap.surfaceNormal(10.5f, GROUND + 1.5f, null, out));
+    assertEquals(7, out.x, ERR);
+    assertTrue(collisionMap.surfaceNormal(10.5f, GROUND + 0.5f, null, out));
+    assertEquals(n, out);
+
+    // Flipped when going along the velocity.
+    assertTrue(collisionMap.surfaceNormal(10.5f, GROUND + 0.5f, new Vector2(0, 1), out));
+    assertEquals(-1, out.y, ERR);
+    assertEquals(out, collisionMap.surfaceNormal(10.5f, GROUND + 0.5f, new Vector2(0, 1)));
+  }
+
+  @Test
+  public void testProjectOut() {
+    Vector2 vel = new Vector2(1, -3);
+    Vector2 pos = new Vector2(10.5f, GROUND - 3.5f);
+    Vector2 expectedPos = pos.cpy();
+    Vector2 expectedNormal = collisionMap.projectOut(expectedPos, vel);
+
+    Vector2 normal = new Vector2();
+    assertTrue(collisionMap.projectOut(pos, vel, normal));
+    assertEquals(expectedPos, pos);
+    assertEquals(expectedNormal, normal);
+    assertFalse(collisionMap.isSolid(pos.x, pos.y));
+
+    assertFalse(collisionMap.projectOut(new Vector2(10.5f, GROUND + 5), vel, normal));
+  }
+
+  @Test
+  public void testProjectOutAndBounceDoNotAllocate() {
+    ThreadAllocation allocation = ThreadAllocation.get();
+    assumeTrue(allocation != null);
+
+    Vector2 pos = new Vector2();
+    Vector2 vel = new Vector2();
+    Vector2 normal = new Vector2();
+    // Warm up so that class loading and compilation are not measured.
+    projectOutAndBounce(pos, vel, normal);
+
+    long before = allocation.bytes();
+    projectOutAndBounce(pos, vel, normal);
+    long allocated = allocation.bytes() - before;
+    assertTrue("Allocated " + allocated + " bytes in " + CALLS + " calls", allocated < CALLS);
+  }
+
+  @Test
+  public void testAddHole() {
+    collisionMap.addHole(20, GROUND, 4);
+    assertFalse(collisionMap.isSolid(20.5f, GROUND - 2.5f));
+    // Pixels under the hole now point up into it.
+    Vector2 n = collisionMap.surfaceNormal(20.5f, GROUND - 4.5f);
+    assertEquals(0, n.x, ERR);
+    assertEquals(1, n.y, ERR);
+    // Interior pixels away from the hole are untouched.
+    n = collisionMap.surfaceNormal(40.5f, GROUND - 4.5f);
+    assertEquals(0, n.x, ERR);
+    assertEquals(0, n.y, ERR);
+  }
+
+  @Test
+  public void testJustOutsideOfTheMap() {
+    // Just left of the map is outside of it for every query.
+    float y = GROUND - 3.5f;
+    assertTrue(collisionMap.isSolid(0.5f, y));
+    assertFalse(collisionMap.isSolid(-0.5f, y));
+    assertNull(collisionMap.surfaceNormal(-0.5f, y));
+    assertFalse(collisionMap.projectOut(new Vector2(-0.5f, y), new Vector2(0, -1),
+        new Vector2()));
+    RaycastHit hit = new RaycastHit();
+    assertFalse(collisionMap.raycast(-0.9f, y, -0.1f, y, hit));
+    assertTrue(collisionMap.raycast(-0.9f, y, 0.5f, y, hit));
+    assertEquals(0.9f / 1.4f, hit.fraction, ERR);
+    // Same just below it.
+    assertTrue(collisionMap.isSolid(10.5f, 1.5f));
+    assertFalse(collisionMap.isSolid(10.5f, 0.5f));
+    assertFalse(collisionMap.isSolid(10.5f, -0.5f));
+
+    // A hole just left of the map is centered on the pixel left of it.
+    collisionMap.addHole(-0.5f, y, 2);
+    assertFalse(collisionMap.isSolid(1.5f, y));
+    assertTrue(collisionMap.isSolid(2.5f, y));
+  }
+
+  @Test
+  public void testPixmapRoundTrip() {
+    GdxNativesLoader.load();
+    Blending blending = Pixmap.getBlending();
+    Pixmap.setBlending(Blending.None);
+    Pixmap pixmap = collisionMap.toPixmap();
+    Pixmap exported = null;
+    try {
+      assertEquals(Format.RGBA8888, pixmap.getFormat());
+      // Arbitrary data in the bits above the normal survives too.
+      pixmap.drawPixel(3, 5, CollisionMap.encodeSolidPixelData(-7, 9) | 0xab000000);
+      CollisionMap imported = new CollisionMap(pixmap);
+      assertEquals(W, imported.getWidth());
+      assertEquals(H, imported.getHeight());
+      for (int py = 0; py < H; py++) {
+        for (int px = 0; px < W; px++) {
+          assertEquals(pixmap.getPixel(px, py), imported.pixel(px, py));
+        }
+      }
+      assertTrue(imported.isSolid(3.5f, H - 4.5f));
+      assertEquals(-7 / (float) Math.sqrt(130), imported.surfaceNormal(3.5f, H - 4.5f).x, ERR);
+      assertFalse(imported.isSolid(10.5f, GROUND + 1.5f));
+      // Outside of the map is empty.
+      assertEquals(CollisionMap.encodeBlankPixelData(), imported.pixel(-1, 0));
+
+      exported = imported.toPixmap();
+      for (int py = 0; py < H; py++) {
+        for (int px = 0; px < W; px++) {
+          assertEquals(pixmap.getPixel(px, py), exported.getPixel(px, py));
+        }
+      }
+    } finally {
+      pixmap.dispose();
+      if (exported != null) {
+        exported.dispose();
+      }
+      Pixmap.setBlending(blending);
+    }
+  }
+
+  private void projectOutAndBounce(Vector2 pos, Vector2 vel, Vector2 normal) {
+    for (int i = 0; i < CALLS; i++) {
+      pos.set(5 + i % 50, GROUND - 1.5f);
+      vel.set(1, -3);
+      if (collisionMap.projectOut(pos, vel, normal)) {
+        collisionMap.bounce(vel, normal, 0.5f, 0.5f);
+      }
+      collisionMap.surfaceNormal(pos.x, pos.y - 1, vel, normal);
+    }
+  }
+
+  /**
+   * Returns a grid that is solid below GROUND, with the top row of the ground
+   * pointing up.
+   */
+  private static IntBuffer flatGround() {
+    IntBuffer grid = IntBuffer.allocate(W * H);
+    for (int py = H - GROUND; py < H; py++) {
+      int pixel = py == H - GROUND ? CollisionMap.encodeSolidPixelData(0, 1)
+          : CollisionMap.encodeSolidPixelData(0, 0);
+      for (int px = 0; px < W; px++) {
+        grid.put(py * W + px, pixel);
+      }
+    }
+    return grid;
+  }
+
+  /**
+   * Reads the bytes allocated by the current thread, if the JVM supports it.
+   */
+  static class ThreadAllocation {
+    private final com.sun.management.ThreadMXBean bean;
+
+    private ThreadAllocation(com.sun.management.ThreadMXBean bean) {
+      this.bean = bean;
+    }
+
+    static ThreadAllocation get() {
+      java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+      if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+        return null;
+      }
+      com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+      if (!sunBean.isThreadAllocatedMemorySupported()) {
+        return null;
+      }
+      sunBean.setThreadAllocatedMemoryEnabled(true);
+      return new ThreadAllocation(sunBean);
+    }
+
+    long bytes() {
+      return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+  }
+}
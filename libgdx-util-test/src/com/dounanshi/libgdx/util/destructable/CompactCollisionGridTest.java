@@ -0,0 +1,58 @@
+package com.dounanshi.libgdx.util.destructable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class CompactCollisionGridTest {
+
+  private static final int W = 301;
+  private static final int H = 200;
+
+  @Test
+  public void testHolesMatchBufferGrid() {
+    CollisionMap expected = TestMaps.hills(W, H);
+    CompactCollisionGrid grid = CompactCollisionGrid.copyOf(expected);
+    CollisionMap compact = new CollisionMap(grid);
+    // Only the top pixel of each column has a normal.
+    assertEquals(W, grid.getSpecialPixelCount());
+
+    Random random = new Random(14);
+    for (int i = 0; i < 60; i++) {
+      float x = random.nextFloat() * W;
+      float y = random.nextFloat() * H;
+      int radius = 1 + random.nextInt(25);
+      expected.addHole(x, y, radius);
+      compact.addHole(x, y, radius);
+    }
+    for (int py = 0; py < H; py++) {
+      for (int px = 0; px < W; px++) {
+        assertEquals("(" + px + ", " + py + ")", expected.pixel(px, py), compact.pixel(px, py));
+        assertEquals(expected.isSolidPixel(px, py), grid.isSolid(px, py));
+      }
+    }
+    assertTrue(grid.getSpecialPixelCount() > W);
+  }
+
+  @Test
+  public void testArbitraryPixels() {
+    CompactCollisionGrid grid = new CompactCollisionGrid(W, H);
+    Random random = new Random(15);
+    int[] pixels = new int[W * H];
+    for (int i = 0; i < 5000; i++) {
+      int index = random.nextInt(W * H);
+      // Plain interior and blank pixels as well as ones with extra bits.
+      int pixel = random.nextBoolean() ? random.nextInt()
+          : random.nextBoolean() ? CollisionMap.encodeSolidPixelData(0, 0)
+              : CollisionMap.encodeBlankPixelData();
+      pixels[index] = pixel;
+      grid.set(index % W, index / W, pixel);
+    }
+    for (int i = 0; i < pixels.length; i++) {
+      assertEquals(pixels[i], grid.get(i % W, i / W));
+    }
+  }
+}
@@ -0,0 +1,99 @@
+package com.dounanshi.libgdx.util.destructable;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.badlogic.gdx.math.Vector2;
+
+/**
+ * Measures how {@link CollisionMap#projectOut(Vector2, Vector2, Vector2)}
+ * queries scale from 1 to N reader threads on a map backed by a
+ * {@link ConcurrentCollisionGrid}, while another thread keeps adding holes,
+ * in queries per millisecond across all readers.
+ *
+ * Not a unit test; run the main method directly.
+ */
+public class ConcurrentCollisionGridBenchmark {
+
+  private static final int W = 8192;
+  private static final int H = 4096;
+  private static final int WARMUP_MILLIS = 1000;
+  private static final int MILLIS = 2000;
+
+  public static void main(String[] args) throws InterruptedException {
+    CollisionMap collisionMap = new CollisionMap(ConcurrentCollisionGrid.copyOf(TestMaps
+        .hills(W, H)));
+    int maxReaders = Runtime.getRuntime().availableProcessors();
+    run(collisionMap, maxReaders, true, WARMUP_MILLIS);
+    for (int readers = 1; readers <= maxReaders; readers *= 2) {
+      print(readers, false, run(collisionMap, readers, false, MILLIS), MILLIS);
+      print(readers, true, run(collisionMap, readers, true, MILLIS), MILLIS);
+    }
+  }
+
+  private static void print(int readers, boolean writing, long[] counts, int millis) {
+    System.out.printf("%2d readers%-9s %10.0f queries/ms %8.0f holes/s%n", readers,
+        writing ? " + writer" : "", (double) counts[0] / millis, counts[1] * 1000.0 / millis);
+  }
+
+  /**
+   * Runs the readers, and the writer if writing, for the given time.
+   *
+   * @return the number of queries and the number of holes added.
+   */
+  private static long[] run(final CollisionMap collisionMap, int readers, boolean writing,
+      int millis) throws InterruptedException {
+    final AtomicBoolean done = new AtomicBoolean();
+    final AtomicLong queries = new AtomicLong();
+    final AtomicLong holes = new AtomicLong();
+    Thread[] threads = new Thread[readers + 1];
+    for (int r = 0; r < readers; r++) {
+      final Random random = new Random(r);
+      threads[r] = new Thread() {
+        @Override
+        public void run() {
+          Vector2 pos = new Vector2();
+          Vector2 vel = new Vector2();
+          Vector2 normal = new Vector2();
+          long count = 0;
+          while (!done.get()) {
+            float x = random.nextFloat() * W;
+            pos.set(x, H - TestMaps.groundTop((int) x, H) + random.nextFloat() * 8 - 4);
+            vel.set(random.nextFloat() * 10 - 5, -1 - random.nextFloat() * 10);
+            collisionMap.projectOut(pos, vel, normal);
+            count++;
+          }
+          queries.addAndGet(count);
+        }
+      };
+    }
+    if (writing) {
+      threads[readers] = new Thread() {
+        @Override
+        public void run() {
+          Random random = new Random(-1);
+          while (!done.get()) {
+            float x = random.nextFloat() * W;
+            float y = H - TestMaps.groundTop((int) x, H) + random.nextFloat() * 40 - 20;
+            collisionMap.addHole(x, y, 4 + random.nextInt(28));
+            holes.incrementAndGet();
+          }
+        }
+      };
+    }
+    for (Thread thread : threads) {
+      if (thread != null) {
+        thread.start();
+      }
+    }
+    Thread.sleep(millis);
+    done.set(true);
+    for (Thread thread : threads) {
+      if (thread != null) {
+        thread.join();
+      }
+    }
+    return new long[] { queries.get(), holes.get() };
+  }
+}
@@ -0,0 +1,259 @@
+package com.dounanshi.libgdx.util.destructable;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.badlogic.gdx.math.Vector2;
+
+public class ConcurrentCollisionGridTest {
+
+  private static final int W = 301;
+  private static final int H = 200;
+  private static final int READERS = 4;
+
+  @Test
+  public void testHolesMatchBufferGrid() {
+    CollisionMap expected = TestMaps.hills(W, H);
+    CollisionMap concurrent = new CollisionMap(ConcurrentCollisionGrid.copyOf(expected, 16));
+    Random random = new Random(16);
+    for (int i = 0; i < 60; i++) {
+      float x = random.nextFloat() * W;
+      float y = random.nextFloat() * H;
+      int radius = 1 + random.nextInt(25);
+      expected.addHole(x, y, radius);
+      concurrent.addHole(x, y, radius);
+    }
+    assertSamePixels(expected, concurrent);
+  }
+
+  @Test
+  public void testWriteRules() {
+    ConcurrentCollisionGrid grid = new ConcurrentCollisionGrid(20, 10, 8);
+    try {
+      grid.set(0, 0, 1);
+      fail("Set outside of a write");
+    } catch (IllegalStateException e) {
+      // Expected.
+    }
+    grid.beginWrite();
+    grid.beginWrite();
+    grid.set(19, 9, 5);
+    grid.endWrite();
+    // Seen by the writer, but not published before the outer write ends.
+    assertEquals(5, grid.get(19, 9));
+    assertEquals(0, grid.getVersion());
+    grid.endWrite();
+    assertEquals(1, grid.getVersion());
+    assertEquals(5, grid.get(19, 9));
+
+    // A write without changes publishes nothing.
+    grid.beginWrite();
+    grid.endWrite();
+    assertEquals(1, grid.getVersion());
+  }
+
+  /**
+   * Each write sets every pixel to its version, one pixel at a time, while
+   * readers check that they never see part of a write.
+   */
+  @Test
+  public void testWritesArePublishedWhole() throws InterruptedException {
+    final int w = 100;
+    final int h = 70;
+    final int writes = 1000;
+    final ConcurrentCollisionGrid grid = new ConcurrentCollisionGrid(w, h, 16);
+    final AtomicBoolean done = new AtomicBoolean();
+    final AtomicReference<String> failure = new AtomicReference<String>();
+    Thread[] readers = new Thread[READERS];
+    for (int r = 0; r < READERS; r++) {
+      final Random random = new Random(r);
+      readers[r] = new Thread() {
+        @Override
+        public void run() {
+          while (!done.get() && failure.get() == null) {
+            long version = grid.getVersion();
+            int a = grid.get(random.nextInt(w), random.nextInt(h));
+            int b = grid.get(random.nextInt(w), random.nextInt(h));
+            if (b < a) {
+              failure.compareAndSet(null, "Saw write " + a + " and then " + b);
+            }
+            if (grid.getVersion() == version && (a != version || b != version)) {
+              failure.compareAndSet(null, "Saw " + a + " and " + b + " in version " + version);
+            }
+          }
+        }
+      };
+      readers[r].start();
+    }
+    try {
+      for (int version = 1; version <= writes && failure.get() == null; version++) {
+        grid.beginWrite();
+        for (int py = 0; py < h; py++) {
+          for (int px = 0; px < w; px++) {
+            grid.set(px, py, version);
+          }
+        }
+        grid.endWrite();
+      }
+    } finally {
+      done.set(true);
+      for (Thread reader : readers) {
+        reader.join();
+      }
+    }
+    assertNull(failure.get());
+    assertEquals(writes, grid.getVersion());
+  }
+
+  /**
+   * Queries a map with a distance field and an occupancy pyramid from several
+   * threads while holes are added. Every query that ran within one version
+   * gets the same results as on a map that got the holes of that version
+   * without readers, and the map ends up the same as that one.
+   */
+  @Test
+  public void testQueriesWhileAddingHoles() throws InterruptedException {
+    CollisionMap expected = TestMaps.hills(W, H);
+    final ConcurrentCollisionGrid grid = ConcurrentCollisionGrid.copyOf(expected, 32);
+    final CollisionMap concurrent = new CollisionMap(grid);
+    attachLayers(expected);
+    attachLayers(concurrent);
+
+    int holes = 200;
+    float[] holeX = new float[holes];
+    float[] holeY = new float[holes];
+    int[] holeRadius = new int[holes];
+    Random random = new Random(17);
+    for (int i = 0; i < holes; i++) {
+      holeX[i] = random.nextFloat() * W;
+      holeY[i] = H - TestMaps.groundTop((int) holeX[i], H) + random.nextFloat() * 40 - 20;
+      holeRadius[i] = 1 + random.nextInt(15);
+    }
+
+    final AtomicBoolean done = new AtomicBoolean();
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    final List<Query> queries = Collections.synchronizedList(new ArrayList<Query>());
+    Thread[] readers = new Thread[READERS];
+    for (int r = 0; r < READERS; r++) {
+      final Random readerRandom = new Random(r);
+      readers[r] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            while (!done.get()) {
+              float x = readerRandom.nextFloat() * W;
+              float y = H - TestMaps.groundTop((int) x, H) + readerRandom.nextFloat() * 8 - 4;
+              long version = grid.getVersion();
+              float[] results = query(concurrent, x, y);
+              if (grid.getVersion() == version) {
+                queries.add(new Query(version, x, y, results));
+              }
+            }
+          } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+          }
+        }
+      };
+      readers[r].start();
+    }
+    // The version that the holes so far were published with.
+    long[] versions = new long[holes + 1];
+    versions[0] = grid.getVersion();
+    try {
+      for (int i = 0; i < holes; i++) {
+        concurrent.addHole(holeX[i], holeY[i], holeRadius[i]);
+        versions[i + 1] = grid.getVersion();
+      }
+    } finally {
+      done.set(true);
+      for (Thread reader : readers) {
+        reader.join();
+      }
+    }
+    assertNull(failure.get());
+
+    Collections.sort(queries);
+    int hole = 0;
+    for (Query query : queries) {
+      while (hole < holes && versions[hole] < query.version) {
+        expected.addHole(holeX[hole], holeY[hole], holeRadius[hole]);
+        hole++;
+      }
+      assertEquals("Version " + query.version, versions[hole], query.version);
+      assertArrayEquals("Version " + query.version + " at (" + query.x + ", " + query.y + ")",
+          query(expected, query.x, query.y), query.results, 0);
+    }
+    assertTrue(queries.size() > 0);
+    for (; hole < holes; hole++) {
+      expected.addHole(holeX[hole], holeY[hole], holeRadius[hole]);
+    }
+    assertSamePixels(expected, concurrent);
+  }
+
+  private static void attachLayers(CollisionMap collisionMap) {
+    collisionMap.setDistanceField(DistanceField.compute(collisionMap, 8));
+    collisionMap.setOccupancyPyramid(OccupancyPyramid.compute(collisionMap));
+  }
+
+  /**
+   * Returns the results of queries at (x, y) that use the pixels, the
+   * distance field and the occupancy pyramid.
+   */
+  private static float[] query(CollisionMap collisionMap, float x, float y) {
+    Vector2 pos = new Vector2(x, y);
+    Vector2 normal = new Vector2();
+    boolean projected = collisionMap.projectOut(pos, new Vector2(0, -4), normal);
+    Vector2 surfaceNormal = collisionMap.surfaceNormal(x, y);
+    RaycastHit hit = new RaycastHit();
+    boolean rayHit = collisionMap.raycast(x, H, x + 30, 0, hit);
+    RaycastHit circleHit = new RaycastHit();
+    boolean circleRayHit = collisionMap.raycast(x - 40, H, x, 0, 3, circleHit);
+    return new float[] { projected ? 1 : 0, pos.x, pos.y, normal.x, normal.y,
+        surfaceNormal != null ? surfaceNormal.x : 2, surfaceNormal != null ? surfaceNormal.y : 2,
+        rayHit ? 1 : 0, hit.x, hit.y, hit.normal.x, hit.normal.y, circleRayHit ? 1 : 0,
+        circleHit.x, circleHit.y, circleHit.normal.x, circleHit.normal.y,
+        collisionMap.countSolid((int) x - 20, (int) y - 20, 40, 40) };
+  }
+
+  /**
+   * Results of {@link #query} in a version of the map.
+   */
+  private static class Query implements Comparable<Query> {
+    final long version;
+    final float x;
+    final float y;
+    final float[] results;
+
+    Query(long version, float x, float y, float[] results) {
+      this.version = version;
+      this.x = x;
+      this.y = y;
+      this.results = results;
+    }
+
+    @Override
+    public int compareTo(Query other) {
+      return version < other.version ? -1 : version > other.version ? 1 : 0;
+    }
+  }
+
+  private static void assertSamePixels(CollisionMap expected, CollisionMap actual) {
+    for (int py = 0; py < H; py++) {
+      for (int px = 0; px < W; px++) {
+        assertEquals("(" + px + ", " + py + ")", expected.pixel(px, py), actual.pixel(px, py));
+      }
+    }
+  }
+}
@@ -0,0 +1,152 @@
+package com.dounanshi.libgdx.util.destructable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.IntBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.math.Vector2;
+
+public class DistanceFieldTest {
+
+  private static final int W = 80;
+  private static final int H = 60;
+  private static final int MAX_DISTANCE = 6;
+  private static final float ERR = 1f / 16;
+
+  private CollisionMap collisionMap;
+
+  @Before
+  public void setUp() {
+    collisionMap = TestMaps.hills(W, H);
+  }
+
+  @Test
+  public void testCompute() {
+    collisionMap.addHole(30, 20, 5);
+    DistanceField distanceField = DistanceField.compute(collisionMap, MAX_DISTANCE);
+    for (int py = 0; py < H; py++) {
+      for (int px = 0; px < W; px++) {
+        assertEquals("(" + px + ", " + py + ")", bruteForceDistance(px, py),
+            distanceField.distance(px, py), ERR);
+      }
+    }
+  }
+
+  @Test
+  public void testAddHoleUpdatesDistances() {
+    collisionMap.setDistanceField(DistanceField.compute(collisionMap, MAX_DISTANCE));
+    collisionMap.addHole(30, 20, 5);
+    collisionMap.addHole(35, 22, 3);
+    collisionMap.addHole(1, 25, 8);
+    assertSame(DistanceField.compute(collisionMap, MAX_DISTANCE),
+        collisionMap.getDistanceField());
+  }
+
+  @Test
+  public void testProjectOut() {
+    // Deep inside the ground, falling fast.
+    Vector2 vel = new Vector2(3, -50);
+    Vector2 expectedPos = new Vector2(40.5f, 3.5f);
+    Vector2 expectedNormal = collisionMap.projectOut(expectedPos, vel);
+
+    collisionMap.setDistanceField(DistanceField.compute(collisionMap, MAX_DISTANCE));
+    Vector2 pos = new Vector2(40.5f, 3.5f);
+    Vector2 normal = new Vector2();
+    assertTrue(collisionMap.projectOut(pos, vel, normal));
+    assertFalse(collisionMap.isSolid(pos.x, pos.y));
+    // Ends up at about the same spot as with small steps.
+    assertEquals(expectedPos.x, pos.x, 1);
+    assertEquals(expectedPos.y, pos.y, 1);
+    assertEquals(expectedNormal.x, normal.x, 0.1f);
+    assertEquals(expectedNormal.y, normal.y, 0.1f);
+  }
+
+  @Test
+  public void testReadWrite() throws IOException {
+    collisionMap.addHole(30, 20, 5);
+    DistanceField distanceField = DistanceField.compute(collisionMap, MAX_DISTANCE);
+    File file = File.createTempFile("distance-field", ".sdf");
+    try {
+      distanceField.write(new FileHandle(file));
+      DistanceField read = DistanceField.read(new FileHandle(file));
+      assertEquals(MAX_DISTANCE, read.getMaxDistance());
+      assertSame(distanceField, read);
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testWriteInStrips() throws IOException {
+    collisionMap.addHole(30, 20, 5);
+    int margin = DistanceField.Writer.getMargin(MAX_DISTANCE);
+    int stripRows = 7;
+    File file = File.createTempFile("distance-field", ".sdf");
+    try {
+      DistanceField.Writer writer = new DistanceField.Writer(new FileHandle(file), W, H,
+          MAX_DISTANCE);
+      for (int y0 = 0; y0 < H; y0 += stripRows) {
+        int y1 = Math.min(y0 + stripRows, H);
+        int stripY = Math.max(y0 - margin, 0);
+        writer.writeStrip(strip(stripY, Math.min(y1 + margin, H)), stripY, y0, y1);
+      }
+      writer.close();
+      assertSame(DistanceField.compute(collisionMap, MAX_DISTANCE),
+          DistanceField.read(new FileHandle(file)));
+    } finally {
+      file.delete();
+    }
+  }
+
+  /**
+   * Returns a copy of pixmap rows [y0, y1) of the collision map.
+   */
+  private CollisionMap strip(int y0, int y1) {
+    IntBuffer grid = IntBuffer.allocate(W * (y1 - y0));
+    for (int py = y0; py < y1; py++) {
+      for (int px = 0; px < W; px++) {
+        if (collisionMap.isSolidPixel(px, py)) {
+          grid.put((py - y0) * W + px, CollisionMap.encodeSolidPixelData(0, 0));
+        }
+      }
+    }
+    return new CollisionMap(W, y1 - y0, grid);
+  }
+
+  /**
+   * Distance to the nearest pixel of the other kind, including the blank
+   * pixels around the map.
+   */
+  private float bruteForceDistance(int px, int py) {
+    boolean solid = collisionMap.isSolidPixel(px, py);
+    int best = Integer.MAX_VALUE;
+    for (int y = -1; y <= H; y++) {
+      for (int x = -1; x <= W; x++) {
+        if (collisionMap.isSolidPixel(x, y) != solid) {
+          best = Math.min(best, (x - px) * (x - px) + (y - py) * (y - py));
+        }
+      }
+    }
+    float distance = Math.min((float) Math.sqrt(best), MAX_DISTANCE);
+    return solid ? distance : -distance;
+  }
+
+  private static void assertSame(DistanceField expected, DistanceField actual) {
+    assertEquals(expected.getWidth(), actual.getWidth());
+    assertEquals(expected.getHeight(), actual.getHeight());
+    for (int py = 0; py < expected.getHeight(); py++) {
+      for (int px = 0; px < expected.getWidth(); px++) {
+        assertEquals("(" + px + ", " + py + ")", expected.distance(px, py),
+            actual.distance(px, py), 0);
+      }
+    }
+  }
+}
@@ -0,0 +1,90 @@
+package com.dounanshi.libgdx.util.destructable;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class HoleQueueTest {
+
+  private static final int W = 400;
+  private static final int H = 240;
+  private static final int MAX_DISTANCE = 6;
+
+  @Test
+  public void testClusterBombMatchesSequentialHoles() {
+    Random random = new Random(15);
+    for (int round = 0; round < 10; round++) {
+      CollisionMap expected = TestMaps.hills(W, H);
+      expected.setDistanceField(DistanceField.compute(expected, MAX_DISTANCE));
+      expected.setOccupancyPyramid(OccupancyPyramid.compute(expected));
+      CollisionMap queued = TestMaps.hills(W, H);
+      queued.setDistanceField(DistanceField.compute(queued, MAX_DISTANCE));
+      queued.setOccupancyPyramid(OccupancyPyramid.compute(queued));
+
+      // A few overlapping clusters, some of them over the edges of the map.
+      HoleQueue queue = new HoleQueue(queued, null);
+      for (int bomb = 0; bomb < 3; bomb++) {
+        float x = random.nextFloat() * (W + 40) - 20;
+        float y = random.nextFloat() * (H + 40) - 20;
+        for (int i = 0; i < 12; i++) {
+          float holeX = x + random.nextFloat() * 60 - 30;
+          float holeY = y + random.nextFloat() * 60 - 30;
+          int radius = 1 + random.nextInt(12);
+          expected.addHole(holeX, holeY, radius);
+          queue.addHole(holeX, holeY, radius);
+        }
+      }
+      assertEquals(36, queue.size());
+      queue.commit();
+      assertEquals(0, queue.size());
+      assertSameMaps("round " + round, expected, queued);
+    }
+  }
+
+  /**
+   * Holes centered in (-1, 0) are in column or row -1, like in addHole.
+   */
+  @Test
+  public void testHolesJustOutsideTheMap() {
+    CollisionMap expected = TestMaps.hills(W, H);
+    expected.setDistanceField(DistanceField.compute(expected, MAX_DISTANCE));
+    expected.setOccupancyPyramid(OccupancyPyramid.compute(expected));
+    CollisionMap queued = TestMaps.hills(W, H);
+    queued.setDistanceField(DistanceField.compute(queued, MAX_DISTANCE));
+    queued.setOccupancyPyramid(OccupancyPyramid.compute(queued));
+
+    HoleQueue queue = new HoleQueue(queued, null);
+    float[][] holes = { { -0.5f, 60 }, { -0.25f, 64 }, { 200, -0.5f }, { 203, -0.75f },
+        { -0.1f, -0.9f } };
+    for (float[] hole : holes) {
+      expected.addHole(hole[0], hole[1], 6);
+      queue.addHole(hole[0], hole[1], 6);
+    }
+    queue.commit();
+    assertSameMaps("edge", expected, queued);
+  }
+
+  private static void assertSameMaps(String message, CollisionMap expected,
+      CollisionMap queued) {
+    for (int py = 0; py < H; py++) {
+      for (int px = 0; px < W; px++) {
+        String at = message + " (" + px + ", " + py + ")";
+        assertEquals(at, expected.pixel(px, py), queued.pixel(px, py));
+        assertEquals(at, expected.getDistanceField().distance(px, py),
+            queued.getDistanceField().distance(px, py), 0);
+      }
+    }
+    OccupancyPyramid expectedPyramid = expected.getOccupancyPyramid();
+    OccupancyPyramid pyramid = queued.getOccupancyPyramid();
+    for (int level = 0; level < OccupancyPyramid.NUM_LEVELS; level++) {
+      for (int row = 0; row < pyramid.getRows(level); row++) {
+        for (int col = 0; col < pyramid.getColumns(level); col++) {
+          assertEquals(expectedPyramid.getCount(level, col, row),
+              pyramid.getCount(level, col, row));
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,545 @@
+package com.dounanshi.libgdx.util.destructable;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.badlogic.gdx.ApplicationAdapter;
+import com.badlogic.gdx.backends.headless.HeadlessApplication;
+import com.badlogic.gdx.backends.headless.HeadlessApplicationConfiguration;
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.Pixmap.Blending;
+import com.badlogic.gdx.graphics.Pixmap.Format;
+import com.badlogic.gdx.math.Rectangle;
+import com.dounanshi.libgdx.util.destructable.RecordingGL.TexImage;
+
+public class LevelRendererTest {
+
+  private static final int W = 700;
+  private static final int H = 600;
+  private static final int GROUND = 0x80604aff;
+  private static final int STONE = 0x404040ff;
+
+  // A 512x512 region pixmap and its mip levels down to 1x1.
+  private static final long REGION_BYTES_WITH_MIPS = 4 * (512 * 512 + 256 * 256 + 128 * 128
+      + 64 * 64 + 32 * 32 + 16 * 16 + 8 * 8 + 4 * 4 + 2 * 2 + 1);
+
+  private RecordingGL gl;
+  private Blending blending;
+  private Pixmap levelPixmap;
+  private LevelRenderer renderer;
+
+  @BeforeClass
+  public static void setUpClass() {
+    HeadlessApplicationConfiguration config = new HeadlessApplicationConfiguration();
+    config.renderInterval = -1;
+    new HeadlessApplication(new ApplicationAdapter() {
+    }, config);
+  }
+
+  @Before
+  public void setUp() {
+    gl = RecordingGL.install();
+    // Same as the game, holes are drawn with the exact transparent color.
+    blending = Pixmap.getBlending();
+    Pixmap.setBlending(Blending.None);
+    levelPixmap = ground(W, H);
+    renderer = new LevelRenderer(levelPixmap);
+    gl.clear();
+  }
+
+  @After
+  public void tearDown() {
+    renderer.dispose();
+    levelPixmap.dispose();
+    Pixmap.setBlending(blending);
+  }
+
+  @Test
+  public void testHoleUploadsDirtyRectangle() {
+    renderer.addHole(100, 100, 5);
+    assertEquals(0, gl.texImages.size());
+
+    // Region pixmaps are 512 high with row 0 at the top.
+    List<TexImage> level0 = gl.texSubImages(0);
+    assertEquals(1, level0.size());
+    TexImage upload = level0.get(0);
+    assertEquals(95, upload.x);
+    assertEquals(512 - 100 - 5, upload.y);
+    assertEquals(11, upload.width);
+    assertEquals(11, upload.height);
+    assertEquals(0, upload.pixel(100, 412));
+    assertEquals(GROUND, upload.pixel(95, 407));
+
+    // One upload per mip level down to 1x1, each covering the hole.
+    long bytes = 0;
+    for (int level = 0; level <= 9; level++) {
+      List<TexImage> uploads = gl.texSubImages(level);
+      assertEquals(1, uploads.size());
+      upload = uploads.get(0);
+      assertTrue(upload.x <= 95 >> level && upload.x + upload.width > 105 >> level);
+      assertTrue(upload.y <= 407 >> level && upload.y + upload.height > 417 >> level);
+      bytes += upload.width * upload.height * 4;
+    }
+    assertEquals(10, gl.texSubImages.size());
+    assertEquals(0, gl.texSubImages(1).get(0).pixel(50, 206));
+    assertEquals(bytes, renderer.getUploadedBytes());
+  }
+
+  @Test
+  public void testQueuedHolesShareUploads() {
+    HoleQueue queue = new HoleQueue(null, renderer);
+    queue.addHole(100, 100, 5);
+    queue.addHole(110, 104, 3);
+    // Crosses into the region to the right.
+    queue.addHole(510, 100, 6);
+    queue.commit();
+    assertEquals(0, gl.texImages.size());
+
+    List<TexImage> level0 = gl.texSubImages(0);
+    // One upload per region, covering all of its holes.
+    assertEquals(2, level0.size());
+    TexImage upload = level0.get(0);
+    assertEquals(95, upload.x);
+    assertEquals(512 - 104 - 3, upload.y);
+    assertEquals(512 - 95, upload.width);
+    assertEquals(412 + 6 + 1 - 405, upload.height);
+    upload = level0.get(1);
+    assertEquals(0, upload.x);
+    assertEquals(510 + 6 + 1 - 512, upload.width);
+  }
+
+  @Test
+  public void testEdgeRegionsUsePowerOfTwoSizes() {
+    // The 700x600 level is 512 + 188 wide and 512 + 88 high.
+    renderer.dispose();
+    gl.clear();
+    renderer = new LevelRenderer(levelPixmap);
+    List<TexImage> level0 = new ArrayList<TexImage>();
+    for (TexImage upload : gl.texImages) {
+      if (upload.level == 0) {
+        level0.add(upload);
+      }
+    }
+    assertEquals(4, level0.size());
+    int[] sizes = new int[8];
+    for (int i = 0; i < 4; i++) {
+      sizes[2 * i] = level0.get(i).width;
+      sizes[2 * i + 1] = level0.get(i).height;
+    }
+    assertArrayEquals(new int[] {512, 512, 256, 512, 512, 128, 256, 128}, sizes);
+
+    // The level is at the bottom left of the top right region.
+    TexImage corner = level0.get(3);
+    assertEquals(STONE, corner.pixel(0, 128 - 88));
+    assertEquals(GROUND, corner.pixel(187, 127));
+    assertEquals(0, corner.pixel(188, 127));
+    assertEquals(0, corner.pixel(0, 128 - 88 - 1));
+
+    assertEquals(4 * ((256 - 188) * 512 + 512 * (128 - 88) + 256 * 128 - 188 * 88),
+        renderer.getPaddingBytes());
+    assertEquals(4 * (256 * 512 + 512 * 384 + 512 * 512 - 256 * 128),
+        renderer.getSavedPaddingBytes());
+
+    gl.clear();
+    renderer.addHole(600, 550, 3);
+    TexImage upload = gl.texSubImages(0).get(0);
+    assertEquals(0, upload.pixel(600 - 512, 128 - (550 - 512)));
+    assertEquals(GROUND, upload.pixel(600 - 512 - 3, 128 - (550 - 512) - 3));
+  }
+
+  @Test
+  public void testAtlasPages() {
+    // 5x3 regions of 64, the top row 22 high, in blocks of 4x4 regions. Only
+    // the regions with a stone or padding have pixmaps.
+    Pixmap level = ground(5 * 64, 150);
+    gl.clear();
+    LevelRenderer atlas = new LevelRenderer(level, new LevelRenderer.Layout(64, 256));
+    try {
+      assertEquals(2, atlas.getPageCount());
+      assertEquals(8, atlas.getLoadedRegionCount());
+      assertEquals(7, atlas.getUniformRegionCount());
+      assertEquals((256 * 256 + 64 * 256) * 4 * 4 / 3, atlas.getTextureBytes());
+      // Only the pages are created, the regions are uploaded into them.
+      assertEquals(2 * 9, gl.texImages.size());
+      assertEquals(256, gl.texImages.get(0).width);
+      assertEquals(64, gl.texImages.get(9).width);
+
+      // A hole in a uniform region uploads all of it to its slot, which is in
+      // the bottom row of the page of 4x4 slots.
+      gl.clear();
+      atlas.addHole(100, 40, 3);
+      TexImage upload = gl.texSubImages(0).get(0);
+      assertEquals(64, upload.x);
+      assertEquals(192, upload.y);
+      assertEquals(64, upload.width);
+      assertEquals(0, upload.pixel(100, 256 - 40));
+      assertEquals(GROUND, upload.pixel(100 - 4, 256 - 40));
+
+      // Holes in textured regions upload the dirty rectangle to the slot.
+      gl.clear();
+      atlas.addHole(70, 40, 2);
+      upload = gl.texSubImages(0).get(0);
+      assertEquals(64 + 70 - 64 - 2, upload.x);
+      assertEquals(5, upload.width);
+      assertEquals(0, upload.pixel(70, 256 - 40));
+      // Level 6 has a texel per slot, and from there on the slots are mixed.
+      upload = gl.texSubImages(6).get(0);
+      assertEquals(1, upload.x);
+      assertEquals(3, upload.y);
+      assertEquals(3, gl.texSubImages(8).size() + gl.texSubImages(7).size()
+          + gl.texSubImages(6).size());
+    } finally {
+      atlas.dispose();
+      level.dispose();
+    }
+  }
+
+  @Test
+  public void testAtlasPageHoldsBlockAsOneImage() {
+    // 4x3 regions of 64 in one page, with a right column 14 wide and a top
+    // row 10 high, so the corner pixmap is 16x16. Every pixel differs.
+    int width = 3 * 64 + 14;
+    int height = 2 * 64 + 10;
+    Pixmap level = new Pixmap(width, height, Format.RGBA8888);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        level.drawPixel(x, y, x << 24 | y << 16 | 0x80ff);
+      }
+    }
+    gl.clear();
+    LevelRenderer atlas = new LevelRenderer(level, new LevelRenderer.Layout(64, 256));
+    try {
+      assertEquals(1, atlas.getPageCount());
+      int[] page = new int[256 * 256];
+      for (TexImage upload : gl.texSubImages(0)) {
+        for (int y = upload.y; y < upload.y + upload.height; y++) {
+          for (int x = upload.x; x < upload.x + upload.width; x++) {
+            page[y * 256 + x] = upload.pixel(x, y);
+          }
+        }
+      }
+      // The bottom of the page is the bottom of the level, so the texels on
+      // both sides of every slot seam are neighbors in the level too, and
+      // filtering across the seam doesn't bleed in other regions.
+      for (int y = 0; y < height; y++) {
+        for (int x = 0; x < width; x++) {
+          assertEquals("(" + x + ", " + y + ")", level.getPixel(x, y), page[(256 - height + y)
+              * 256 + x]);
+        }
+      }
+
+      // The 16x16 corner pixmap has levels down to 1x1 at level 4. At level
+      // 5 its slot is 2x2 texels, and the texel of the region gets its color,
+      // partly transparent from the padding, instead of staying empty.
+      TexImage corner = null;
+      for (TexImage upload : gl.texSubImages(5)) {
+        if (upload.x == 3 * 64 >> 5 && upload.y == (256 - height) >> 5) {
+          corner = upload;
+        }
+      }
+      assertTrue(corner != null);
+      assertTrue((corner.pixel(corner.x, corner.y) & 0xff) > 0);
+    } finally {
+      atlas.dispose();
+      level.dispose();
+    }
+  }
+
+  @Test
+  public void testStreamingKeepsHolesOfUnloadedRegions() {
+    // One row of four regions with room for two textures.
+    Pixmap wide = ground(4 * 512, 512);
+    long textureBytes = 512 * 512 * 4 * 4 / 3;
+    LevelRenderer streamed = new LevelRenderer(wide, 16, 2 * textureBytes);
+    try {
+      assertEquals(0, streamed.getLoadedRegionCount());
+      assertEquals(0, gl.texImages.size());
+
+      streamed.updateTextures(new Rectangle(100, 100, 200, 200));
+      assertEquals(1, streamed.getLoadedRegionCount());
+      streamed.updateTextures(new Rectangle(1700, 100, 200, 200));
+      assertEquals(2, streamed.getLoadedRegionCount());
+      // The first region is unloaded to make room.
+      streamed.updateTextures(new Rectangle(1100, 100, 200, 200));
+      assertEquals(2, streamed.getLoadedRegionCount());
+      assertEquals(2 * textureBytes, streamed.getTextureBytes());
+
+      gl.clear();
+      streamed.addHole(100, 100, 5);
+      assertEquals(0, gl.texSubImages.size());
+
+      streamed.updateTextures(new Rectangle(100, 100, 200, 200));
+      TexImage upload = gl.texImages.get(0);
+      assertEquals(0, upload.level);
+      assertEquals(0, upload.pixel(100, 412));
+      assertEquals(GROUND, upload.pixel(95, 407));
+
+      // Regions in range stay loaded over the budget.
+      streamed.updateTextures(new Rectangle(0, 0, 2048, 512));
+      assertEquals(4, streamed.getLoadedRegionCount());
+    } finally {
+      streamed.dispose();
+      wide.dispose();
+    }
+  }
+
+  @Test
+  public void testEmptyAndUniformRegions() {
+    // Sky, two regions of plain ground, and sky with a single stone.
+    Pixmap level = new Pixmap(4 * 512, 512, Format.RGBA8888);
+    level.setColor(GROUND);
+    level.fillRectangle(512, 0, 2 * 512, 512);
+    level.drawPixel(1600, 200, STONE);
+    LevelRenderer mixed = new LevelRenderer(level);
+    try {
+      assertEquals(4, mixed.getRegionCount());
+      assertEquals(1, mixed.getEmptyRegionCount());
+      assertEquals(2, mixed.getUniformRegionCount());
+      assertEquals(1, mixed.getLoadedRegionCount());
+      assertEquals(REGION_BYTES_WITH_MIPS, mixed.getPixmapBytes());
+      assertEquals(4 + 512 * 512 * 4 * 4 / 3, mixed.getTextureBytes());
+
+      // Holes in the sky change nothing.
+      gl.clear();
+      mixed.addHole(100, 100, 5);
+      assertEquals(0, gl.texImages.size() + gl.texSubImages.size());
+
+      // A hole in plain ground gives the region a texture of its own.
+      mixed.addHole(600, 100, 5);
+      assertEquals(1, mixed.getUniformRegionCount());
+      assertEquals(2, mixed.getLoadedRegionCount());
+      TexImage upload = gl.texImages.get(0);
+      assertEquals(0, upload.pixel(600 - 512, 412));
+      assertEquals(GROUND, upload.pixel(600 - 512 - 5, 407));
+
+      // Removing the stone empties the last region.
+      mixed.addHole(1600, 512 - 200, 3);
+      assertEquals(2, mixed.getEmptyRegionCount());
+      assertEquals(1, mixed.getLoadedRegionCount());
+      assertEquals(REGION_BYTES_WITH_MIPS, mixed.getPixmapBytes());
+    } finally {
+      mixed.dispose();
+      level.dispose();
+    }
+  }
+
+  /**
+   * Regions are dropped when the last of their pixels is cleared, by holes
+   * that overlap each other and the edges of the region, and not before.
+   */
+  @Test
+  public void testRegionEmptiedByManyHoles() {
+    Pixmap level = new Pixmap(512, 512, Format.RGBA8888);
+    level.setColor(GROUND);
+    level.fill();
+    // Only the hole at (300, 300) reaches the stone.
+    level.drawPixel(300, 512 - 300, STONE);
+    LevelRenderer emptied = new LevelRenderer(level);
+    try {
+      for (int y = 0; y <= 550; y += 50) {
+        for (int x = 0; x <= 550; x += 50) {
+          if (x != 300 || y != 300) {
+            emptied.addHole(x, y, 40);
+          }
+        }
+      }
+      assertEquals(0, emptied.getEmptyRegionCount());
+      assertEquals(1, emptied.getLoadedRegionCount());
+      emptied.addHole(300, 300, 40);
+      assertEquals(1, emptied.getEmptyRegionCount());
+      assertEquals(0, emptied.getLoadedRegionCount());
+      assertEquals(0, emptied.getPixmapBytes());
+    } finally {
+      emptied.dispose();
+      level.dispose();
+    }
+  }
+
+  @Test
+  public void testBuilderAddsRegionsOverFrames() throws InterruptedException {
+    Pixmap level = mixedLevel();
+    Rectangle view = new Rectangle(1100, 600, 200, 200);
+    LevelRendererBuilder builder = new LevelRendererBuilder(level, view, 2);
+    LevelRenderer built = builder.getRenderer();
+    try {
+      assertFalse(builder.isReady(view));
+      assertEquals(0, builder.getProgress(), 0);
+      // Made when the region is added.
+      built.addHole(100, 100, 5);
+
+      builder.setBudgetMillis(0);
+      long timeout = System.currentTimeMillis() + 10000;
+      int added = 0;
+      while (!builder.update()) {
+        // At least one region per update, but no more once over the budget.
+        assertTrue(builder.getAddedRegionCount() - added <= 1);
+        added = builder.getAddedRegionCount();
+        assertTrue(System.currentTimeMillis() < timeout);
+        Thread.sleep(1);
+      }
+      assertEquals(1, builder.getProgress(), 0);
+      assertTrue(builder.isReady(view));
+      assertEquals(1, built.getEmptyRegionCount());
+      // The hole took the ground region out of the uniform ones.
+      assertEquals(0, built.getUniformRegionCount());
+      assertEquals(5, built.getLoadedRegionCount());
+      boolean hole = false;
+      for (TexImage upload : gl.texImages) {
+        if (upload.level == 0 && upload.width == 512) {
+          hole |= upload.pixel(100, 412) == 0 && upload.pixel(95, 407) == GROUND;
+        }
+      }
+      assertTrue(hole);
+    } finally {
+      builder.dispose();
+      built.dispose();
+      level.dispose();
+    }
+  }
+
+  /**
+   * A hole left of the level makes the same pixels whether it is made before
+   * or after its region is added.
+   */
+  @Test
+  public void testBuilderHoleAtNegativeCoordinate() throws InterruptedException {
+    Pixmap level = ground(512, 512);
+    Rectangle view = new Rectangle(0, 0, 512, 512);
+    LevelRendererBuilder before = new LevelRendererBuilder(level, view, 1);
+    LevelRendererBuilder after = new LevelRendererBuilder(level, view, 1);
+    try {
+      before.getRenderer().addHole(-0.5f, 100, 5);
+      build(before);
+      TexImage added = null;
+      for (TexImage upload : gl.texImages) {
+        if (upload.level == 0) {
+          added = upload;
+        }
+      }
+
+      build(after);
+      gl.clear();
+      after.getRenderer().addHole(-0.5f, 100, 5);
+      TexImage stamped = gl.texSubImages.get(0);
+      assertEquals(0, stamped.level);
+      for (int y = stamped.y; y < stamped.y + stamped.height; y++) {
+        for (int x = stamped.x; x < stamped.x + stamped.width; x++) {
+          assertEquals("(" + x + ", " + y + ")", stamped.pixel(x, y), added.pixel(x, y));
+        }
+      }
+      // The hole is centered in column -1, as in the collision map.
+      assertEquals(0, added.pixel(4, 412));
+      assertEquals(GROUND, added.pixel(5, 412));
+    } finally {
+      before.dispose();
+      after.dispose();
+      before.getRenderer().dispose();
+      after.getRenderer().dispose();
+      level.dispose();
+    }
+  }
+
+  private static void build(LevelRendererBuilder builder) throws InterruptedException {
+    long timeout = System.currentTimeMillis() + 10000;
+    while (!builder.update()) {
+      assertTrue(System.currentTimeMillis() < timeout);
+      Thread.sleep(1);
+    }
+  }
+
+  @Test
+  public void testTileFileMatchesSlicedLevel() throws IOException {
+    Pixmap level = mixedLevel();
+    FileHandle file = new FileHandle(File.createTempFile("level", ".tiles"));
+    LevelRenderer sliced = null;
+    LevelRenderer loaded = null;
+    try {
+      LevelTileFile.write(level, file);
+      sliced = new LevelRenderer(level);
+      List<TexImage> slicedUploads = new ArrayList<TexImage>(gl.texImages);
+      gl.clear();
+      loaded = new LevelRenderer(file);
+
+      assertEquals(sliced.getEmptyRegionCount(), loaded.getEmptyRegionCount());
+      assertEquals(sliced.getUniformRegionCount(), loaded.getUniformRegionCount());
+      assertEquals(sliced.getLoadedRegionCount(), loaded.getLoadedRegionCount());
+      assertEquals(sliced.getPixmapBytes(), loaded.getPixmapBytes());
+      assertEquals(sliced.getTextureBytes(), loaded.getTextureBytes());
+      // The same levels, but from the file instead of generated.
+      assertEquals(slicedUploads.size(), gl.texImages.size());
+      for (int i = 0; i < slicedUploads.size(); i++) {
+        TexImage expected = slicedUploads.get(i);
+        TexImage actual = gl.texImages.get(i);
+        assertEquals(expected.level, actual.level);
+        if (expected.level == 0) {
+          assertArrayEquals(expected.pixels, actual.pixels);
+        }
+      }
+
+      // The first textured region has a stone in its top left corner.
+      TexImage level1 = null;
+      for (TexImage upload : gl.texImages) {
+        if (upload.level == 1) {
+          level1 = upload;
+          break;
+        }
+      }
+      int expected = 0;
+      for (int shift = 0; shift < 32; shift += 8) {
+        expected |= ((STONE >>> shift & 0xff) + 3 * (GROUND >>> shift & 0xff) + 2) / 4 << shift;
+      }
+      assertEquals(expected, level1.pixel(0, 0));
+    } finally {
+      if (sliced != null) {
+        sliced.dispose();
+      }
+      if (loaded != null) {
+        loaded.dispose();
+      }
+      level.dispose();
+      file.delete();
+    }
+  }
+
+  /**
+   * Returns a level of 3x2 regions, with plain ground at the bottom left and
+   * sky at the top right.
+   */
+  private static Pixmap mixedLevel() {
+    Pixmap level = ground(3 * 512, 2 * 512);
+    level.setColor(GROUND);
+    level.fillRectangle(0, 512, 512, 512);
+    level.setColor(0);
+    level.fillRectangle(1024, 0, 512, 512);
+    return level;
+  }
+
+  /**
+   * Returns a ground level with a stone every 128 pixels, so that no region
+   * has a single color.
+   */
+  private static Pixmap ground(int width, int height) {
+    Pixmap level = new Pixmap(width, height, Format.RGBA8888);
+    level.setColor(GROUND);
+    level.fill();
+    for (int y = 0; y < height; y += 128) {
+      for (int x = 0; x < width; x += 128) {
+        level.drawPixel(x, y, STONE);
+      }
+    }
+    return level;
+  }
+}
@@ -0,0 +1,81 @@
+package com.dounanshi.libgdx.util.destructable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+import com.badlogic.gdx.math.Vector2;
+import com.dounanshi.libgdx.util.destructable.Metrics.Metric;
+
+public class MetricsTest {
+
+  @Test
+  public void testFramesAndCsv() throws IOException {
+    Metrics metrics = new Metrics(2);
+    metrics.record(Metric.UPLOADED_BYTES, 100);
+    metrics.record(Metric.UPLOADED_BYTES, 20);
+    metrics.endFrame();
+    metrics.record(Metric.RENDER, 5);
+    metrics.endFrame();
+    assertEquals(2, metrics.getKeptFrameCount());
+    assertEquals(2, metrics.getCount(Metric.UPLOADED_BYTES, 1));
+    assertEquals(120, metrics.getTotal(Metric.UPLOADED_BYTES, 1));
+    assertEquals(0, metrics.getCount(Metric.UPLOADED_BYTES, 0));
+    assertEquals(5, metrics.getTotal(Metric.RENDER, 0));
+    assertEquals(120, metrics.getMaxTotal(Metric.UPLOADED_BYTES));
+
+    // Only the last two frames are kept.
+    metrics.endFrame();
+    assertEquals(3, metrics.getFrameCount());
+    assertEquals(2, metrics.getKeptFrameCount());
+    assertEquals(0, metrics.getMaxTotal(Metric.UPLOADED_BYTES));
+
+    StringWriter csv = new StringWriter();
+    metrics.writeCsv(csv);
+    String[] lines = csv.toString().split("\n");
+    assertEquals(3, lines.length);
+    assertTrue(lines[0].startsWith("frame,project_out_count,project_out_total,"));
+    assertTrue(lines[1].startsWith("1,"));
+    assertTrue(lines[1].endsWith(",1,5"));
+    assertEquals(1 + 2 * Metric.values().length, lines[2].split(",").length);
+  }
+
+  @Test
+  public void testHolePixels() {
+    CollisionMap map = TestMaps.hills(200, 100);
+    Metrics metrics = new Metrics(1);
+    map.setMetrics(metrics);
+    // A circle of radius 1 fills rows of 1, 3 and 1 pixels, and the middle
+    // row twice more, then the top and bottom rows once more each.
+    map.addHole(50, 20, 1);
+    // Outside of the map.
+    map.addHole(-10, 20, 1);
+    metrics.endFrame();
+    assertEquals(2, metrics.getCount(Metric.COLLISION_HOLE_PIXELS, 0));
+    assertEquals(13, metrics.getTotal(Metric.COLLISION_HOLE_PIXELS, 0));
+  }
+
+  @Test
+  public void testProjectOutSteps() {
+    CollisionMap map = TestMaps.hills(200, 100);
+    Metrics metrics = new Metrics(1);
+    map.setMetrics(metrics);
+    Vector2 normal = new Vector2();
+    // Above the ground, then deep inside it.
+    map.projectOut(new Vector2(50, 99), new Vector2(0, -1), normal);
+    map.projectOut(new Vector2(50, 5), new Vector2(0, -1), normal);
+    metrics.endFrame();
+    assertEquals(2, metrics.getCount(Metric.PROJECT_OUT, 0));
+    assertEquals(1, metrics.getCount(Metric.PROJECT_OUT_STEPS, 0));
+    assertTrue(metrics.getTotal(Metric.PROJECT_OUT_STEPS, 0) > 1);
+
+    map.setMetrics(null);
+    map.projectOut(new Vector2(50, 5), new Vector2(0, -1), normal);
+    metrics.endFrame();
+    assertEquals(0, metrics.getCount(Metric.PROJECT_OUT, 0));
+  }
+}
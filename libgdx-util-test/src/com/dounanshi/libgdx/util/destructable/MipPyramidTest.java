@@ -0,0 +1,88 @@
+package com.dounanshi.libgdx.util.destructable;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.Pixmap.Blending;
+import com.badlogic.gdx.graphics.Pixmap.Format;
+import com.badlogic.gdx.utils.GdxNativesLoader;
+
+public class MipPyramidTest {
+
+  private Blending blending;
+
+  @BeforeClass
+  public static void setUpClass() {
+    GdxNativesLoader.load();
+  }
+
+  @Before
+  public void setUp() {
+    blending = Pixmap.getBlending();
+    Pixmap.setBlending(Blending.None);
+  }
+
+  @After
+  public void tearDown() {
+    Pixmap.setBlending(blending);
+  }
+
+  @Test
+  public void testUpdateMatchesRegeneration() {
+    testUpdateMatchesRegeneration(Format.RGBA8888, 128, 128);
+    // Odd sizes and the slow path for other formats.
+    testUpdateMatchesRegeneration(Format.RGBA8888, 100, 37);
+    testUpdateMatchesRegeneration(Format.RGB888, 64, 64);
+  }
+
+  private static void testUpdateMatchesRegeneration(Format format, int width, int height) {
+    Random random = new Random(6);
+    Pixmap pixmap = new Pixmap(width, height, format);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        pixmap.drawPixel(x, y, random.nextInt() | 0x80);
+      }
+    }
+    MipPyramid pyramid = new MipPyramid(pixmap);
+    try {
+      for (int i = 0; i < 20; i++) {
+        int x = random.nextInt(width);
+        int y = random.nextInt(height);
+        int radius = 1 + random.nextInt(8);
+        pixmap.setColor(0);
+        pixmap.fillCircle(x, y, radius);
+        pyramid.update(x - radius, y - radius, x + radius + 1, y + radius + 1);
+
+        MipPyramid regenerated = new MipPyramid(pixmap);
+        try {
+          assertEquals(regenerated.getLevelCount(), pyramid.getLevelCount());
+          for (int level = 1; level < pyramid.getLevelCount(); level++) {
+            assertSame(regenerated.getLevel(level), pyramid.getLevel(level));
+          }
+        } finally {
+          regenerated.dispose();
+        }
+      }
+    } finally {
+      pyramid.dispose();
+      pixmap.dispose();
+    }
+  }
+
+  private static void assertSame(Pixmap expected, Pixmap actual) {
+    assertEquals(expected.getWidth(), actual.getWidth());
+    assertEquals(expected.getHeight(), actual.getHeight());
+    for (int y = 0; y < expected.getHeight(); y++) {
+      for (int x = 0; x < expected.getWidth(); x++) {
+        assertEquals("(" + x + ", " + y + ")", expected.getPixel(x, y), actual.getPixel(x, y));
+      }
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package com.dounanshi.libgdx.util.destructable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class OccupancyPyramidTest {
+
+  // Not multiples of the block sizes, so the edge blocks are cut off.
+  private static final int W = 1100;
+  private static final int H = 700;
+
+  @Test
+  public void testCountsFollowHoles() {
+    CollisionMap collisionMap = TestMaps.hills(W, H);
+    OccupancyPyramid pyramid = OccupancyPyramid.compute(collisionMap);
+    collisionMap.setOccupancyPyramid(pyramid);
+    Random random = new Random(6);
+    for (int i = 0; i < 50; i++) {
+      collisionMap.addHole(random.nextFloat() * W, random.nextFloat() * H,
+          1 + random.nextInt(40));
+    }
+    assertCountsEqual(OccupancyPyramid.compute(collisionMap), pyramid);
+  }
+
+  @Test
+  public void testRegionQueries() {
+    CollisionMap collisionMap = TestMaps.hills(W, H);
+    collisionMap.addHole(500, 350, 30);
+    Random random = new Random(7);
+    int[] expected = new int[300];
+    for (int i = 0; i < expected.length; i++) {
+      random.setSeed(i);
+      expected[i] = collisionMap.countSolid(random.nextInt(W + 100) - 50,
+          random.nextInt(H + 100) - 50, random.nextInt(600), random.nextInt(600));
+    }
+    collisionMap.setOccupancyPyramid(OccupancyPyramid.compute(collisionMap));
+    for (int i = 0; i < expected.length; i++) {
+      random.setSeed(i);
+      assertEquals(expected[i], collisionMap.countSolid(random.nextInt(W + 100) - 50,
+          random.nextInt(H + 100) - 50, random.nextInt(600), random.nextInt(600)));
+    }
+
+    // The bottom is solid, the top of the sky is empty.
+    assertTrue(collisionMap.isFull(0, 1, W, 100));
+    assertFalse(collisionMap.isEmpty(0, 1, W, 100));
+    assertTrue(collisionMap.isEmpty(0, H - 50, W, 50));
+    assertFalse(collisionMap.isFull(0, H - 50, W, 50));
+    // Around the hole.
+    assertTrue(collisionMap.isEmpty(490, 340, 20, 20));
+  }
+
+  @Test
+  public void testRaycastSkipsEmptyBlocks() {
+    CollisionMap collisionMap = TestMaps.hills(W, H);
+    collisionMap.addHole(300, 350, 60);
+    Random random = new Random(8);
+    RaycastHit expected = new RaycastHit();
+    RaycastHit hit = new RaycastHit();
+    OccupancyPyramid pyramid = OccupancyPyramid.compute(collisionMap);
+    for (int i = 0; i < 2000; i++) {
+      float x0 = random.nextFloat() * (W + 200) - 100;
+      float y0 = random.nextFloat() * (H + 200) - 100;
+      float x1 = random.nextFloat() * (W + 200) - 100;
+      float y1 = random.nextFloat() * (H + 200) - 100;
+      collisionMap.setOccupancyPyramid(null);
+      boolean expectedHit = collisionMap.raycast(x0, y0, x1, y1, expected);
+      collisionMap.setOccupancyPyramid(pyramid);
+      assertEquals(expectedHit, collisionMap.raycast(x0, y0, x1, y1, hit));
+      if (expectedHit) {
+        assertEquals(expected.cellX, hit.cellX);
+        assertEquals(expected.cellY, hit.cellY);
+        assertEquals(expected.fraction, hit.fraction, 0.0001f);
+        assertEquals(expected.normal, hit.normal);
+      }
+    }
+  }
+
+  private static void assertCountsEqual(OccupancyPyramid expected, OccupancyPyramid actual) {
+    for (int level = 0; level < OccupancyPyramid.NUM_LEVELS; level++) {
+      assertEquals(expected.getColumns(level), actual.getColumns(level));
+      assertEquals(expected.getRows(level), actual.getRows(level));
+      for (int row = 0; row < expected.getRows(level); row++) {
+        for (int col = 0; col < expected.getColumns(level); col++) {
+          assertEquals(expected.getCount(level, col, row), actual.getCount(level, col, row));
+        }
+      }
+    }
+  }
+}
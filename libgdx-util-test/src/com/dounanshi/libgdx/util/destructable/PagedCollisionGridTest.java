@@ -0,0 +1,248 @@
+package com.dounanshi.libgdx.util.destructable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+
+public class PagedCollisionGridTest {
+
+  private static final int W = 300;
+  private static final int H = 200;
+
+  // Doesn't divide W or H, so the edge tiles are cut off.
+  private static final int TILE_SIZE = 48;
+
+  // Room for 4 of the 35 tiles.
+  private static final int BUDGET = 4 * TILE_SIZE * TILE_SIZE * 4;
+
+  private FileHandle dir;
+
+  @Before
+  public void setUp() throws IOException {
+    File file = File.createTempFile("paged-grid", "");
+    file.delete();
+    dir = new FileHandle(file);
+  }
+
+  @After
+  public void tearDown() {
+    dir.deleteDirectory();
+  }
+
+  @Test
+  public void testHolesAreWrittenBack() {
+    CollisionMap expected = TestMaps.hills(W, H);
+    DirectoryTileStore store = new DirectoryTileStore(dir, TILE_SIZE, TILE_SIZE);
+    PagedCollisionGrid.writeTiles(expected, store);
+
+    PagedCollisionGrid grid = new PagedCollisionGrid(W, H, store, BUDGET);
+    CollisionMap paged = new CollisionMap(grid);
+    addHoles(expected);
+    addHoles(paged);
+    assertSame(expected, paged);
+    assertEquals(4, grid.getResidentTiles());
+    assertTrue(grid.getEvictions() > 0);
+    assertTrue(grid.getWriteBacks() > 0);
+    assertEquals(grid.getMisses(), grid.getEvictions() + grid.getResidentTiles());
+    paged.dispose();
+
+    // Everything was written back, including the resident tiles.
+    assertSame(expected, new CollisionMap(new PagedCollisionGrid(W, H, store, BUDGET)));
+  }
+
+  @Test
+  public void testHitsAndMissesCountTileAccesses() {
+    PagedCollisionGrid.writeTiles(TestMaps.hills(W, H), new DirectoryTileStore(dir, TILE_SIZE,
+        TILE_SIZE));
+    PagedCollisionGrid grid = new PagedCollisionGrid(W, H, new DirectoryTileStore(dir,
+        TILE_SIZE, TILE_SIZE), BUDGET);
+    for (int i = 0; i < 10; i++) {
+      grid.get(i, i);
+    }
+    assertEquals(0, grid.getHits());
+    assertEquals(1, grid.getMisses());
+    grid.get(TILE_SIZE, 0);
+    grid.get(TILE_SIZE + 1, 0);
+    grid.get(0, 0);
+    assertEquals(1, grid.getHits());
+    assertEquals(2, grid.getMisses());
+  }
+
+  @Test
+  public void testFailedWriteBackKeepsTile() {
+    CollisionMap expected = TestMaps.hills(W, H);
+    FailingTileStore store = new FailingTileStore(new DirectoryTileStore(dir, TILE_SIZE,
+        TILE_SIZE));
+    PagedCollisionGrid.writeTiles(expected, store);
+    // Room for one tile.
+    PagedCollisionGrid grid = new PagedCollisionGrid(W, H, store, 1);
+    CollisionMap paged = new CollisionMap(grid);
+    expected.addHole(10, H - 10, 5);
+    paged.addHole(10, H - 10, 5);
+
+    store.failWrites = true;
+    try {
+      grid.get(W - 1, H - 1);
+      fail("Evicted a tile that couldn't be written");
+    } catch (GdxRuntimeException e) {
+      // Expected.
+    }
+    assertEquals(1, grid.getResidentTiles());
+    assertEquals(0, grid.getEvictions());
+
+    store.failWrites = false;
+    grid.get(W - 1, H - 1);
+    assertEquals(1, grid.getEvictions());
+    assertEquals(1, grid.getWriteBacks());
+    assertSame(expected, new CollisionMap(new PagedCollisionGrid(W, H, store, BUDGET)));
+  }
+
+  @Test
+  public void testQueriesMatchResidentMap() {
+    CollisionMap expected = TestMaps.hills(W, H);
+    addHoles(expected);
+    PagedCollisionGrid.writeTiles(expected, new DirectoryTileStore(dir, TILE_SIZE, TILE_SIZE));
+    CollisionMap paged = new CollisionMap(new PagedCollisionGrid(W, H,
+        new DirectoryTileStore(dir, TILE_SIZE, TILE_SIZE), BUDGET));
+
+    Random random = new Random(13);
+    RaycastHit expectedHit = new RaycastHit();
+    RaycastHit hit = new RaycastHit();
+    for (int i = 0; i < 200; i++) {
+      float x0 = random.nextFloat() * W;
+      float y0 = random.nextFloat() * H;
+      float x1 = random.nextFloat() * W;
+      float y1 = random.nextFloat() * H;
+      assertEquals(expected.raycast(x0, y0, x1, y1, expectedHit),
+          paged.raycast(x0, y0, x1, y1, hit));
+      assertEquals(expectedHit.fraction, hit.fraction, 0);
+      assertEquals(expected.surfaceNormal(x0, y0), paged.surfaceNormal(x0, y0));
+    }
+  }
+
+  /**
+   * Readers on several threads keep switching tiles and evicting the tiles
+   * that the other readers are reading.
+   */
+  @Test
+  public void testParallelQueries() throws InterruptedException {
+    final CollisionMap expected = TestMaps.hills(W, H);
+    addHoles(expected);
+    PagedCollisionGrid.writeTiles(expected, new DirectoryTileStore(dir, TILE_SIZE, TILE_SIZE));
+    final CollisionMap paged = new CollisionMap(new PagedCollisionGrid(W, H,
+        new DirectoryTileStore(dir, TILE_SIZE, TILE_SIZE), BUDGET / 2));
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    Thread[] readers = new Thread[4];
+    for (int r = 0; r < readers.length; r++) {
+      final Random random = new Random(r);
+      readers[r] = new Thread() {
+        @Override
+        public void run() {
+          RaycastHit expectedHit = new RaycastHit();
+          RaycastHit hit = new RaycastHit();
+          try {
+            for (int i = 0; i < 500; i++) {
+              float x0 = random.nextFloat() * W;
+              float y0 = random.nextFloat() * H;
+              float x1 = random.nextFloat() * W;
+              float y1 = random.nextFloat() * H;
+              assertEquals(expected.raycast(x0, y0, x1, y1, expectedHit), paged.raycast(x0, y0,
+                  x1, y1, hit));
+              assertEquals(expectedHit.fraction, hit.fraction, 0);
+            }
+          } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+          }
+        }
+      };
+      readers[r].start();
+    }
+    for (Thread reader : readers) {
+      reader.join();
+    }
+    assertNull(failure.get());
+  }
+
+  @Test
+  public void testPagedCollisionMapFile() throws IOException {
+    CollisionMap expected = TestMaps.hills(W, H);
+    File file = File.createTempFile("collision-map", ".cmap");
+    try {
+      CollisionMapFile.write(expected, new FileHandle(file), TILE_SIZE,
+          CollisionMapFile.COMPRESSION_NONE);
+      CollisionMap paged = CollisionMapFile.openPaged(new FileHandle(file), 2 * W * TILE_SIZE
+          * 4);
+      addHoles(expected);
+      addHoles(paged);
+      assertSame(expected, paged);
+      paged.dispose();
+      assertSame(expected, CollisionMap.open(new FileHandle(file)));
+    } finally {
+      file.delete();
+    }
+  }
+
+  private static class FailingTileStore implements PagedCollisionGrid.TileStore {
+
+    final PagedCollisionGrid.TileStore store;
+    boolean failWrites;
+
+    FailingTileStore(PagedCollisionGrid.TileStore store) {
+      this.store = store;
+    }
+
+    @Override
+    public int getTileWidth() {
+      return store.getTileWidth();
+    }
+
+    @Override
+    public int getTileHeight() {
+      return store.getTileHeight();
+    }
+
+    @Override
+    public void readTile(int col, int row, int[] pixels) {
+      store.readTile(col, row, pixels);
+    }
+
+    @Override
+    public void writeTile(int col, int row, int[] pixels) {
+      if (failWrites) {
+        throw new GdxRuntimeException("Disk full");
+      }
+      store.writeTile(col, row, pixels);
+    }
+  }
+
+  private static void addHoles(CollisionMap collisionMap) {
+    Random random = new Random(12);
+    for (int i = 0; i < 40; i++) {
+      collisionMap.addHole(random.nextFloat() * W, random.nextFloat() * H,
+          1 + random.nextInt(20));
+    }
+  }
+
+  private static void assertSame(CollisionMap expected, CollisionMap actual) {
+    assertEquals(expected.getWidth(), actual.getWidth());
+    assertEquals(expected.getHeight(), actual.getHeight());
+    for (int py = 0; py < expected.getHeight(); py++) {
+      for (int px = 0; px < expected.getWidth(); px++) {
+        assertEquals("(" + px + ", " + py + ")", expected.pixel(px, py), actual.pixel(px, py));
+      }
+    }
+  }
+}
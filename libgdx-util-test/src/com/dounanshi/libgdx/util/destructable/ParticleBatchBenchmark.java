@@ -0,0 +1,93 @@
+package com.dounanshi.libgdx.util.destructable;
+
+import java.util.concurrent.ForkJoinPool;
+
+import com.badlogic.gdx.math.Vector2;
+
+/**
+ * Measures the throughput of {@link CollisionMap#resolve(ParticleBatch)} in
+ * particles per millisecond, serially and on a {@link ForkJoinPool}.
+ *
+ * Not a unit test; run the main method directly.
+ */
+public class ParticleBatchBenchmark {
+
+  private static final int W = 8192;
+  private static final int H = 4096;
+  private static final int NUM_PARTICLES = 100000;
+  private static final int WARMUP_RUNS = 5;
+  private static final int RUNS = 10;
+
+  public static void main(String[] args) {
+    CollisionMap collisionMap = TestMaps.hills(W, H);
+    ParticleBatch initial = TestMaps.fallingParticles(NUM_PARTICLES, W, H, 1);
+    ParticleBatch particles = new ParticleBatch(NUM_PARTICLES);
+
+    // Scalar path through the Vector2 api for comparison.
+    run("scalar", collisionMap, initial, particles, null, true);
+    run("batch", collisionMap, initial, particles, null, false);
+    ForkJoinPool pool = new ForkJoinPool();
+    try {
+      run("batch x" + pool.getParallelism(), collisionMap, initial, particles, pool, false);
+      collisionMap.setDistanceField(DistanceField.compute(collisionMap, 32));
+      run("batch sdf", collisionMap, initial, particles, null, false);
+      run("batch sdf x" + pool.getParallelism(), collisionMap, initial, particles, pool, false);
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private static void run(String name, CollisionMap collisionMap, ParticleBatch initial,
+      ParticleBatch particles, ForkJoinPool pool, boolean scalar) {
+    for (int i = 0; i < WARMUP_RUNS; i++) {
+      resolve(collisionMap, initial, particles, pool, scalar);
+    }
+    long nanos = 0;
+    for (int i = 0; i < RUNS; i++) {
+      nanos += resolve(collisionMap, initial, particles, pool, scalar);
+    }
+    double particlesPerMs = (double) NUM_PARTICLES * RUNS / (nanos / 1e6);
+    System.out.printf("%-14s %10.0f particles/ms%n", name, particlesPerMs);
+  }
+
+  /**
+   * Resets the particles and resolves them once.
+   *
+   * @return the time it took to resolve in nanoseconds.
+   */
+  private static long resolve(CollisionMap collisionMap, ParticleBatch initial,
+      ParticleBatch particles, ForkJoinPool pool, boolean scalar) {
+    particles.clear();
+    for (int i = 0; i < initial.size; i++) {
+      particles.add(initial.x[i], initial.y[i], initial.velX[i], initial.velY[i],
+          initial.friction[i], initial.bounce[i]);
+    }
+    long start = System.nanoTime();
+    if (scalar) {
+      resolveScalar(collisionMap, particles);
+    } else if (pool == null) {
+      collisionMap.resolve(particles);
+    } else {
+      collisionMap.resolve(particles, pool);
+    }
+    return System.nanoTime() - start;
+  }
+
+  /**
+   * Resolves the particles one at a time with Vector2 objects.
+   */
+  private static void resolveScalar(CollisionMap collisionMap, ParticleBatch particles) {
+    for (int i = 0; i < particles.size; i++) {
+      Vector2 pos = new Vector2(particles.x[i], particles.y[i]);
+      Vector2 vel = new Vector2(particles.velX[i], particles.velY[i]);
+      Vector2 normal = collisionMap.projectOut(pos, vel);
+      if (normal != null) {
+        collisionMap.bounce(vel, normal, particles.friction[i], particles.bounce[i]);
+      }
+      particles.x[i] = pos.x;
+      particles.y[i] = pos.y;
+      particles.velX[i] = vel.x;
+      particles.velY[i] = vel.y;
+    }
+  }
+}
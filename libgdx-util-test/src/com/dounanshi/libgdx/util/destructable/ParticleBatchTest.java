@@ -0,0 +1,102 @@
+package com.dounanshi.libgdx.util.destructable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.badlogic.gdx.math.Vector2;
+
+public class ParticleBatchTest {
+
+  private static final int W = 256;
+  private static final int H = 128;
+  private static final int NUM_PARTICLES = 5000;
+
+  private CollisionMap collisionMap;
+  private ParticleBatch particles;
+
+  @Before
+  public void setUp() {
+    collisionMap = TestMaps.hills(W, H);
+    particles = TestMaps.fallingParticles(NUM_PARTICLES, W, H, 1);
+  }
+
+  @Test
+  public void testResolveMatchesScalar() {
+    ParticleBatch expected = copy(particles);
+    int expectedHits = 0;
+    Vector2 pos = new Vector2();
+    Vector2 vel = new Vector2();
+    for (int i = 0; i < expected.size; i++) {
+      pos.set(expected.x[i], expected.y[i]);
+      vel.set(expected.velX[i], expected.velY[i]);
+      Vector2 normal = collisionMap.projectOut(pos, vel);
+      expected.hit[i] = normal != null;
+      if (normal != null) {
+        collisionMap.bounce(vel, normal, expected.friction[i], expected.bounce[i]);
+        expected.normalX[i] = normal.x;
+        expected.normalY[i] = normal.y;
+        expectedHits++;
+      }
+      expected.x[i] = pos.x;
+      expected.y[i] = pos.y;
+      expected.velX[i] = vel.x;
+      expected.velY[i] = vel.y;
+    }
+    assertTrue(expectedHits > 0);
+
+    assertEquals(expectedHits, collisionMap.resolve(particles));
+    assertSame(expected, particles);
+  }
+
+  @Test
+  public void testParallelResolveMatchesSerial() {
+    ParticleBatch serial = copy(particles);
+    int serialHits = collisionMap.resolve(serial);
+
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      assertEquals(serialHits, collisionMap.resolve(particles, pool));
+    } finally {
+      pool.shutdown();
+    }
+    assertSame(serial, particles);
+  }
+
+  @Test
+  public void testRemove() {
+    ParticleBatch batch = new ParticleBatch(3);
+    batch.add(1, 1, 0, -1, 0.5f, 0.5f);
+    batch.add(2, 2, 0, -1, 0.5f, 0.5f);
+    batch.add(3, 3, 0, -1, 0.5f, 0.5f);
+    batch.remove(0);
+    assertEquals(2, batch.size);
+    assertEquals(3, batch.x[0], 0);
+    assertEquals(2, batch.x[1], 0);
+  }
+
+  private static ParticleBatch copy(ParticleBatch src) {
+    ParticleBatch dst = new ParticleBatch(src.getCapacity());
+    for (int i = 0; i < src.size; i++) {
+      dst.add(src.x[i], src.y[i], src.velX[i], src.velY[i], src.friction[i], src.bounce[i]);
+    }
+    return dst;
+  }
+
+  private static void assertSame(ParticleBatch expected, ParticleBatch actual) {
+    assertEquals(expected.size, actual.size);
+    for (int i = 0; i < expected.size; i++) {
+      assertEquals(expected.hit[i], actual.hit[i]);
+      assertEquals(expected.x[i], actual.x[i], 0);
+      assertEquals(expected.y[i], actual.y[i], 0);
+      assertEquals(expected.velX[i], actual.velX[i], 0);
+      assertEquals(expected.velY[i], actual.velY[i], 0);
+      assertEquals(expected.normalX[i], actual.normalX[i], 0);
+      assertEquals(expected.normalY[i], actual.normalY[i], 0);
+    }
+  }
+}
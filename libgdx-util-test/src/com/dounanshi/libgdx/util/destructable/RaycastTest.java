@@ -0,0 +1,171 @@
+package com.dounanshi.libgdx.util.destructable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.IntBuffer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+public class RaycastTest {
+
+  private static final int W = 64;
+  private static final int H = 64;
+  // Level x of the one pixel wide wall.
+  private static final int WALL = 40;
+  private static final float ERR = 0.001f;
+
+  @Test
+  public void testRayHitsThinWall() {
+    CollisionMap collisionMap = wall();
+    RaycastHit hit = new RaycastHit();
+    // Both ends are empty, a sampled bullet would tunnel through.
+    assertFalse(collisionMap.isSolid(10.5f, 20.5f));
+    assertFalse(collisionMap.isSolid(60.5f, 20.5f));
+    assertTrue(collisionMap.raycast(10.5f, 20.5f, 60.5f, 20.5f, hit));
+    assertEquals(WALL, hit.cellX);
+    assertEquals(20, hit.cellY);
+    assertEquals(WALL, hit.x, ERR);
+    assertEquals((WALL - 10.5f) / 50, hit.fraction, ERR);
+    // No normal in the map, so it is the side of the pixel.
+    assertEquals(-1, hit.normal.x, ERR);
+    assertEquals(0, hit.normal.y, ERR);
+
+    // And from the other side.
+    assertTrue(collisionMap.raycast(60.5f, 20.5f, 10.5f, 20.5f, hit));
+    assertEquals(WALL + 1, hit.x, ERR);
+    assertEquals(1, hit.normal.x, ERR);
+  }
+
+  @Test
+  public void testRayMiss() {
+    CollisionMap collisionMap = wall();
+    RaycastHit hit = new RaycastHit();
+    hit.fraction = 7;
+    assertFalse(collisionMap.raycast(10.5f, 20.5f, 30.5f, 50.5f, hit));
+    assertFalse(collisionMap.raycast(10.5f, 20.5f, 10.5f, 20.5f, hit));
+    assertEquals(7, hit.fraction, 0);
+  }
+
+  @Test
+  public void testRayMatchesDenseSampling() {
+    CollisionMap collisionMap = TestMaps.hills(W, H);
+    collisionMap.addHole(30, 30, 6);
+    Random random = new Random(3);
+    RaycastHit hit = new RaycastHit();
+    for (int i = 0; i < 500; i++) {
+      float x0 = random.nextFloat() * W;
+      float y0 = random.nextFloat() * H;
+      float x1 = random.nextFloat() * W;
+      float y1 = random.nextFloat() * H;
+      boolean hitMap = collisionMap.raycast(x0, y0, x1, y1, hit);
+      float sampledFraction = firstSolidSample(collisionMap, x0, y0, x1, y1);
+      if (!hitMap) {
+        assertEquals(-1, sampledFraction, 0);
+        continue;
+      }
+      // Nothing solid before the hit, and the hit pixel is solid.
+      assertTrue(sampledFraction < 0 || sampledFraction >= hit.fraction - ERR);
+      assertTrue(collisionMap.isSolid(hit.cellX + 0.5f, hit.cellY + 0.5f));
+      assertEquals(1, hit.normal.len(), ERR);
+    }
+  }
+
+  @Test
+  public void testSweptCircleStopsAtRadius() {
+    CollisionMap collisionMap = wall();
+    RaycastHit hit = new RaycastHit();
+    assertTrue(collisionMap.raycast(10.5f, 20.5f, 60.5f, 20.5f, 3, hit));
+    assertEquals(WALL - 3, hit.x, 0.01f);
+    assertEquals(20.5f, hit.y, ERR);
+    assertEquals(-1, hit.normal.x, ERR);
+    assertEquals(0, hit.normal.y, ERR);
+    // Too far from the wall to touch it.
+    assertFalse(collisionMap.raycast(10.5f, 20.5f, WALL - 3.5f, 20.5f, 3, hit));
+  }
+
+  @Test
+  public void testSweptCircleWithDistanceField() {
+    CollisionMap collisionMap = TestMaps.hills(W, H);
+    RaycastHit expected = new RaycastHit();
+    RaycastHit hit = new RaycastHit();
+    Random random = new Random(4);
+    for (int i = 0; i < 200; i++) {
+      float x0 = random.nextFloat() * W;
+      float x1 = random.nextFloat() * W;
+      float radius = random.nextFloat() * 4;
+      collisionMap.setDistanceField(null);
+      boolean expectedHit = collisionMap.raycast(x0, H, x1, 0, radius, expected);
+      collisionMap.setDistanceField(DistanceField.compute(collisionMap, 8));
+      assertEquals(expectedHit, collisionMap.raycast(x0, H, x1, 0, radius, hit));
+      if (expectedHit) {
+        assertEquals(expected.fraction, hit.fraction, 0.01f);
+      }
+    }
+  }
+
+  @Test
+  public void testBatch() {
+    CollisionMap collisionMap = TestMaps.hills(W, H);
+    Random random = new Random(5);
+    RayBatch rays = new RayBatch(2000);
+    RayBatch parallelRays = new RayBatch(2000);
+    for (int i = 0; i < rays.getCapacity(); i++) {
+      float x0 = random.nextFloat() * W;
+      float x1 = random.nextFloat() * W;
+      float radius = i % 2 == 0 ? 0 : random.nextFloat() * 3;
+      rays.add(x0, H, x1, 0, radius);
+      parallelRays.add(x0, H, x1, 0, radius);
+    }
+    int hits = collisionMap.raycast(rays);
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      assertEquals(hits, collisionMap.raycast(parallelRays, pool));
+    } finally {
+      pool.shutdown();
+    }
+
+    RaycastHit hit = new RaycastHit();
+    for (int i = 0; i < rays.size; i++) {
+      boolean hitMap = collisionMap.raycast(rays.startX[i], rays.startY[i], rays.endX[i],
+          rays.endY[i], rays.radius[i], hit);
+      assertEquals(hitMap, rays.hit[i]);
+      assertEquals(hitMap, parallelRays.hit[i]);
+      if (hitMap) {
+        assertEquals(hit.fraction, rays.fraction[i], 0);
+        assertEquals(hit.normal.x, rays.normalX[i], 0);
+        assertEquals(hit.fraction, parallelRays.fraction[i], 0);
+      }
+    }
+  }
+
+  /**
+   * Returns the fraction of the first solid sample along the ray, or -1 if
+   * there is none.
+   */
+  private static float firstSolidSample(CollisionMap collisionMap, float x0, float y0, float x1,
+      float y1) {
+    int samples = 20000;
+    for (int i = 0; i <= samples; i++) {
+      float t = (float) i / samples;
+      if (collisionMap.isSolid(x0 + (x1 - x0) * t, y0 + (y1 - y0) * t)) {
+        return t;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns an empty map with a one pixel wide wall at level x WALL.
+   */
+  private static CollisionMap wall() {
+    IntBuffer grid = IntBuffer.allocate(W * H);
+    for (int py = 0; py < H; py++) {
+      grid.put(py * W + WALL, CollisionMap.encodeSolidPixelData(0, 0));
+    }
+    return new CollisionMap(W, H, grid);
+  }
+}
@@ -0,0 +1,107 @@
+package com.dounanshi.libgdx.util.destructable;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.graphics.GL20;
+
+/**
+ * GL mock for the headless backend that does nothing but record the texture
+ * uploads.
+ */
+class RecordingGL implements InvocationHandler {
+
+  final List<TexImage> texSubImages = new ArrayList<TexImage>();
+  final List<TexImage> texImages = new ArrayList<TexImage>();
+
+  /**
+   * Installs a new recording GL as Gdx.gl and Gdx.gl20.
+   */
+  static RecordingGL install() {
+    RecordingGL recorder = new RecordingGL();
+    GL20 gl = (GL20) Proxy.newProxyInstance(GL20.class.getClassLoader(),
+        new Class<?>[] { GL20.class }, recorder);
+    Gdx.gl = gl;
+    Gdx.gl20 = gl;
+    return recorder;
+  }
+
+  void clear() {
+    texSubImages.clear();
+    texImages.clear();
+  }
+
+  /**
+   * Returns the recorded sub-image uploads of one mip level.
+   */
+  List<TexImage> texSubImages(int level) {
+    List<TexImage> uploads = new ArrayList<TexImage>();
+    for (TexImage upload : texSubImages) {
+      if (upload.level == level) {
+        uploads.add(upload);
+      }
+    }
+    return uploads;
+  }
+
+  @Override
+  public Object invoke(Object proxy, Method method, Object[] args) {
+    if (method.getName().equals("glTexSubImage2D")) {
+      texSubImages.add(new TexImage((Integer) args[1], (Integer) args[2], (Integer) args[3],
+          (Integer) args[4], (Integer) args[5], (Buffer) args[8]));
+    } else if (method.getName().equals("glTexImage2D")) {
+      texImages.add(new TexImage((Integer) args[1], 0, 0, (Integer) args[3], (Integer) args[4],
+          (Buffer) args[8]));
+    }
+    Class<?> type = method.getReturnType();
+    if (type == int.class) {
+      return 0;
+    } else if (type == boolean.class) {
+      return false;
+    } else if (type == float.class) {
+      return 0f;
+    }
+    return null;
+  }
+
+  /**
+   * Upload of the rectangle at (x, y) of a texture level.
+   */
+  static class TexImage {
+    final int level;
+    final int x;
+    final int y;
+    final int width;
+    final int height;
+    final byte[] pixels;
+
+    TexImage(int level, int x, int y, int width, int height, Buffer buffer) {
+      this.level = level;
+      this.x = x;
+      this.y = y;
+      this.width = width;
+      this.height = height;
+      if (buffer != null) {
+        ByteBuffer bytes = ((ByteBuffer) buffer).duplicate();
+        ((Buffer) bytes).clear();
+        pixels = new byte[bytes.remaining()];
+        bytes.get(pixels);
+      } else {
+        pixels = null;
+      }
+    }
+
+    /**
+     * Returns the uploaded RGBA8888 pixel at (x, y) of the texture level.
+     */
+    int pixel(int px, int py) {
+      return ByteBuffer.wrap(pixels).getInt(((py - y) * width + px - x) * 4);
+    }
+  }
+}
@@ -0,0 +1,56 @@
+package com.dounanshi.libgdx.util.destructable;
+
+import java.nio.IntBuffer;
+import java.util.Random;
+
+/**
+ * Synthetic collision maps for tests and benchmarks.
+ */
+class TestMaps {
+
+  /**
+   * Returns a collision map of rolling hills. The top pixel of each column
+   * points away from the slope, everything below it is interior.
+   */
+  static CollisionMap hills(int w, int h) {
+    IntBuffer grid = IntBuffer.allocate(w * h);
+    for (int px = 0; px < w; px++) {
+      int top = groundTop(px, h);
+      // Normal of y = f(x) in pixmap coordinates is (f'(x), -1), which is
+      // (-f'(x), 1) in level coordinates.
+      float slope = groundTop(px + 1, h) - groundTop(px - 1, h);
+      int snx = Math.round(-slope * 0.5f * 16);
+      int sny = 16;
+      for (int py = top; py < h; py++) {
+        int pixel = py == top ? CollisionMap.encodeSolidPixelData(snx, sny)
+            : CollisionMap.encodeSolidPixelData(0, 0);
+        grid.put(py * w + px, pixel);
+      }
+    }
+    return new CollisionMap(w, h, grid);
+  }
+
+  /**
+   * Returns the pixmap row of the top of the ground in column px.
+   */
+  static int groundTop(int px, int h) {
+    return (int) (h * 0.5f + h * 0.2f * Math.sin(px / 40.0));
+  }
+
+  /**
+   * Returns particles scattered just above and below the surface of
+   * {@link #hills}, all moving downwards.
+   */
+  static ParticleBatch fallingParticles(int n, int w, int h, long seed) {
+    Random random = new Random(seed);
+    ParticleBatch batch = new ParticleBatch(n);
+    for (int i = 0; i < n; i++) {
+      float x = random.nextFloat() * w;
+      float y = h - groundTop((int) x, h) + random.nextFloat() * 8 - 4;
+      float velX = random.nextFloat() * 10 - 5;
+      float velY = -1 - random.nextFloat() * 10;
+      batch.add(x, y, velX, velY, random.nextFloat(), random.nextFloat());
+    }
+    return batch;
+  }
+}
@@ -0,0 +1,184 @@
+package com.dounanshi.libgdx.util.destructable.mappreprocessor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.Pixmap.Blending;
+import com.badlogic.gdx.graphics.PixmapIO;
+
+/**
+ * Runs the batch command line on temporary directories of level images.
+ */
+public class BatchPreprocessorTest {
+
+  private static final int W = 120;
+  private static final int H = 80;
+  // Older than the outputs written by the tests.
+  private static final long LEVEL_MODIFIED = (System.currentTimeMillis() / 1000 - 100) * 1000;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Blending blending;
+  private FileHandle levels;
+  private FileHandle maps;
+
+  @BeforeClass
+  public static void setUpClass() {
+    TestLevels.setUpApplication();
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    // The batch sets the blending for the whole process.
+    blending = Pixmap.getBlending();
+    levels = new FileHandle(folder.newFolder("levels"));
+    maps = new FileHandle(folder.newFolder("maps"));
+    writeLevel(levels.child("a.png"), 1);
+    writeLevel(levels.child("b.png"), 2);
+    levels.child("notes.txt").writeString("Not a level", false);
+  }
+
+  @After
+  public void tearDown() {
+    Pixmap.setBlending(blending);
+  }
+
+  @Test
+  public void testInvalidArguments() {
+    String level = levels.child("a.png").path();
+    String cim = maps.child("a.cim").path();
+    String[][] invalid = { {}, { level }, { level, cim, level }, { "--jobs", "0", level, cim },
+        { "--smooth", "-1", level, cim }, { "--strip-rows", "x", level, cim },
+        { level, cim, "--cache-mb" }, { level, cim, "--cache-dir" },
+        { "--stream", "--tiles", level, cim }, { "--no-cache", level, cim } };
+    for (String[] args : invalid) {
+      try {
+        new BatchPreprocessor(args);
+        fail("Accepted " + Arrays.toString(args));
+      } catch (IllegalArgumentException e) {
+        // Expected.
+      }
+    }
+    new BatchPreprocessor(new String[] { "--jobs", "3", "--smooth", "0", "--force",
+        "--cache-dir", folder.getRoot().getPath(), "--cache-mb", "1", "--tiles", level, cim,
+        levels.path(), maps.path() });
+    new BatchPreprocessor(new String[] { "--stream", "--strip-rows", "16", level, cim });
+  }
+
+  @Test
+  public void testDirectorySkipsUpToDateMaps() {
+    assertEquals(BatchPreprocessor.EXIT_SUCCESS, run(levels, maps));
+    for (String name : new String[] { "a", "b" }) {
+      for (String extension : new String[] { "cim", "cmap", "sdf" }) {
+        assertTrue(name + "." + extension, maps.child(name + "." + extension).exists());
+      }
+    }
+    assertEquals(6, maps.list().length);
+    File[] outputs = new File[] { maps.child("a.cim").file(), maps.child("b.cim").file() };
+    long outputModified = LEVEL_MODIFIED + 10000;
+    for (FileHandle output : maps.list()) {
+      assertTrue(output.file().setLastModified(outputModified));
+    }
+
+    // Both maps are up to date.
+    assertEquals(BatchPreprocessor.EXIT_SUCCESS, run(levels, maps));
+    assertArrayEquals(new long[] { outputModified, outputModified }, lastModified(outputs));
+
+    // Only the changed level is processed again.
+    assertTrue(levels.child("b.png").file().setLastModified(outputModified + 10000));
+    assertEquals(BatchPreprocessor.EXIT_SUCCESS, run(levels, maps));
+    assertEquals(outputModified, outputs[0].lastModified());
+    assertTrue(outputs[1].lastModified() != outputModified);
+
+    // Missing outputs are written again.
+    assertTrue(maps.child("a.sdf").delete());
+    assertEquals(BatchPreprocessor.EXIT_SUCCESS, run(levels, maps));
+    assertTrue(maps.child("a.sdf").exists());
+    assertTrue(outputs[0].lastModified() != outputModified);
+
+    // Everything with --force.
+    for (FileHandle output : maps.list()) {
+      assertTrue(output.file().setLastModified(outputModified));
+    }
+    assertEquals(BatchPreprocessor.EXIT_SUCCESS, new BatchPreprocessor(new String[] {
+        "--force", levels.path(), maps.path() }).run());
+    assertFalse(outputs[0].lastModified() == outputModified);
+    assertFalse(outputs[1].lastModified() == outputModified);
+  }
+
+  @Test
+  public void testFailedMapsAreCleanedUp() {
+    for (String[] options : new String[][] { {}, { "--stream", "--strip-rows", "16" } }) {
+      // Outputs of an older version of the broken level.
+      levels.child("c.png").writeString("Not an image", false);
+      for (String extension : new String[] { "cim", "cmap", "sdf" }) {
+        maps.child("c." + extension).writeString("Old", false);
+        assertTrue(maps.child("c." + extension).file().setLastModified(LEVEL_MODIFIED - 10000));
+      }
+      String[] args = new String[options.length + 4];
+      System.arraycopy(options, 0, args, 0, options.length);
+      args[options.length] = levels.path();
+      args[options.length + 1] = maps.path();
+      // A missing input fails as well, without stopping the others.
+      args[options.length + 2] = levels.child("missing.png").path();
+      args[options.length + 3] = maps.child("missing.cim").path();
+
+      assertEquals(BatchPreprocessor.EXIT_FAILURE, new BatchPreprocessor(args).run());
+      for (String extension : new String[] { "cim", "cmap", "sdf" }) {
+        assertFalse("c." + extension, maps.child("c." + extension).exists());
+        assertTrue("a." + extension, maps.child("a." + extension).exists());
+        assertTrue("b." + extension, maps.child("b." + extension).exists());
+      }
+      assertFalse(maps.child("missing.cim").exists());
+    }
+  }
+
+  @Test
+  public void testSingleMapWithTiles() {
+    FileHandle cim = maps.child("sub").child("level.cim");
+    assertEquals(BatchPreprocessor.EXIT_SUCCESS, new BatchPreprocessor(new String[] {
+        "--tiles", levels.child("a.png").path(), cim.path() }).run());
+    for (String extension : new String[] { "cim", "cmap", "sdf", "tiles" }) {
+      assertTrue(extension, cim.sibling("level." + extension).exists());
+    }
+  }
+
+  private static int run(FileHandle input, FileHandle output) {
+    return new BatchPreprocessor(new String[] { input.path(), output.path() }).run();
+  }
+
+  private static void writeLevel(FileHandle file, long seed) {
+    Pixmap level = TestLevels.level(W, H, seed);
+    try {
+      PixmapIO.writePNG(file, level);
+    } finally {
+      level.dispose();
+    }
+    assertTrue(file.file().setLastModified(LEVEL_MODIFIED));
+  }
+
+  private static long[] lastModified(File[] files) {
+    long[] modified = new long[files.length];
+    for (int i = 0; i < files.length; i++) {
+      modified[i] = files[i].lastModified();
+    }
+    return modified;
+  }
+}
@@ -0,0 +1,74 @@
+package com.dounanshi.libgdx.util.destructable.mappreprocessor;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.Pixmap.Blending;
+import com.badlogic.gdx.graphics.Pixmap.Format;
+
+public class CollisionPixmapBuilderTest {
+
+  private static final int W = 150;
+  private static final int H = 90;
+
+  @BeforeClass
+  public static void setUpClass() {
+    TestLevels.setUpApplication();
+  }
+
+  @Test
+  public void testSummedAreaTablesMatchPerPixelBuilder() {
+    Pixmap level = TestLevels.level(W, H, 1);
+    try {
+      for (int smooth : new int[] { 0, 1, 6, 20 }) {
+        int[] expected = new PerPixelCollisionBuilder(smooth).build(level);
+        CollisionPixmapBuilder builder = new CollisionPixmapBuilder(smooth);
+        TestLevels.assertSamePixels(expected, builder.buildRegion(level.getPixels(), W, H, 0,
+            0, W, H), W);
+        // A rectangle on its own gets the same pixels as in the whole level.
+        int[] region = builder.buildRegion(level.getPixels(), W, H, 30, 20, 100, 70);
+        for (int y = 20; y < 70; y++) {
+          for (int x = 30; x < 100; x++) {
+            assertEquals(expected[y * W + x], region[(y - 20) * 70 + x - 30]);
+          }
+        }
+      }
+    } finally {
+      level.dispose();
+    }
+  }
+
+  @Test
+  public void testParallelBandsMatchPerPixelBuilder() {
+    // Tall enough to be split into several bands.
+    Pixmap level = TestLevels.level(W, 600, 2);
+    Pixmap converted = new Pixmap(W, 600, Format.RGBA4444);
+    Blending blending = Pixmap.getBlending();
+    Pixmap.setBlending(Blending.None);
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      converted.drawPixmap(level, 0, 0);
+      for (Pixmap pixmap : new Pixmap[] { level, converted }) {
+        int[] expected = new PerPixelCollisionBuilder(MapPreprocessor.PROJECTION_SMOOTH)
+            .build(pixmap);
+        Pixmap collision = new CollisionPixmapBuilder(MapPreprocessor.PROJECTION_SMOOTH).build(
+            pixmap, pool);
+        try {
+          TestLevels.assertSamePixels(expected, TestLevels.pixels(collision), W);
+        } finally {
+          collision.dispose();
+        }
+      }
+    } finally {
+      pool.shutdown();
+      Pixmap.setBlending(blending);
+      converted.dispose();
+      level.dispose();
+    }
+  }
+}
@@ -0,0 +1,111 @@
+package com.dounanshi.libgdx.util.destructable.mappreprocessor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.Pixmap.Blending;
+
+public class CollisionTileCacheTest {
+
+  // Not multiples of the tile size, so the last tiles are partial.
+  private static final int W = 150;
+  private static final int H = 90;
+  private static final int TILE_SIZE = 32;
+  private static final int TILES = 5 * 3;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @BeforeClass
+  public static void setUpClass() {
+    TestLevels.setUpApplication();
+  }
+
+  @Test
+  public void testCachedTilesMatchPerPixelBuilder() throws IOException {
+    FileHandle dir = new FileHandle(folder.newFolder());
+    CollisionPixmapBuilder builder = new CollisionPixmapBuilder(
+        MapPreprocessor.PROJECTION_SMOOTH);
+    Pixmap level = TestLevels.level(W, H, 3);
+    Blending blending = Pixmap.getBlending();
+    Pixmap.setBlending(Blending.None);
+    try {
+      CollisionTileCache cache = new CollisionTileCache(dir, TILE_SIZE,
+          CollisionTileCache.DEFAULT_MAX_BYTES);
+      assertBuildMatches(cache, builder, level);
+      assertEquals(TILES, cache.getHits() + cache.getMisses());
+
+      // Every tile comes from the cache now.
+      int misses = cache.getMisses();
+      assertBuildMatches(cache, builder, level);
+      assertEquals(misses, cache.getMisses());
+
+      // Only the tiles around the edit are built again.
+      level.setColor(0);
+      level.fillCircle(100, 60, 4);
+      assertBuildMatches(cache, builder, level);
+      int rebuilt = cache.getMisses() - misses;
+      assertTrue("Rebuilt " + rebuilt, rebuilt > 0 && rebuilt < TILES);
+      assertEquals(0, cache.getEvictions());
+    } finally {
+      Pixmap.setBlending(blending);
+      level.dispose();
+    }
+  }
+
+  @Test
+  public void testTrimKeepsCacheWithinMaxBytes() throws IOException {
+    FileHandle dir = new FileHandle(folder.newFolder());
+    CollisionPixmapBuilder builder = new CollisionPixmapBuilder(
+        MapPreprocessor.PROJECTION_SMOOTH);
+    Pixmap level = TestLevels.level(W, H, 4);
+    try {
+      CollisionTileCache unbounded = new CollisionTileCache(dir, TILE_SIZE,
+          CollisionTileCache.DEFAULT_MAX_BYTES);
+      assertBuildMatches(unbounded, builder, level);
+      long bytes = tileBytes(dir);
+      assertTrue(bytes > 0);
+
+      // Half of the tiles are evicted, and the level still builds the same.
+      CollisionTileCache bounded = new CollisionTileCache(dir, TILE_SIZE, bytes / 2);
+      assertBuildMatches(bounded, builder, level);
+      assertTrue(bounded.getEvictions() > 0);
+      assertTrue(tileBytes(dir) <= bytes / 2);
+
+      CollisionTileCache empty = new CollisionTileCache(dir, TILE_SIZE, 0);
+      assertBuildMatches(empty, builder, level);
+      assertEquals(0, tileBytes(dir));
+    } finally {
+      level.dispose();
+    }
+  }
+
+  private static void assertBuildMatches(CollisionTileCache cache,
+      CollisionPixmapBuilder builder, Pixmap level) {
+    int[] expected = new PerPixelCollisionBuilder(builder.getProjectionSmooth()).build(level);
+    Pixmap collision = cache.build(level, builder);
+    try {
+      TestLevels.assertSamePixels(expected, TestLevels.pixels(collision), W);
+    } finally {
+      collision.dispose();
+    }
+  }
+
+  private static long tileBytes(FileHandle dir) {
+    long bytes = 0;
+    for (File file : dir.file().listFiles()) {
+      bytes += file.length();
+    }
+    return bytes;
+  }
+}
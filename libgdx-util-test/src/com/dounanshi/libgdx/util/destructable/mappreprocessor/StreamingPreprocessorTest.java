@@ -0,0 +1,312 @@
+package com.dounanshi.libgdx.util.destructable.mappreprocessor;
+
+import static org.junit.Assert.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.Pixmap.Blending;
+import com.badlogic.gdx.graphics.PixmapIO;
+import com.dounanshi.libgdx.util.destructable.CollisionMap;
+import com.dounanshi.libgdx.util.destructable.CollisionMapFile;
+import com.dounanshi.libgdx.util.destructable.DistanceField;
+
+/**
+ * Streams level images of every kind that both {@link Pixmap} and
+ * {@link StreamingPreprocessor} read, and compares the outputs with the
+ * ones of {@link MapPreprocessor}, which loads the whole image as a pixmap.
+ */
+public class StreamingPreprocessorTest {
+
+  private static final int W = 150;
+  private static final int H = 230;
+  // Small strips, so that a map is many strips with halos across them.
+  private static final int STRIP_ROWS = 16;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static int[] alpha;
+
+  @BeforeClass
+  public static void setUpClass() {
+    TestLevels.setUpApplication();
+    Pixmap level = TestLevels.level(W, H, 5);
+    try {
+      int[] pixels = TestLevels.pixels(level);
+      alpha = new int[pixels.length];
+      for (int i = 0; i < pixels.length; i++) {
+        alpha[i] = pixels[i] & 0xff;
+      }
+    } finally {
+      level.dispose();
+    }
+  }
+
+  @Test
+  public void testPixmapPng() throws IOException {
+    Pixmap level = TestLevels.level(W, H, 5);
+    File file = folder.newFile("level.png");
+    try {
+      PixmapIO.writePNG(new FileHandle(file), level);
+    } finally {
+      level.dispose();
+    }
+    assertSameOutputs(file);
+  }
+
+  @Test
+  public void testArgbPng() throws IOException {
+    BufferedImage image = new BufferedImage(W, H, BufferedImage.TYPE_INT_ARGB);
+    for (int i = 0; i < alpha.length; i++) {
+      image.setRGB(i % W, i / W, alpha[i] << 24 | i * 0x9e3779 & 0xffffff);
+    }
+    assertSameOutputs(write(image, "png", false));
+  }
+
+  @Test
+  public void testGrayPng() throws IOException {
+    // The gray level is the alpha of a pixmap of a grayscale image.
+    BufferedImage image = new BufferedImage(W, H, BufferedImage.TYPE_BYTE_GRAY);
+    fill(image, new int[] { 0, 1, 0x80, 0xff });
+    assertSameOutputs(write(image, "png", false));
+  }
+
+  @Test
+  public void testPalettePng() throws IOException {
+    // A palette with transparent entries.
+    byte[] rgb = { 10, 20, 30, 40 };
+    byte[] a = { 0, 1, (byte) 0x80, (byte) 0xff };
+    BufferedImage image = new BufferedImage(W, H, BufferedImage.TYPE_BYTE_INDEXED,
+        new IndexColorModel(8, 4, rgb, rgb, rgb, a));
+    fill(image, new int[] { 0, 1, 2, 3 });
+    assertSameOutputs(write(image, "png", false));
+  }
+
+  /**
+   * Pixmaps get the filtered rows of images with less than 8 bits per pixel
+   * wrong, so these are compared with ImageIO's pixels instead.
+   */
+  @Test
+  public void testLowBitDepthPng() throws IOException {
+    BufferedImage binary = new BufferedImage(W, H, BufferedImage.TYPE_BYTE_BINARY);
+    fill(binary, new int[] { 0, 1, 1, 1 });
+    assertSameAlpha(write(binary, "png", false), true);
+
+    byte[] rgb = new byte[16];
+    byte[] a = new byte[16];
+    for (int i = 0; i < 16; i++) {
+      rgb[i] = (byte) (i * 7);
+      a[i] = (byte) (i * 17);
+    }
+    for (int bits : new int[] { 2, 4 }) {
+      BufferedImage image = new BufferedImage(W, H, BufferedImage.TYPE_BYTE_BINARY,
+          new IndexColorModel(bits, 1 << bits, rgb, rgb, rgb, a));
+      fill(image, new int[] { 0, 1, 2, (1 << bits) - 1 });
+      assertSameAlpha(write(image, "png", false), false);
+    }
+  }
+
+  @Test
+  public void testTransparentColorPng() throws IOException {
+    byte[][] grayRows = new byte[H][W];
+    byte[][] rgbRows = new byte[H][W * 3];
+    for (int i = 0; i < alpha.length; i++) {
+      // The transparent color, or colors next to it.
+      int value = alpha[i] == 0 ? 0x55 : 0x54 + (i & 1) * 2;
+      grayRows[i / W][i % W] = (byte) value;
+      rgbRows[i / W][i % W * 3] = 0x10;
+      rgbRows[i / W][i % W * 3 + 1] = (byte) value;
+      rgbRows[i / W][i % W * 3 + 2] = 0x30;
+    }
+    File gray = folder.newFile("gray.png");
+    writePng(gray, 0, grayRows, new byte[] { 0, 0x55 });
+    assertSameOutputs(gray);
+    File rgb = folder.newFile("rgb.png");
+    writePng(rgb, 2, rgbRows, new byte[] { 0, 0x10, 0, 0x55, 0, 0x30 });
+    assertSameOutputs(rgb);
+  }
+
+  @Test
+  public void testImageIoFallback() throws IOException {
+    BufferedImage image = new BufferedImage(W, H, BufferedImage.TYPE_INT_ARGB);
+    for (int i = 0; i < alpha.length; i++) {
+      image.setRGB(i % W, i / W, alpha[i] << 24 | 0x808080);
+    }
+    // Interlaced PNG images are not decoded by PngRowReader.
+    assertSameOutputs(write(image, "png", true));
+    BufferedImage rgb = new BufferedImage(W, H, BufferedImage.TYPE_INT_RGB);
+    rgb.getGraphics().drawImage(image, 0, 0, null);
+    assertSameOutputs(write(rgb, "bmp", false));
+  }
+
+  /**
+   * Sets each pixel of a single band image to the value at its alpha level:
+   * values[0] for an alpha of 0, values[1] for 1, values[2] for other alpha
+   * levels and values[3] for 255.
+   */
+  private static void fill(BufferedImage image, int[] values) {
+    WritableRaster raster = image.getRaster();
+    for (int i = 0; i < alpha.length; i++) {
+      int level = alpha[i] == 0 ? 0 : alpha[i] == 1 ? 1 : alpha[i] == 0xff ? 3 : 2;
+      raster.setSample(i % W, i / W, 0, values[level]);
+    }
+  }
+
+  private File write(BufferedImage image, String format, boolean interlaced)
+      throws IOException {
+    File file = File.createTempFile("level", "." + format, folder.getRoot());
+    ImageWriter writer = ImageIO.getImageWritersByFormatName(format).next();
+    ImageOutputStream out = ImageIO.createImageOutputStream(file);
+    try {
+      writer.setOutput(out);
+      ImageWriteParam param = writer.getDefaultWriteParam();
+      if (interlaced) {
+        param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+      }
+      writer.write(null, new IIOImage(image, null, null), param);
+    } finally {
+      writer.dispose();
+      out.close();
+    }
+    return file;
+  }
+
+  /**
+   * Writes an 8-bit PNG image with a transparent color, which ImageIO
+   * doesn't.
+   */
+  private static void writePng(File file, int colorType, byte[][] rows, byte[] trns)
+      throws IOException {
+    DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+    try {
+      out.write(new byte[] { (byte) 137, 'P', 'N', 'G', '\r', '\n', 26, '\n' });
+      ByteArrayOutputStream header = new ByteArrayOutputStream();
+      DataOutputStream headerOut = new DataOutputStream(header);
+      headerOut.writeInt(W);
+      headerOut.writeInt(H);
+      headerOut.write(new byte[] { 8, (byte) colorType, 0, 0, 0 });
+      writeChunk(out, "IHDR", header.toByteArray());
+      writeChunk(out, "tRNS", trns);
+      ByteArrayOutputStream data = new ByteArrayOutputStream();
+      DeflaterOutputStream dataOut = new DeflaterOutputStream(data);
+      for (byte[] row : rows) {
+        dataOut.write(0);
+        dataOut.write(row);
+      }
+      dataOut.close();
+      writeChunk(out, "IDAT", data.toByteArray());
+      writeChunk(out, "IEND", new byte[0]);
+    } finally {
+      out.close();
+    }
+  }
+
+  private static void writeChunk(DataOutputStream out, String type, byte[] data)
+      throws IOException {
+    byte[] typeBytes = type.getBytes("US-ASCII");
+    CRC32 crc = new CRC32();
+    crc.update(typeBytes);
+    crc.update(data);
+    out.writeInt(data.length);
+    out.write(typeBytes);
+    out.write(data);
+    out.writeInt((int) crc.getValue());
+  }
+
+  /**
+   * Compares the alpha that PngRowReader reads from the image with the alpha,
+   * or for grayscale images the gray level, of the image read by ImageIO.
+   */
+  private static void assertSameAlpha(File file, boolean gray) throws IOException {
+    BufferedImage image = ImageIO.read(file);
+    PngRowReader reader = PngRowReader.open(file);
+    try {
+      byte[] row = new byte[W];
+      for (int y = 0; y < H; y++) {
+        reader.readAlpha(row, 0, 1);
+        for (int x = 0; x < W; x++) {
+          int argb = image.getRGB(x, y);
+          assertEquals("(" + x + ", " + y + ")", gray ? argb & 0xff : argb >>> 24,
+              row[x] & 0xff);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  private void assertSameOutputs(File levelFile) throws IOException {
+    CollisionPixmapBuilder builder = new CollisionPixmapBuilder(
+        MapPreprocessor.PROJECTION_SMOOTH);
+    FileHandle expected = new FileHandle(new File(folder.newFolder(), "map.cim"));
+    Blending blending = Pixmap.getBlending();
+    Pixmap.setBlending(Blending.None);
+    Pixmap level = new Pixmap(new FileHandle(levelFile));
+    try {
+      Pixmap collision = builder.build(level);
+      try {
+        MapPreprocessor.writeCollisionFiles(collision, expected);
+      } finally {
+        collision.dispose();
+      }
+    } finally {
+      level.dispose();
+      Pixmap.setBlending(blending);
+    }
+    FileHandle actual = new FileHandle(new File(folder.newFolder(), "map.cim"));
+    new StreamingPreprocessor(builder, STRIP_ROWS).process(levelFile, actual);
+
+    assertSamePixels(PixmapIO.readCIM(expected), PixmapIO.readCIM(actual));
+    CollisionMap expectedMap = CollisionMapFile.read(MapPreprocessor.collisionMapFile(expected));
+    CollisionMap actualMap = CollisionMapFile.read(MapPreprocessor.collisionMapFile(actual));
+    try {
+      assertSamePixels(expectedMap.toPixmap(), actualMap.toPixmap());
+    } finally {
+      expectedMap.dispose();
+      actualMap.dispose();
+    }
+    DistanceField expectedField = DistanceField.read(MapPreprocessor.distanceFieldFile(expected));
+    DistanceField actualField = DistanceField.read(MapPreprocessor.distanceFieldFile(actual));
+    for (int py = 0; py < H; py++) {
+      for (int px = 0; px < W; px++) {
+        assertEquals("(" + px + ", " + py + ")", expectedField.distance(px, py), actualField
+            .distance(px, py), 0);
+      }
+    }
+  }
+
+  /**
+   * Compares the pixmaps and disposes them.
+   */
+  private static void assertSamePixels(Pixmap expected, Pixmap actual) {
+    try {
+      assertEquals(expected.getFormat(), actual.getFormat());
+      TestLevels.assertSamePixels(TestLevels.pixels(expected), TestLevels.pixels(actual), W);
+    } finally {
+      expected.dispose();
+      actual.dispose();
+    }
+  }
+}
@@ -0,0 +1,91 @@
+package com.dounanshi.libgdx.util.destructable.mappreprocessor;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import com.badlogic.gdx.Application;
+import com.badlogic.gdx.ApplicationAdapter;
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.backends.headless.HeadlessApplication;
+import com.badlogic.gdx.backends.headless.HeadlessApplicationConfiguration;
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.Pixmap.Blending;
+import com.badlogic.gdx.graphics.Pixmap.Format;
+
+/**
+ * Synthetic level images for the preprocessor tests.
+ */
+class TestLevels {
+
+  /**
+   * Starts a headless application for the logging of the builders, unless
+   * one is running already, and keeps their progress out of the test output.
+   */
+  static void setUpApplication() {
+    if (Gdx.app != null) {
+      return;
+    }
+    HeadlessApplicationConfiguration config = new HeadlessApplicationConfiguration();
+    config.renderInterval = -1;
+    new HeadlessApplication(new ApplicationAdapter() {
+    }, config);
+    Gdx.app.setLogLevel(Application.LOG_NONE);
+  }
+
+  /**
+   * Returns an RGBA8888 level of hills with round holes and floating rocks,
+   * single pixels and thin lines, some of them at the edges of the level and
+   * some barely visible with an alpha of 1. The caller disposes it.
+   */
+  static Pixmap level(int w, int h, long seed) {
+    Random random = new Random(seed);
+    Blending blending = Pixmap.getBlending();
+    Pixmap.setBlending(Blending.None);
+    Pixmap pixmap = new Pixmap(w, h, Format.RGBA8888);
+    try {
+      for (int x = 0; x < w; x++) {
+        int top = (int) (h * 0.5f + h * 0.2f * Math.sin(x / 17.0));
+        for (int y = top; y < h; y++) {
+          pixmap.drawPixel(x, y, 0x806040ff);
+        }
+      }
+      for (int i = 0; i < 20; i++) {
+        // Holes and rocks, partly outside of the level.
+        pixmap.setColor(random.nextBoolean() ? 0x00000000 : 0x406080ff);
+        pixmap.fillCircle(random.nextInt(w + 20) - 10, random.nextInt(h + 20) - 10,
+            1 + random.nextInt(15));
+      }
+      for (int i = 0; i < 100; i++) {
+        int color = random.nextBoolean() ? 0x11223301 : random.nextBoolean() ? 0 : 0xffffffff;
+        pixmap.drawPixel(random.nextInt(w), random.nextInt(h), color);
+      }
+      pixmap.setColor(0xffffffff);
+      pixmap.drawLine(0, 0, w - 1, h - 1);
+      pixmap.drawLine(w / 3, 0, w / 3, h - 1);
+    } finally {
+      Pixmap.setBlending(blending);
+    }
+    return pixmap;
+  }
+
+  /**
+   * Returns the pixels of a pixmap in row-major order, same as
+   * {@link Pixmap#getPixel(int, int)}.
+   */
+  static int[] pixels(Pixmap pixmap) {
+    int w = pixmap.getWidth();
+    int[] pixels = new int[w * pixmap.getHeight()];
+    for (int i = 0; i < pixels.length; i++) {
+      pixels[i] = pixmap.getPixel(i % w, i / w);
+    }
+    return pixels;
+  }
+
+  static void assertSamePixels(int[] expected, int[] actual, int w) {
+    assertEquals(expected.length, actual.length);
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals("(" + i % w + ", " + i / w + ")", expected[i], actual[i]);
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package com.dounanshi.libgdx.util.destructable;
+
+import java.nio.IntBuffer;
+
+/**
+ * {@link CollisionGrid} that keeps every pixel in a packed buffer in row-major
+ * order.
+ */
+class BufferCollisionGrid implements CollisionGrid {
+
+    private final int width;
+    private final int height;
+    private final IntBuffer pixels;
+
+    BufferCollisionGrid(int width, int height, IntBuffer pixels) {
+        if (pixels.capacity() < width * height) {
+            throw new IllegalArgumentException("Collision grid is smaller than " + width + "x"
+                    + height);
+        }
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public boolean isSolid(int px, int py) {
+        return (pixels.get(py * width + px) & CollisionMap.SOLID_MASK) != 0;
+    }
+
+    @Override
+    public int get(int px, int py) {
+        return pixels.get(py * width + px);
+    }
+
+    @Override
+    public void set(int px, int py, int pixel) {
+        pixels.put(py * width + px, pixel);
+    }
+
+    /**
+     * Copies the pixels into dst, which must have room for all of them.
+     */
+    void copyTo(IntBuffer dst) {
+        IntBuffer src = pixels.duplicate();
+        src.clear();
+        src.limit(width * height);
+        dst.put(src);
+    }
+}
@@ -0,0 +1,35 @@
+package com.dounanshi.libgdx.util.destructable;
+
+/**
+ * Storage of the encoded pixels of a {@link CollisionMap} (see
+ * {@link CollisionMap#encodeSolidPixelData(int, int)}).
+ *
+ * Coordinates are pixmap coordinates, with the origin at the top left, and are
+ * always inside of the grid: the collision map handles pixels outside of the
+ * map itself. Grids may be read from several threads at once, e.g. by
+ * {@link CollisionMap#resolve(ParticleBatch, java.util.concurrent.ForkJoinPool)},
+ * but are only written to by one thread at a time. Use a
+ * {@link ConcurrentCollisionGrid} to read while the grid is written.
+ */
+public interface CollisionGrid {
+
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * Returns true iff the pixel at (px, py) is solid. Same as checking the
+     * solid bit of {@link #get(int, int)}, but grids may answer it faster.
+     */
+    boolean isSolid(int px, int py);
+
+    /**
+     * Returns the encoded pixel at (px, py).
+     */
+    int get(int px, int py);
+
+    /**
+     * Sets the encoded pixel at (px, py).
+     */
+    void set(int px, int py, int pixel);
+}
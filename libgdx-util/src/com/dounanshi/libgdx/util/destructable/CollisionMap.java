@@ -1,21 +1,31 @@
 package com.dounanshi.libgdx.util.destructable;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
 import com.badlogic.gdx.files.FileHandle;
 import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.Pixmap.Format;
 import com.badlogic.gdx.graphics.PixmapIO;
+import com.badlogic.gdx.math.MathUtils;
 import com.badlogic.gdx.math.Vector2;
 import com.badlogic.gdx.utils.Disposable;
+import com.dounanshi.libgdx.util.destructable.Metrics.Metric;
 
 public class CollisionMap implements Disposable {
 
     // Number of bits to determine solid or blank.
-    private static final int SOLID_SIZE = 1;
+    static final int SOLID_SIZE = 1;
 
     // Number of bits in surface normal vector.
-    private static final int SN_SIZE = 11;
+    static final int SN_SIZE = 11;
 
     // Solid or blank bit mask.
-    private static final int SOLID_MASK = (int) Math.pow(2, SOLID_SIZE) - 1;
+    static final int SOLID_MASK = (int) Math.pow(2, SOLID_SIZE) - 1;
 
     // Surface normal vector component bit mask.
     private static final int SN_MASK = (int) Math.pow(2, SN_SIZE) - 1;
@@ -30,6 +40,20 @@ public class CollisionMap implements Disposable {
     // Blank pixel that does not contain any data.
     private static final int EMPTY_PIXEL = 0;
 
+    // Marks pixels of erasedBy that no hole erased.
+    private static final int NOT_ERASED = Integer.MAX_VALUE;
+
+    // Number of particles or rays below which a parallel batch stops splitting.
+    private static final int PARALLEL_BATCH_THRESHOLD = 512;
+
+    // Largest distance in pixels that a swept circle moves between overlap
+    // tests.
+    private static final float CIRCLE_CAST_STEP = 0.5f;
+
+    // Number of bisection steps used to find where a swept circle first
+    // touches the terrain.
+    private static final int CIRCLE_CAST_REFINE_STEPS = 8;
+
     /**
      * Returns a 32 bit int that contains data about the pixel and the surface
      * normal (snx, sny) of the terrain at that pixel.
@@ -62,12 +86,73 @@ public class CollisionMap implements Disposable {
         return EMPTY_PIXEL;
     }
 
-    public final Pixmap collisionPixmap;
+    // Encoded pixels (see encodeSolidPixelData) with the origin at the top
+    // left, same as the collision pixmap.
+    private final CollisionGrid grid;
+    private final int mapWidth;
     private final int mapHeight;
 
+    // The grid if it is a ConcurrentCollisionGrid, which keeps the layers
+    // below and publishes them with the pixels, or null.
+    private final ConcurrentCollisionGrid concurrentGrid;
+
+    // Optional signed distance layer used to speed up projectOut.
+    private DistanceField distanceField;
+
+    // Optional solid pixel counts used to skip empty space.
+    private OccupancyPyramid occupancyPyramid;
+
+    // Optional metrics of projectOut and addHole.
+    private Metrics metrics;
+
+    // Pixels set by fillRow since the last hole started, for the metrics.
+    private int filledPixels;
+
+    // While addHoles fills its holes, the index of the hole that erased each
+    // pixel of its area, which starts at (erasedX0, erasedY0).
+    private int[] erasedBy;
+    private int erasedX0;
+    private int erasedY0;
+    private int erasedWidth;
+    private int erasingHole;
+
+    /**
+     * Constructs a {@link CollisionMap} backed by a packed grid of encoded
+     * pixels.
+     * 
+     * @param grid
+     *            width * height encoded pixels in row-major order with the
+     *            origin at the top left (pixmap coordinate system). The buffer
+     *            is used directly, not copied.
+     */
+    public CollisionMap(int width, int height, IntBuffer grid) {
+        this(new BufferCollisionGrid(width, height, grid));
+    }
+
+    /**
+     * Constructs a {@link CollisionMap} backed by any storage of encoded
+     * pixels, e.g. a {@link CompactCollisionGrid} to save memory or a
+     * {@link PagedCollisionGrid} for maps that don't fit in memory, or a
+     * {@link ConcurrentCollisionGrid} to query the map from other threads
+     * while holes are added. The grid is used directly, and is disposed with
+     * the map if it is {@link Disposable}.
+     */
+    public CollisionMap(CollisionGrid grid) {
+        this.grid = grid;
+        this.mapWidth = grid.getWidth();
+        this.mapHeight = grid.getHeight();
+        this.concurrentGrid = grid instanceof ConcurrentCollisionGrid
+                ? (ConcurrentCollisionGrid) grid : null;
+    }
+
+    /**
+     * Constructs a {@link CollisionMap} by copying the pixels of a collision
+     * {@link Pixmap}. The pixmap is not retained, so the caller is still
+     * responsible for disposing it.
+     */
     public CollisionMap(Pixmap collisionPixmap) {
-        this.collisionPixmap = collisionPixmap;
-        this.mapHeight = collisionPixmap.getHeight();
+        this(collisionPixmap.getWidth(), collisionPixmap.getHeight(),
+                importPixmap(collisionPixmap));
     }
 
     /**
@@ -75,7 +160,154 @@ public class CollisionMap implements Disposable {
      * file.
      */
     public CollisionMap(FileHandle cimFile) {
-        this(PixmapIO.readCIM(cimFile));
+        this(PixmapIO.readCIM(cimFile), true);
+    }
+
+    /**
+     * Opens a collision map file written by {@link #writeCMAP(FileHandle)}.
+     * Uncompressed files are memory mapped instead of read, see
+     * {@link CollisionMapFile#read(FileHandle)}.
+     */
+    public static CollisionMap open(FileHandle cmapFile) {
+        return CollisionMapFile.read(cmapFile);
+    }
+
+    private CollisionMap(Pixmap collisionPixmap, boolean disposePixmap) {
+        this(collisionPixmap);
+        if (disposePixmap) {
+            collisionPixmap.dispose();
+        }
+    }
+
+    public int getWidth() {
+        return mapWidth;
+    }
+
+    public int getHeight() {
+        return mapHeight;
+    }
+
+    /**
+     * Attaches a signed distance layer, which lets
+     * {@link #projectOut(Vector2, Vector2, Vector2)} take steps as large as
+     * the distance to the surface instead of fixed small steps, in the same
+     * direction as without the layer. The layer is
+     * kept up to date by {@link #addHole(float, float, int)}.
+     * 
+     * @param distanceField
+     *            distance field of this map, or null to remove it.
+     */
+    public void setDistanceField(DistanceField distanceField) {
+        if (distanceField != null
+                && (distanceField.getWidth() != mapWidth
+                        || distanceField.getHeight() != mapHeight)) {
+            throw new IllegalArgumentException("Distance field is " + distanceField.getWidth()
+                    + "x" + distanceField.getHeight() + " but the collision map is " + mapWidth
+                    + "x" + mapHeight);
+        }
+        if (concurrentGrid != null) {
+            concurrentGrid.beginWrite();
+            try {
+                concurrentGrid.setDistanceField(distanceField);
+            } finally {
+                concurrentGrid.endWrite();
+            }
+        } else {
+            this.distanceField = distanceField;
+        }
+    }
+
+    public DistanceField getDistanceField() {
+        return concurrentGrid != null ? concurrentGrid.getDistanceField() : distanceField;
+    }
+
+    /**
+     * Attaches solid pixel counts per block, which let raycasts skip empty
+     * blocks and make {@link #countSolid(int, int, int, int)} cheap for large
+     * areas. The counts are kept up to date by
+     * {@link #addHole(float, float, int)}.
+     * 
+     * @param occupancyPyramid
+     *            occupancy pyramid of this map, or null to remove it.
+     */
+    public void setOccupancyPyramid(OccupancyPyramid occupancyPyramid) {
+        if (occupancyPyramid != null
+                && (occupancyPyramid.getWidth() != mapWidth
+                        || occupancyPyramid.getHeight() != mapHeight)) {
+            throw new IllegalArgumentException("Occupancy pyramid is "
+                    + occupancyPyramid.getWidth() + "x" + occupancyPyramid.getHeight()
+                    + " but the collision map is " + mapWidth + "x" + mapHeight);
+        }
+        if (concurrentGrid != null) {
+            concurrentGrid.beginWrite();
+            try {
+                concurrentGrid.setOccupancyPyramid(occupancyPyramid);
+            } finally {
+                concurrentGrid.endWrite();
+            }
+        } else {
+            this.occupancyPyramid = occupancyPyramid;
+        }
+    }
+
+    public OccupancyPyramid getOccupancyPyramid() {
+        return concurrentGrid != null ? concurrentGrid.getOccupancyPyramid() : occupancyPyramid;
+    }
+
+    /**
+     * Records the calls, timings and work of
+     * {@link #projectOut(Vector2, Vector2, Vector2)} and the holes in the
+     * metrics.
+     * 
+     * @param metrics
+     *            metrics to record to, or null to stop recording.
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns a new RGBA8888 {@link Pixmap} containing the encoded pixels of
+     * the collision map. The caller is responsible for disposing it.
+     */
+    public Pixmap toPixmap() {
+        Pixmap pixmap = new Pixmap(mapWidth, mapHeight, Format.RGBA8888);
+        IntBuffer pixels = pixelsAsInts(pixmap);
+        if (grid instanceof BufferCollisionGrid) {
+            ((BufferCollisionGrid) grid).copyTo(pixels);
+        } else {
+            for (int py = 0; py < mapHeight; py++) {
+                for (int px = 0; px < mapWidth; px++) {
+                    pixels.put(grid.get(px, py));
+                }
+            }
+        }
+        return pixmap;
+    }
+
+    /**
+     * Exports the collision map as a {@link Pixmap} cim file that can be
+     * loaded with {@link #CollisionMap(FileHandle)}.
+     */
+    public void writeCIM(FileHandle cimFile) {
+        Pixmap pixmap = toPixmap();
+        try {
+            PixmapIO.writeCIM(cimFile, pixmap);
+        } finally {
+            pixmap.dispose();
+        }
+    }
+
+    /**
+     * Exports the collision map as an uncompressed collision map file that can
+     * be opened with {@link #open(FileHandle)}.
+     */
+    public void writeCMAP(FileHandle cmapFile) {
+        CollisionMapFile.write(this, cmapFile);
     }
 
     /**
@@ -92,29 +324,97 @@ public class CollisionMap implements Disposable {
      *         hit the collision map.
      */
     public Vector2 projectOut(Vector2 pos, Vector2 vel) {
+        Vector2 surfaceNormal = new Vector2();
+        return projectOut(pos, vel, surfaceNormal) ? surfaceNormal : null;
+    }
 
-        Vector2 surfaceNormal = surfaceNormal(pos.x, pos.y, vel);
-        if (surfaceNormal == null) {
-            return null;
+    /**
+     * Allocation free version of {@link #projectOut(Vector2, Vector2)}.
+     * 
+     * With a {@link DistanceField} attached, the position still moves against
+     * the velocity (or along the normal near the surface) rather than down the
+     * gradient of the distance field, so objects leave the terrain the same
+     * way as without one. Each step is one pixel less than the distance to the
+     * nearest surface, which can't cross the surface in any direction, and
+     * the last pixel is covered by the usual small steps. A deep position
+     * therefore takes a few steps instead of one, and leaves through the
+     * same part of the surface as without the distance field.
+     * 
+     * @param normalOut
+     *            Set to the surface normal of the part of the surface that the
+     *            position was projected out of. Untouched if the position did
+     *            not hit the collision map.
+     * 
+     * @return true iff the position hit the collision map.
+     */
+    public boolean projectOut(Vector2 pos, Vector2 vel, Vector2 normalOut) {
+        Metrics metrics = this.metrics;
+        if (metrics == null) {
+            return projectOutSteps(pos, vel, normalOut) > 0;
         }
+        long start = System.nanoTime();
+        int steps = projectOutSteps(pos, vel, normalOut);
+        metrics.record(Metric.PROJECT_OUT, System.nanoTime() - start);
+        if (steps > 0) {
+            metrics.record(Metric.PROJECT_OUT_STEPS, steps);
+        }
+        return steps > 0;
+    }
 
-        Vector2 lastSurfaceNormal = surfaceNormal;
-        Vector2 velProjection = vel.cpy().nor().scl(-1f);
+    /**
+     * Does {@link #projectOut(Vector2, Vector2, Vector2)}, returning the
+     * number of steps it took, or 0 if the position didn't hit the map.
+     */
+    private int projectOutSteps(Vector2 pos, Vector2 vel, Vector2 normalOut) {
+        if (!surfaceNormal(pos.x, pos.y, vel, normalOut)) {
+            return 0;
+        }
 
-        while (surfaceNormal != null) {
-            if (surfaceNormal.x == 0 && surfaceNormal.y == 0) {
+        // Opposite direction of the velocity.
+        float velLen = vel.len();
+        float velProjectionX = vel.x;
+        float velProjectionY = vel.y;
+        if (velLen != 0) {
+            velProjectionX /= velLen;
+            velProjectionY /= velLen;
+        }
+        velProjectionX *= -1f;
+        velProjectionY *= -1f;
+
+        // normalOut keeps the last surface normal once the position is out.
+        int steps = 0;
+        do {
+            steps++;
+            if (normalOut.x == 0 && normalOut.y == 0) {
                 // Project by velocity if the object is too deep in the
                 // collision map.
-                pos.add(velProjection);
+                float step = projectionStep(pos.x, pos.y, 1f);
+                pos.x += velProjectionX * step;
+                pos.y += velProjectionY * step;
             } else {
                 // Otherwise project by the surface normal.
-                Vector2 surfaceProjection = surfaceNormal.cpy().scl(0.1f);
-                pos.add(surfaceProjection);
+                float step = projectionStep(pos.x, pos.y, 0.1f);
+                pos.x += normalOut.x * step;
+                pos.y += normalOut.y * step;
             }
-            lastSurfaceNormal = surfaceNormal;
-            surfaceNormal = surfaceNormal(pos.x, pos.y, vel);
+        } while (surfaceNormal(pos.x, pos.y, vel, normalOut));
+        return steps;
+    }
+
+    /**
+     * Returns how far projectOut can move the position in one step. Without a
+     * distance field this is always minStep. With one, the position can move
+     * up to one pixel less than the distance to the surface and still be
+     * inside the terrain.
+     */
+    private float projectionStep(float levelX, float levelY, float minStep) {
+        DistanceField distanceField = getDistanceField();
+        if (distanceField == null) {
+            return minStep;
         }
-        return lastSurfaceNormal;
+        float step = distanceField.distance(MathUtils.floor(levelX),
+                mapHeight - MathUtils.floor(levelY)) - 1;
+        return step > minStep ? step : minStep;
     }
 
     /**
@@ -133,23 +433,76 @@ public class CollisionMap implements Disposable {
     public void bounce(Vector2 vel, Vector2 normal, float f, float b) {
 
         // Vertical component of the bounce velocity.
-        Vector2 vert = normal.cpy().scl(-b * vel.dot(normal));
+        float vertScale = -b * vel.dot(normal);
+        float vertX = normal.x * vertScale;
+        float vertY = normal.y * vertScale;
         // Make up for any surface normal errors and flip the vertical portion
         // of the velocity so that it is going in the same direction as the
         // normal.
-        if (vert.dot(normal) < 0) {
-            vert.scl(-1f);
+        if (vertX * normal.x + vertY * normal.y < 0) {
+            vertX *= -1f;
+            vertY *= -1f;
         }
 
         // Horizontal component of the bounce velocity.
-        Vector2 horz = new Vector2(normal.y, -normal.x);
-        horz.scl(f * vel.dot(horz));
+        float horzX = normal.y;
+        float horzY = -normal.x;
+        float horzScale = f * (vel.x * horzX + vel.y * horzY);
+        horzX *= horzScale;
+        horzY *= horzScale;
+
+        // Combine vertical and horizontal components and update the velocity.
+        vel.set(vertX + horzX, vertY + horzY);
+    }
+
+    /**
+     * Projects all the particles out of the collision map and bounces the
+     * ones that hit it. Same as calling
+     * {@link #projectOut(Vector2, Vector2, Vector2)} followed by
+     * {@link #bounce(Vector2, Vector2, float, float)} for each particle.
+     * 
+     * @return the number of particles that hit the collision map.
+     */
+    public int resolve(ParticleBatch particles) {
+        return resolve(particles, 0, particles.size);
+    }
 
-        // Combine vertical and horizontal components.
-        vert.add(horz);
+    /**
+     * Same as {@link #resolve(ParticleBatch)}, but only for the particles in
+     * [start, end).
+     */
+    public int resolve(ParticleBatch particles, int start, int end) {
+        Vector2 pos = new Vector2();
+        Vector2 vel = new Vector2();
+        Vector2 normal = new Vector2();
+        int hits = 0;
+        for (int i = start; i < end; i++) {
+            pos.set(particles.x[i], particles.y[i]);
+            vel.set(particles.velX[i], particles.velY[i]);
+            boolean hit = projectOut(pos, vel, normal);
+            particles.hit[i] = hit;
+            if (!hit) {
+                continue;
+            }
+            bounce(vel, normal, particles.friction[i], particles.bounce[i]);
+            particles.x[i] = pos.x;
+            particles.y[i] = pos.y;
+            particles.velX[i] = vel.x;
+            particles.velY[i] = vel.y;
+            particles.normalX[i] = normal.x;
+            particles.normalY[i] = normal.y;
+            hits++;
+        }
+        return hits;
+    }
 
-        // Update the velocity.
-        vel.set(vert);
+    /**
+     * Same as {@link #resolve(ParticleBatch)}, but splits the particles into
+     * index ranges that are resolved in parallel on the pool. The results are
+     * identical to the serial version.
+     */
+    public int resolve(ParticleBatch particles, ForkJoinPool pool) {
+        return pool.invoke(new ResolveTask(this, particles, 0, particles.size));
     }
 
     /**
@@ -160,15 +513,59 @@ public class CollisionMap implements Disposable {
      * - origin at top left.
      */
     public Vector2 surfaceNormal(float levelX, float levelY) {
-        // Convert to pixmap coordinates.
-        int py = mapHeight - (int) levelY;
-        int collisionPixel = collisionPixmap.getPixel((int) levelX, py);
-        if ((collisionPixel & SOLID_MASK) == 0) {
-            return null;
+        Vector2 n = new Vector2();
+        return surfaceNormal(levelX, levelY, null, n) ? n : null;
+    }
+
+    /**
+     * Returns true iff (levelX, levelY) is inside the terrain. Cheaper than
+     * {@link #surfaceNormal(float, float)} when the normal is not needed.
+     */
+    public boolean isSolid(float levelX, float levelY) {
+        int py = mapHeight - MathUtils.floor(levelY);
+        return isSolidPixel(MathUtils.floor(levelX), py);
+    }
+
+    /**
+     * Returns the number of solid pixels in the width x height pixels whose
+     * bottom left pixel has its bottom left corner at (cellX, cellY) in level
+     * coordinates. Pixels outside of the map are blank.
+     */
+    public int countSolid(int cellX, int cellY, int width, int height) {
+        // Convert to pixmap coordinates, where the rows are flipped.
+        int px0 = cellX;
+        int px1 = cellX + width;
+        int py0 = mapHeight - (cellY + height - 1);
+        int py1 = mapHeight - cellY + 1;
+        OccupancyPyramid occupancyPyramid = getOccupancyPyramid();
+        if (occupancyPyramid != null) {
+            return occupancyPyramid.countSolid(this, px0, py0, px1, py1);
         }
-        int snx = ((collisionPixel >> SNX_SHIFT) & SN_MASK) - VECTOR_OFFSET;
-        int sny = ((collisionPixel >> SNY_SHIFT) & SN_MASK) - VECTOR_OFFSET;
-        return new Vector2(snx, sny).nor();
+        int count = 0;
+        for (int py = Math.max(py0, 0); py < Math.min(py1, mapHeight); py++) {
+            for (int px = Math.max(px0, 0); px < Math.min(px1, mapWidth); px++) {
+                if (isSolidPixel(px, py)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns true iff none of the pixels in the area are solid. See
+     * {@link #countSolid(int, int, int, int)}.
+     */
+    public boolean isEmpty(int cellX, int cellY, int width, int height) {
+        return countSolid(cellX, cellY, width, height) == 0;
+    }
+
+    /**
+     * Returns true iff all of the pixels in the area are solid. See
+     * {@link #countSolid(int, int, int, int)}.
+     */
+    public boolean isFull(int cellX, int cellY, int width, int height) {
+        return countSolid(cellX, cellY, width, height) == width * height;
     }
 
     /**
@@ -180,69 +577,756 @@ public class CollisionMap implements Disposable {
      *            velocity of the object.
      */
     public Vector2 surfaceNormal(float levelX, float levelY, Vector2 vel) {
-        Vector2 n = surfaceNormal(levelX, levelY);
-        if (n == null) {
-            return n;
+        Vector2 n = new Vector2();
+        return surfaceNormal(levelX, levelY, vel, n) ? n : null;
+    }
+
+    /**
+     * Allocation free version of {@link #surfaceNormal(float, float)} and
+     * {@link #surfaceNormal(float, float, Vector2)}.
+     * 
+     * @param vel
+     *            velocity of the object, or null to skip the velocity check.
+     * @param normalOut
+     *            Set to the surface normal. Untouched if there is no surface.
+     * 
+     * @return true iff there is a surface at (levelX, levelY).
+     */
+    public boolean surfaceNormal(float levelX, float levelY, Vector2 vel, Vector2 normalOut) {
+        // Convert to pixmap coordinates.
+        int py = mapHeight - MathUtils.floor(levelY);
+        int collisionPixel = pixel(MathUtils.floor(levelX), py);
+        if ((collisionPixel & SOLID_MASK) == 0) {
+            return false;
+        }
+        int snx = ((collisionPixel >> SNX_SHIFT) & SN_MASK) - VECTOR_OFFSET;
+        int sny = ((collisionPixel >> SNY_SHIFT) & SN_MASK) - VECTOR_OFFSET;
+        normalOut.set(snx, sny).nor();
+        if (vel == null) {
+            return true;
         }
         // Surface normal must be going against velocity.
-        float cos = n.dot(vel) / (n.len() * vel.len());
+        float cos = normalOut.dot(vel) / (normalOut.len() * vel.len());
         // Errors in computing the surface normal can sometimes result in
         // collisions
         // where the surface normal is not against velocity.
         // The acceptable error is around 0.35, or 20 degrees.
         if (cos > 0.35f) {
             // If surface normal is not going against velocity, just flip it.
-            n.scl(-1);
+            normalOut.scl(-1);
         }
-        return n;
+        return true;
     }
 
     /**
-     * Creates a hole in the collision map.
+     * Casts a ray from (x0, y0) to (x1, y1) in level coordinates and finds the
+     * first solid pixel on it. Visits every pixel the ray passes through, so it
+     * never tunnels through thin walls no matter how long the ray is. With an
+     * {@link OccupancyPyramid} attached, blocks without solid pixels are
+     * crossed in one step.
+     * 
+     * @param hitOut
+     *            Set to the first hit. Untouched if nothing was hit.
      * 
-     * Precondition: Pixmap.setBlending(Blending.None);
+     * @return true iff the ray hit the collision map.
+     */
+    public boolean raycast(float x0, float y0, float x1, float y1, RaycastHit hitOut) {
+        float dx = x1 - x0;
+        float dy = y1 - y0;
+        int cellX = MathUtils.floor(x0);
+        int cellY = MathUtils.floor(y0);
+        int endCellX = MathUtils.floor(x1);
+        int endCellY = MathUtils.floor(y1);
+        int steps = Math.abs(endCellX - cellX) + Math.abs(endCellY - cellY);
+
+        // Grid traversal from Amanatides and Woo, "A Fast Voxel Traversal
+        // Algorithm for Ray Tracing". tMax is the fraction along the ray where
+        // it crosses the next pixel boundary, tDelta the fraction it takes to
+        // cross a whole pixel.
+        int stepX = dx > 0 ? 1 : -1;
+        int stepY = dy > 0 ? 1 : -1;
+        float tDeltaX = dx != 0 ? Math.abs(1 / dx) : Float.POSITIVE_INFINITY;
+        float tDeltaY = dy != 0 ? Math.abs(1 / dy) : Float.POSITIVE_INFINITY;
+        float tMaxX = dx > 0 ? (cellX + 1 - x0) / dx : dx < 0 ? (x0 - cellX) / -dx
+                : Float.POSITIVE_INFINITY;
+        float tMaxY = dy > 0 ? (cellY + 1 - y0) / dy : dy < 0 ? (y0 - cellY) / -dy
+                : Float.POSITIVE_INFINITY;
+
+        // Side of the pixel that the ray entered through.
+        int sideX = 0;
+        int sideY = 0;
+        float t = 0;
+        OccupancyPyramid occupancyPyramid = getOccupancyPyramid();
+        while (true) {
+            if (occupancyPyramid != null && cellX >= 0 && cellX < mapWidth && cellY > 0
+                    && cellY <= mapHeight) {
+                int py = mapHeight - cellY;
+                int level = occupancyPyramid.emptyLevel(cellX, py);
+                if (level >= 0) {
+                    // Jump to the first pixel past the empty block. Its level
+                    // cells are [bx0, bx1) x [by0, by1).
+                    int size = OccupancyPyramid.getBlockSize(level);
+                    int bx0 = cellX / size * size;
+                    int bx1 = Math.min(bx0 + size, mapWidth);
+                    int blockPy0 = py / size * size;
+                    int by0 = mapHeight - Math.min(blockPy0 + size, mapHeight) + 1;
+                    int by1 = mapHeight - blockPy0 + 1;
+                    float exitX = dx > 0 ? (bx1 - x0) / dx : dx < 0 ? (bx0 - x0) / dx
+                            : Float.POSITIVE_INFINITY;
+                    float exitY = dy > 0 ? (by1 - y0) / dy : dy < 0 ? (by0 - y0) / dy
+                            : Float.POSITIVE_INFINITY;
+                    float exit = Math.min(exitX, exitY);
+                    if (exit >= 1) {
+                        return false;
+                    }
+                    // Rounding can put the current pixel slightly off the
+                    // ray, in which case the jump would not make progress.
+                    if (exit > t) {
+                        t = exit;
+                        if (exitX < exitY) {
+                            cellX = dx > 0 ? bx1 : bx0 - 1;
+                            cellY = Math.max(by0, Math.min(MathUtils.floor(y0 + dy * t), by1 - 1));
+                            sideX = -stepX;
+                            sideY = 0;
+                        } else {
+                            cellY = dy > 0 ? by1 : by0 - 1;
+                            cellX = Math.max(bx0, Math.min(MathUtils.floor(x0 + dx * t), bx1 - 1));
+                            sideX = 0;
+                            sideY = -stepY;
+                        }
+                        tMaxX = dx > 0 ? (cellX + 1 - x0) / dx : dx < 0 ? (x0 - cellX) / -dx
+                                : Float.POSITIVE_INFINITY;
+                        tMaxY = dy > 0 ? (cellY + 1 - y0) / dy : dy < 0 ? (y0 - cellY) / -dy
+                                : Float.POSITIVE_INFINITY;
+                        steps = Math.abs(endCellX - cellX) + Math.abs(endCellY - cellY);
+                        continue;
+                    }
+                }
+            }
+            if (isSolidCell(cellX, cellY)) {
+                setHit(hitOut, x0 + dx * t, y0 + dy * t, Math.min(t, 1), cellX, cellY);
+                if (hitOut.normal.isZero()) {
+                    hitOut.normal.set(sideX, sideY);
+                }
+                if (hitOut.normal.isZero()) {
+                    // Started inside the pixel, so push back along the ray.
+                    hitOut.normal.set(-dx, -dy).nor();
+                }
+                return true;
+            }
+            if (steps-- == 0) {
+                return false;
+            }
+            if (tMaxX < tMaxY) {
+                t = tMaxX;
+                tMaxX += tDeltaX;
+                cellX += stepX;
+                sideX = -stepX;
+                sideY = 0;
+            } else {
+                t = tMaxY;
+                tMaxY += tDeltaY;
+                cellY += stepY;
+                sideX = 0;
+                sideY = -stepY;
+            }
+        }
+    }
+
+    /**
+     * Sweeps a circle from (x0, y0) to (x1, y1) in level coordinates and finds
+     * the first position where it touches a solid pixel.
+     * 
+     * @param radius
+     *            radius of the circle. A radius of 0 is the same as
+     *            {@link #raycast(float, float, float, float, RaycastHit)}.
+     * @param hitOut
+     *            Set to the first hit, with (x, y) being the center of the
+     *            circle. Untouched if nothing was hit.
+     * 
+     * @return true iff the circle hit the collision map.
+     */
+    public boolean raycast(float x0, float y0, float x1, float y1, float radius,
+            RaycastHit hitOut) {
+        if (radius <= 0) {
+            return raycast(x0, y0, x1, y1, hitOut);
+        }
+        float dx = x1 - x0;
+        float dy = y1 - y0;
+        if (circleContact(x0, y0, radius, hitOut)) {
+            setCircleHit(hitOut, x0, y0, 0, dx, dy);
+            return true;
+        }
+
+        float length = (float) Math.sqrt(dx * dx + dy * dy);
+        if (length == 0) {
+            return false;
+        }
+        float maxStep = Math.min(CIRCLE_CAST_STEP, radius);
+
+        // March along the ray until the circle overlaps the terrain.
+        DistanceField distanceField = getDistanceField();
+        float free = 0;
+        float hit = -1;
+        while (free < 1) {
+            float x = x0 + dx * free;
+            float y = y0 + dy * free;
+            float step = maxStep;
+            if (distanceField != null) {
+                // Skip over empty space, leaving room for the size of the
+                // pixels.
+                float clearance = -distanceField.distance(MathUtils.floor(x),
+                        mapHeight - MathUtils.floor(y)) - radius - 1.5f;
+                step = Math.max(step, clearance);
+            }
+            float t = Math.min(free + step / length, 1);
+            if (circleContact(x0 + dx * t, y0 + dy * t, radius, hitOut)) {
+                hit = t;
+                break;
+            }
+            free = t;
+        }
+        if (hit < 0) {
+            return false;
+        }
+
+        // Narrow down where the circle first touches.
+        for (int i = 0; i < CIRCLE_CAST_REFINE_STEPS; i++) {
+            float mid = (free + hit) * 0.5f;
+            if (circleContact(x0 + dx * mid, y0 + dy * mid, radius, hitOut)) {
+                hit = mid;
+            } else {
+                free = mid;
+            }
+        }
+        float x = x0 + dx * hit;
+        float y = y0 + dy * hit;
+        circleContact(x, y, radius, hitOut);
+        setCircleHit(hitOut, x, y, hit, dx, dy);
+        return true;
+    }
+
+    /**
+     * Casts all the rays in the batch. Rays with a radius are swept circles.
+     * Same as calling {@link #raycast(float, float, float, float, float, RaycastHit)}
+     * for each ray.
+     * 
+     * @return the number of rays that hit the collision map.
+     */
+    public int raycast(RayBatch rays) {
+        return raycast(rays, 0, rays.size);
+    }
+
+    /**
+     * Same as {@link #raycast(RayBatch)}, but only for the rays in [start,
+     * end).
+     */
+    public int raycast(RayBatch rays, int start, int end) {
+        RaycastHit hit = new RaycastHit();
+        int hits = 0;
+        for (int i = start; i < end; i++) {
+            boolean hitMap = raycast(rays.startX[i], rays.startY[i], rays.endX[i], rays.endY[i],
+                    rays.radius[i], hit);
+            rays.hit[i] = hitMap;
+            if (!hitMap) {
+                rays.fraction[i] = 1;
+                continue;
+            }
+            rays.fraction[i] = hit.fraction;
+            rays.normalX[i] = hit.normal.x;
+            rays.normalY[i] = hit.normal.y;
+            hits++;
+        }
+        return hits;
+    }
+
+    /**
+     * Same as {@link #raycast(RayBatch)}, but splits the rays into index ranges
+     * that are cast in parallel on the pool.
+     */
+    public int raycast(RayBatch rays, ForkJoinPool pool) {
+        return pool.invoke(new RaycastTask(this, rays, 0, rays.size));
+    }
+
+    /**
+     * Creates a hole in the collision map.
      */
     public void addHole(float levelX, float levelY, int radius) {
+        Metrics metrics = this.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
         // Convert to pixmap coordinates.
-        int px = (int) levelX;
-        int py = mapHeight - (int) levelY;
-        collisionPixmap.setColor(EMPTY_PIXEL);
-        collisionPixmap.fillCircle(px, py, radius);
-
-        // Update projection normals.
-        for (int dx = -radius - 2; dx <= radius + 2; dx++) {
-            for (int dy = -radius - 2; dy <= radius + 2; dy++) {
-                int px2 = px + dx;
-                int py2 = py + dy;
-                int ly = mapHeight - py2;
-                Vector2 surfaceNormal = surfaceNormal(px2, ly);
-                // Make sure not to override any existing surface normals.
-                // Only set a new surface normal if the previous one was (0, 0).
-                if (surfaceNormal != null && surfaceNormal.x == 0 && surfaceNormal.y == 0
-                        && isEdge(px2, py2)) {
-                    int color = encodeSolidPixelData(-dx, dy);
-                    collisionPixmap.drawPixel(px2, py2, color);
+        int px = MathUtils.floor(levelX);
+        int py = mapHeight - MathUtils.floor(levelY);
+        beginWrite();
+        try {
+            filledPixels = 0;
+            fillCircle(px, py, radius, EMPTY_PIXEL);
+
+            // Update projection normals.
+            for (int dx = -radius - 2; dx <= radius + 2; dx++) {
+                for (int dy = -radius - 2; dy <= radius + 2; dy++) {
+                    int px2 = px + dx;
+                    int py2 = py + dy;
+                    // Make sure not to override any existing surface normals.
+                    // Only set a new surface normal if the previous one was
+                    // (0, 0).
+                    if (isInterior(pixel(px2, py2)) && isEdge(px2, py2)) {
+                        setPixel(px2, py2, encodeSolidPixelData(-dx, dy));
+                    }
+                }
+            }
+            updateLayers(px - radius, py - radius, px + radius + 1, py + radius + 1);
+        } finally {
+            endWrite();
+        }
+
+        if (metrics != null) {
+            metrics.record(Metric.COLLISION_ADD_HOLE, System.nanoTime() - start);
+            metrics.record(Metric.COLLISION_HOLE_PIXELS, filledPixels);
+        }
+    }
+
+    /**
+     * Adds holes in pixmap coordinates with the same result as calling
+     * {@link #addHole(float, float, int)} for each of them in order, but
+     * repairs the normals and the distance field once for the whole area.
+     * 
+     * @param x0
+     *            [x0, x1) x [y0, y1) has to contain every pixel within
+     *            radius + 2 of each hole.
+     */
+    void addHoles(int[] holeX, int[] holeY, int[] holeRadius, int count, int x0, int y0,
+            int x1, int y1) {
+        Metrics metrics = this.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
+        int w = x1 - x0;
+        int h = y1 - y0;
+        int[] erased = new int[w * h];
+        Arrays.fill(erased, NOT_ERASED);
+        erasedBy = erased;
+        erasedX0 = x0;
+        erasedY0 = y0;
+        erasedWidth = w;
+        beginWrite();
+        try {
+            filledPixels = 0;
+            try {
+                for (int i = 0; i < count; i++) {
+                    erasingHole = i;
+                    fillCircle(holeX[i], holeY[i], holeRadius[i], EMPTY_PIXEL);
+                }
+            } finally {
+                erasedBy = null;
+            }
+            repairNormals(holeX, holeY, holeRadius, count, erased, x0, y0, w, h);
+            updateLayers(x0, y0, x1, y1);
+        } finally {
+            endWrite();
+        }
+
+        if (metrics != null) {
+            metrics.record(Metric.COLLISION_ADD_HOLE, System.nanoTime() - start);
+            metrics.record(Metric.COLLISION_HOLE_PIXELS, filledPixels);
+        }
+    }
+
+    /**
+     * Gives the interior pixels of [x0, x0 + w) x [y0, y0 + h) that became
+     * edge pixels in {@link #addHoles} the normals addHole would have given
+     * them.
+     */
+    private void repairNormals(int[] holeX, int[] holeY, int[] holeRadius, int count,
+            int[] erased, int x0, int y0, int w, int h) {
+        // addHole gives an interior pixel the normal of the first hole near
+        // it that runs once it is an edge pixel, so find out after which hole
+        // each pixel became an edge pixel.
+        for (int py = Math.max(y0, 0); py < Math.min(y0 + h, mapHeight); py++) {
+            for (int px = Math.max(x0, 0); px < Math.min(x0 + w, mapWidth); px++) {
+                if (!isInterior(pixel(px, py))) {
+                    continue;
+                }
+                int edgeSince = edgeSince(px, py, erased, x0, y0, w, h);
+                for (int i = edgeSince; i < count; i++) {
+                    int dx = px - holeX[i];
+                    int dy = py - holeY[i];
+                    int reach = holeRadius[i] + 2;
+                    if (dx >= -reach && dx <= reach && dy >= -reach && dy <= reach) {
+                        setPixel(px, py, encodeSolidPixelData(-dx, dy));
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the index of the first hole after which the pixel has a blank
+     * neighbour, 0 if it had one before the holes, or NOT_ERASED if it still
+     * has none.
+     */
+    private int edgeSince(int px, int py, int[] erased, int x0, int y0, int w, int h) {
+        int since = NOT_ERASED;
+        for (int ny = py - 1; ny <= py + 1; ny++) {
+            for (int nx = px - 1; nx <= px + 1; nx++) {
+                if ((nx == px && ny == py) || isSolidPixel(nx, ny)) {
+                    continue;
                 }
+                int x = nx - x0;
+                int y = ny - y0;
+                int hole = x >= 0 && y >= 0 && x < w && y < h ? erased[y * w + x] : NOT_ERASED;
+                since = Math.min(since, hole == NOT_ERASED ? 0 : hole);
             }
         }
+        return since;
     }
 
     @Override
     public void dispose() {
-        collisionPixmap.dispose();
+        if (grid instanceof Disposable) {
+            ((Disposable) grid).dispose();
+        }
+    }
+
+    /**
+     * Returns the encoded pixel at (px, py) in pixmap coordinates, or
+     * EMPTY_PIXEL if it is outside of the map.
+     */
+    int pixel(int px, int py) {
+        if (px < 0 || py < 0 || px >= mapWidth || py >= mapHeight) {
+            return EMPTY_PIXEL;
+        }
+        return grid.get(px, py);
+    }
+
+    /**
+     * Returns true iff the pixel at (px, py) in pixmap coordinates is solid.
+     */
+    boolean isSolidPixel(int px, int py) {
+        if (px < 0 || py < 0 || px >= mapWidth || py >= mapHeight) {
+            return false;
+        }
+        return grid.isSolid(px, py);
+    }
+
+    /**
+     * Returns true iff the pixel with its bottom left corner at (cellX, cellY)
+     * in level coordinates is solid.
+     */
+    private boolean isSolidCell(int cellX, int cellY) {
+        return isSolidPixel(cellX, mapHeight - cellY);
+    }
+
+    /**
+     * Finds the solid pixel closest to the center of the circle.
+     * 
+     * @param contactOut
+     *            If the circle overlaps the terrain, cellX and cellY are set to
+     *            the closest solid pixel and normal to the vector from the
+     *            closest point of that pixel to the center of the circle.
+     * 
+     * @return true iff the circle overlaps a solid pixel.
+     */
+    private boolean circleContact(float x, float y, float radius, RaycastHit contactOut) {
+        int minX = MathUtils.floor(x - radius);
+        int maxX = MathUtils.floor(x + radius);
+        int minY = MathUtils.floor(y - radius);
+        int maxY = MathUtils.floor(y + radius);
+        float best = radius * radius;
+        boolean found = false;
+        for (int cellY = minY; cellY <= maxY; cellY++) {
+            float closestY = Math.max(cellY, Math.min(y, cellY + 1));
+            for (int cellX = minX; cellX <= maxX; cellX++) {
+                float closestX = Math.max(cellX, Math.min(x, cellX + 1));
+                float distX = x - closestX;
+                float distY = y - closestY;
+                float distSq = distX * distX + distY * distY;
+                if (distSq <= best && isSolidCell(cellX, cellY)) {
+                    best = distSq;
+                    found = true;
+                    contactOut.cellX = cellX;
+                    contactOut.cellY = cellY;
+                    contactOut.normal.set(distX, distY);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Fills in a hit with the surface normal of the pixel, which is (0, 0) for
+     * pixels inside of the terrain.
+     */
+    private void setHit(RaycastHit hitOut, float x, float y, float fraction, int cellX,
+            int cellY) {
+        hitOut.fraction = fraction;
+        hitOut.x = x;
+        hitOut.y = y;
+        hitOut.cellX = cellX;
+        hitOut.cellY = cellY;
+        surfaceNormal(cellX, cellY, null, hitOut.normal);
+    }
+
+    /**
+     * Fills in a swept circle hit after {@link #circleContact} found the
+     * closest pixel. Pixels without a surface normal use the direction from the
+     * contact point to the center of the circle instead.
+     */
+    private void setCircleHit(RaycastHit hitOut, float x, float y, float fraction, float dx,
+            float dy) {
+        float contactX = hitOut.normal.x;
+        float contactY = hitOut.normal.y;
+        setHit(hitOut, x, y, fraction, hitOut.cellX, hitOut.cellY);
+        if (hitOut.normal.isZero()) {
+            hitOut.normal.set(contactX, contactY);
+            if (hitOut.normal.isZero()) {
+                // Center is inside the pixel, so push back along the ray.
+                hitOut.normal.set(-dx, -dy);
+            }
+            hitOut.normal.nor();
+        }
+    }
+
+    /**
+     * Starts a change of the pixels that other threads only see once it is
+     * finished if the grid is a {@link ConcurrentCollisionGrid}.
+     */
+    private void beginWrite() {
+        if (concurrentGrid != null) {
+            concurrentGrid.beginWrite();
+        }
+    }
+
+    /**
+     * Finishes a change started with {@link #beginWrite()}.
+     */
+    private void endWrite() {
+        if (concurrentGrid != null) {
+            concurrentGrid.endWrite();
+        }
+    }
+
+    /**
+     * Updates the distance field and the occupancy pyramid after the pixels
+     * in [x0, x1) x [y0, y1) in pixmap coordinates changed. With a
+     * {@link ConcurrentCollisionGrid}, copies of them are updated, which are
+     * published with the pixels.
+     */
+    private void updateLayers(int x0, int y0, int x1, int y1) {
+        DistanceField distanceField = concurrentGrid != null ? concurrentGrid
+                .getWritableDistanceField() : this.distanceField;
+        if (distanceField != null) {
+            distanceField.update(this, x0, y0, x1, y1);
+        }
+        OccupancyPyramid occupancyPyramid = concurrentGrid != null ? concurrentGrid
+                .getWritableOccupancyPyramid() : this.occupancyPyramid;
+        if (occupancyPyramid != null) {
+            occupancyPyramid.update(this, x0, y0, x1, y1);
+        }
+    }
+
+    /**
+     * Sets the encoded pixel at (px, py) in pixmap coordinates. Does nothing if
+     * it is outside of the map.
+     */
+    private void setPixel(int px, int py, int pixel) {
+        if (px < 0 || py < 0 || px >= mapWidth || py >= mapHeight) {
+            return;
+        }
+        grid.set(px, py, pixel);
+    }
+
+    /**
+     * Returns true iff the pixel is solid with a (0, 0) surface normal.
+     */
+    private static boolean isInterior(int pixel) {
+        return (pixel & SOLID_MASK) != 0
+                && ((pixel >> SNX_SHIFT) & SN_MASK) == VECTOR_OFFSET
+                && ((pixel >> SNY_SHIFT) & SN_MASK) == VECTOR_OFFSET;
     }
 
     /**
      * Returns true iff one of the 8 surrounding pixels is not solid.
      */
     private boolean isEdge(int px, int py) {
-        return (collisionPixmap.getPixel(px - 1, py - 1) & SOLID_MASK) == 0
-                || (collisionPixmap.getPixel(px - 1, py) & SOLID_MASK) == 0
-                || (collisionPixmap.getPixel(px - 1, py + 1) & SOLID_MASK) == 0
-                || (collisionPixmap.getPixel(px, py - 1) & SOLID_MASK) == 0
-                || (collisionPixmap.getPixel(px, py + 1) & SOLID_MASK) == 0
-                || (collisionPixmap.getPixel(px + 1, py - 1) & SOLID_MASK) == 0
-                || (collisionPixmap.getPixel(px + 1, py) & SOLID_MASK) == 0
-                || (collisionPixmap.getPixel(px + 1, py + 1) & SOLID_MASK) == 0;
+        return !isSolidPixel(px - 1, py - 1)
+                || !isSolidPixel(px - 1, py)
+                || !isSolidPixel(px - 1, py + 1)
+                || !isSolidPixel(px, py - 1)
+                || !isSolidPixel(px, py + 1)
+                || !isSolidPixel(px + 1, py - 1)
+                || !isSolidPixel(px + 1, py)
+                || !isSolidPixel(px + 1, py + 1);
+    }
+
+    /**
+     * Fills a circle of pixels the same way {@link Pixmap#fillCircle} does
+     * with blending disabled.
+     */
+    private void fillCircle(int x0, int y0, int radius, int pixel) {
+        int f = 1 - radius;
+        int ddfX = 1;
+        int ddfY = -2 * radius;
+        int dx = 0;
+        int dy = radius;
+
+        fillRow(x0, x0, y0 + radius, pixel);
+        fillRow(x0, x0, y0 - radius, pixel);
+        fillRow(x0 - radius, x0 + radius, y0, pixel);
+
+        while (dx < dy) {
+            if (f >= 0) {
+                dy--;
+                ddfY += 2;
+                f += ddfY;
+            }
+            dx++;
+            ddfX += 2;
+            f += ddfX;
+            fillRow(x0 - dx, x0 + dx, y0 + dy, pixel);
+            fillRow(x0 - dx, x0 + dx, y0 - dy, pixel);
+            fillRow(x0 - dy, x0 + dy, y0 + dx, pixel);
+            fillRow(x0 - dy, x0 + dy, y0 - dx, pixel);
+        }
+    }
+
+    /**
+     * Sets the pixels from x1 to x2 (inclusive) in row py, clipped to the map.
+     */
+    private void fillRow(int x1, int x2, int py, int pixel) {
+        if (py < 0 || py >= mapHeight) {
+            return;
+        }
+        if (x1 < 0) {
+            x1 = 0;
+        }
+        if (x2 >= mapWidth) {
+            x2 = mapWidth - 1;
+        }
+        if (x1 <= x2) {
+            filledPixels += x2 - x1 + 1;
+        }
+        if (erasedBy != null && (pixel & SOLID_MASK) == 0) {
+            for (int x = x1; x <= x2; x++) {
+                if (grid.isSolid(x, py)) {
+                    erasedBy[(py - erasedY0) * erasedWidth + x - erasedX0] = erasingHole;
+                }
+            }
+        }
+        for (int x = x1; x <= x2; x++) {
+            grid.set(x, py, pixel);
+        }
+    }
+
+    /**
+     * Copies the pixels of the pixmap into a new grid.
+     */
+    private static IntBuffer importPixmap(Pixmap pixmap) {
+        int w = pixmap.getWidth();
+        int h = pixmap.getHeight();
+        IntBuffer grid = IntBuffer.allocate(w * h);
+        if (pixmap.getFormat() == Format.RGBA8888) {
+            grid.put(pixelsAsInts(pixmap));
+            grid.clear();
+        } else {
+            // Let the pixmap convert other formats to RGBA8888.
+            for (int y = 0; y < h; y++) {
+                for (int x = 0; x < w; x++) {
+                    grid.put(y * w + x, pixmap.getPixel(x, y));
+                }
+            }
+        }
+        return grid;
+    }
+
+    /**
+     * Returns an int view of the pixels of an RGBA8888 pixmap. Each int has the
+     * same value as {@link Pixmap#getPixel(int, int)}.
+     */
+    private static IntBuffer pixelsAsInts(Pixmap pixmap) {
+        ByteBuffer pixels = pixmap.getPixels().duplicate();
+        pixels.clear();
+        return pixels.order(ByteOrder.BIG_ENDIAN).asIntBuffer();
+    }
+
+    /**
+     * Processes a range of a batch, splitting it in half until it is small
+     * enough.
+     */
+    private abstract static class BatchTask extends RecursiveTask<Integer> {
+
+        private static final long serialVersionUID = 1L;
+
+        protected final CollisionMap collisionMap;
+        private final int start;
+        private final int end;
+
+        BatchTask(CollisionMap collisionMap, int start, int end) {
+            this.collisionMap = collisionMap;
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * Processes [start, end) serially and returns the number of hits.
+         */
+        abstract int run(int start, int end);
+
+        abstract BatchTask subtask(int start, int end);
+
+        @Override
+        protected Integer compute() {
+            if (end - start <= PARALLEL_BATCH_THRESHOLD) {
+                return run(start, end);
+            }
+            int mid = (start + end) >>> 1;
+            BatchTask left = subtask(start, mid);
+            left.fork();
+            int hits = subtask(mid, end).compute();
+            return hits + left.join();
+        }
+    }
+
+    private static class ResolveTask extends BatchTask {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ParticleBatch particles;
+
+        ResolveTask(CollisionMap collisionMap, ParticleBatch particles, int start, int end) {
+            super(collisionMap, start, end);
+            this.particles = particles;
+        }
+
+        @Override
+        int run(int start, int end) {
+            return collisionMap.resolve(particles, start, end);
+        }
+
+        @Override
+        BatchTask subtask(int start, int end) {
+            return new ResolveTask(collisionMap, particles, start, end);
+        }
+    }
+
+    private static class RaycastTask extends BatchTask {
+
+        private static final long serialVersionUID = 1L;
+
+        private final RayBatch rays;
+
+        RaycastTask(CollisionMap collisionMap, RayBatch rays, int start, int end) {
+            super(collisionMap, start, end);
+            this.rays = rays;
+        }
+
+        @Override
+        int run(int start, int end) {
+            return collisionMap.raycast(rays, start, end);
+        }
+
+        @Override
+        BatchTask subtask(int start, int end) {
+            return new RaycastTask(collisionMap, rays, start, end);
+        }
     }
 }
@@ -0,0 +1,655 @@
+package com.dounanshi.libgdx.util.destructable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.badlogic.gdx.Files.FileType;
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.utils.Disposable;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+import com.badlogic.gdx.utils.StreamUtils;
+
+/**
+ * Binary collision map file that can be memory mapped.
+ *
+ * Unlike a cim file, which has to be inflated into a pixmap and copied into
+ * the grid, an uncompressed cmap file holds the encoded pixels exactly as
+ * {@link CollisionMap} keeps them, so {@link #read(FileHandle)} maps the file
+ * and uses the mapped pixels as the grid. Loading takes about as long as
+ * opening the file, and the pages of the map are read in by the OS as they are
+ * touched.
+ *
+ * Layout, all little endian:
+ *
+ * <pre>
+ * header     magic "CMAP", version, width, height, solid bits, normal bits,
+ *            tile rows, tile count, compression, reserved (ints),
+ *            index offset (long)
+ * tiles      tile count tiles of tile rows pixmap rows each (the last one may
+ *            have fewer), stored in order
+ * index      offset (long) and length (int) in bytes of each tile
+ * </pre>
+ *
+ * The index is written last and its offset is filled in when the file is
+ * complete, so a file that was not finished is rejected.
+ */
+public class CollisionMapFile {
+
+    public static final int COMPRESSION_NONE = 0;
+
+    /**
+     * Each tile is deflated on its own with {@link Deflater#BEST_SPEED}. Such
+     * files are smaller but are inflated into memory when read.
+     */
+    public static final int COMPRESSION_DEFLATE = 1;
+
+    public static final int DEFAULT_TILE_ROWS = 64;
+
+    private static final int MAGIC = 'C' | 'M' << 8 | 'A' << 16 | 'P' << 24;
+
+    private static final int FILE_VERSION = 1;
+
+    private static final int HEADER_SIZE = 48;
+
+    private static final int INDEX_ENTRY_SIZE = 12;
+
+    private CollisionMapFile() {
+    }
+
+    /**
+     * Writes the collision map to an uncompressed file that can be mapped by
+     * {@link #read(FileHandle)}.
+     */
+    public static void write(CollisionMap collisionMap, FileHandle file) {
+        write(collisionMap, file, DEFAULT_TILE_ROWS, COMPRESSION_NONE);
+    }
+
+    /**
+     * Writes the collision map to a file.
+     *
+     * @param compression
+     *            {@link #COMPRESSION_NONE} or {@link #COMPRESSION_DEFLATE}.
+     */
+    public static void write(CollisionMap collisionMap, FileHandle file, int tileRows,
+            int compression) {
+        int w = collisionMap.getWidth();
+        int h = collisionMap.getHeight();
+        Writer writer = new Writer(file, w, h, tileRows, compression);
+        try {
+            int[] row = new int[w];
+            for (int py = 0; py < h; py++) {
+                for (int px = 0; px < w; px++) {
+                    row[px] = collisionMap.pixel(px, py);
+                }
+                writer.writeRows(row, 0, 1);
+            }
+            writer.close();
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Opens a collision map written by
+     * {@link #write(CollisionMap, FileHandle)} or {@link Writer}.
+     *
+     * Uncompressed files that are regular files are memory mapped, and the
+     * mapped pixels are used as the grid. Holes added to the map are never
+     * written back to the file: writable files are mapped privately, so the
+     * pages that holes change are copied by the OS, and read-only files use a
+     * {@link MappedCollisionGrid}, which copies the bands of rows that holes
+     * change. Files that can't be mapped, like classpath files, and
+     * compressed files are read into memory.
+     */
+    public static CollisionMap read(FileHandle file) {
+        File osFile = file.type() != FileType.Classpath ? file.file() : null;
+        if (osFile == null || !osFile.isFile()) {
+            // Not a file on disk, e.g. an asset inside an apk or jar.
+            byte[] bytes = file.readBytes();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+            buffer.put(bytes);
+            buffer.clear();
+            return read(file, buffer);
+        }
+
+        RandomAccessFile raf = null;
+        try {
+            // Private mappings need a writable channel even though nothing is
+            // written to the file.
+            boolean writable = osFile.canWrite();
+            raf = new RandomAccessFile(osFile, writable ? "rw" : "r");
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new GdxRuntimeException("Collision map file is too large: " + file);
+            }
+            // The mapping stays valid after the channel is closed.
+            return read(file, channel.map(writable ? MapMode.PRIVATE : MapMode.READ_ONLY, 0,
+                    channel.size()));
+        } catch (IOException e) {
+            throw new GdxRuntimeException("Couldn't read collision map from file '" + file + "'",
+                    e);
+        } finally {
+            StreamUtils.closeQuietly(raf);
+        }
+    }
+
+    /**
+     * Returns the collision map in the file contents, using the buffer as the
+     * grid if the file is not compressed, or as the pixels of a
+     * {@link MappedCollisionGrid} if the buffer is read-only.
+     */
+    private static CollisionMap read(FileHandle file, ByteBuffer buffer) {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        Header header = Header.parse(file, buffer, buffer.capacity());
+        int w = header.width;
+        int h = header.height;
+        int rowBytes = w * 4;
+        if (header.compression == COMPRESSION_NONE) {
+            for (int i = 0; i < header.tileCount; i++) {
+                int entry = (int) header.indexOffset + i * INDEX_ENTRY_SIZE;
+                header.checkTile(file, i, buffer.getLong(entry), buffer.getInt(entry + 8));
+            }
+            ByteBuffer pixels = buffer.duplicate();
+            pixels.limit(HEADER_SIZE + h * rowBytes);
+            pixels.position(HEADER_SIZE);
+            IntBuffer grid = pixels.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            if (grid.isReadOnly()) {
+                return new CollisionMap(new MappedCollisionGrid(w, h, grid));
+            }
+            return new CollisionMap(w, h, grid);
+        }
+
+        ByteBuffer pixels = ByteBuffer.allocateDirect(h * rowBytes);
+        Inflater inflater = new Inflater();
+        try {
+            byte[] compressed = new byte[0];
+            byte[] tile = new byte[Math.min(header.tileRows, h) * rowBytes];
+            for (int i = 0; i < header.tileCount; i++) {
+                int entry = (int) header.indexOffset + i * INDEX_ENTRY_SIZE;
+                long offset = buffer.getLong(entry);
+                int length = buffer.getInt(entry + 8);
+                header.checkTile(file, i, offset, length);
+                if (compressed.length < length) {
+                    compressed = new byte[length];
+                }
+                ByteBuffer src = buffer.duplicate();
+                src.position((int) offset);
+                src.get(compressed, 0, length);
+                int size = header.tileSize(i);
+                inflate(file, i, inflater, compressed, length, tile, size);
+                pixels.put(tile, 0, size);
+            }
+        } finally {
+            inflater.end();
+        }
+        pixels.clear();
+        return new CollisionMap(w, h, pixels.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer());
+    }
+
+    /**
+     * Opens the tiles of a collision map file for a {@link PagedCollisionGrid}
+     * instead of loading the whole map. The caller is responsible for
+     * disposing it, unless it is handed to a grid.
+     */
+    public static TileFile openTiles(FileHandle file) {
+        return new TileFile(file);
+    }
+
+    /**
+     * Opens a collision map file as a map that only keeps the most recently
+     * used tiles in memory. Holes added to the map are written back to the
+     * file, which has to be uncompressed for that, when their tiles are
+     * evicted and when the map is disposed.
+     */
+    public static CollisionMap openPaged(FileHandle file, long maxResidentBytes) {
+        TileFile tiles = openTiles(file);
+        return new CollisionMap(new PagedCollisionGrid(tiles.getWidth(), tiles.getHeight(),
+                tiles, maxResidentBytes));
+    }
+
+    /**
+     * Inflates compressed tile i, which has to be exactly size bytes.
+     */
+    private static void inflate(FileHandle file, int i, Inflater inflater, byte[] compressed,
+            int length, byte[] tile, int size) {
+        inflater.reset();
+        inflater.setInput(compressed, 0, length);
+        int inflated = 0;
+        try {
+            while (inflated < size && !inflater.finished() && !inflater.needsInput()) {
+                inflated += inflater.inflate(tile, inflated, size - inflated);
+            }
+        } catch (DataFormatException e) {
+            throw new GdxRuntimeException("Corrupt collision map tile " + i + ": " + file, e);
+        }
+        if (inflated != size) {
+            throw new GdxRuntimeException("Corrupt collision map tile " + i + ": " + file);
+        }
+    }
+
+    /**
+     * Returns the number of rows in tile i.
+     */
+    private static int tileRows(int height, int tileRows, int i) {
+        return Math.min(tileRows, height - i * tileRows);
+    }
+
+    /**
+     * Writes a collision map file row by row, so that maps can be written
+     * without holding all of their pixels.
+     */
+    public static class Writer implements Disposable {
+
+        private final FileHandle file;
+        private final int width;
+        private final int height;
+        private final int tileRows;
+        private final int compression;
+
+        private RandomAccessFile raf;
+        private FileChannel channel;
+
+        // Rows of the current tile.
+        private final ByteBuffer tile;
+        private final IntBuffer tileInts;
+        private int row;
+
+        private final ByteBuffer index;
+
+        private final Deflater deflater;
+        private byte[] compressed;
+
+        /**
+         * Creates the file and writes its header.
+         *
+         * @param compression
+         *            {@link CollisionMapFile#COMPRESSION_NONE} or
+         *            {@link CollisionMapFile#COMPRESSION_DEFLATE}.
+         */
+        public Writer(FileHandle file, int width, int height, int tileRows, int compression) {
+            if (width < 0 || height < 0 || (long) width * height * 4 > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Invalid collision map size: " + width + "x"
+                        + height);
+            }
+            if (tileRows < 1) {
+                throw new IllegalArgumentException("tileRows must be positive: " + tileRows);
+            }
+            if (compression != COMPRESSION_NONE && compression != COMPRESSION_DEFLATE) {
+                throw new IllegalArgumentException("Unknown compression: " + compression);
+            }
+            if (file.type() == FileType.Classpath || file.type() == FileType.Internal) {
+                throw new GdxRuntimeException("Cannot write to a " + file.type() + " file: "
+                        + file);
+            }
+            this.file = file;
+            this.width = width;
+            this.height = height;
+            this.tileRows = tileRows;
+            this.compression = compression;
+
+            int tileCount = (height + tileRows - 1) / tileRows;
+            tile = ByteBuffer.allocate(Math.min(tileRows, height) * width * 4).order(
+                    ByteOrder.LITTLE_ENDIAN);
+            tileInts = tile.asIntBuffer();
+            index = ByteBuffer.allocate(tileCount * INDEX_ENTRY_SIZE).order(
+                    ByteOrder.LITTLE_ENDIAN);
+            if (compression == COMPRESSION_DEFLATE) {
+                deflater = new Deflater(Deflater.BEST_SPEED);
+                compressed = new byte[tile.capacity() + 64];
+            } else {
+                deflater = null;
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(FILE_VERSION).putInt(width).putInt(height);
+            header.putInt(CollisionMap.SOLID_SIZE).putInt(CollisionMap.SN_SIZE);
+            header.putInt(tileRows).putInt(tileCount).putInt(compression).putInt(0);
+            // The index offset is filled in by close().
+            header.putLong(0);
+            header.flip();
+            try {
+                file.parent().mkdirs();
+                raf = new RandomAccessFile(file.file(), "rw");
+                raf.setLength(0);
+                channel = raf.getChannel();
+                writeFully(header);
+            } catch (IOException e) {
+                dispose();
+                throw new GdxRuntimeException("Couldn't write collision map to file '" + file
+                        + "'", e);
+            }
+        }
+
+        /**
+         * Writes the next rows, which are count * width encoded pixels of the
+         * pixels array starting at offset.
+         */
+        public void writeRows(int[] pixels, int offset, int count) {
+            if (count < 0 || row + count > height) {
+                throw new IllegalArgumentException("Can't write " + count + " rows after row "
+                        + row + " of " + height);
+            }
+            try {
+                for (int i = 0; i < count; i++) {
+                    tileInts.put(pixels, offset + i * width, width);
+                    row++;
+                    if (row % tileRows == 0 || row == height) {
+                        writeTile();
+                    }
+                }
+            } catch (IOException e) {
+                throw new GdxRuntimeException("Couldn't write collision map to file '" + file
+                        + "'", e);
+            }
+        }
+
+        private void writeTile() throws IOException {
+            long offset = channel.position();
+            tile.position(0);
+            tile.limit(tileInts.position() * 4);
+            int length = tile.remaining();
+            if (deflater != null) {
+                deflater.reset();
+                deflater.setInput(tile.array(), 0, length);
+                deflater.finish();
+                length = 0;
+                while (!deflater.finished()) {
+                    if (length == compressed.length) {
+                        byte[] larger = new byte[compressed.length * 2];
+                        System.arraycopy(compressed, 0, larger, 0, length);
+                        compressed = larger;
+                    }
+                    length += deflater.deflate(compressed, length, compressed.length - length);
+                }
+                writeFully(ByteBuffer.wrap(compressed, 0, length));
+            } else {
+                writeFully(tile);
+            }
+            index.putLong(offset).putInt(length);
+            tile.clear();
+            tileInts.clear();
+        }
+
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        /**
+         * Writes the tile index and completes the header.
+         *
+         * @throws IllegalStateException
+         *             if not all rows were written.
+         */
+        public void close() {
+            if (row != height) {
+                throw new IllegalStateException("Only " + row + " of " + height
+                        + " rows were written");
+            }
+            try {
+                long indexOffset = channel.position();
+                index.flip();
+                writeFully(index);
+                ByteBuffer offset = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+                offset.putLong(indexOffset).flip();
+                channel.position(HEADER_SIZE - 8);
+                writeFully(offset);
+                raf.close();
+                raf = null;
+            } catch (IOException e) {
+                throw new GdxRuntimeException("Couldn't write collision map to file '" + file
+                        + "'", e);
+            } finally {
+                dispose();
+            }
+        }
+
+        /**
+         * Closes the file without completing it.
+         */
+        @Override
+        public void dispose() {
+            StreamUtils.closeQuietly(raf);
+            raf = null;
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Tiles of a collision map file, read and written in place one at a time.
+     * Tiles span the whole width of the map.
+     */
+    public static class TileFile implements PagedCollisionGrid.TileStore, Disposable {
+
+        private final FileHandle file;
+        private final boolean writable;
+        private RandomAccessFile raf;
+        private FileChannel channel;
+        private Header header;
+        private long[] offsets;
+        private int[] lengths;
+
+        // Scratch space for one tile.
+        private ByteBuffer tile;
+        private byte[] compressed = new byte[0];
+        private Inflater inflater;
+
+        private TileFile(FileHandle file) {
+            if (file.type() == FileType.Classpath || !file.file().isFile()) {
+                throw new GdxRuntimeException("Not a file on disk: " + file);
+            }
+            this.file = file;
+            this.writable = file.file().canWrite();
+            try {
+                raf = new RandomAccessFile(file.file(), writable ? "rw" : "r");
+                channel = raf.getChannel();
+                ByteBuffer headerBytes = ByteBuffer.allocate(HEADER_SIZE).order(
+                        ByteOrder.LITTLE_ENDIAN);
+                if (channel.size() >= HEADER_SIZE) {
+                    readFully(headerBytes, 0);
+                }
+                header = Header.parse(file, headerBytes, channel.size());
+                ByteBuffer index = ByteBuffer.allocate(header.tileCount * INDEX_ENTRY_SIZE).order(
+                        ByteOrder.LITTLE_ENDIAN);
+                readFully(index, header.indexOffset);
+                offsets = new long[header.tileCount];
+                lengths = new int[header.tileCount];
+                for (int i = 0; i < header.tileCount; i++) {
+                    offsets[i] = index.getLong(i * INDEX_ENTRY_SIZE);
+                    lengths[i] = index.getInt(i * INDEX_ENTRY_SIZE + 8);
+                    header.checkTile(file, i, offsets[i], lengths[i]);
+                }
+            } catch (IOException e) {
+                dispose();
+                throw new GdxRuntimeException("Couldn't read collision map from file '" + file
+                        + "'", e);
+            } catch (RuntimeException e) {
+                dispose();
+                throw e;
+            }
+            tile = ByteBuffer.allocate(Math.min(header.tileRows, header.height) * header.width * 4)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            if (header.compression == COMPRESSION_DEFLATE) {
+                inflater = new Inflater();
+            }
+        }
+
+        public int getWidth() {
+            return header.width;
+        }
+
+        public int getHeight() {
+            return header.height;
+        }
+
+        @Override
+        public int getTileWidth() {
+            return header.width;
+        }
+
+        @Override
+        public int getTileHeight() {
+            return header.tileRows;
+        }
+
+        @Override
+        public synchronized void readTile(int col, int row, int[] pixels) {
+            int size = header.tileSize(row);
+            tile.clear();
+            try {
+                if (inflater != null) {
+                    if (compressed.length < lengths[row]) {
+                        compressed = new byte[lengths[row]];
+                    }
+                    readFully(ByteBuffer.wrap(compressed, 0, lengths[row]), offsets[row]);
+                    inflate(file, row, inflater, compressed, lengths[row], tile.array(), size);
+                } else {
+                    tile.limit(size);
+                    readFully(tile, offsets[row]);
+                }
+            } catch (IOException e) {
+                throw new GdxRuntimeException("Couldn't read collision map tile " + row
+                        + " from file '" + file + "'", e);
+            }
+            tile.clear();
+            tile.asIntBuffer().get(pixels, 0, size / 4);
+            Arrays.fill(pixels, size / 4, pixels.length, 0);
+        }
+
+        /**
+         * Overwrites the tile in the file.
+         *
+         * @throws GdxRuntimeException
+         *             if the file is compressed or read-only.
+         */
+        @Override
+        public synchronized void writeTile(int col, int row, int[] pixels) {
+            if (inflater != null || !writable) {
+                throw new GdxRuntimeException("Can't write tiles back to compressed or read-only"
+                        + " collision map file: " + file);
+            }
+            int size = header.tileSize(row);
+            tile.clear();
+            tile.asIntBuffer().put(pixels, 0, size / 4);
+            tile.limit(size);
+            try {
+                while (tile.hasRemaining()) {
+                    channel.write(tile, offsets[row] + tile.position());
+                }
+            } catch (IOException e) {
+                throw new GdxRuntimeException("Couldn't write collision map tile " + row
+                        + " to file '" + file + "'", e);
+            }
+        }
+
+        private void readFully(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of file");
+                }
+            }
+        }
+
+        @Override
+        public synchronized void dispose() {
+            StreamUtils.closeQuietly(raf);
+            raf = null;
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+    }
+
+    /**
+     * Validated header of a collision map file.
+     */
+    private static class Header {
+
+        int width;
+        int height;
+        int tileRows;
+        int tileCount;
+        int compression;
+        long indexOffset;
+
+        /**
+         * Parses the header at the start of the little endian buffer.
+         */
+        static Header parse(FileHandle file, ByteBuffer buffer, long fileSize) {
+            if (fileSize < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+                throw new GdxRuntimeException("Not a collision map file: " + file);
+            }
+            int version = buffer.getInt(4);
+            if (version != FILE_VERSION) {
+                throw new GdxRuntimeException("Unsupported collision map version: " + version);
+            }
+            int solidBits = buffer.getInt(16);
+            int normalBits = buffer.getInt(20);
+            if (solidBits != CollisionMap.SOLID_SIZE || normalBits != CollisionMap.SN_SIZE) {
+                throw new GdxRuntimeException("Unsupported collision pixel layout: " + solidBits
+                        + " solid bits, " + normalBits + " normal bits");
+            }
+            Header header = new Header();
+            header.width = buffer.getInt(8);
+            header.height = buffer.getInt(12);
+            header.tileRows = buffer.getInt(24);
+            header.tileCount = buffer.getInt(28);
+            header.compression = buffer.getInt(32);
+            header.indexOffset = buffer.getLong(40);
+            if (header.compression != COMPRESSION_NONE
+                    && header.compression != COMPRESSION_DEFLATE) {
+                throw new GdxRuntimeException("Unsupported collision map compression: "
+                        + header.compression);
+            }
+            if (header.width < 0 || header.height < 0
+                    || (long) header.width * header.height * 4 > Integer.MAX_VALUE
+                    || header.tileRows < 1
+                    || header.tileCount != (header.height + header.tileRows - 1) / header.tileRows
+                    || header.indexOffset < HEADER_SIZE
+                    || header.indexOffset + (long) header.tileCount * INDEX_ENTRY_SIZE > fileSize
+                    || header.compression == COMPRESSION_NONE && HEADER_SIZE
+                            + (long) header.width * header.height * 4 > header.indexOffset) {
+                throw new GdxRuntimeException("Corrupt or incomplete collision map file: " + file);
+            }
+            return header;
+        }
+
+        /**
+         * Returns the size of tile i in bytes when it is not compressed.
+         */
+        int tileSize(int i) {
+            return tileRows(height, tileRows, i) * width * 4;
+        }
+
+        /**
+         * Checks that the index entry of tile i points inside of the tiles.
+         * Uncompressed tiles have to be stored in order without gaps, which is
+         * what lets the pixels be mapped as one grid.
+         */
+        void checkTile(FileHandle file, int i, long offset, int length) {
+            boolean valid;
+            if (compression == COMPRESSION_NONE) {
+                valid = offset == HEADER_SIZE + (long) i * tileRows * width * 4
+                        && length == tileSize(i);
+            } else {
+                valid = offset >= HEADER_SIZE && length >= 0 && offset + length <= indexOffset;
+            }
+            if (!valid) {
+                throw new GdxRuntimeException("Corrupt collision map tile index: " + file);
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.dounanshi.libgdx.util.destructable;
+
+import com.badlogic.gdx.utils.IntIntMap;
+
+/**
+ * {@link CollisionGrid} that stores one solid bit per pixel instead of a whole
+ * encoded pixel.
+ *
+ * Almost all pixels of a map are either blank or interior pixels, which are
+ * solid with a (0, 0) surface normal, so their encoded pixel follows from the
+ * solid bit. The few other pixels, mostly edge pixels with a surface normal,
+ * are marked in a second bitset and their encoded pixels are kept in a hash
+ * map. That takes about 2 bits per pixel plus a few bytes per edge pixel,
+ * e.g. about 5 MB instead of 64 MB for a 16 megapixel map, and the solid
+ * checks that most queries come down to only touch the solid bits. Pixels
+ * read back exactly as they were set.
+ */
+public class CompactCollisionGrid implements CollisionGrid {
+
+    private static final int INTERIOR_PIXEL = CollisionMap.encodeSolidPixelData(0, 0);
+    private static final int BLANK_PIXEL = CollisionMap.encodeBlankPixelData();
+
+    private final int width;
+    private final int height;
+
+    // One bit per pixel in row-major order.
+    private final long[] solid;
+
+    // Set for pixels that are not plain interior or blank pixels.
+    private final long[] special;
+
+    // Encoded pixels of the special pixels by index.
+    private final IntIntMap specialPixels = new IntIntMap();
+
+    /**
+     * Constructs a grid of blank pixels.
+     */
+    public CompactCollisionGrid(int width, int height) {
+        if (width < 0 || height < 0 || (long) width * height > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid collision grid size: " + width + "x"
+                    + height);
+        }
+        this.width = width;
+        this.height = height;
+        int words = (int) (((long) width * height + 63) >>> 6);
+        this.solid = new long[words];
+        this.special = new long[words];
+    }
+
+    /**
+     * Returns a compact copy of the pixels of the collision map.
+     */
+    public static CompactCollisionGrid copyOf(CollisionMap collisionMap) {
+        int w = collisionMap.getWidth();
+        int h = collisionMap.getHeight();
+        CompactCollisionGrid grid = new CompactCollisionGrid(w, h);
+        for (int py = 0; py < h; py++) {
+            for (int px = 0; px < w; px++) {
+                int pixel = collisionMap.pixel(px, py);
+                if (pixel != BLANK_PIXEL) {
+                    grid.set(px, py, pixel);
+                }
+            }
+        }
+        return grid;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the number of pixels that are not plain interior or blank
+     * pixels, which each take an entry in the hash map.
+     */
+    public int getSpecialPixelCount() {
+        return specialPixels.size;
+    }
+
+    @Override
+    public boolean isSolid(int px, int py) {
+        int i = py * width + px;
+        return (solid[i >>> 6] & (1L << i)) != 0;
+    }
+
+    @Override
+    public int get(int px, int py) {
+        int i = py * width + px;
+        long bit = 1L << i;
+        if ((special[i >>> 6] & bit) != 0) {
+            return specialPixels.get(i, BLANK_PIXEL);
+        }
+        return (solid[i >>> 6] & bit) != 0 ? INTERIOR_PIXEL : BLANK_PIXEL;
+    }
+
+    @Override
+    public void set(int px, int py, int pixel) {
+        int i = py * width + px;
+        int word = i >>> 6;
+        long bit = 1L << i;
+        boolean isSolid = (pixel & CollisionMap.SOLID_MASK) != 0;
+        if (isSolid) {
+            solid[word] |= bit;
+        } else {
+            solid[word] &= ~bit;
+        }
+        if (pixel != (isSolid ? INTERIOR_PIXEL : BLANK_PIXEL)) {
+            special[word] |= bit;
+            specialPixels.put(i, pixel);
+        } else if ((special[word] & bit) != 0) {
+            special[word] &= ~bit;
+            specialPixels.remove(i, BLANK_PIXEL);
+        }
+    }
+}
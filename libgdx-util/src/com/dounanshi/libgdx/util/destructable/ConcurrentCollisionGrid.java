@@ -0,0 +1,344 @@
+package com.dounanshi.libgdx.util.destructable;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * {@link CollisionGrid} that other threads can read without locking while one
+ * thread adds holes to it.
+ *
+ * Pixels are kept in square tiles. Changes are made between
+ * {@link #beginWrite()} and {@link #endWrite()}, which {@link CollisionMap}
+ * calls around each hole or group of holes: the first change to a tile copies
+ * it, and endWrite publishes all the copied tiles at once with a single
+ * volatile write. Readers never wait for a write. They see the pixels either
+ * from before or from after each whole write, never a hole that is only half
+ * filled or has its normals half repaired, and once a read sees a write, so
+ * do all later reads of the same thread. The writing thread sees its own
+ * changes right away.
+ *
+ * The {@link DistanceField} and {@link OccupancyPyramid} attached to the map
+ * are published with the pixels: each write updates copies of them that
+ * share the parts it doesn't change, and endWrite publishes them together
+ * with the tiles, so queries never see them ahead of or behind the pixels.
+ *
+ * A query that reads many pixels, e.g. a raycast, can still see one write
+ * published in the middle of it. Queries that need all their pixels from the
+ * same write can compare {@link #getVersion()} before and after and run
+ * again if it changed.
+ *
+ * Each write copies the tiles it changes and the table of tiles, e.g. 32 KB
+ * for the table of an 8192x4096 map with 64x64 tiles, and the same for the
+ * layers, so holes should be grouped, e.g. with a {@link HoleQueue}, rather
+ * than added one pixel at a time.
+ */
+public class ConcurrentCollisionGrid implements CollisionGrid {
+
+    /**
+     * Default width and height of the tiles in pixels.
+     */
+    public static final int DEFAULT_TILE_SIZE = 64;
+
+    private static final int BLANK_PIXEL = CollisionMap.encodeBlankPixelData();
+
+    private final int width;
+    private final int height;
+    private final int tileShift;
+    private final int tileMask;
+    private final int cols;
+
+    // Tiles and layers as of the last write, read by every thread.
+    private volatile Snapshot snapshot;
+
+    // The thread between beginWrite and endWrite, or null.
+    private final AtomicReference<Thread> writer = new AtomicReference<Thread>();
+
+    // Only used by the writer: the nesting depth of beginWrite, the tiles it
+    // started from and the tiles it is changing, which are the same arrays
+    // until a tile is copied, and the layers to publish, which are copies of
+    // the published ones once they are changed.
+    private int writeDepth;
+    private int[][] baseTiles;
+    private int[][] writeTiles;
+    private boolean copiedTile;
+    private DistanceField writeDistanceField;
+    private OccupancyPyramid writeOccupancyPyramid;
+    private boolean copiedDistanceField;
+    private boolean copiedOccupancyPyramid;
+    private boolean changedLayers;
+
+    /**
+     * Constructs a grid of blank pixels.
+     *
+     * @param tileSize
+     *            width and height of the tiles, a power of two.
+     */
+    public ConcurrentCollisionGrid(int width, int height, int tileSize) {
+        if (width < 0 || height < 0) {
+            throw new IllegalArgumentException("Invalid collision grid size: " + width + "x"
+                    + height);
+        }
+        if (tileSize < 1 || Integer.bitCount(tileSize) != 1) {
+            throw new IllegalArgumentException("Tile size is not a power of two: " + tileSize);
+        }
+        this.width = width;
+        this.height = height;
+        this.tileShift = Integer.numberOfTrailingZeros(tileSize);
+        this.tileMask = tileSize - 1;
+        this.cols = (width + tileMask) >> tileShift;
+        int rows = (height + tileMask) >> tileShift;
+        int[][] tiles = new int[cols * rows][];
+        for (int i = 0; i < tiles.length; i++) {
+            tiles[i] = new int[tileSize * tileSize];
+            if (BLANK_PIXEL != 0) {
+                Arrays.fill(tiles[i], BLANK_PIXEL);
+            }
+        }
+        this.snapshot = new Snapshot(tiles, 0, null, null);
+    }
+
+    /**
+     * Returns a copy of the pixels of the collision map with
+     * {@link #DEFAULT_TILE_SIZE} tiles.
+     */
+    public static ConcurrentCollisionGrid copyOf(CollisionMap collisionMap) {
+        return copyOf(collisionMap, DEFAULT_TILE_SIZE);
+    }
+
+    /**
+     * Returns a copy of the pixels of the collision map.
+     */
+    public static ConcurrentCollisionGrid copyOf(CollisionMap collisionMap, int tileSize) {
+        int w = collisionMap.getWidth();
+        int h = collisionMap.getHeight();
+        ConcurrentCollisionGrid grid = new ConcurrentCollisionGrid(w, h, tileSize);
+        // Not shared yet, so the tiles can be filled in directly.
+        int[][] tiles = grid.snapshot.tiles;
+        for (int py = 0; py < h; py++) {
+            for (int px = 0; px < w; px++) {
+                tiles[grid.tileIndex(px, py)][grid.pixelIndex(px, py)] = collisionMap.pixel(px,
+                        py);
+            }
+        }
+        return grid;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    public int getTileSize() {
+        return tileMask + 1;
+    }
+
+    /**
+     * Returns the number of writes published so far. Two equal versions mean
+     * that no write was published in between.
+     */
+    public long getVersion() {
+        return snapshot.version;
+    }
+
+    @Override
+    public boolean isSolid(int px, int py) {
+        return (get(px, py) & CollisionMap.SOLID_MASK) != 0;
+    }
+
+    @Override
+    public int get(int px, int py) {
+        int[][] tiles = isWriter() ? writeTiles : snapshot.tiles;
+        return tiles[tileIndex(px, py)][pixelIndex(px, py)];
+    }
+
+    /**
+     * Returns the distance field published with the pixels that the calling
+     * thread sees, or null if there is none.
+     */
+    DistanceField getDistanceField() {
+        return isWriter() ? writeDistanceField : snapshot.distanceField;
+    }
+
+    /**
+     * Returns the occupancy pyramid published with the pixels that the
+     * calling thread sees, or null if there is none.
+     */
+    OccupancyPyramid getOccupancyPyramid() {
+        return isWriter() ? writeOccupancyPyramid : snapshot.occupancyPyramid;
+    }
+
+    /**
+     * Sets the distance field to publish with the pixels of the current
+     * write. It is copied before it is changed, like a published one.
+     */
+    void setDistanceField(DistanceField distanceField) {
+        checkWriter();
+        writeDistanceField = distanceField;
+        copiedDistanceField = false;
+        changedLayers = true;
+    }
+
+    /**
+     * Sets the occupancy pyramid to publish with the pixels of the current
+     * write. It is copied before it is changed, like a published one.
+     */
+    void setOccupancyPyramid(OccupancyPyramid occupancyPyramid) {
+        checkWriter();
+        writeOccupancyPyramid = occupancyPyramid;
+        copiedOccupancyPyramid = false;
+        changedLayers = true;
+    }
+
+    /**
+     * Returns the distance field of the current write for updating, which is
+     * a copy of the published one from the first call of the write on, or
+     * null if there is none.
+     */
+    DistanceField getWritableDistanceField() {
+        checkWriter();
+        if (writeDistanceField != null && !copiedDistanceField) {
+            writeDistanceField = writeDistanceField.copyOnWrite();
+            copiedDistanceField = true;
+            changedLayers = true;
+        }
+        return writeDistanceField;
+    }
+
+    /**
+     * Returns the occupancy pyramid of the current write for updating, see
+     * {@link #getWritableDistanceField()}.
+     */
+    OccupancyPyramid getWritableOccupancyPyramid() {
+        checkWriter();
+        if (writeOccupancyPyramid != null && !copiedOccupancyPyramid) {
+            writeOccupancyPyramid = writeOccupancyPyramid.copyOnWrite();
+            copiedOccupancyPyramid = true;
+            changedLayers = true;
+        }
+        return writeOccupancyPyramid;
+    }
+
+    /**
+     * Sets the encoded pixel at (px, py). Only the thread between
+     * {@link #beginWrite()} and {@link #endWrite()} may set pixels, and other
+     * threads don't see them before endWrite.
+     *
+     * @throws IllegalStateException
+     *             if the calling thread isn't writing.
+     */
+    @Override
+    public void set(int px, int py, int pixel) {
+        checkWriter();
+        int tile = tileIndex(px, py);
+        int[] pixels = writeTiles[tile];
+        if (pixels == baseTiles[tile]) {
+            // Readers may still be using the published tile.
+            pixels = pixels.clone();
+            writeTiles[tile] = pixels;
+            copiedTile = true;
+        }
+        pixels[pixelIndex(px, py)] = pixel;
+    }
+
+    /**
+     * Starts a write by the calling thread. Writes may be nested, e.g. to
+     * publish several holes at once, and are published by the outermost
+     * {@link #endWrite()}.
+     *
+     * @throws IllegalStateException
+     *             if another thread is writing.
+     */
+    public void beginWrite() {
+        Thread current = Thread.currentThread();
+        if (writer.get() == current) {
+            writeDepth++;
+            return;
+        }
+        if (!writer.compareAndSet(null, current)) {
+            throw new IllegalStateException("Grid is already written by " + writer.get());
+        }
+        Snapshot base = snapshot;
+        baseTiles = base.tiles;
+        writeTiles = baseTiles.clone();
+        copiedTile = false;
+        writeDistanceField = base.distanceField;
+        writeOccupancyPyramid = base.occupancyPyramid;
+        copiedDistanceField = false;
+        copiedOccupancyPyramid = false;
+        changedLayers = false;
+        writeDepth = 1;
+    }
+
+    /**
+     * Ends a write of the calling thread, and publishes the changed tiles if
+     * it is the outermost one.
+     *
+     * @throws IllegalStateException
+     *             if the calling thread isn't writing.
+     */
+    public void endWrite() {
+        if (writer.get() != Thread.currentThread()) {
+            throw new IllegalStateException("Grid isn't written by this thread");
+        }
+        if (--writeDepth > 0) {
+            return;
+        }
+        if (copiedTile || changedLayers) {
+            snapshot = new Snapshot(writeTiles, snapshot.version + 1, writeDistanceField,
+                    writeOccupancyPyramid);
+        }
+        baseTiles = null;
+        writeTiles = null;
+        writeDistanceField = null;
+        writeOccupancyPyramid = null;
+        writer.set(null);
+    }
+
+    private boolean isWriter() {
+        Thread w = writer.get();
+        return w != null && w == Thread.currentThread();
+    }
+
+    /**
+     * @throws IllegalStateException
+     *             if the calling thread isn't writing.
+     */
+    private void checkWriter() {
+        if (writer.get() != Thread.currentThread()) {
+            throw new IllegalStateException("The grid can only be changed between beginWrite"
+                    + " and endWrite");
+        }
+    }
+
+    private int tileIndex(int px, int py) {
+        return (py >> tileShift) * cols + (px >> tileShift);
+    }
+
+    private int pixelIndex(int px, int py) {
+        return ((py & tileMask) << tileShift) | (px & tileMask);
+    }
+
+    /**
+     * Tiles, the layers published with them and the number of the write that
+     * published them, which have to be read together.
+     */
+    private static final class Snapshot {
+        final int[][] tiles;
+        final long version;
+        final DistanceField distanceField;
+        final OccupancyPyramid occupancyPyramid;
+
+        Snapshot(int[][] tiles, long version, DistanceField distanceField,
+                OccupancyPyramid occupancyPyramid) {
+            this.tiles = tiles;
+            this.version = version;
+            this.distanceField = distanceField;
+            this.occupancyPyramid = occupancyPyramid;
+        }
+    }
+}
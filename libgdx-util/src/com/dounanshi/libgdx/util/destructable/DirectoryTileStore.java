@@ -0,0 +1,148 @@
+package com.dounanshi.libgdx.util.destructable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+import com.badlogic.gdx.utils.StreamUtils;
+
+/**
+ * {@link PagedCollisionGrid.TileStore} that keeps each tile in its own
+ * compressed file in a directory. Tiles without a file are empty, so empty
+ * space in a map takes no files at all.
+ */
+public class DirectoryTileStore implements PagedCollisionGrid.TileStore {
+
+    private static final int FILE_VERSION = 1;
+
+    private static final String TILE_EXTENSION = ".tile";
+
+    private static final int BUFFER_SIZE = 32000;
+
+    private final FileHandle dir;
+    private final int tileWidth;
+    private final int tileHeight;
+
+    public DirectoryTileStore(FileHandle dir, int tileWidth, int tileHeight) {
+        if (tileWidth < 1 || tileHeight < 1) {
+            throw new IllegalArgumentException("Invalid tile size: " + tileWidth + "x"
+                    + tileHeight);
+        }
+        this.dir = dir;
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+    }
+
+    public FileHandle getDirectory() {
+        return dir;
+    }
+
+    @Override
+    public int getTileWidth() {
+        return tileWidth;
+    }
+
+    @Override
+    public int getTileHeight() {
+        return tileHeight;
+    }
+
+    @Override
+    public void readTile(int col, int row, int[] pixels) {
+        FileHandle file = tileFile(col, row);
+        if (!file.exists()) {
+            Arrays.fill(pixels, 0, tileWidth * tileHeight, 0);
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new InflaterInputStream(file.read()),
+                    BUFFER_SIZE));
+            int version = in.readInt();
+            if (version != FILE_VERSION) {
+                throw new GdxRuntimeException("Unsupported tile version: " + version);
+            }
+            int w = in.readInt();
+            int h = in.readInt();
+            if (w != tileWidth || h != tileHeight) {
+                throw new GdxRuntimeException("Tile '" + file + "' is " + w + "x" + h
+                        + " instead of " + tileWidth + "x" + tileHeight);
+            }
+            byte[] bytes = new byte[BUFFER_SIZE];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            int size = tileWidth * tileHeight;
+            int read = 0;
+            while (read < size) {
+                int n = Math.min(bytes.length / 4, size - read);
+                in.readFully(bytes, 0, n * 4);
+                buffer.clear();
+                buffer.asIntBuffer().get(pixels, read, n);
+                read += n;
+            }
+        } catch (IOException e) {
+            throw new GdxRuntimeException("Couldn't read tile from file '" + file + "'", e);
+        } finally {
+            StreamUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Writes the tile to a temporary file first and then moves it into place,
+     * so that a crash never leaves a half written tile. Empty tiles are
+     * deleted instead.
+     */
+    @Override
+    public void writeTile(int col, int row, int[] pixels) {
+        FileHandle file = tileFile(col, row);
+        int size = tileWidth * tileHeight;
+        if (isEmpty(pixels, size)) {
+            file.delete();
+            return;
+        }
+        FileHandle tmpFile = file.sibling(file.name() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(
+                    tmpFile.write(false)), BUFFER_SIZE));
+            out.writeInt(FILE_VERSION);
+            out.writeInt(tileWidth);
+            out.writeInt(tileHeight);
+            byte[] bytes = new byte[BUFFER_SIZE];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            int written = 0;
+            while (written < size) {
+                int n = Math.min(bytes.length / 4, size - written);
+                buffer.clear();
+                buffer.asIntBuffer().put(pixels, written, n);
+                out.write(bytes, 0, n * 4);
+                written += n;
+            }
+        } catch (IOException e) {
+            throw new GdxRuntimeException("Couldn't write tile to file '" + tmpFile + "'", e);
+        } finally {
+            StreamUtils.closeQuietly(out);
+        }
+        tmpFile.moveTo(file);
+    }
+
+    private FileHandle tileFile(int col, int row) {
+        return dir.child(col + "_" + row + TILE_EXTENSION);
+    }
+
+    private static boolean isEmpty(int[] pixels, int size) {
+        for (int i = 0; i < size; i++) {
+            if (pixels[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,508 @@
+package com.dounanshi.libgdx.util.destructable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.utils.Disposable;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+import com.badlogic.gdx.utils.StreamUtils;
+
+/**
+ * Signed distance field companion layer for a {@link CollisionMap}.
+ *
+ * Stores for every pixel the euclidean distance to the nearest pixel of the
+ * other kind: positive for solid pixels (distance to the nearest blank pixel)
+ * and negative for blank pixels (distance to the nearest solid pixel).
+ * Distances are clamped to maxDistance, which also bounds the area that has to
+ * be updated when a hole is added.
+ *
+ * Pixels outside of the map are blank, same as in the {@link CollisionMap}.
+ *
+ * A {@link ConcurrentCollisionGrid} publishes the distance field of its map
+ * with the pixels. Each write then updates a copy that shares the tiles of
+ * distances it doesn't change, and the published field stays as it is.
+ */
+public class DistanceField {
+
+    // Distances are stored as fixed point shorts with this many steps per
+    // pixel.
+    private static final int SCALE = 16;
+
+    // Largest distance that fits in a short.
+    private static final int MAX_MAX_DISTANCE = Short.MAX_VALUE / SCALE;
+
+    private static final int FILE_VERSION = 1;
+
+    private static final int BUFFER_SIZE = 32000;
+
+    private static final int TILE_SHIFT = 6;
+
+    private static final int TILE_MASK = (1 << TILE_SHIFT) - 1;
+
+    private final int width;
+    private final int height;
+    private final int maxDistance;
+
+    // Fixed point distances in square tiles, each in row-major order, with
+    // the origin at the top left (pixmap coordinate system).
+    private final short[][] tiles;
+    private final int tileCols;
+
+    // Whether each tile belongs to this field, or is shared with the field it
+    // was copied from and has to be copied before it changes. Null if every
+    // tile does.
+    private final boolean[] ownedTiles;
+
+    // Scratch space reused between updates.
+    private boolean[] solid;
+    private int[] squaredDistances;
+    private int[] f;
+    private int[] d;
+    private int[] v;
+    private double[] z;
+
+    private DistanceField(int width, int height, int maxDistance) {
+        if (maxDistance < 1 || maxDistance > MAX_MAX_DISTANCE) {
+            throw new IllegalArgumentException("maxDistance must be in [1, " + MAX_MAX_DISTANCE
+                    + "]: " + maxDistance);
+        }
+        this.width = width;
+        this.height = height;
+        this.maxDistance = maxDistance;
+        tileCols = (width + TILE_MASK) >> TILE_SHIFT;
+        tiles = new short[tileCols * ((height + TILE_MASK) >> TILE_SHIFT)][];
+        for (int i = 0; i < tiles.length; i++) {
+            tiles[i] = new short[1 << (2 * TILE_SHIFT)];
+        }
+        ownedTiles = null;
+    }
+
+    private DistanceField(DistanceField distanceField) {
+        width = distanceField.width;
+        height = distanceField.height;
+        maxDistance = distanceField.maxDistance;
+        tileCols = distanceField.tileCols;
+        tiles = distanceField.tiles.clone();
+        ownedTiles = new boolean[tiles.length];
+        // Scratch space is only used by the thread that updates the fields.
+        solid = distanceField.solid;
+        squaredDistances = distanceField.squaredDistances;
+        f = distanceField.f;
+        d = distanceField.d;
+        v = distanceField.v;
+        z = distanceField.z;
+    }
+
+    /**
+     * Computes the distance field of the whole collision map.
+     *
+     * @param maxDistance
+     *            distances are clamped to [-maxDistance, maxDistance] pixels.
+     */
+    public static DistanceField compute(CollisionMap collisionMap, int maxDistance) {
+        int w = collisionMap.getWidth();
+        int h = collisionMap.getHeight();
+        DistanceField distanceField = new DistanceField(w, h, maxDistance);
+        distanceField.update(collisionMap, 0, 0, w, h);
+        // Don't hold on to scratch space the size of the whole map.
+        distanceField.releaseScratch();
+        return distanceField;
+    }
+
+    /**
+     * Reads a distance field written by {@link #write(FileHandle)}.
+     */
+    public static DistanceField read(FileHandle file) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new InflaterInputStream(file.read()),
+                    BUFFER_SIZE));
+            int version = in.readInt();
+            if (version != FILE_VERSION) {
+                throw new GdxRuntimeException("Unsupported distance field version: " + version);
+            }
+            int w = in.readInt();
+            int h = in.readInt();
+            int maxDistance = in.readInt();
+            DistanceField distanceField = new DistanceField(w, h, maxDistance);
+            short[] row = new short[w];
+            byte[] bytes = new byte[w * 2];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            for (int y = 0; y < h; y++) {
+                in.readFully(bytes);
+                buffer.clear();
+                buffer.asShortBuffer().get(row);
+                distanceField.setRow(y, row);
+            }
+            return distanceField;
+        } catch (IOException e) {
+            throw new GdxRuntimeException("Couldn't read distance field from file '" + file
+                    + "'", e);
+        } finally {
+            StreamUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Writes the distance field to a compressed file that can be read with
+     * {@link #read(FileHandle)}.
+     */
+    public void write(FileHandle file) {
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(
+                    file.write(false)), BUFFER_SIZE));
+            out.writeInt(FILE_VERSION);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeInt(maxDistance);
+            short[] row = new short[width];
+            byte[] bytes = new byte[width * 2];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            for (int y = 0; y < height; y++) {
+                getRow(y, row);
+                buffer.clear();
+                buffer.asShortBuffer().put(row);
+                out.write(bytes);
+            }
+        } catch (IOException e) {
+            throw new GdxRuntimeException("Couldn't write distance field to file '" + file
+                    + "'", e);
+        } finally {
+            StreamUtils.closeQuietly(out);
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getMaxDistance() {
+        return maxDistance;
+    }
+
+    /**
+     * Returns the signed distance in pixels at (px, py) in pixmap coordinates.
+     * Positive inside the terrain, negative outside of it.
+     */
+    public float distance(int px, int py) {
+        if (px < 0 || py < 0 || px >= width || py >= height) {
+            return -maxDistance;
+        }
+        return tiles[(py >> TILE_SHIFT) * tileCols + (px >> TILE_SHIFT)][(py & TILE_MASK)
+                << TILE_SHIFT | px & TILE_MASK] / (float) SCALE;
+    }
+
+    /**
+     * Returns a distance field with the same distances that shares the tiles
+     * with this one until {@link #update} changes them, which leaves this one
+     * as it is.
+     */
+    DistanceField copyOnWrite() {
+        return new DistanceField(this);
+    }
+
+    private void set(int px, int py, short distance) {
+        int tile = (py >> TILE_SHIFT) * tileCols + (px >> TILE_SHIFT);
+        short[] distances = tiles[tile];
+        if (ownedTiles != null && !ownedTiles[tile]) {
+            distances = distances.clone();
+            tiles[tile] = distances;
+            ownedTiles[tile] = true;
+        }
+        distances[(py & TILE_MASK) << TILE_SHIFT | px & TILE_MASK] = distance;
+    }
+
+    /**
+     * Copies the distances of row py into row.
+     */
+    private void getRow(int py, short[] row) {
+        for (int x = 0; x < width; x += TILE_MASK + 1) {
+            System.arraycopy(tiles[(py >> TILE_SHIFT) * tileCols + (x >> TILE_SHIFT)],
+                    (py & TILE_MASK) << TILE_SHIFT, row, x, Math.min(TILE_MASK + 1, width - x));
+        }
+    }
+
+    private void setRow(int py, short[] row) {
+        for (int x = 0; x < width; x += TILE_MASK + 1) {
+            System.arraycopy(row, x, tiles[(py >> TILE_SHIFT) * tileCols + (x >> TILE_SHIFT)],
+                    (py & TILE_MASK) << TILE_SHIFT, Math.min(TILE_MASK + 1, width - x));
+        }
+    }
+
+    /**
+     * Updates the distance field after the pixels in [x0, x1) x [y0, y1) in
+     * pixmap coordinates changed in the collision map. Recomputes every
+     * distance those pixels can affect.
+     */
+    void update(CollisionMap collisionMap, int x0, int y0, int x1, int y1) {
+        x0 = Math.max(x0 - maxDistance, 0);
+        y0 = Math.max(y0 - maxDistance, 0);
+        x1 = Math.min(x1 + maxDistance, width);
+        y1 = Math.min(y1 + maxDistance, height);
+        if (x0 >= x1 || y0 >= y1) {
+            return;
+        }
+
+        // Any pixel that can be within maxDistance of the updated pixels,
+        // including one row and column of blank pixels outside of the map.
+        int margin = maxDistance + 1;
+        int sx0 = Math.max(x0 - margin, -1);
+        int sy0 = Math.max(y0 - margin, -1);
+        int sx1 = Math.min(x1 + margin, width + 1);
+        int sy1 = Math.min(y1 + margin, height + 1);
+        int sw = sx1 - sx0;
+        int sh = sy1 - sy0;
+        ensureScratch(sw, sh);
+
+        for (int y = 0; y < sh; y++) {
+            for (int x = 0; x < sw; x++) {
+                solid[y * sw + x] = collisionMap.isSolidPixel(sx0 + x, sy0 + y);
+            }
+        }
+
+        // Pixels further away than the margin are unknown, so treating them as
+        // having no nearby feature only affects distances that get clamped.
+        int inf = (margin + 1) * (margin + 1);
+        int maxSquared = maxDistance * maxDistance;
+
+        // Distances of solid pixels to the nearest blank pixel.
+        squaredDistanceTransform(false, sw, sh, inf);
+        for (int y = y0; y < y1; y++) {
+            for (int x = x0; x < x1; x++) {
+                int s = (y - sy0) * sw + (x - sx0);
+                if (solid[s]) {
+                    set(x, y, toFixed(squaredDistances[s], maxSquared));
+                }
+            }
+        }
+
+        // Distances of blank pixels to the nearest solid pixel.
+        squaredDistanceTransform(true, sw, sh, inf);
+        for (int y = y0; y < y1; y++) {
+            for (int x = x0; x < x1; x++) {
+                int s = (y - sy0) * sw + (x - sx0);
+                if (!solid[s]) {
+                    set(x, y, (short) -toFixed(squaredDistances[s], maxSquared));
+                }
+            }
+        }
+    }
+
+    private short toFixed(int squaredDistance, int maxSquared) {
+        if (squaredDistance >= maxSquared) {
+            return (short) (maxDistance * SCALE);
+        }
+        return (short) Math.round(Math.sqrt(squaredDistance) * SCALE);
+    }
+
+    /**
+     * Fills squaredDistances with the squared euclidean distance of every
+     * scratch pixel to the nearest pixel whose solid value is featureSolid,
+     * capped at inf.
+     *
+     * Uses the separable lower envelope algorithm from Felzenszwalb and
+     * Huttenlocher, "Distance Transforms of Sampled Functions".
+     */
+    private void squaredDistanceTransform(boolean featureSolid, int sw, int sh, int inf) {
+        for (int i = 0; i < sw * sh; i++) {
+            squaredDistances[i] = solid[i] == featureSolid ? 0 : inf;
+        }
+        // Columns.
+        for (int x = 0; x < sw; x++) {
+            for (int y = 0; y < sh; y++) {
+                f[y] = squaredDistances[y * sw + x];
+            }
+            transform1d(sh, inf);
+            for (int y = 0; y < sh; y++) {
+                squaredDistances[y * sw + x] = d[y];
+            }
+        }
+        // Rows.
+        for (int y = 0; y < sh; y++) {
+            System.arraycopy(squaredDistances, y * sw, f, 0, sw);
+            transform1d(sw, inf);
+            System.arraycopy(d, 0, squaredDistances, y * sw, sw);
+        }
+    }
+
+    /**
+     * 1D squared distance transform of f[0, n) into d[0, n).
+     */
+    private void transform1d(int n, int inf) {
+        int k = 0;
+        v[0] = 0;
+        z[0] = Double.NEGATIVE_INFINITY;
+        z[1] = Double.POSITIVE_INFINITY;
+        for (int q = 1; q < n; q++) {
+            double s = intersection(q, v[k]);
+            while (s <= z[k]) {
+                k--;
+                s = intersection(q, v[k]);
+            }
+            k++;
+            v[k] = q;
+            z[k] = s;
+            z[k + 1] = Double.POSITIVE_INFINITY;
+        }
+        k = 0;
+        for (int q = 0; q < n; q++) {
+            while (z[k + 1] < q) {
+                k++;
+            }
+            int dq = q - v[k];
+            d[q] = Math.min(dq * dq + f[v[k]], inf);
+        }
+    }
+
+    /**
+     * Returns the x coordinate where the parabolas rooted at q and p intersect.
+     */
+    private double intersection(int q, int p) {
+        return ((f[q] + (double) q * q) - (f[p] + (double) p * p)) / (2.0 * q - 2.0 * p);
+    }
+
+    private void releaseScratch() {
+        solid = null;
+        squaredDistances = null;
+        f = null;
+        d = null;
+        v = null;
+        z = null;
+    }
+
+    private void ensureScratch(int sw, int sh) {
+        int size = sw * sh;
+        if (solid == null || solid.length < size) {
+            solid = new boolean[size];
+            squaredDistances = new int[size];
+        }
+        int n = Math.max(sw, sh);
+        if (f == null || f.length < n) {
+            f = new int[n];
+            d = new int[n];
+            v = new int[n];
+            z = new double[n + 1];
+        }
+    }
+
+    /**
+     * Writes a distance field file one strip of rows at a time, for collision
+     * maps that are too large to hold in memory at once. The file can be read
+     * with {@link DistanceField#read(FileHandle)}.
+     */
+    public static class Writer implements Disposable {
+
+        private final FileHandle file;
+        private final int width;
+        private final int height;
+        private final int maxDistance;
+        private final DataOutputStream out;
+
+        // Next row to write.
+        private int row;
+
+        public Writer(FileHandle file, int width, int height, int maxDistance) {
+            this.file = file;
+            this.width = width;
+            this.height = height;
+            this.maxDistance = maxDistance;
+            out = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(
+                    file.write(false)), BUFFER_SIZE));
+            try {
+                out.writeInt(FILE_VERSION);
+                out.writeInt(width);
+                out.writeInt(height);
+                out.writeInt(maxDistance);
+            } catch (IOException e) {
+                StreamUtils.closeQuietly(out);
+                throw new GdxRuntimeException("Couldn't write distance field to file '" + file
+                        + "'", e);
+            }
+        }
+
+        /**
+         * Returns the number of rows above and below a strip that the
+         * distances in the strip depend on.
+         */
+        public static int getMargin(int maxDistance) {
+            return maxDistance + 1;
+        }
+
+        /**
+         * Computes and writes the distances of rows [y0, y1), which must come
+         * right after the rows written so far.
+         * 
+         * @param strip
+         *            rows [stripY, stripY + strip.getHeight()) of the whole
+         *            collision map. Must cover {@link #getMargin(int)} rows
+         *            above y0 and below y1, or up to the edge of the map.
+         */
+        public void writeStrip(CollisionMap strip, int stripY, int y0, int y1) {
+            if (y0 != row || y1 < y0 || y1 > height) {
+                throw new IllegalArgumentException("Expected rows from " + row + ": [" + y0
+                        + ", " + y1 + ")");
+            }
+            int margin = getMargin(maxDistance);
+            if (strip.getWidth() != width || stripY > Math.max(y0 - margin, 0)
+                    || stripY + strip.getHeight() < Math.min(y1 + margin, height)) {
+                throw new IllegalArgumentException("Strip does not cover the margin around [" + y0
+                        + ", " + y1 + ")");
+            }
+            int stripHeight = strip.getHeight();
+            DistanceField field = new DistanceField(width, stripHeight, maxDistance);
+            field.update(strip, 0, y0 - stripY, width, y1 - stripY);
+
+            short[] distances = new short[width];
+            byte[] bytes = new byte[width * 2];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            try {
+                for (int y = y0; y < y1; y++) {
+                    field.getRow(y - stripY, distances);
+                    buffer.clear();
+                    buffer.asShortBuffer().put(distances);
+                    out.write(bytes);
+                }
+            } catch (IOException e) {
+                throw new GdxRuntimeException("Couldn't write distance field to file '" + file
+                        + "'", e);
+            }
+            row = y1;
+        }
+
+        /**
+         * Finishes the file. All rows must have been written.
+         */
+        public void close() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                throw new GdxRuntimeException("Couldn't write distance field to file '" + file
+                        + "'", e);
+            }
+            if (row != height) {
+                throw new IllegalStateException("Only " + row + " of " + height
+                        + " rows were written");
+            }
+        }
+
+        /**
+         * Closes the file without checking that it is complete.
+         */
+        @Override
+        public void dispose() {
+            StreamUtils.closeQuietly(out);
+        }
+    }
+}
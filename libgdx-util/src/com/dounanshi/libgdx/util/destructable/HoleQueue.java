@@ -0,0 +1,165 @@
+package com.dounanshi.libgdx.util.destructable;
+
+import com.badlogic.gdx.math.MathUtils;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.FloatArray;
+import com.badlogic.gdx.utils.IntArray;
+
+/**
+ * Collects the holes made during a frame and adds them all at once.
+ *
+ * Adding holes one at a time repairs the normals around each hole, updates
+ * the distance field around each hole and uploads every texture a hole
+ * touches, so a cluster bomb repeats most of that work dozens of times.
+ * {@link #commit()} instead merges holes whose areas overlap into clusters,
+ * repairs the normals and the distance field once per cluster and uploads
+ * each changed texture once. The result is the same as adding the holes one at
+ * a time in the order they were queued.
+ */
+public class HoleQueue {
+
+    private final CollisionMap collisionMap;
+    private final LevelRenderer levelRenderer;
+
+    // Queued holes in level coordinates.
+    private final FloatArray holeX = new FloatArray();
+    private final FloatArray holeY = new FloatArray();
+    private final IntArray holeRadius = new IntArray();
+
+    /**
+     * @param collisionMap
+     *            map to add the holes to, or null.
+     * @param levelRenderer
+     *            renderer to add the holes to, or null.
+     */
+    public HoleQueue(CollisionMap collisionMap, LevelRenderer levelRenderer) {
+        this.collisionMap = collisionMap;
+        this.levelRenderer = levelRenderer;
+    }
+
+    /**
+     * Queues a hole, see {@link CollisionMap#addHole(float, float, int)}.
+     */
+    public void addHole(float levelX, float levelY, int radius) {
+        holeX.add(levelX);
+        holeY.add(levelY);
+        holeRadius.add(radius);
+    }
+
+    /**
+     * Returns the number of queued holes.
+     */
+    public int size() {
+        return holeRadius.size;
+    }
+
+    /**
+     * Adds the queued holes and empties the queue.
+     */
+    public void commit() {
+        if (collisionMap != null) {
+            for (Cluster cluster : clusters()) {
+                commit(cluster);
+            }
+        }
+        if (levelRenderer != null) {
+            for (int i = 0; i < holeRadius.size; i++) {
+                levelRenderer.stampHole(holeX.get(i), holeY.get(i), holeRadius.get(i));
+            }
+            levelRenderer.uploadDirtyRegions();
+        }
+        clear();
+    }
+
+    /**
+     * Drops the queued holes.
+     */
+    public void clear() {
+        holeX.clear();
+        holeY.clear();
+        holeRadius.clear();
+    }
+
+    /**
+     * Groups the holes into clusters whose areas don't overlap. Holes in
+     * different clusters can't affect each other's pixels.
+     */
+    private Array<Cluster> clusters() {
+        int mapHeight = collisionMap.getHeight();
+        Array<Cluster> clusters = new Array<Cluster>();
+        for (int i = 0; i < holeRadius.size; i++) {
+            // Same conversion to pixmap coordinates as addHole.
+            int px = MathUtils.floor(holeX.get(i));
+            int py = mapHeight - MathUtils.floor(holeY.get(i));
+            int reach = holeRadius.get(i) + 2;
+            Cluster cluster = new Cluster(px - reach, py - reach, px + reach + 1, py + reach + 1);
+            cluster.holes.add(i);
+            // Merging can make the cluster overlap others, so keep going until
+            // it overlaps none.
+            boolean merged = true;
+            while (merged) {
+                merged = false;
+                for (int j = 0; j < clusters.size; j++) {
+                    Cluster other = clusters.get(j);
+                    if (cluster.overlaps(other)) {
+                        cluster.merge(other);
+                        clusters.removeIndex(j);
+                        merged = true;
+                        break;
+                    }
+                }
+            }
+            clusters.add(cluster);
+        }
+        return clusters;
+    }
+
+    private void commit(Cluster cluster) {
+        int mapHeight = collisionMap.getHeight();
+        IntArray holes = cluster.holes;
+        // Keep the order the holes were queued in.
+        holes.sort();
+        int[] px = new int[holes.size];
+        int[] py = new int[holes.size];
+        int[] radius = new int[holes.size];
+        for (int i = 0; i < holes.size; i++) {
+            int hole = holes.get(i);
+            px[i] = MathUtils.floor(holeX.get(hole));
+            py[i] = mapHeight - MathUtils.floor(holeY.get(hole));
+            radius[i] = holeRadius.get(hole);
+        }
+        collisionMap.addHoles(px, py, radius, holes.size, cluster.x0, cluster.y0, cluster.x1,
+                cluster.y1);
+    }
+
+    /**
+     * Holes and the pixmap area [x0, x1) x [y0, y1) they can change.
+     */
+    private static class Cluster {
+
+        int x0;
+        int y0;
+        int x1;
+        int y1;
+        final IntArray holes = new IntArray();
+
+        Cluster(int x0, int y0, int x1, int y1) {
+            this.x0 = x0;
+            this.y0 = y0;
+            this.x1 = x1;
+            this.y1 = y1;
+        }
+
+        boolean overlaps(Cluster other) {
+            return x0 < other.x1 && other.x0 < x1 && y0 < other.y1 && other.y0 < y1;
+        }
+
+        void merge(Cluster other) {
+            x0 = Math.min(x0, other.x0);
+            y0 = Math.min(y0, other.y0);
+            x1 = Math.max(x1, other.x1);
+            y1 = Math.max(y1, other.y1);
+            holes.addAll(other.holes);
+        }
+    }
+}
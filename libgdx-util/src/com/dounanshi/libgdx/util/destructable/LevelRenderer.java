@@ -1,84 +1,475 @@
 package com.dounanshi.libgdx.util.destructable;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.badlogic.gdx.files.FileHandle;
 import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.Pixmap.Blending;
+import com.badlogic.gdx.graphics.Pixmap.Format;
 import com.badlogic.gdx.graphics.Texture;
 import com.badlogic.gdx.graphics.Texture.TextureFilter;
 import com.badlogic.gdx.graphics.g2d.Sprite;
 import com.badlogic.gdx.graphics.g2d.SpriteBatch;
-import com.badlogic.gdx.graphics.glutils.PixmapTextureData;
 import com.badlogic.gdx.math.MathUtils;
 import com.badlogic.gdx.math.Rectangle;
 import com.badlogic.gdx.utils.Disposable;
+import com.badlogic.gdx.utils.FloatArray;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+import com.badlogic.gdx.utils.IntArray;
+import com.badlogic.gdx.utils.IntMap;
+import com.dounanshi.libgdx.util.destructable.Metrics.Metric;
 
 public class LevelRenderer implements Disposable {
 
-    // Size of the texture tiles to break the level into.
-    private static final int REGION_W = 512;
-    private static final int REGION_H = 512;
+    // Default size of the texture tiles to break the level into. The regions
+    // on the right and top edges of the level use the smallest power of two
+    // sizes that fit the rest of the level, see regionWidth and regionHeight.
+    static final int DEFAULT_REGION_SIZE = 512;
+
+    // Kinds of regions, see classify.
+    static final int REGION_EMPTY = 0;
+    static final int REGION_UNIFORM = 1;
+    static final int REGION_TEXTURED = 2;
 
+    private final int levelWidth;
+    private final int levelHeight;
+    private final int regionSize;
     private final int numRegionCols;
     private final int numRegionRows;
 
-    // 2d array of map regions with y-up (row 0 is the bottom most row).
+    // Atlas pages, see Layout. The regions of each pageSlots x pageSlots block
+    // of the level have a slot in the page of that block, which is created
+    // when the first of them is loaded. Without pages, pageSlots is 1 and
+    // pages is null.
+    private final int pageSize;
+    private final int pageSlots;
+    private final int numPageCols;
+    private Page[] pages;
+    private int pageCount;
+
+    // 2d array of map regions with y-up (row 0 is the bottom most row). The
+    // sprites of regions whose textures aren't loaded are null.
+    //
+    // Fully transparent regions have neither a pixmap nor a sprite. Regions of
+    // a single color have no pixmap until a hole is made in them, and their
+    // sprites stretch a 1x1 texture of that color shared by all of them.
     private Pixmap[] levelRegionPixmaps;
     private Sprite[] levelRegions;
+    private int[] uniformColors;
+
+    // Number of pixels with nonzero alpha in each region pixmap. Holes only
+    // count the pixels they clear, so regions that become fully transparent
+    // are found without scanning them.
+    private int[] opaquePixels;
+
+    // CPU copies of the mip levels of the region textures, built when the
+    // texture is first loaded or read from a level tile file. Holes only
+    // recompute and upload the texels above them.
+    private MipPyramid[] regionMips;
+    private final IntMap<Texture> uniformTextures = new IntMap<Texture>();
+    private final Format format;
+
+    // Regions added so far. While the level is being built by a
+    // LevelRendererBuilder, holes are kept so that they can be made in the
+    // regions added later.
+    private boolean[] addedRegions;
+    private int addedRegionCount;
+    private final FloatArray pendingHoleX = new FloatArray();
+    private final FloatArray pendingHoleY = new FloatArray();
+    private final IntArray pendingHoleRadius = new IntArray();
+
+    // Streaming: textures are only loaded for regions within margin pixels of
+    // the view, and the least recently viewed ones are unloaded to keep the
+    // texture memory under maxTextureBytes.
+    private final boolean streaming;
+    private final int margin;
+    private final long maxTextureBytes;
+    private long textureBytes;
+    private final IntArray loadedRegionIdxs = new IntArray();
+    private long[] regionLastUsedFrame;
+    private long frame;
+
+    // Regions whose pixmaps changed since their textures were uploaded, and
+    // the changed pixmap rectangle [x0, x1) x [y0, y1) of each as 4 ints.
+    private boolean[] dirtyRegions;
+    private final IntArray dirtyRegionIdxs = new IntArray();
+    private int[] dirtyRects;
+
+    // Bytes uploaded by holes in total, since the last render and during the
+    // frame before.
+    private long uploadedBytes;
+    private long frameUploadedBytes;
+    private long lastFrameUploadedBytes;
+
+    // Regions drawn by the last render, and the texture binds and batch
+    // flushes it took.
+    private int lastFrameDrawnRegions;
+    private int lastFrameTextureBinds;
+    private int lastFrameFlushes;
+
+    // Optional metrics of render and the holes.
+    private Metrics metrics;
 
     /**
-     * Constructor.
+     * Constructor. The textures of the whole level are loaded up front.
      * 
      * @param levelPixmap
      *            {@link Pixmap} image of the level.
      */
     public LevelRenderer(Pixmap levelPixmap) {
+        this(levelPixmap, Layout.DEFAULT);
+    }
+
+    /**
+     * Constructor with the size of the regions and atlas pages. The textures
+     * of the whole level are loaded up front.
+     * 
+     * @param levelPixmap
+     *            {@link Pixmap} image of the level.
+     */
+    public LevelRenderer(Pixmap levelPixmap, Layout layout) {
+        this(levelPixmap, layout, false, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Constructor for streaming the textures. Only the textures of regions
+     * within margin pixels of the view are loaded. When loading a texture
+     * would go over maxTextureBytes, the textures of the regions that have
+     * been out of range the longest are unloaded. The regions in range are
+     * always loaded, even if they don't fit the budget.
+     * 
+     * The whole level stays in memory as pixmaps, so holes in regions whose
+     * textures are unloaded show up when they are loaded again.
+     * 
+     * @param levelPixmap
+     *            {@link Pixmap} image of the level.
+     * @param margin
+     *            distance around the view to load the textures in, so they
+     *            are loaded before they scroll into view.
+     * @param maxTextureBytes
+     *            texture memory budget, including the mipmaps.
+     */
+    public LevelRenderer(Pixmap levelPixmap, int margin, long maxTextureBytes) {
+        this(levelPixmap, Layout.DEFAULT, margin, maxTextureBytes);
+    }
+
+    /**
+     * Same as {@link #LevelRenderer(Pixmap, int, long)} with the size of the
+     * regions. Atlas pages can't be streamed, so the layout must have none.
+     */
+    public LevelRenderer(Pixmap levelPixmap, Layout layout, int margin, long maxTextureBytes) {
+        this(levelPixmap, layout, true, margin, maxTextureBytes);
+    }
+
+    /**
+     * Constructor that loads the regions and their mipmaps from a file written
+     * by {@link LevelTileFile#write(Pixmap, FileHandle)}, instead of slicing
+     * the level image. The textures of the whole level are loaded up front.
+     */
+    public LevelRenderer(FileHandle tileFile) {
+        this(tileFile, 0);
+    }
+
+    /**
+     * Same as {@link #LevelRenderer(FileHandle)}, but packs the regions into
+     * atlas pages of the size, see {@link Layout}. The regions have the size
+     * they were written with.
+     */
+    public LevelRenderer(FileHandle tileFile, int pageSize) {
+        this(LevelTileFile.open(tileFile), pageSize, false, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Same as {@link #LevelRenderer(FileHandle)}, but streams the textures
+     * like {@link #LevelRenderer(Pixmap, int, long)}.
+     */
+    public LevelRenderer(FileHandle tileFile, int margin, long maxTextureBytes) {
+        this(LevelTileFile.open(tileFile), 0, true, margin, maxTextureBytes);
+    }
+
+    private LevelRenderer(LevelTileFile.Reader tiles, int pageSize, boolean streaming,
+            int margin, long maxTextureBytes) {
+        this(tiles.getWidth(), tiles.getHeight(), tiles.getFormat(), new Layout(tiles
+                .getRegionSize(), pageSize), streaming, margin, maxTextureBytes);
+        try {
+            for (int regionIdx = 0; regionIdx < levelRegions.length; regionIdx++) {
+                markAdded(regionIdx);
+                int kind = tiles.getKind(regionIdx);
+                if (kind == REGION_UNIFORM) {
+                    shareTexture(regionIdx, tiles.getColor(regionIdx));
+                } else if (kind == REGION_TEXTURED) {
+                    Pixmap[] levels = tiles.readRegion(regionIdx);
+                    setRegionPixmap(regionIdx, levels[0]);
+                    regionMips[regionIdx] = new MipPyramid(levels);
+                    if (!streaming) {
+                        loadTexture(regionIdx);
+                    }
+                }
+            }
+        } finally {
+            tiles.dispose();
+        }
+    }
+
+    private LevelRenderer(final Pixmap levelPixmap, Layout layout, boolean streaming,
+            int margin, long maxTextureBytes) {
+        this(levelPixmap.getWidth(), levelPixmap.getHeight(), levelPixmap.getFormat(), layout,
+                streaming, margin, maxTextureBytes);
+        // Slice and classify the regions on all cores, and add them in order
+        // on this thread, which loads the textures.
+        int numRegions = levelRegions.length;
+        final int[] kinds = new int[numRegions];
+        ExecutorService executor = LevelRendererBuilder.newWorkerPool(Math.min(Runtime
+                .getRuntime().availableProcessors(), Math.max(numRegions, 1)));
+        List<Future<Pixmap>> slices = new ArrayList<Future<Pixmap>>(numRegions);
+        int regionIdx = 0;
+        try {
+            for (int i = 0; i < numRegions; i++) {
+                final int sliceIdx = i;
+                slices.add(executor.submit(new Callable<Pixmap>() {
+                    @Override
+                    public Pixmap call() {
+                        Pixmap regionPixmap = slice(levelPixmap, sliceIdx);
+                        kinds[sliceIdx] = classify(regionPixmap);
+                        return regionPixmap;
+                    }
+                }));
+            }
+            executor.shutdown();
+            for (; regionIdx < numRegions; regionIdx++) {
+                Pixmap regionPixmap = slices.get(regionIdx).get();
+                addRegion(regionIdx, regionPixmap, kinds[regionIdx]);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw abortSlicing(executor, slices, regionIdx, e);
+        } catch (ExecutionException e) {
+            throw abortSlicing(executor, slices, regionIdx, e.getCause());
+        }
+    }
 
-        int w = levelPixmap.getWidth();
-        int h = levelPixmap.getHeight();
+    /**
+     * Stops slicing after a failure, disposing the regions that were sliced
+     * but not added and everything the renderer holds so far.
+     */
+    private GdxRuntimeException abortSlicing(ExecutorService executor,
+            List<Future<Pixmap>> slices, int addedRegions, Throwable cause) {
+        executor.shutdownNow();
+        for (int i = addedRegions; i < slices.size(); i++) {
+            if (!slices.get(i).cancel(false)) {
+                try {
+                    slices.get(i).get().dispose();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    // Nothing to dispose.
+                }
+            }
+        }
+        dispose();
+        return new GdxRuntimeException("Failed to slice the level regions", cause);
+    }
+
+    /**
+     * Constructs a renderer without any regions, which are added with
+     * {@link #addRegion(int, Pixmap, int)}. See {@link LevelRendererBuilder}.
+     */
+    LevelRenderer(int w, int h, Format format, Layout layout, boolean streaming, int margin,
+            long maxTextureBytes) {
+        if (streaming && layout.pageSize != 0) {
+            throw new IllegalArgumentException("Atlas pages can't be streamed");
+        }
+        this.streaming = streaming;
+        this.margin = margin;
+        this.maxTextureBytes = maxTextureBytes;
+        this.format = format;
+        this.levelWidth = w;
+        this.levelHeight = h;
+        this.regionSize = layout.regionSize;
+        this.pageSize = layout.pageSize;
 
         // Break the level into texture tiles.
-        numRegionCols = MathUtils.ceil(((float) w) / REGION_W);
-        numRegionRows = MathUtils.ceil(((float) h) / REGION_H);
+        numRegionCols = MathUtils.ceil(((float) w) / regionSize);
+        numRegionRows = MathUtils.ceil(((float) h) / regionSize);
         int numRegions = numRegionCols * numRegionRows;
+        pageSlots = pageSize == 0 ? 1 : pageSize / regionSize;
+        numPageCols = (numRegionCols + pageSlots - 1) / pageSlots;
+        if (pageSize != 0) {
+            pages = new Page[numPageCols * ((numRegionRows + pageSlots - 1) / pageSlots)];
+        }
         levelRegionPixmaps = new Pixmap[numRegions];
         levelRegions = new Sprite[numRegions];
+        dirtyRegions = new boolean[numRegions];
+        dirtyRects = new int[numRegions * 4];
+        regionLastUsedFrame = new long[numRegions];
+        uniformColors = new int[numRegions];
+        opaquePixels = new int[numRegions];
+        regionMips = new MipPyramid[numRegions];
+        addedRegions = new boolean[numRegions];
+    }
 
-        // Since the textures are POT dimensions, there will be some unused
-        // pixels
-        // in the x and y directions. Due to the y-up coord system, we must make
-        // sure these pixels are at the top for the camera to show the map
-        // properly.
-        // (without showing the unfilled pixels).
-        for (int r = 0; r < numRegionRows; r++) {
-            int spriteY = r * REGION_H;
-            // The y-coord in the source to draw from.
-            int pixmapY = h - spriteY - REGION_H;
-            // The start y-coord in the target to draw to.
-            int yOffset = 0;
-            // The number of rows of pixels to copy over from the source pixmap.
-            int pixmapHeight = REGION_H;
-            if (pixmapY < 0) {
-                yOffset = -pixmapY;
-                pixmapHeight += pixmapY;
-                pixmapY = 0;
-            }
-
-            for (int c = 0; c < numRegionCols; c++) {
-                int pixmapX = c * REGION_W;
-                // OpenGL has y-coordinates going up, so row 0 is the bottom of
-                // the map.
-                Pixmap regionPixmap = new Pixmap(REGION_W, REGION_H, levelPixmap.getFormat());
-                regionPixmap.drawPixmap(levelPixmap, 0, yOffset, pixmapX, pixmapY, REGION_W,
-                        pixmapHeight);
-
-                Sprite regionSprite = new Sprite(new Texture(regionPixmap, true));
-                regionSprite.getTexture().setFilter(TextureFilter.MipMapNearestLinear,
-                        TextureFilter.MipMapNearestLinear);
-                regionSprite.setPosition(pixmapX, spriteY);
+    /**
+     * Copies the pixels of a region out of the level. Only reads the level
+     * pixmap, so regions can be sliced on several threads at once.
+     */
+    Pixmap slice(Pixmap levelPixmap, int regionIdx) {
+        return slice(levelPixmap, numRegionCols, regionSize, regionIdx);
+    }
 
-                int regionIdx = regionIdx(r, c);
-                levelRegionPixmaps[regionIdx] = regionPixmap;
-                levelRegions[regionIdx] = regionSprite;
+    /**
+     * Copies the pixels of a region out of a level that is cols regions of
+     * regionSize wide.
+     * The rows are copied straight between the pixel buffers, which unlike
+     * {@link Pixmap#drawPixmap} doesn't depend on the global blending.
+     */
+    static Pixmap slice(Pixmap levelPixmap, int cols, int regionSize, int regionIdx) {
+        int r = regionIdx / cols;
+        int c = regionIdx % cols;
+        int levelW = levelPixmap.getWidth();
+        int levelH = levelPixmap.getHeight();
+        int width = regionWidth(levelW, regionSize, c);
+        int height = regionHeight(levelH, regionSize, r);
+        // The part of the level in the region.
+        int copyW = Math.min(regionSize, levelW - c * regionSize);
+        int copyH = Math.min(regionSize, levelH - r * regionSize);
+
+        // Since the textures are POT dimensions, there may be some unused
+        // pixels in the x and y directions. Due to the y-up coord system, we
+        // must make sure these pixels are at the top for the camera to show
+        // the map properly (without showing the unfilled pixels). OpenGL has
+        // y-coordinates going up, so row 0 is the bottom of the map.
+        Pixmap regionPixmap = new Pixmap(width, height, levelPixmap.getFormat());
+        // Duplicates, so that other threads can slice the same level.
+        ByteBuffer src = levelPixmap.getPixels().duplicate();
+        ByteBuffer dst = regionPixmap.getPixels().duplicate();
+        int bytesPerPixel = src.capacity() / (levelW * levelH);
+        int srcX = c * regionSize;
+        // The rows of the level and the region pixmap to copy from and to.
+        int srcY = levelH - r * regionSize - copyH;
+        int dstY = height - copyH;
+        for (int y = 0; y < copyH; y++) {
+            int srcPos = ((srcY + y) * levelW + srcX) * bytesPerPixel;
+            src.limit(srcPos + copyW * bytesPerPixel);
+            src.position(srcPos);
+            dst.position((dstY + y) * width * bytesPerPixel);
+            dst.put(src);
+        }
+        return regionPixmap;
+    }
+
+    /**
+     * Returns the width of the pixmaps of the regions in column c of a level,
+     * the smallest power of two that fits the part of the level in them.
+     */
+    static int regionWidth(int levelWidth, int regionSize, int c) {
+        return MathUtils.nextPowerOfTwo(Math.min(regionSize, levelWidth - c * regionSize));
+    }
+
+    /**
+     * Returns the height of the pixmaps of the regions in row r of a level,
+     * see {@link #regionWidth(int, int, int)}.
+     */
+    static int regionHeight(int levelHeight, int regionSize, int r) {
+        return MathUtils.nextPowerOfTwo(Math.min(regionSize, levelHeight - r * regionSize));
+    }
+
+    /**
+     * Returns whether the region pixmap is {@link #REGION_EMPTY},
+     * {@link #REGION_UNIFORM} or {@link #REGION_TEXTURED}. Can be called on
+     * any thread.
+     */
+    static int classify(Pixmap regionPixmap) {
+        if (isTransparent(regionPixmap)) {
+            return REGION_EMPTY;
+        }
+        return isUniform(regionPixmap) ? REGION_UNIFORM : REGION_TEXTURED;
+    }
+
+    /**
+     * Adds a region sliced with {@link #slice(Pixmap, int)}, making the holes
+     * made so far in it, and loads its texture unless streaming. The renderer
+     * takes over the pixmap.
+     */
+    void addRegion(int regionIdx, Pixmap regionPixmap, int kind) {
+        markAdded(regionIdx);
+        boolean holes = false;
+        for (int i = 0; i < pendingHoleRadius.size; i++) {
+            int lx = MathUtils.floor(pendingHoleX.get(i));
+            int ly = MathUtils.floor(pendingHoleY.get(i));
+            int radius = pendingHoleRadius.get(i);
+            if (touches(regionIdx, lx, ly, radius)) {
+                fillHole(regionIdx, regionPixmap, lx, ly, radius);
+                holes = true;
             }
         }
+        if (holes) {
+            kind = classify(regionPixmap);
+        }
+        if (addedRegionCount == addedRegions.length) {
+            pendingHoleX.clear();
+            pendingHoleY.clear();
+            pendingHoleRadius.clear();
+        }
+
+        if (kind == REGION_EMPTY) {
+            regionPixmap.dispose();
+        } else if (kind == REGION_UNIFORM) {
+            shareTexture(regionIdx, regionPixmap.getPixel(0, 0));
+            regionPixmap.dispose();
+        } else {
+            setRegionPixmap(regionIdx, regionPixmap);
+            if (!streaming) {
+                loadTexture(regionIdx);
+            }
+        }
+    }
+
+    private void setRegionPixmap(int regionIdx, Pixmap regionPixmap) {
+        levelRegionPixmaps[regionIdx] = regionPixmap;
+        opaquePixels[regionIdx] = countOpaque(regionPixmap, 0, 0, regionPixmap.getWidth(),
+                regionPixmap.getHeight());
+    }
+
+    private void markAdded(int regionIdx) {
+        if (addedRegions[regionIdx]) {
+            throw new IllegalStateException("Region already added: " + regionIdx);
+        }
+        addedRegions[regionIdx] = true;
+        addedRegionCount++;
+    }
+
+    /**
+     * Returns whether all regions have been added.
+     */
+    boolean isBuilt() {
+        return addedRegionCount == addedRegions.length;
+    }
+
+    /**
+     * Returns whether all regions in the view have been added.
+     */
+    boolean isBuilt(Rectangle view) {
+        int startR = Math.max(MathUtils.floor(view.y / regionSize), 0);
+        int startC = Math.max(MathUtils.floor(view.x / regionSize), 0);
+        int endR = Math.min(MathUtils.floor((view.y + view.height) / regionSize),
+                numRegionRows - 1);
+        int endC = Math.min(MathUtils.floor((view.x + view.width) / regionSize),
+                numRegionCols - 1);
+        for (int r = startR; r <= endR; r++) {
+            for (int c = startC; c <= endC; c++) {
+                if (!addedRegions[regionIdx(r, c)]) {
+                    return false;
+                }
+            }
+        }
+        return true;
     }
 
     /**
@@ -90,78 +481,926 @@ public class LevelRenderer implements Disposable {
      *            visible part of the level.
      */
     public void render(SpriteBatch spriteBatch, Rectangle view) {
-        int startR = (int) view.y / REGION_H;
+        Metrics metrics = this.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
+        lastFrameUploadedBytes = frameUploadedBytes;
+        frameUploadedBytes = 0;
+        if (streaming) {
+            updateTextures(view);
+        }
+
+        int startR = (int) view.y / regionSize;
         if (startR < 0) {
             startR = 0;
         }
-        int startC = (int) view.x / REGION_W;
+        int startC = (int) view.x / regionSize;
         if (startC < 0) {
             startC = 0;
         }
-        int endR = (int) (view.y + view.height) / REGION_H;
+        int endR = (int) (view.y + view.height) / regionSize;
         if (endR >= numRegionRows) {
             endR = numRegionRows - 1;
         }
-        int endC = (int) (view.x + view.width) / REGION_W;
+        int endC = (int) (view.x + view.width) / regionSize;
         if (endC >= numRegionCols) {
             endC = numRegionCols - 1;
         }
+        int drawnRegions = 0;
+        int textureBinds = 0;
+        int renderCalls = spriteBatch.totalRenderCalls;
+        Texture lastTexture = null;
+        // One page block after the other, so that the regions of a page are
+        // drawn without switching textures. Regions don't overlap, so the
+        // order doesn't matter otherwise.
+        for (int blockR = startR / pageSlots; blockR <= endR / pageSlots; blockR++) {
+            int blockEndR = Math.min(endR, blockR * pageSlots + pageSlots - 1);
+            for (int blockC = startC / pageSlots; blockC <= endC / pageSlots; blockC++) {
+                int blockEndC = Math.min(endC, blockC * pageSlots + pageSlots - 1);
+                for (int r = Math.max(startR, blockR * pageSlots); r <= blockEndR; r++) {
+                    for (int c = Math.max(startC, blockC * pageSlots); c <= blockEndC; c++) {
+                        Sprite regionSprite = levelRegions[regionIdx(r, c)];
+                        if (regionSprite != null) {
+                            regionSprite.draw(spriteBatch);
+                            drawnRegions++;
+                            // The batch binds the texture when it changes.
+                            if (regionSprite.getTexture() != lastTexture) {
+                                lastTexture = regionSprite.getTexture();
+                                textureBinds++;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        lastFrameDrawnRegions = drawnRegions;
+        lastFrameTextureBinds = textureBinds;
+        // The last regions are drawn by the flush after render.
+        lastFrameFlushes = spriteBatch.totalRenderCalls - renderCalls + (drawnRegions > 0 ? 1 : 0);
+        if (metrics != null) {
+            metrics.record(Metric.RENDER, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Loads the textures of the regions within the margin around the view,
+     * unloading the least recently used ones to stay within the budget.
+     */
+    void updateTextures(Rectangle view) {
+        frame++;
+        int startR = Math.max(MathUtils.floor((view.y - margin) / regionSize), 0);
+        int startC = Math.max(MathUtils.floor((view.x - margin) / regionSize), 0);
+        int endR = Math.min(MathUtils.floor((view.y + view.height + margin) / regionSize),
+                numRegionRows - 1);
+        int endC = Math.min(MathUtils.floor((view.x + view.width + margin) / regionSize),
+                numRegionCols - 1);
+        // Mark all regions in range first, so that none of them are unloaded
+        // to make room for the others.
         for (int r = startR; r <= endR; r++) {
             for (int c = startC; c <= endC; c++) {
-                levelRegions[regionIdx(r, c)].draw(spriteBatch);
+                regionLastUsedFrame[regionIdx(r, c)] = frame;
+            }
+        }
+        for (int r = startR; r <= endR; r++) {
+            for (int c = startC; c <= endC; c++) {
+                int regionIdx = regionIdx(r, c);
+                if (levelRegions[regionIdx] == null && levelRegionPixmaps[regionIdx] != null) {
+                    unloadTextures(maxTextureBytes - regionTextureBytes(regionIdx));
+                    loadTexture(regionIdx);
+                }
             }
         }
     }
 
+    /**
+     * Unloads the least recently used textures of regions out of range until
+     * at most maxBytes are loaded.
+     */
+    private void unloadTextures(long maxBytes) {
+        while (textureBytes > maxBytes) {
+            int oldest = -1;
+            for (int i = 0; i < loadedRegionIdxs.size; i++) {
+                int regionIdx = loadedRegionIdxs.get(i);
+                if (regionLastUsedFrame[regionIdx] < frame
+                        && (oldest < 0 || regionLastUsedFrame[regionIdx]
+                                < regionLastUsedFrame[loadedRegionIdxs.get(oldest)])) {
+                    oldest = i;
+                }
+            }
+            if (oldest < 0) {
+                // Everything loaded is in range.
+                return;
+            }
+            unloadTexture(loadedRegionIdxs.removeIndex(oldest));
+        }
+    }
+
+    private void loadTexture(int regionIdx) {
+        int r = regionIdx / numRegionCols;
+        int c = regionIdx % numRegionCols;
+        if (regionMips[regionIdx] == null) {
+            regionMips[regionIdx] = new MipPyramid(levelRegionPixmaps[regionIdx]);
+        }
+        MipPyramid mips = regionMips[regionIdx];
+        Sprite regionSprite;
+        if (pages != null) {
+            Page page = acquirePage(regionIdx);
+            Pixmap regionPixmap = mips.getLevel(0);
+            SubImageUploader.upload(page.texture, slotLevels(page, mips), 0,
+                    page.firstTailLevel, slotX(regionIdx), slotY(regionIdx), 0, 0, regionPixmap
+                            .getWidth(), regionPixmap.getHeight());
+            setTailColor(page, regionIdx, smallestLevelColor(mips));
+            regionSprite = new Sprite(page.texture, slotX(regionIdx), slotY(regionIdx),
+                    regionPixmap.getWidth(), regionPixmap.getHeight());
+        } else {
+            Texture texture = new Texture(new MipMapTextureData(mips.getLevels()));
+            texture.setFilter(TextureFilter.MipMapNearestLinear,
+                    TextureFilter.MipMapNearestLinear);
+            regionSprite = new Sprite(texture);
+            textureBytes += regionTextureBytes(regionIdx);
+        }
+        regionSprite.setPosition(c * regionSize, r * regionSize);
+        levelRegions[regionIdx] = regionSprite;
+        loadedRegionIdxs.add(regionIdx);
+    }
+
+    private void unloadTexture(int regionIdx) {
+        if (pages != null) {
+            releasePage(regionIdx);
+        } else {
+            levelRegions[regionIdx].getTexture().dispose();
+            textureBytes -= regionTextureBytes(regionIdx);
+        }
+        levelRegions[regionIdx] = null;
+    }
+
+    /**
+     * Makes the region draw the shared texture of the color instead of a
+     * texture of its own. With atlas pages, the color is drawn into the slot
+     * of the region instead, which the page has room for anyway, so that the
+     * regions of a page are drawn without switching textures.
+     */
+    private void shareTexture(int regionIdx, int color) {
+        int r = regionIdx / numRegionCols;
+        int c = regionIdx % numRegionCols;
+        int width = regionWidth(levelWidth, regionSize, c);
+        int height = regionHeight(levelHeight, regionSize, r);
+        Sprite regionSprite;
+        if (pages != null) {
+            Page page = acquirePage(regionIdx);
+            Pixmap pixmap = new Pixmap(width, height, format);
+            pixmap.setColor(color);
+            pixmap.fill();
+            // Every level of a single color is part of the pixmap.
+            Pixmap[] levels = new Pixmap[page.firstTailLevel];
+            Arrays.fill(levels, pixmap);
+            SubImageUploader.upload(page.texture, levels, 0, levels.length, slotX(regionIdx),
+                    slotY(regionIdx), 0, 0, width, height);
+            pixmap.dispose();
+            setTailColor(page, regionIdx, color);
+            regionSprite = new Sprite(page.texture, slotX(regionIdx), slotY(regionIdx), width,
+                    height);
+            regionSprite.setPosition(c * regionSize, r * regionSize);
+        } else {
+            Texture texture = uniformTextures.get(color);
+            if (texture == null) {
+                Pixmap pixmap = new Pixmap(1, 1, format);
+                pixmap.setColor(color);
+                pixmap.fill();
+                texture = new Texture(pixmap);
+                pixmap.dispose();
+                uniformTextures.put(color, texture);
+                textureBytes += 4;
+            }
+            regionSprite = new Sprite(texture);
+            regionSprite.setBounds(c * regionSize, r * regionSize, width, height);
+        }
+        levelRegions[regionIdx] = regionSprite;
+        uniformColors[regionIdx] = color;
+    }
+
+    /**
+     * Gives a region that shares a uniform texture a pixmap of its own, so
+     * that holes can be made in it. Its texture is loaded with the next upload
+     * or, when streaming, when it's in range.
+     */
+    private Pixmap unshareTexture(int regionIdx) {
+        Pixmap regionPixmap = new Pixmap(regionWidth(levelWidth, regionSize, regionIdx
+                % numRegionCols), regionHeight(levelHeight, regionSize, regionIdx
+                / numRegionCols), format);
+        regionPixmap.setColor(uniformColors[regionIdx]);
+        regionPixmap.fill();
+        setRegionPixmap(regionIdx, regionPixmap);
+        if (pages != null) {
+            releasePage(regionIdx);
+        }
+        levelRegions[regionIdx] = null;
+        return regionPixmap;
+    }
+
+    /**
+     * Drops the pixmap and texture of a region that became fully transparent.
+     */
+    private void dropRegion(int regionIdx) {
+        if (levelRegions[regionIdx] != null) {
+            loadedRegionIdxs.removeValue(regionIdx);
+            unloadTexture(regionIdx);
+        }
+        disposeMips(regionIdx);
+        levelRegionPixmaps[regionIdx].dispose();
+        levelRegionPixmaps[regionIdx] = null;
+    }
+
+    private void disposeMips(int regionIdx) {
+        if (regionMips[regionIdx] != null) {
+            regionMips[regionIdx].dispose();
+            regionMips[regionIdx] = null;
+        }
+    }
+
+    /**
+     * Returns the size of the texture of the region including its mipmaps,
+     * which add a third.
+     */
+    private long regionTextureBytes(int regionIdx) {
+        return levelRegionPixmaps[regionIdx].getPixels().capacity() * 4L / 3;
+    }
+
+    /**
+     * Returns the page of the block of the region, creating it for the first
+     * region of the block, and counts the region as drawn from it.
+     */
+    private Page acquirePage(int regionIdx) {
+        int pageIdx = pageIdx(regionIdx);
+        Page page = pages[pageIdx];
+        if (page == null) {
+            // Edge blocks have fewer regions and smaller pages.
+            int slotCols = Math.min(pageSlots, numRegionCols - pageIdx % numPageCols * pageSlots);
+            int slotRows = Math.min(pageSlots, numRegionRows - pageIdx / numPageCols
+                    * pageSlots);
+            page = new Page(MathUtils.nextPowerOfTwo(slotCols), MathUtils.nextPowerOfTwo(
+                    slotRows), regionSize, format);
+            pages[pageIdx] = page;
+            pageCount++;
+            textureBytes += page.bytes;
+        }
+        page.regionCount++;
+        return page;
+    }
+
+    /**
+     * Stops counting the region as drawn from its page, disposing the page
+     * when no region is left.
+     */
+    private void releasePage(int regionIdx) {
+        int pageIdx = pageIdx(regionIdx);
+        Page page = pages[pageIdx];
+        if (--page.regionCount == 0) {
+            textureBytes -= page.bytes;
+            page.dispose();
+            pages[pageIdx] = null;
+            pageCount--;
+        } else {
+            setTailColor(page, regionIdx, 0);
+        }
+    }
+
+    /**
+     * Sets the color of the slot of the region in the mip levels of the page
+     * where the slots are a texel or less, and uploads the texels above it.
+     */
+    private void setTailColor(Page page, int regionIdx, int color) {
+        // Flipped like the slot rows, see slotY.
+        int x = regionIdx % numRegionCols % pageSlots;
+        int y = page.slotRows - 1 - regionIdx / numRegionCols % pageSlots;
+        Blending blending = Pixmap.getBlending();
+        Pixmap.setBlending(Blending.None);
+        try {
+            page.tail.getLevel(0).drawPixel(x, y, color);
+        } finally {
+            Pixmap.setBlending(blending);
+        }
+        page.tail.update(x, y, x + 1, y + 1);
+        SubImageUploader.upload(page.texture, page.tail.getLevels(), page.firstTailLevel,
+                page.tail.getLevelCount(), 0, 0, x, y, x + 1, y + 1);
+    }
+
+    /**
+     * Returns the levels of the region for its slot, down to the level above
+     * the tail of the page. Regions at the edges of the level can be smaller
+     * than a slot in both directions, and run out of levels before that; the
+     * 1x1 level stands in for the ones below, so that the texel of the region
+     * in them has its color instead of staying transparent.
+     */
+    private static Pixmap[] slotLevels(Page page, MipPyramid mips) {
+        if (mips.getLevelCount() >= page.firstTailLevel) {
+            return mips.getLevels();
+        }
+        Pixmap[] levels = Arrays.copyOf(mips.getLevels(), page.firstTailLevel);
+        Arrays.fill(levels, mips.getLevelCount(), levels.length, mips.getLevel(mips
+                .getLevelCount() - 1));
+        return levels;
+    }
+
+    /**
+     * Returns the color of the 1x1 level of the pyramid.
+     */
+    private static int smallestLevelColor(MipPyramid mips) {
+        return mips.getLevel(mips.getLevelCount() - 1).getPixel(0, 0);
+    }
+
+    private int pageIdx(int regionIdx) {
+        return regionIdx / numRegionCols / pageSlots * numPageCols + regionIdx % numRegionCols
+                / pageSlots;
+    }
+
+    /**
+     * Returns the x-coordinate of the slot of the region in its page.
+     */
+    private int slotX(int regionIdx) {
+        return regionIdx % numRegionCols % pageSlots * regionSize;
+    }
+
+    /**
+     * Returns the y-coordinate of the pixmap of the region in its page, down
+     * from the top like pixmap coordinates. The page has to exist.
+     *
+     * Region rows go up the level while pixmap rows go down, so the slot rows
+     * are flipped, and a pixmap shorter than its slot sits at the bottom of
+     * it: the regions next to each other in the level are then next to each
+     * other in the page too, and filtering across a seam blends pixels that
+     * are neighbors in the level.
+     */
+    private int slotY(int regionIdx) {
+        int r = regionIdx / numRegionCols;
+        int slotRow = pages[pageIdx(regionIdx)].slotRows - 1 - r % pageSlots;
+        return (slotRow + 1) * regionSize - regionHeight(levelHeight, regionSize, r);
+    }
+
     /**
      * Creates a hole in the level (makes that area transparent).
      */
     public void addHole(float levelX, float levelY, int radius) {
-        int lx = (int) levelX;
-        int ly = (int) levelY;
-        int startR = (ly - radius) / REGION_H;
+        Metrics metrics = this.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
+        stampHole(levelX, levelY, radius);
+        uploadDirtyRegions();
+        if (metrics != null) {
+            metrics.record(Metric.RENDERER_ADD_HOLE, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Makes the hole transparent in the region pixmaps without uploading the
+     * textures, so that several holes can share one upload. See
+     * {@link HoleQueue}.
+     */
+    void stampHole(float levelX, float levelY, int radius) {
+        Metrics metrics = this.metrics;
+        if (!isBuilt()) {
+            pendingHoleX.add(levelX);
+            pendingHoleY.add(levelY);
+            pendingHoleRadius.add(radius);
+        }
+        int lx = MathUtils.floor(levelX);
+        int ly = MathUtils.floor(levelY);
+        int startR = (ly - radius) / regionSize;
         if (startR < 0) {
             startR = 0;
         }
-        int startC = (lx - radius) / REGION_W;
+        int startC = (lx - radius) / regionSize;
         if (startC < 0) {
             startC = 0;
         }
-        int endR = (ly + radius) / REGION_H;
+        int endR = (ly + radius) / regionSize;
         if (endR >= numRegionRows) {
             endR = numRegionRows - 1;
         }
-        int endC = (lx + radius) / REGION_W;
+        int endC = (lx + radius) / regionSize;
         if (endC >= numRegionCols) {
             endC = numRegionCols - 1;
         }
         for (int r = startR; r <= endR; r++) {
             for (int c = startC; c <= endC; c++) {
                 int regionIdx = regionIdx(r, c);
+                if (!addedRegions[regionIdx]) {
+                    // Made when the region is added.
+                    continue;
+                }
                 Pixmap regionPixmap = levelRegionPixmaps[regionIdx];
-                int regionOffsetX = c * REGION_W;
-                int regionOffsetY = r * REGION_H;
-                int px = lx - regionOffsetX;
-                int py = regionPixmap.getHeight() - (ly - regionOffsetY);
-                regionPixmap.setColor(0);
-                regionPixmap.fillCircle(px, py, radius);
-                Texture regionTexture = levelRegions[regionIdx].getTexture();
-                regionTexture.load(new PixmapTextureData(regionPixmap, null, true, false));
+                if (regionPixmap == null) {
+                    if (levelRegions[regionIdx] == null) {
+                        // Already fully transparent.
+                        continue;
+                    }
+                    regionPixmap = unshareTexture(regionIdx);
+                }
+                opaquePixels[regionIdx] -= fillHole(regionIdx, regionPixmap, lx, ly, radius);
+                if (metrics != null) {
+                    metrics.record(Metric.RENDERER_HOLE_PIXELS, holePixels(regionPixmap, lx
+                            - c * regionSize, regionPixmap.getHeight() - (ly - r * regionSize),
+                            radius));
+                }
+                int px = lx - c * regionSize;
+                int py = regionPixmap.getHeight() - (ly - r * regionSize);
+                markDirty(regionIdx, px - radius, py - radius, px + radius + 1, py + radius + 1);
+            }
+        }
+    }
+
+    /**
+     * Makes the part of the hole at level pixel (lx, ly) that is in the region
+     * transparent in its pixmap, and returns the number of pixels that had a
+     * nonzero alpha before.
+     */
+    private int fillHole(int regionIdx, Pixmap regionPixmap, int lx, int ly, int radius) {
+        int px = lx - regionIdx % numRegionCols * regionSize;
+        int py = regionPixmap.getHeight() - (ly - regionIdx / numRegionCols * regionSize);
+        int opaque = countOpaque(regionPixmap, px - radius, py - radius, px + radius + 1, py
+                + radius + 1);
+        regionPixmap.setColor(0);
+        regionPixmap.fillCircle(px, py, radius);
+        return opaque - countOpaque(regionPixmap, px - radius, py - radius, px + radius + 1, py
+                + radius + 1);
+    }
+
+    /**
+     * Returns the number of pixels of the pixmap within the square around the
+     * hole at (px, py).
+     */
+    private static int holePixels(Pixmap pixmap, int px, int py, int radius) {
+        int w = Math.min(px + radius + 1, pixmap.getWidth()) - Math.max(px - radius, 0);
+        int h = Math.min(py + radius + 1, pixmap.getHeight()) - Math.max(py - radius, 0);
+        return w > 0 && h > 0 ? w * h : 0;
+    }
+
+    /**
+     * Returns whether stampHole makes the hole in the region.
+     */
+    private boolean touches(int regionIdx, int lx, int ly, int radius) {
+        int r = regionIdx / numRegionCols;
+        int c = regionIdx % numRegionCols;
+        return Math.max((ly - radius) / regionSize, 0) <= r && r <= (ly + radius) / regionSize
+                && Math.max((lx - radius) / regionSize, 0) <= c && c <= (lx + radius) / regionSize;
+    }
+
+    /**
+     * Adds the pixmap rectangle [x0, x1) x [y0, y1) to the changed part of
+     * the region.
+     */
+    private void markDirty(int regionIdx, int x0, int y0, int x1, int y1) {
+        int i = regionIdx * 4;
+        if (!dirtyRegions[regionIdx]) {
+            dirtyRegions[regionIdx] = true;
+            dirtyRegionIdxs.add(regionIdx);
+            dirtyRects[i] = x0;
+            dirtyRects[i + 1] = y0;
+            dirtyRects[i + 2] = x1;
+            dirtyRects[i + 3] = y1;
+        } else {
+            dirtyRects[i] = Math.min(dirtyRects[i], x0);
+            dirtyRects[i + 1] = Math.min(dirtyRects[i + 1], y0);
+            dirtyRects[i + 2] = Math.max(dirtyRects[i + 2], x1);
+            dirtyRects[i + 3] = Math.max(dirtyRects[i + 3], y1);
+        }
+    }
+
+    /**
+     * Updates the mip levels and uploads the parts of the region textures
+     * changed by {@link #stampHole(float, float, int)}, and drops the regions
+     * that became fully transparent.
+     */
+    void uploadDirtyRegions() {
+        Metrics metrics = this.metrics;
+        if (metrics == null) {
+            uploadDirtyRegions(null);
+            return;
+        }
+        long start = System.nanoTime();
+        uploadDirtyRegions(metrics);
+        metrics.record(Metric.UPLOAD, System.nanoTime() - start);
+    }
+
+    private void uploadDirtyRegions(Metrics metrics) {
+        for (int i = 0; i < dirtyRegionIdxs.size; i++) {
+            int regionIdx = dirtyRegionIdxs.get(i);
+            dirtyRegions[regionIdx] = false;
+            if (opaquePixels[regionIdx] == 0) {
+                dropRegion(regionIdx);
+                continue;
+            }
+            int rect = regionIdx * 4;
+            MipPyramid mips = regionMips[regionIdx];
+            if (mips != null) {
+                // Kept up to date while the texture is unloaded too.
+                mips.update(dirtyRects[rect], dirtyRects[rect + 1], dirtyRects[rect + 2],
+                        dirtyRects[rect + 3]);
+            }
+            Sprite regionSprite = levelRegions[regionIdx];
+            if (regionSprite != null) {
+                long bytes;
+                if (pages != null) {
+                    // The slot of the region in its page, and the color of
+                    // the slot in the levels below.
+                    Page page = pages[pageIdx(regionIdx)];
+                    bytes = SubImageUploader.upload(page.texture, slotLevels(page, mips), 0,
+                            page.firstTailLevel, slotX(regionIdx), slotY(regionIdx),
+                            dirtyRects[rect], dirtyRects[rect + 1], dirtyRects[rect + 2],
+                            dirtyRects[rect + 3]);
+                    setTailColor(page, regionIdx, smallestLevelColor(mips));
+                } else {
+                    bytes = SubImageUploader.upload(regionSprite.getTexture(), mips.getLevels(),
+                            0, mips.getLevelCount(), 0, 0, dirtyRects[rect], dirtyRects[rect + 1],
+                            dirtyRects[rect + 2], dirtyRects[rect + 3]);
+                }
+                uploadedBytes += bytes;
+                frameUploadedBytes += bytes;
+                if (metrics != null) {
+                    metrics.record(Metric.UPLOADED_BYTES, bytes);
+                }
+            } else if (!streaming) {
+                // Was a uniform region.
+                loadTexture(regionIdx);
+            }
+            // Otherwise the holes are uploaded with the rest of the pixmap
+            // when the texture is loaded.
+        }
+        dirtyRegionIdxs.clear();
+    }
+
+    /**
+     * Returns the size of the loaded textures including their mipmaps.
+     */
+    public long getTextureBytes() {
+        return textureBytes;
+    }
+
+    /**
+     * Returns the number of regions whose own textures are loaded.
+     */
+    public int getLoadedRegionCount() {
+        return loadedRegionIdxs.size;
+    }
+
+    /**
+     * Returns the number of regions the level is broken into.
+     */
+    public int getRegionCount() {
+        return levelRegions.length;
+    }
+
+    /**
+     * Returns the number of fully transparent regions, which take no memory
+     * and are never drawn.
+     */
+    public int getEmptyRegionCount() {
+        int count = 0;
+        for (int i = 0; i < levelRegions.length; i++) {
+            if (addedRegions[i] && levelRegionPixmaps[i] == null && levelRegions[i] == null) {
+                count++;
             }
         }
+        return count;
+    }
+
+    /**
+     * Returns the number of single color regions, which draw a texture shared
+     * with the other regions of that color.
+     */
+    public int getUniformRegionCount() {
+        int count = 0;
+        for (int i = 0; i < levelRegions.length; i++) {
+            if (levelRegionPixmaps[i] == null && levelRegions[i] != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the size of the region pixmaps and their mip levels kept in
+     * memory.
+     */
+    public long getPixmapBytes() {
+        long bytes = 0;
+        for (int i = 0; i < levelRegionPixmaps.length; i++) {
+            if (regionMips[i] != null) {
+                for (Pixmap level : regionMips[i].getLevels()) {
+                    bytes += level.getPixels().capacity();
+                }
+            } else if (levelRegionPixmaps[i] != null) {
+                bytes += levelRegionPixmaps[i].getPixels().capacity();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the size of the region pixmaps outside the level, which the
+     * power of two sizes need. Mip levels are not included.
+     */
+    public long getPaddingBytes() {
+        long bytes = 0;
+        for (int i = 0; i < levelRegionPixmaps.length; i++) {
+            Pixmap regionPixmap = levelRegionPixmaps[i];
+            if (regionPixmap != null) {
+                int c = i % numRegionCols;
+                int r = i / numRegionCols;
+                long levelPixels = (long) Math.min(regionSize, levelWidth - c * regionSize)
+                        * Math.min(regionSize, levelHeight - r * regionSize);
+                int capacity = regionPixmap.getPixels().capacity();
+                bytes += capacity - levelPixels * capacity / (regionPixmap.getWidth()
+                        * regionPixmap.getHeight());
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns how much more the region pixmaps would take if the regions on
+     * the edges of the level were as big as the others, i.e. the padding
+     * saved by their smaller sizes. Mip levels are not included.
+     */
+    public long getSavedPaddingBytes() {
+        long bytes = 0;
+        for (int i = 0; i < levelRegionPixmaps.length; i++) {
+            Pixmap regionPixmap = levelRegionPixmaps[i];
+            if (regionPixmap != null) {
+                int capacity = regionPixmap.getPixels().capacity();
+                bytes += (long) regionSize * regionSize * capacity / (regionPixmap.getWidth()
+                        * regionPixmap.getHeight()) - capacity;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the number of regions drawn by the last
+     * {@link #render(SpriteBatch, Rectangle)}.
+     */
+    public int getLastFrameDrawnRegions() {
+        return lastFrameDrawnRegions;
+    }
+
+    /**
+     * Returns the number of times the last
+     * {@link #render(SpriteBatch, Rectangle)} switched textures, each of which
+     * makes the batch flush and bind the new texture.
+     */
+    public int getLastFrameTextureBinds() {
+        return lastFrameTextureBinds;
+    }
+
+    /**
+     * Returns the number of batch flushes, i.e. draw calls, that drawing the
+     * level took during the last {@link #render(SpriteBatch, Rectangle)}.
+     * Includes flushing what was drawn to the batch before the level and the
+     * flush after render that draws the last regions.
+     */
+    public int getLastFrameFlushes() {
+        return lastFrameFlushes;
+    }
+
+    /**
+     * Records the calls and timings of render and the holes, and the work the
+     * holes take, in the metrics.
+     * 
+     * @param metrics
+     *            metrics to record to, or null to stop recording.
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the number of atlas pages, see {@link Layout}.
+     */
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    /**
+     * Returns the number of texture bytes uploaded by holes since the
+     * renderer was created.
+     */
+    public long getUploadedBytes() {
+        return uploadedBytes;
+    }
+
+    /**
+     * Returns the number of texture bytes uploaded by holes between the last
+     * two calls to {@link #render(SpriteBatch, Rectangle)}, i.e. during the
+     * last frame.
+     */
+    public long getLastFrameUploadedBytes() {
+        return lastFrameUploadedBytes;
     }
 
     @Override
     public void dispose() {
-        for (Sprite sprite : levelRegions) {
-            sprite.getTexture().dispose();
+        if (pages != null) {
+            for (int i = 0; i < pages.length; i++) {
+                if (pages[i] != null) {
+                    pages[i].dispose();
+                    pages[i] = null;
+                }
+            }
+            pageCount = 0;
+        } else {
+            for (int i = 0; i < loadedRegionIdxs.size; i++) {
+                levelRegions[loadedRegionIdxs.get(i)].getTexture().dispose();
+            }
+        }
+        loadedRegionIdxs.clear();
+        for (Texture texture : uniformTextures.values()) {
+            texture.dispose();
+        }
+        uniformTextures.clear();
+        for (int i = 0; i < levelRegionPixmaps.length; i++) {
+            if (levelRegionPixmaps[i] != null) {
+                disposeMips(i);
+                levelRegionPixmaps[i].dispose();
+            }
         }
     }
 
+    /**
+     * Returns whether every pixel of the pixmap has zero alpha.
+     */
+    private static boolean isTransparent(Pixmap pixmap) {
+        if (pixmap.getFormat() == Format.RGBA8888) {
+            ByteBuffer pixels = pixmap.getPixels();
+            for (int i = 3; i < pixels.capacity(); i += 4) {
+                if (pixels.get(i) != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        for (int y = 0; y < pixmap.getHeight(); y++) {
+            for (int x = 0; x < pixmap.getWidth(); x++) {
+                if ((pixmap.getPixel(x, y) & 0xff) != 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of pixels with nonzero alpha in the part of the
+     * rectangle [x0, x1) x [y0, y1) that is in the pixmap.
+     */
+    private static int countOpaque(Pixmap pixmap, int x0, int y0, int x1, int y1) {
+        int w = pixmap.getWidth();
+        x0 = Math.max(x0, 0);
+        y0 = Math.max(y0, 0);
+        x1 = Math.min(x1, w);
+        y1 = Math.min(y1, pixmap.getHeight());
+        int count = 0;
+        if (pixmap.getFormat() == Format.RGBA8888) {
+            ByteBuffer pixels = pixmap.getPixels();
+            for (int y = y0; y < y1; y++) {
+                for (int i = (y * w + x0) * 4 + 3, end = (y * w + x1) * 4; i < end; i += 4) {
+                    if (pixels.get(i) != 0) {
+                        count++;
+                    }
+                }
+            }
+            return count;
+        }
+        for (int y = y0; y < y1; y++) {
+            for (int x = x0; x < x1; x++) {
+                if ((pixmap.getPixel(x, y) & 0xff) != 0) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns whether every pixel of the pixmap has the same color.
+     */
+    private static boolean isUniform(Pixmap pixmap) {
+        if (pixmap.getFormat() == Format.RGBA8888) {
+            ByteBuffer pixels = pixmap.getPixels();
+            int color = pixels.getInt(0);
+            for (int i = 4; i < pixels.capacity(); i += 4) {
+                if (pixels.getInt(i) != color) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        int color = pixmap.getPixel(0, 0);
+        for (int y = 0; y < pixmap.getHeight(); y++) {
+            for (int x = 0; x < pixmap.getWidth(); x++) {
+                if (pixmap.getPixel(x, y) != color) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the level x-coordinate of the center of the region.
+     */
+    float getRegionCenterX(int regionIdx) {
+        return (regionIdx % numRegionCols + 0.5f) * regionSize;
+    }
+
+    /**
+     * Returns the level y-coordinate of the center of the region.
+     */
+    float getRegionCenterY(int regionIdx) {
+        return (regionIdx / numRegionCols + 0.5f) * regionSize;
+    }
+
     /**
      * Returns the index into the levelRegions array for the region at (r, c).
      */
     private int regionIdx(int r, int c) {
         return r * numRegionCols + c;
     }
+
+    /**
+     * Sizes of the regions a level is cut into and of the texture atlas pages
+     * they're packed into.
+     *
+     * Without pages, every region has a texture of its own and a zoomed out
+     * view switches textures, flushing the batch, for nearly every region.
+     * With pages, the regions of each block of pageSize / regionSize regions
+     * square are drawn from the same page.
+     */
+    public static class Layout {
+
+        /**
+         * 512x512 regions without atlas pages.
+         */
+        public static final Layout DEFAULT = new Layout(DEFAULT_REGION_SIZE, 0);
+
+        public final int regionSize;
+        public final int pageSize;
+
+        /**
+         * @param regionSize
+         *            width and height of the regions, a power of two.
+         * @param pageSize
+         *            width and height of the atlas pages, a power of two at
+         *            least regionSize, or 0 for a texture per region.
+         */
+        public Layout(int regionSize, int pageSize) {
+            if (regionSize < 1 || !MathUtils.isPowerOfTwo(regionSize)) {
+                throw new IllegalArgumentException("Invalid region size: " + regionSize);
+            }
+            if (pageSize != 0 && (pageSize < regionSize || !MathUtils.isPowerOfTwo(pageSize))) {
+                throw new IllegalArgumentException("Invalid page size: " + pageSize);
+            }
+            this.regionSize = regionSize;
+            this.pageSize = pageSize;
+        }
+    }
+
+    /**
+     * Atlas page texture with a slot of regionSize square per region.
+     *
+     * The mip levels of each region go into its slot, down to the level where
+     * the slots are a texel. The levels from there on are made from the color
+     * of each slot, kept in the tail pyramid, whose level 0 has a pixel per
+     * slot.
+     */
+    private static class Page implements Disposable {
+
+        final Texture texture;
+        final MipPyramid tail;
+        final int slotRows;
+        final int firstTailLevel;
+        final long bytes;
+        int regionCount;
+
+        Page(int slotCols, int slotRows, int regionSize, Format format) {
+            Pixmap tailPixmap = new Pixmap(slotCols, slotRows, format);
+            tail = new MipPyramid(tailPixmap);
+            this.slotRows = slotRows;
+            firstTailLevel = MipPyramid.levelCount(regionSize, regionSize) - 1;
+            texture = new Texture(new MipMapTextureData(slotCols * regionSize, slotRows
+                    * regionSize, format));
+            texture.setFilter(TextureFilter.MipMapNearestLinear,
+                    TextureFilter.MipMapNearestLinear);
+            bytes = (long) slotCols * slotRows * regionSize * regionSize
+                    * (tailPixmap.getPixels().capacity() / (slotCols * slotRows)) * 4 / 3;
+        }
+
+        @Override
+        public void dispose() {
+            texture.dispose();
+            tail.dispose();
+            tail.getLevel(0).dispose();
+        }
+    }
 }
@@ -0,0 +1,273 @@
+package com.dounanshi.libgdx.util.destructable;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.math.Rectangle;
+import com.badlogic.gdx.utils.Disposable;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+
+/**
+ * Builds a {@link LevelRenderer} over several frames, so that loading a large
+ * level doesn't freeze the loading screen.
+ *
+ * The region pixmaps are cut out of the level on a pool of worker threads,
+ * nearest to the initial view first. Each call to {@link #update()} adds the
+ * regions that are ready to the renderer and uploads their textures, until
+ * the time budget for the frame is used up. The renderer can be used right
+ * away: regions that haven't been added yet are not drawn, and holes made in
+ * them are made when they are added. {@link #isReady(Rectangle)} tells when
+ * the regions in view are there.
+ *
+ * The level pixmap must not be changed or disposed until the builder is done
+ * or disposed.
+ */
+public class LevelRendererBuilder implements Disposable {
+
+    private static final long DEFAULT_BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(4);
+
+    private final LevelRenderer renderer;
+    private final int regionCount;
+    private final ExecutorService executor;
+
+    // Regions cut out by the workers, waiting to be added on the GL thread.
+    private final ConcurrentLinkedQueue<Slice> slices = new ConcurrentLinkedQueue<Slice>();
+    private volatile Throwable failure;
+
+    private long budgetNanos = DEFAULT_BUDGET_NANOS;
+    private int addedRegionCount;
+
+    /**
+     * Starts building a renderer that loads the textures of the whole level,
+     * like {@link LevelRenderer#LevelRenderer(Pixmap)}.
+     *
+     * @param view
+     *            initial view, whose regions are built first. May be null.
+     * @param threads
+     *            number of worker threads.
+     */
+    public LevelRendererBuilder(Pixmap levelPixmap, Rectangle view, int threads) {
+        this(levelPixmap, view, threads, LevelRenderer.Layout.DEFAULT);
+    }
+
+    /**
+     * Same as {@link #LevelRendererBuilder(Pixmap, Rectangle, int)}, like
+     * {@link LevelRenderer#LevelRenderer(Pixmap, LevelRenderer.Layout)}.
+     */
+    public LevelRendererBuilder(Pixmap levelPixmap, Rectangle view, int threads,
+            LevelRenderer.Layout layout) {
+        this(new LevelRenderer(levelPixmap.getWidth(), levelPixmap.getHeight(),
+                levelPixmap.getFormat(), layout, false, 0, Long.MAX_VALUE), levelPixmap, view,
+                threads);
+    }
+
+    /**
+     * Starts building a renderer that streams the textures, like
+     * {@link LevelRenderer#LevelRenderer(Pixmap, int, long)}. Textures are
+     * then loaded by {@link LevelRenderer#render} rather than by
+     * {@link #update()}.
+     *
+     * @param view
+     *            initial view, whose regions are built first. May be null.
+     * @param threads
+     *            number of worker threads.
+     */
+    public LevelRendererBuilder(Pixmap levelPixmap, Rectangle view, int threads, int margin,
+            long maxTextureBytes) {
+        this(levelPixmap, view, threads, LevelRenderer.Layout.DEFAULT, margin, maxTextureBytes);
+    }
+
+    /**
+     * Same as {@link #LevelRendererBuilder(Pixmap, Rectangle, int, int, long)},
+     * like {@link LevelRenderer#LevelRenderer(Pixmap, LevelRenderer.Layout, int, long)}.
+     */
+    public LevelRendererBuilder(Pixmap levelPixmap, Rectangle view, int threads,
+            LevelRenderer.Layout layout, int margin, long maxTextureBytes) {
+        this(new LevelRenderer(levelPixmap.getWidth(), levelPixmap.getHeight(),
+                levelPixmap.getFormat(), layout, true, margin, maxTextureBytes), levelPixmap,
+                view, threads);
+    }
+
+    private LevelRendererBuilder(final LevelRenderer renderer, final Pixmap levelPixmap,
+            Rectangle view, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Invalid thread count: " + threads);
+        }
+        this.renderer = renderer;
+        this.regionCount = renderer.getRegionCount();
+        this.executor = newWorkerPool(threads);
+        for (final int regionIdx : buildOrder(view)) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (failure != null) {
+                        return;
+                    }
+                    try {
+                        Pixmap regionPixmap = renderer.slice(levelPixmap, regionIdx);
+                        slices.add(new Slice(regionIdx, regionPixmap,
+                                LevelRenderer.classify(regionPixmap)));
+                    } catch (Throwable t) {
+                        failure = t;
+                    }
+                }
+            });
+        }
+        // The workers stop once all regions are sliced.
+        executor.shutdown();
+    }
+
+    /**
+     * Returns a pool of daemon threads for slicing regions, which doesn't keep
+     * the application alive if it isn't shut down.
+     */
+    static ExecutorService newWorkerPool(int threads) {
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "LevelRendererBuilder");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Returns the region indices sorted by the distance of their centers to
+     * the center of the view.
+     */
+    private Integer[] buildOrder(Rectangle view) {
+        Integer[] order = new Integer[regionCount];
+        for (int i = 0; i < regionCount; i++) {
+            order[i] = i;
+        }
+        if (view != null) {
+            final float viewX = view.x + view.width / 2;
+            final float viewY = view.y + view.height / 2;
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return Float.compare(distance2(a), distance2(b));
+                }
+
+                private float distance2(int regionIdx) {
+                    float dx = renderer.getRegionCenterX(regionIdx) - viewX;
+                    float dy = renderer.getRegionCenterY(regionIdx) - viewY;
+                    return dx * dx + dy * dy;
+                }
+            });
+        }
+        return order;
+    }
+
+    /**
+     * Returns the renderer being built. It only draws the regions added so
+     * far.
+     */
+    public LevelRenderer getRenderer() {
+        return renderer;
+    }
+
+    /**
+     * Sets how long each {@link #update()} may spend adding regions. At least
+     * one ready region is added per update.
+     */
+    public void setBudgetMillis(float budgetMillis) {
+        this.budgetNanos = (long) (budgetMillis * 1000000);
+    }
+
+    public float getBudgetMillis() {
+        return budgetNanos / 1000000f;
+    }
+
+    /**
+     * Adds the regions that the workers have cut out to the renderer, within
+     * the time budget. Call once per frame on the GL thread.
+     *
+     * @return whether the renderer is complete.
+     */
+    public boolean update() {
+        if (failure != null) {
+            throw new GdxRuntimeException("Failed to build the level regions", failure);
+        }
+        long deadline = System.nanoTime() + budgetNanos;
+        Slice slice;
+        while ((slice = slices.poll()) != null) {
+            renderer.addRegion(slice.regionIdx, slice.pixmap, slice.kind);
+            addedRegionCount++;
+            if (System.nanoTime() - deadline >= 0) {
+                break;
+            }
+        }
+        return isDone();
+    }
+
+    /**
+     * Returns the fraction of the regions that have been added, from 0 to 1.
+     */
+    public float getProgress() {
+        return regionCount == 0 ? 1 : (float) addedRegionCount / regionCount;
+    }
+
+    public int getAddedRegionCount() {
+        return addedRegionCount;
+    }
+
+    public int getRegionCount() {
+        return regionCount;
+    }
+
+    public boolean isDone() {
+        return addedRegionCount == regionCount;
+    }
+
+    /**
+     * Returns whether all regions in the view have been added, so that it can
+     * be rendered.
+     */
+    public boolean isReady(Rectangle view) {
+        return renderer.isBuilt(view);
+    }
+
+    /**
+     * Stops the workers and frees the regions that weren't added. Doesn't
+     * dispose the renderer, which stays without the regions that weren't
+     * added.
+     */
+    @Override
+    public void dispose() {
+        executor.shutdownNow();
+        try {
+            // Slicing a region is quick, so this doesn't wait long.
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Slice slice;
+        while ((slice = slices.poll()) != null) {
+            slice.pixmap.dispose();
+        }
+    }
+
+    /**
+     * Region pixmap cut out by a worker.
+     */
+    private static class Slice {
+
+        final int regionIdx;
+        final Pixmap pixmap;
+        final int kind;
+
+        Slice(int regionIdx, Pixmap pixmap, int kind) {
+            this.regionIdx = regionIdx;
+            this.pixmap = pixmap;
+            this.kind = kind;
+        }
+    }
+}
@@ -0,0 +1,430 @@
+package com.dounanshi.libgdx.util.destructable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.badlogic.gdx.Files.FileType;
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.Pixmap.Blending;
+import com.badlogic.gdx.graphics.Pixmap.Format;
+import com.badlogic.gdx.math.MathUtils;
+import com.badlogic.gdx.utils.Disposable;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+import com.badlogic.gdx.utils.StreamUtils;
+
+/**
+ * Level image cut into the regions of a {@link LevelRenderer}, with the
+ * mipmaps of each region, so that the renderer can be loaded without decoding
+ * the level image, slicing it or generating mipmaps. See
+ * {@link LevelRenderer#LevelRenderer(FileHandle)}.
+ *
+ * Fully transparent regions and regions of a single color are only stored in
+ * the index, like the renderer keeps them.
+ *
+ * Layout, all little endian:
+ *
+ * <pre>
+ * header     magic "LTIL", version, level width, level height, region width,
+ *            region height, pixmap format, mip levels of a full region,
+ *            region count, compression (ints), index offset (long)
+ * regions    pixels of each mip level of each textured region, from level 0
+ *            down to 1x1, in pixmap format and row order. The regions on the
+ *            right and top edges are smaller, like the renderer's
+ * index      kind, color (ints), offset (long) and length (int) in bytes of
+ *            each region
+ * </pre>
+ */
+public class LevelTileFile {
+
+    public static final int COMPRESSION_NONE = 0;
+
+    /**
+     * Each region is deflated on its own with {@link Deflater#BEST_SPEED}.
+     */
+    public static final int COMPRESSION_DEFLATE = 1;
+
+    private static final int MAGIC = 'L' | 'T' << 8 | 'I' << 16 | 'L' << 24;
+
+    // Version 2: smaller regions on the right and top edges.
+    private static final int FILE_VERSION = 2;
+
+    private static final int HEADER_SIZE = 48;
+
+    private static final int INDEX_ENTRY_SIZE = 20;
+
+    private LevelTileFile() {
+    }
+
+    /**
+     * Writes the regions of the level to a deflated file.
+     */
+    public static void write(Pixmap levelPixmap, FileHandle file) {
+        write(levelPixmap, file, COMPRESSION_DEFLATE);
+    }
+
+    /**
+     * Writes the regions of the level to a file.
+     *
+     * @param compression
+     *            {@link #COMPRESSION_NONE} or {@link #COMPRESSION_DEFLATE}.
+     */
+    public static void write(Pixmap levelPixmap, FileHandle file, int compression) {
+        write(levelPixmap, file, LevelRenderer.DEFAULT_REGION_SIZE, compression);
+    }
+
+    /**
+     * Writes the regions of the level to a file.
+     *
+     * @param regionSize
+     *            size of the regions, see {@link LevelRenderer.Layout}.
+     * @param compression
+     *            {@link #COMPRESSION_NONE} or {@link #COMPRESSION_DEFLATE}.
+     */
+    public static void write(Pixmap levelPixmap, FileHandle file, int regionSize,
+            int compression) {
+        if (regionSize < 1 || !MathUtils.isPowerOfTwo(regionSize)) {
+            throw new IllegalArgumentException("Invalid region size: " + regionSize);
+        }
+        if (compression != COMPRESSION_NONE && compression != COMPRESSION_DEFLATE) {
+            throw new IllegalArgumentException("Unknown compression: " + compression);
+        }
+        if (file.type() == FileType.Classpath || file.type() == FileType.Internal) {
+            throw new GdxRuntimeException("Cannot write to a " + file.type() + " file: " + file);
+        }
+        int w = levelPixmap.getWidth();
+        int h = levelPixmap.getHeight();
+        int cols = (w + regionSize - 1) / regionSize;
+        int rows = (h + regionSize - 1) / regionSize;
+        int regionCount = cols * rows;
+        int mipLevels = MipPyramid.levelCount(regionSize, regionSize);
+
+        RandomAccessFile raf = null;
+        Deflater deflater = compression == COMPRESSION_DEFLATE ? new Deflater(
+                Deflater.BEST_SPEED) : null;
+        Blending blending = Pixmap.getBlending();
+        Pixmap.setBlending(Blending.None);
+        try {
+            file.parent().mkdirs();
+            raf = new RandomAccessFile(file.file(), "rw");
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(FILE_VERSION).putInt(w).putInt(h);
+            header.putInt(regionSize).putInt(regionSize);
+            header.putInt(Format.toGdx2DPixmapFormat(levelPixmap.getFormat()));
+            header.putInt(mipLevels).putInt(regionCount).putInt(compression);
+            // The index offset is filled in when the regions are written.
+            header.putLong(0);
+            header.flip();
+            writeFully(channel, header);
+
+            ByteBuffer index = ByteBuffer.allocate(regionCount * INDEX_ENTRY_SIZE).order(
+                    ByteOrder.LITTLE_ENDIAN);
+            byte[] compressed = new byte[0];
+            for (int regionIdx = 0; regionIdx < regionCount; regionIdx++) {
+                Pixmap regionPixmap = LevelRenderer.slice(levelPixmap, cols, regionSize,
+                        regionIdx);
+                try {
+                    int kind = LevelRenderer.classify(regionPixmap);
+                    int color = kind == LevelRenderer.REGION_UNIFORM ? regionPixmap.getPixel(0, 0)
+                            : 0;
+                    long offset = channel.position();
+                    int length = 0;
+                    if (kind == LevelRenderer.REGION_TEXTURED) {
+                        byte[] raw = mipBytes(regionPixmap);
+                        length = raw.length;
+                        if (deflater != null) {
+                            deflater.reset();
+                            deflater.setInput(raw);
+                            deflater.finish();
+                            length = 0;
+                            while (!deflater.finished()) {
+                                if (length == compressed.length) {
+                                    byte[] larger = new byte[Math.max(compressed.length * 2,
+                                            raw.length / 2)];
+                                    System.arraycopy(compressed, 0, larger, 0, length);
+                                    compressed = larger;
+                                }
+                                length += deflater.deflate(compressed, length, compressed.length
+                                        - length);
+                            }
+                            writeFully(channel, ByteBuffer.wrap(compressed, 0, length));
+                        } else {
+                            writeFully(channel, ByteBuffer.wrap(raw));
+                        }
+                    }
+                    index.putInt(kind).putInt(color).putLong(offset).putInt(length);
+                } finally {
+                    regionPixmap.dispose();
+                }
+            }
+
+            long indexOffset = channel.position();
+            index.flip();
+            writeFully(channel, index);
+            ByteBuffer offset = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            offset.putLong(indexOffset).flip();
+            channel.position(HEADER_SIZE - 8);
+            writeFully(channel, offset);
+        } catch (IOException e) {
+            throw new GdxRuntimeException("Couldn't write level tiles to file '" + file + "'", e);
+        } finally {
+            Pixmap.setBlending(blending);
+            StreamUtils.closeQuietly(raf);
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Returns the bytes of all mip levels of the region pixmap, level 0
+     * first.
+     */
+    private static byte[] mipBytes(Pixmap regionPixmap) {
+        MipPyramid pyramid = new MipPyramid(regionPixmap);
+        try {
+            int size = 0;
+            for (Pixmap level : pyramid.getLevels()) {
+                size += level.getPixels().capacity();
+            }
+            ByteBuffer bytes = ByteBuffer.allocate(size);
+            for (Pixmap level : pyramid.getLevels()) {
+                ByteBuffer pixels = level.getPixels().duplicate();
+                pixels.clear();
+                bytes.put(pixels);
+            }
+            return bytes.array();
+        } finally {
+            pyramid.dispose();
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Opens a file written by {@link #write(Pixmap, FileHandle)}. Files on
+     * disk are memory mapped, other files are read into memory.
+     */
+    static Reader open(FileHandle file) {
+        File osFile = file.type() != FileType.Classpath ? file.file() : null;
+        ByteBuffer buffer;
+        if (osFile == null || !osFile.isFile()) {
+            // Not a file on disk, e.g. an asset inside an apk or jar.
+            buffer = ByteBuffer.wrap(file.readBytes());
+        } else {
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(osFile, "r");
+                FileChannel channel = raf.getChannel();
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new GdxRuntimeException("Level tile file is too large: " + file);
+                }
+                // The mapping stays valid after the channel is closed.
+                buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+            } catch (IOException e) {
+                throw new GdxRuntimeException("Couldn't read level tiles from file '" + file
+                        + "'", e);
+            } finally {
+                StreamUtils.closeQuietly(raf);
+            }
+        }
+        return new Reader(file, buffer.order(ByteOrder.LITTLE_ENDIAN));
+    }
+
+    /**
+     * Regions of an opened level tile file.
+     */
+    static class Reader implements Disposable {
+
+        private final FileHandle file;
+        private final ByteBuffer buffer;
+        private final int width;
+        private final int height;
+        private final Format format;
+        private final int regionSize;
+        private final int cols;
+        private final int regionCount;
+        private final int compression;
+        private final long indexOffset;
+        private Inflater inflater;
+
+        Reader(FileHandle file, ByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+            if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+                throw new GdxRuntimeException("Not a level tile file: " + file);
+            }
+            int version = buffer.getInt(4);
+            if (version != FILE_VERSION) {
+                throw new GdxRuntimeException("Unsupported level tile file version: " + version);
+            }
+            width = buffer.getInt(8);
+            height = buffer.getInt(12);
+            int regionWidth = buffer.getInt(16);
+            int regionHeight = buffer.getInt(20);
+            if (regionWidth != regionHeight || regionWidth < 1
+                    || !MathUtils.isPowerOfTwo(regionWidth)) {
+                throw new GdxRuntimeException("Unsupported level tile size: " + regionWidth + "x"
+                        + regionHeight);
+            }
+            regionSize = regionWidth;
+            try {
+                format = Format.fromGdx2DPixmapFormat(buffer.getInt(24));
+            } catch (GdxRuntimeException e) {
+                throw new GdxRuntimeException("Corrupt level tile file: " + file, e);
+            }
+            int mipLevels = buffer.getInt(28);
+            regionCount = buffer.getInt(32);
+            compression = buffer.getInt(36);
+            indexOffset = buffer.getLong(40);
+            if (compression != COMPRESSION_NONE && compression != COMPRESSION_DEFLATE) {
+                throw new GdxRuntimeException("Unsupported level tile compression: "
+                        + compression);
+            }
+            cols = (width + regionWidth - 1) / regionWidth;
+            int rows = (height + regionHeight - 1) / regionHeight;
+            if (width < 0 || height < 0
+                    || mipLevels != MipPyramid.levelCount(regionWidth, regionHeight)
+                    || regionCount != cols * rows || indexOffset < HEADER_SIZE
+                    || indexOffset + (long) regionCount * INDEX_ENTRY_SIZE > buffer.capacity()) {
+                throw new GdxRuntimeException("Corrupt or incomplete level tile file: " + file);
+            }
+            for (int i = 0; i < regionCount; i++) {
+                long offset = regionOffset(i);
+                int length = regionLength(i);
+                if (offset < HEADER_SIZE || length < 0 || offset + length > indexOffset) {
+                    throw new GdxRuntimeException("Corrupt level tile index: " + file);
+                }
+            }
+        }
+
+        int getWidth() {
+            return width;
+        }
+
+        int getHeight() {
+            return height;
+        }
+
+        Format getFormat() {
+            return format;
+        }
+
+        int getRegionSize() {
+            return regionSize;
+        }
+
+        /**
+         * Returns the kind of the region as returned by
+         * {@link LevelRenderer#classify(Pixmap)}.
+         */
+        int getKind(int regionIdx) {
+            return buffer.getInt(entry(regionIdx));
+        }
+
+        /**
+         * Returns the color of a {@link LevelRenderer#REGION_UNIFORM} region.
+         */
+        int getColor(int regionIdx) {
+            return buffer.getInt(entry(regionIdx) + 4);
+        }
+
+        private long regionOffset(int regionIdx) {
+            return buffer.getLong(entry(regionIdx) + 8);
+        }
+
+        private int regionLength(int regionIdx) {
+            return buffer.getInt(entry(regionIdx) + 16);
+        }
+
+        private int entry(int regionIdx) {
+            return (int) indexOffset + regionIdx * INDEX_ENTRY_SIZE;
+        }
+
+        /**
+         * Returns new pixmaps of the mip levels of a
+         * {@link LevelRenderer#REGION_TEXTURED} region, level 0 first.
+         */
+        Pixmap[] readRegion(int regionIdx) {
+            int regionWidth = LevelRenderer.regionWidth(width, regionSize, regionIdx % cols);
+            int regionHeight = LevelRenderer.regionHeight(height, regionSize, regionIdx / cols);
+            Pixmap[] levels = new Pixmap[MipPyramid.levelCount(regionWidth, regionHeight)];
+            int size = 0;
+            for (int level = 0; level < levels.length; level++) {
+                levels[level] = new Pixmap(Math.max(regionWidth >> level, 1), Math.max(
+                        regionHeight >> level, 1), format);
+                size += levels[level].getPixels().capacity();
+            }
+            ByteBuffer src = buffer.duplicate();
+            src.position((int) regionOffset(regionIdx));
+            src.limit(src.position() + regionLength(regionIdx));
+            try {
+                if (compression == COMPRESSION_DEFLATE) {
+                    byte[] compressed = new byte[src.remaining()];
+                    src.get(compressed);
+                    byte[] raw = new byte[size];
+                    inflate(regionIdx, compressed, raw);
+                    src = ByteBuffer.wrap(raw);
+                } else if (src.remaining() != size) {
+                    throw new GdxRuntimeException("Corrupt level tile " + regionIdx + ": " + file);
+                }
+                for (Pixmap level : levels) {
+                    ByteBuffer pixels = level.getPixels();
+                    pixels.clear();
+                    ByteBuffer levelBytes = src.duplicate();
+                    levelBytes.limit(levelBytes.position() + pixels.capacity());
+                    pixels.put(levelBytes);
+                    pixels.clear();
+                    src.position(levelBytes.limit());
+                }
+            } catch (RuntimeException e) {
+                for (Pixmap level : levels) {
+                    level.dispose();
+                }
+                throw e;
+            }
+            return levels;
+        }
+
+        private void inflate(int regionIdx, byte[] compressed, byte[] raw) {
+            if (inflater == null) {
+                inflater = new Inflater();
+            }
+            inflater.reset();
+            inflater.setInput(compressed);
+            int inflated = 0;
+            try {
+                while (inflated < raw.length && !inflater.finished() && !inflater.needsInput()) {
+                    inflated += inflater.inflate(raw, inflated, raw.length - inflated);
+                }
+            } catch (DataFormatException e) {
+                throw new GdxRuntimeException("Corrupt level tile " + regionIdx + ": " + file, e);
+            }
+            if (inflated != raw.length) {
+                throw new GdxRuntimeException("Corrupt level tile " + regionIdx + ": " + file);
+            }
+        }
+
+        @Override
+        public void dispose() {
+            if (inflater != null) {
+                inflater.end();
+                inflater = null;
+            }
+        }
+    }
+}
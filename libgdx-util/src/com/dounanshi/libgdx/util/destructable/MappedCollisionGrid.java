@@ -0,0 +1,90 @@
+package com.dounanshi.libgdx.util.destructable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * {@link CollisionGrid} that reads its pixels from a read-only buffer, like a
+ * read-only mapping of a collision map file, and copies a band of
+ * {@link #BAND_ROWS} rows into memory the first time a pixel in it is set.
+ * Only the bands that holes were added to take memory.
+ */
+class MappedCollisionGrid implements CollisionGrid {
+
+    private static final int BAND_SHIFT = 6;
+
+    static final int BAND_ROWS = 1 << BAND_SHIFT;
+
+    private static final int BAND_MASK = BAND_ROWS - 1;
+
+    private final int width;
+    private final int height;
+
+    // The pixels of each band, read-only until the band is copied.
+    private final IntBuffer[] bands;
+
+    MappedCollisionGrid(int width, int height, IntBuffer pixels) {
+        if (pixels.capacity() < width * height) {
+            throw new IllegalArgumentException("Collision grid is smaller than " + width + "x"
+                    + height);
+        }
+        this.width = width;
+        this.height = height;
+        bands = new IntBuffer[(height + BAND_MASK) >> BAND_SHIFT];
+        for (int i = 0; i < bands.length; i++) {
+            IntBuffer band = pixels.duplicate();
+            int start = i * BAND_ROWS * width;
+            band.limit(Math.min(start + BAND_ROWS * width, width * height));
+            band.position(start);
+            bands[i] = band.slice();
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public boolean isSolid(int px, int py) {
+        return (get(px, py) & CollisionMap.SOLID_MASK) != 0;
+    }
+
+    @Override
+    public int get(int px, int py) {
+        return bands[py >> BAND_SHIFT].get((py & BAND_MASK) * width + px);
+    }
+
+    @Override
+    public void set(int px, int py, int pixel) {
+        IntBuffer band = bands[py >> BAND_SHIFT];
+        if (band.isReadOnly()) {
+            IntBuffer copy = ByteBuffer.allocateDirect(band.capacity() * 4).order(
+                    ByteOrder.nativeOrder()).asIntBuffer();
+            band.clear();
+            copy.put(band);
+            bands[py >> BAND_SHIFT] = copy;
+            band = copy;
+        }
+        band.put((py & BAND_MASK) * width + px, pixel);
+    }
+
+    /**
+     * Returns the number of bands that were copied.
+     */
+    int getCopiedBands() {
+        int copied = 0;
+        for (IntBuffer band : bands) {
+            if (!band.isReadOnly()) {
+                copied++;
+            }
+        }
+        return copied;
+    }
+}
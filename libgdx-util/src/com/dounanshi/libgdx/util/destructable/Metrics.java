@@ -0,0 +1,226 @@
+package com.dounanshi.libgdx.util.destructable;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+import com.badlogic.gdx.utils.StreamUtils;
+
+/**
+ * Call counts, timings and amounts of work of the hot paths of a
+ * {@link CollisionMap} and a {@link LevelRenderer}, added up per frame, to
+ * find out where a frame goes and what causes hitches.
+ *
+ * Metrics are off unless attached with {@link CollisionMap#setMetrics} or
+ * {@link LevelRenderer#setMetrics}, and cost a null check per call while
+ * off. Each metric records a value per event: nanoseconds for the timings,
+ * otherwise an amount such as steps or bytes. Values can be recorded from
+ * any thread, e.g. by
+ * {@link CollisionMap#resolve(ParticleBatch, java.util.concurrent.ForkJoinPool)}.
+ *
+ * Call {@link #endFrame()} once per frame. The last historySize frames are
+ * kept, and can be read in game or written to a CSV file.
+ */
+public class Metrics {
+
+    /**
+     * What is measured.
+     */
+    public enum Metric {
+        /**
+         * Nanoseconds per {@link CollisionMap#projectOut} call.
+         */
+        PROJECT_OUT,
+        /**
+         * Steps per {@link CollisionMap#projectOut} call that hit the map.
+         */
+        PROJECT_OUT_STEPS,
+        /**
+         * Nanoseconds per {@link CollisionMap#addHole}, or per group of holes
+         * added by a {@link HoleQueue}.
+         */
+        COLLISION_ADD_HOLE,
+        /**
+         * Collision map pixels each hole or group of holes set. The rows of a
+         * circle overlap, so some pixels are set, and counted, more than
+         * once.
+         */
+        COLLISION_HOLE_PIXELS,
+        /**
+         * Nanoseconds per {@link LevelRenderer#addHole} call, including the
+         * upload.
+         */
+        RENDERER_ADD_HOLE,
+        /**
+         * Region pixmap pixels around a hole that could change, per region
+         * the hole is made in.
+         */
+        RENDERER_HOLE_PIXELS,
+        /**
+         * Nanoseconds per upload of the regions changed by holes.
+         */
+        UPLOAD,
+        /**
+         * Texture bytes uploaded per region changed by holes.
+         */
+        UPLOADED_BYTES,
+        /**
+         * Nanoseconds per {@link LevelRenderer#render} call.
+         */
+        RENDER
+    }
+
+    private static final Metric[] METRICS = Metric.values();
+
+    // Events and the sum of their values for each metric during the current
+    // frame.
+    private final AtomicLongArray counts = new AtomicLongArray(METRICS.length);
+    private final AtomicLongArray totals = new AtomicLongArray(METRICS.length);
+
+    // The same for the last historySize frames, frame f at f % historySize.
+    private final int historySize;
+    private final long[] frameCounts;
+    private final long[] frameTotals;
+    private long frameCount;
+
+    /**
+     * @param historySize
+     *            number of finished frames to keep.
+     */
+    public Metrics(int historySize) {
+        if (historySize < 1) {
+            throw new IllegalArgumentException("Invalid history size: " + historySize);
+        }
+        this.historySize = historySize;
+        frameCounts = new long[historySize * METRICS.length];
+        frameTotals = new long[historySize * METRICS.length];
+    }
+
+    /**
+     * Records an event of the metric in the current frame.
+     */
+    public void record(Metric metric, long value) {
+        int i = metric.ordinal();
+        counts.incrementAndGet(i);
+        totals.addAndGet(i, value);
+    }
+
+    /**
+     * Finishes the current frame. Events recorded while this runs may count
+     * towards either frame.
+     */
+    public void endFrame() {
+        int offset = (int) (frameCount % historySize) * METRICS.length;
+        for (int i = 0; i < METRICS.length; i++) {
+            frameCounts[offset + i] = counts.getAndSet(i, 0);
+            frameTotals[offset + i] = totals.getAndSet(i, 0);
+        }
+        frameCount++;
+    }
+
+    /**
+     * Returns the number of frames finished so far.
+     */
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Returns the number of finished frames that are kept, at most
+     * historySize.
+     */
+    public int getKeptFrameCount() {
+        return (int) Math.min(frameCount, historySize);
+    }
+
+    /**
+     * Returns the number of events of the metric in a finished frame.
+     *
+     * @param framesAgo
+     *            0 for the last finished frame, up to
+     *            {@link #getKeptFrameCount()} - 1.
+     */
+    public long getCount(Metric metric, int framesAgo) {
+        return frameCounts[index(metric, framesAgo)];
+    }
+
+    /**
+     * Returns the sum of the values of the metric in a finished frame, see
+     * {@link #getCount(Metric, int)}.
+     */
+    public long getTotal(Metric metric, int framesAgo) {
+        return frameTotals[index(metric, framesAgo)];
+    }
+
+    /**
+     * Returns the largest sum of the values of the metric in one of the kept
+     * frames, e.g. the worst frame time spent on it.
+     */
+    public long getMaxTotal(Metric metric) {
+        long max = 0;
+        for (int framesAgo = 0; framesAgo < getKeptFrameCount(); framesAgo++) {
+            max = Math.max(max, getTotal(metric, framesAgo));
+        }
+        return max;
+    }
+
+    private int index(Metric metric, int framesAgo) {
+        if (framesAgo < 0 || framesAgo >= getKeptFrameCount()) {
+            throw new IllegalArgumentException("Frame not kept: " + framesAgo);
+        }
+        long frame = frameCount - 1 - framesAgo;
+        return (int) (frame % historySize) * METRICS.length + metric.ordinal();
+    }
+
+    /**
+     * Drops the kept frames and the events of the current frame.
+     */
+    public void clear() {
+        for (int i = 0; i < METRICS.length; i++) {
+            counts.set(i, 0);
+            totals.set(i, 0);
+        }
+        frameCount = 0;
+    }
+
+    /**
+     * Writes the kept frames to a CSV file, oldest first, with the frame
+     * number and the count and total of each metric per row.
+     */
+    public void writeCsv(FileHandle file) {
+        Writer writer = null;
+        try {
+            writer = file.writer(false, "UTF-8");
+            writeCsv(writer);
+        } catch (IOException e) {
+            throw new GdxRuntimeException("Couldn't write metrics to file '" + file + "'", e);
+        } finally {
+            StreamUtils.closeQuietly(writer);
+        }
+    }
+
+    /**
+     * Writes the kept frames as CSV, see {@link #writeCsv(FileHandle)}.
+     */
+    public void writeCsv(Writer writer) throws IOException {
+        StringBuilder line = new StringBuilder("frame");
+        for (Metric metric : METRICS) {
+            String name = metric.name().toLowerCase(Locale.ROOT);
+            line.append(',').append(name).append("_count,").append(name).append("_total");
+        }
+        writer.write(line.append('\n').toString());
+        for (int framesAgo = getKeptFrameCount() - 1; framesAgo >= 0; framesAgo--) {
+            line.setLength(0);
+            line.append(frameCount - 1 - framesAgo);
+            for (Metric metric : METRICS) {
+                line.append(',').append(getCount(metric, framesAgo));
+                line.append(',').append(getTotal(metric, framesAgo));
+            }
+            writer.write(line.append('\n').toString());
+        }
+        writer.flush();
+    }
+}
@@ -0,0 +1,134 @@
+package com.dounanshi.libgdx.util.destructable;
+
+import java.nio.ByteBuffer;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.graphics.GL20;
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.Pixmap.Format;
+import com.badlogic.gdx.graphics.TextureData;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+
+/**
+ * {@link TextureData} that uploads mip levels that were generated ahead of
+ * time, instead of generating them from level 0. The pixmaps are not disposed
+ * and have to stay valid until the texture is loaded. Can also allocate
+ * transparent levels to be filled in later, like the atlas pages of
+ * {@link LevelRenderer}.
+ */
+class MipMapTextureData implements TextureData {
+
+    private final Pixmap[] levels;
+    private final int width;
+    private final int height;
+    private final Format format;
+
+    /**
+     * @param levels
+     *            pixmaps of the mip levels, level 0 first.
+     */
+    MipMapTextureData(Pixmap[] levels) {
+        this.levels = levels;
+        this.width = levels[0].getWidth();
+        this.height = levels[0].getHeight();
+        this.format = levels[0].getFormat();
+    }
+
+    /**
+     * Texture data of transparent mip levels down to 1x1, whose texels are
+     * uploaded later with glTexSubImage2D.
+     */
+    MipMapTextureData(int width, int height, Format format) {
+        this.levels = null;
+        this.width = width;
+        this.height = height;
+        this.format = format;
+    }
+
+    @Override
+    public TextureDataType getType() {
+        return TextureDataType.Custom;
+    }
+
+    @Override
+    public boolean isPrepared() {
+        return true;
+    }
+
+    @Override
+    public void prepare() {
+    }
+
+    @Override
+    public Pixmap consumePixmap() {
+        throw new GdxRuntimeException("This TextureData implementation does not return a Pixmap");
+    }
+
+    @Override
+    public boolean disposePixmap() {
+        return false;
+    }
+
+    @Override
+    public void consumeCustomData(int target) {
+        Gdx.gl.glPixelStorei(GL20.GL_UNPACK_ALIGNMENT, 1);
+        if (levels == null) {
+            consumeTransparentLevels(target);
+            return;
+        }
+        for (int level = 0; level < levels.length; level++) {
+            Pixmap pixmap = levels[level];
+            Gdx.gl.glTexImage2D(target, level, pixmap.getGLInternalFormat(), pixmap.getWidth(),
+                    pixmap.getHeight(), 0, pixmap.getGLFormat(), pixmap.getGLType(),
+                    pixmap.getPixels());
+        }
+    }
+
+    private void consumeTransparentLevels(int target) {
+        // The start of the transparent level 0 serves as every level.
+        Pixmap transparent = new Pixmap(width, height, format);
+        try {
+            ByteBuffer pixels = transparent.getPixels();
+            int bytesPerPixel = pixels.capacity() / (width * height);
+            for (int level = 0; level < MipPyramid.levelCount(width, height); level++) {
+                int levelWidth = Math.max(width >> level, 1);
+                int levelHeight = Math.max(height >> level, 1);
+                ByteBuffer levelPixels = pixels.duplicate();
+                levelPixels.clear();
+                levelPixels.limit(levelWidth * levelHeight * bytesPerPixel);
+                Gdx.gl.glTexImage2D(target, level, transparent.getGLInternalFormat(), levelWidth,
+                        levelHeight, 0, transparent.getGLFormat(), transparent.getGLType(),
+                        levelPixels.slice());
+            }
+        } finally {
+            transparent.dispose();
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public Format getFormat() {
+        return format;
+    }
+
+    @Override
+    public boolean useMipMaps() {
+        return true;
+    }
+
+    @Override
+    public boolean isManaged() {
+        // Like the pixmap textures of the renderer, which aren't managed
+        // either.
+        return false;
+    }
+}
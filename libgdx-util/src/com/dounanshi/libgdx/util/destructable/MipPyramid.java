@@ -0,0 +1,164 @@
+package com.dounanshi.libgdx.util.destructable;
+
+import java.nio.ByteBuffer;
+
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.Pixmap.Blending;
+import com.badlogic.gdx.graphics.Pixmap.Format;
+import com.badlogic.gdx.utils.Disposable;
+
+/**
+ * Mip levels of a pixmap kept on the CPU, so that a change to a small part of
+ * the pixmap only recomputes the texels above that part.
+ *
+ * Each texel is the average of the 2x2 texels under it in the level below,
+ * rounded to nearest. Since every level is computed from the one below in the
+ * same way, updating the levels above a changed rectangle gives exactly the
+ * same levels as generating them all again, and takes time proportional to
+ * the area of the rectangle rather than of the pixmap.
+ */
+class MipPyramid implements Disposable {
+
+    private final Pixmap[] levels;
+
+    /**
+     * Generates the mip levels of the pixmap, which becomes level 0. The
+     * pixmap is not disposed with the pyramid.
+     */
+    MipPyramid(Pixmap pixmap) {
+        levels = new Pixmap[levelCount(pixmap.getWidth(), pixmap.getHeight())];
+        levels[0] = pixmap;
+        for (int level = 1; level < levels.length; level++) {
+            Pixmap below = levels[level - 1];
+            levels[level] = new Pixmap(Math.max(below.getWidth() / 2, 1), Math.max(
+                    below.getHeight() / 2, 1), pixmap.getFormat());
+        }
+        update(0, 0, pixmap.getWidth(), pixmap.getHeight());
+    }
+
+    /**
+     * Uses mip levels that were generated ahead of time, level 0 first. The
+     * pyramid takes over the pixmaps of levels 1 and up.
+     */
+    MipPyramid(Pixmap[] levels) {
+        this.levels = levels;
+    }
+
+    /**
+     * Returns the number of mip levels down to 1x1.
+     */
+    static int levelCount(int width, int height) {
+        int levels = 1;
+        while (width > 1 || height > 1) {
+            width = Math.max(width / 2, 1);
+            height = Math.max(height / 2, 1);
+            levels++;
+        }
+        return levels;
+    }
+
+    int getLevelCount() {
+        return levels.length;
+    }
+
+    Pixmap getLevel(int level) {
+        return levels[level];
+    }
+
+    /**
+     * Returns the levels, level 0 first. Not a copy.
+     */
+    Pixmap[] getLevels() {
+        return levels;
+    }
+
+    /**
+     * Recomputes the texels of every level above the changed level 0
+     * rectangle [x0, x1) x [y0, y1).
+     */
+    void update(int x0, int y0, int x1, int y1) {
+        x0 = Math.max(x0, 0);
+        y0 = Math.max(y0, 0);
+        x1 = Math.min(x1, levels[0].getWidth());
+        y1 = Math.min(y1, levels[0].getHeight());
+        if (x0 >= x1 || y0 >= y1) {
+            return;
+        }
+        Blending blending = Pixmap.getBlending();
+        Pixmap.setBlending(Blending.None);
+        try {
+            for (int level = 1; level < levels.length; level++) {
+                // Texels whose 2x2 blocks overlap the rectangle of the level
+                // below.
+                x0 >>= 1;
+                y0 >>= 1;
+                x1 = Math.min(((x1 - 1) >> 1) + 1, levels[level].getWidth());
+                y1 = Math.min(((y1 - 1) >> 1) + 1, levels[level].getHeight());
+                downsample(levels[level - 1], levels[level], x0, y0, x1, y1);
+            }
+        } finally {
+            Pixmap.setBlending(blending);
+        }
+    }
+
+    /**
+     * Sets the texels [x0, x1) x [y0, y1) of dst to the averages of the 2x2
+     * blocks under them in src. Needs {@link Blending#None}.
+     */
+    private static void downsample(Pixmap src, Pixmap dst, int x0, int y0, int x1, int y1) {
+        int srcW = src.getWidth();
+        int srcH = src.getHeight();
+        if (src.getFormat() == Format.RGBA8888) {
+            ByteBuffer srcPixels = src.getPixels();
+            ByteBuffer dstPixels = dst.getPixels();
+            int dstW = dst.getWidth();
+            for (int y = y0; y < y1; y++) {
+                int row0 = 2 * y * srcW;
+                int row1 = Math.min(2 * y + 1, srcH - 1) * srcW;
+                for (int x = x0; x < x1; x++) {
+                    int sx0 = 2 * x;
+                    int sx1 = Math.min(sx0 + 1, srcW - 1);
+                    int color = average(srcPixels.getInt((row0 + sx0) * 4),
+                            srcPixels.getInt((row0 + sx1) * 4),
+                            srcPixels.getInt((row1 + sx0) * 4),
+                            srcPixels.getInt((row1 + sx1) * 4));
+                    dstPixels.putInt((y * dstW + x) * 4, color);
+                }
+            }
+            return;
+        }
+        for (int y = y0; y < y1; y++) {
+            int sy0 = 2 * y;
+            int sy1 = Math.min(sy0 + 1, srcH - 1);
+            for (int x = x0; x < x1; x++) {
+                int sx0 = 2 * x;
+                int sx1 = Math.min(sx0 + 1, srcW - 1);
+                dst.drawPixel(x, y, average(src.getPixel(sx0, sy0), src.getPixel(sx1, sy0),
+                        src.getPixel(sx0, sy1), src.getPixel(sx1, sy1)));
+            }
+        }
+    }
+
+    /**
+     * Returns the average of four RGBA8888 colors, rounded to nearest.
+     */
+    private static int average(int c00, int c10, int c01, int c11) {
+        int color = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+            int sum = (c00 >>> shift & 0xff) + (c10 >>> shift & 0xff) + (c01 >>> shift & 0xff)
+                    + (c11 >>> shift & 0xff);
+            color |= (sum + 2) / 4 << shift;
+        }
+        return color;
+    }
+
+    /**
+     * Disposes levels 1 and up. Level 0 belongs to the caller.
+     */
+    @Override
+    public void dispose() {
+        for (int level = 1; level < levels.length; level++) {
+            levels[level].dispose();
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package com.dounanshi.libgdx.util.destructable;
+
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.Pixmap.Format;
+
+/**
+ * Counts of solid pixels in square blocks of a {@link CollisionMap}, at block
+ * sizes of 8, 64 and 512 pixels. Lets queries skip whole blocks that are
+ * completely empty or completely full instead of looking at every pixel.
+ *
+ * Blocks are aligned to the top left of the map (pixmap coordinate system).
+ * Blocks on the right and bottom edges may be cut off by the edge of the map.
+ *
+ * A {@link ConcurrentCollisionGrid} publishes the pyramid of its map with
+ * the pixels. Each write then updates a copy that shares the rows of blocks
+ * it doesn't change, and the published pyramid stays as it is.
+ */
+public class OccupancyPyramid {
+
+    public static final int NUM_LEVELS = 3;
+
+    // log2 of the block size of level 0. Each level's blocks are 2^LEVEL_SHIFT
+    // times as wide as the previous level's.
+    private static final int LEVEL_SHIFT = 3;
+
+    private final int width;
+    private final int height;
+
+    // Solid pixel count of each block, one array per row of blocks of each
+    // level.
+    private final int[][][] counts;
+    private final int[] cols;
+    private final int[] rows;
+
+    // Whether each row of counts belongs to this pyramid, or is shared with
+    // the one it was copied from and has to be copied before it changes. Null
+    // if every row does.
+    private final boolean[][] ownedRows;
+
+    private OccupancyPyramid(int width, int height) {
+        this.width = width;
+        this.height = height;
+        counts = new int[NUM_LEVELS][][];
+        cols = new int[NUM_LEVELS];
+        rows = new int[NUM_LEVELS];
+        for (int level = 0; level < NUM_LEVELS; level++) {
+            int size = getBlockSize(level);
+            cols[level] = (width + size - 1) / size;
+            rows[level] = (height + size - 1) / size;
+            counts[level] = new int[rows[level]][cols[level]];
+        }
+        ownedRows = null;
+    }
+
+    private OccupancyPyramid(OccupancyPyramid pyramid) {
+        width = pyramid.width;
+        height = pyramid.height;
+        cols = pyramid.cols;
+        rows = pyramid.rows;
+        counts = new int[NUM_LEVELS][][];
+        ownedRows = new boolean[NUM_LEVELS][];
+        for (int level = 0; level < NUM_LEVELS; level++) {
+            counts[level] = pyramid.counts[level].clone();
+            ownedRows[level] = new boolean[rows[level]];
+        }
+    }
+
+    /**
+     * Counts the solid pixels of the whole collision map.
+     */
+    public static OccupancyPyramid compute(CollisionMap collisionMap) {
+        int w = collisionMap.getWidth();
+        int h = collisionMap.getHeight();
+        OccupancyPyramid pyramid = new OccupancyPyramid(w, h);
+        int[][] level0 = pyramid.counts[0];
+        for (int py = 0; py < h; py++) {
+            int[] row = level0[py >> LEVEL_SHIFT];
+            for (int px = 0; px < w; px++) {
+                if (collisionMap.isSolidPixel(px, py)) {
+                    row[px >> LEVEL_SHIFT]++;
+                }
+            }
+        }
+        for (int level = 1; level < NUM_LEVELS; level++) {
+            int[][] fine = pyramid.counts[level - 1];
+            int[][] coarse = pyramid.counts[level];
+            for (int row = 0; row < pyramid.rows[level - 1]; row++) {
+                for (int col = 0; col < pyramid.cols[level - 1]; col++) {
+                    coarse[row >> LEVEL_SHIFT][col >> LEVEL_SHIFT] += fine[row][col];
+                }
+            }
+        }
+        return pyramid;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the width and height in pixels of the blocks of the level.
+     */
+    public static int getBlockSize(int level) {
+        return 1 << shift(level);
+    }
+
+    public int getColumns(int level) {
+        return cols[level];
+    }
+
+    public int getRows(int level) {
+        return rows[level];
+    }
+
+    /**
+     * Returns the number of solid pixels in the block at (col, row) of the
+     * level.
+     */
+    public int getCount(int level, int col, int row) {
+        return counts[level][row][col];
+    }
+
+    /**
+     * Returns the number of pixels of the block at (col, row) of the level that
+     * are inside of the map.
+     */
+    public int getArea(int level, int col, int row) {
+        int size = getBlockSize(level);
+        int x0 = col * size;
+        int y0 = row * size;
+        return (Math.min(x0 + size, width) - x0) * (Math.min(y0 + size, height) - y0);
+    }
+
+    /**
+     * Returns the highest level whose block containing (px, py) in pixmap
+     * coordinates has no solid pixels, or -1 if the pixel's level 0 block has
+     * some.
+     */
+    public int emptyLevel(int px, int py) {
+        for (int level = NUM_LEVELS - 1; level >= 0; level--) {
+            int shift = shift(level);
+            if (counts[level][py >> shift][px >> shift] == 0) {
+                return level;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns a grayscale image of the level with one pixel per block, from
+     * black for empty blocks to white for full blocks. The caller is
+     * responsible for disposing it.
+     */
+    public Pixmap toPixmap(int level) {
+        Pixmap pixmap = new Pixmap(cols[level], rows[level], Format.RGBA8888);
+        for (int row = 0; row < rows[level]; row++) {
+            for (int col = 0; col < cols[level]; col++) {
+                int gray = getCount(level, col, row) * 255 / getArea(level, col, row);
+                pixmap.drawPixel(col, row, (gray << 24) | (gray << 16) | (gray << 8) | 0xff);
+            }
+        }
+        return pixmap;
+    }
+
+    /**
+     * Returns the number of solid pixels in [px0, px1) x [py0, py1) in pixmap
+     * coordinates.
+     */
+    int countSolid(CollisionMap collisionMap, int px0, int py0, int px1, int py1) {
+        px0 = Math.max(px0, 0);
+        py0 = Math.max(py0, 0);
+        px1 = Math.min(px1, width);
+        py1 = Math.min(py1, height);
+        if (px0 >= px1 || py0 >= py1) {
+            return 0;
+        }
+        int level = NUM_LEVELS - 1;
+        int shift = shift(level);
+        int count = 0;
+        for (int row = py0 >> shift; row <= (py1 - 1) >> shift; row++) {
+            for (int col = px0 >> shift; col <= (px1 - 1) >> shift; col++) {
+                count += countSolid(collisionMap, level, col, row, px0, py0, px1, py1);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of solid pixels in the part of the block at (col,
+     * row) of the level that is in [px0, px1) x [py0, py1).
+     */
+    private int countSolid(CollisionMap collisionMap, int level, int col, int row, int px0,
+            int py0, int px1, int py1) {
+        int count = getCount(level, col, row);
+        if (count == 0) {
+            return 0;
+        }
+        int size = getBlockSize(level);
+        int bx0 = col * size;
+        int by0 = row * size;
+        int bx1 = Math.min(bx0 + size, width);
+        int by1 = Math.min(by0 + size, height);
+        int x0 = Math.max(px0, bx0);
+        int y0 = Math.max(py0, by0);
+        int x1 = Math.min(px1, bx1);
+        int y1 = Math.min(py1, by1);
+        if (x0 == bx0 && y0 == by0 && x1 == bx1 && y1 == by1) {
+            return count;
+        }
+        if (count == (bx1 - bx0) * (by1 - by0)) {
+            return (x1 - x0) * (y1 - y0);
+        }
+
+        int sum = 0;
+        if (level == 0) {
+            for (int py = y0; py < y1; py++) {
+                for (int px = x0; px < x1; px++) {
+                    if (collisionMap.isSolidPixel(px, py)) {
+                        sum++;
+                    }
+                }
+            }
+            return sum;
+        }
+        int childShift = shift(level - 1);
+        for (int childRow = y0 >> childShift; childRow <= (y1 - 1) >> childShift; childRow++) {
+            for (int childCol = x0 >> childShift; childCol <= (x1 - 1) >> childShift; childCol++) {
+                sum += countSolid(collisionMap, level - 1, childCol, childRow, x0, y0, x1, y1);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Returns a pyramid with the same counts that shares the rows of counts
+     * with this one until {@link #update} changes them, which leaves this one
+     * as it is.
+     */
+    OccupancyPyramid copyOnWrite() {
+        return new OccupancyPyramid(this);
+    }
+
+    /**
+     * Recounts the solid pixels of the blocks that overlap [x0, x1) x [y0,
+     * y1) in pixmap coordinates after the pixels there changed in the
+     * collision map.
+     */
+    void update(CollisionMap collisionMap, int x0, int y0, int x1, int y1) {
+        x0 = Math.max(x0, 0);
+        y0 = Math.max(y0, 0);
+        x1 = Math.min(x1, width);
+        y1 = Math.min(y1, height);
+        if (x0 >= x1 || y0 >= y1) {
+            return;
+        }
+        int size = getBlockSize(0);
+        for (int row = y0 >> LEVEL_SHIFT; row <= (y1 - 1) >> LEVEL_SHIFT; row++) {
+            for (int col = x0 >> LEVEL_SHIFT; col <= (x1 - 1) >> LEVEL_SHIFT; col++) {
+                int count = 0;
+                for (int py = row * size; py < Math.min(row * size + size, height); py++) {
+                    for (int px = col * size; px < Math.min(col * size + size, width); px++) {
+                        if (collisionMap.isSolidPixel(px, py)) {
+                            count++;
+                        }
+                    }
+                }
+                int delta = count - counts[0][row][col];
+                if (delta != 0) {
+                    for (int level = 0; level < NUM_LEVELS; level++) {
+                        int levelShift = LEVEL_SHIFT * level;
+                        writableRow(level, row >> levelShift)[col >> levelShift] += delta;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the row of counts of the level, copying it first if it is
+     * shared.
+     */
+    private int[] writableRow(int level, int row) {
+        int[] counts = this.counts[level][row];
+        if (ownedRows != null && !ownedRows[level][row]) {
+            counts = counts.clone();
+            this.counts[level][row] = counts;
+            ownedRows[level][row] = true;
+        }
+        return counts;
+    }
+
+    private static int shift(int level) {
+        return LEVEL_SHIFT * (level + 1);
+    }
+}
@@ -0,0 +1,282 @@
+package com.dounanshi.libgdx.util.destructable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import com.badlogic.gdx.utils.Disposable;
+
+/**
+ * {@link CollisionGrid} that keeps only some of its tiles in memory.
+ *
+ * Tiles are read from a {@link TileStore} the first time one of their pixels
+ * is touched. When more tiles are resident than fit in the memory budget, the
+ * least recently used tile is evicted, and written back to the store first if
+ * it was changed. The hit, miss and eviction counts are there to size the
+ * budget: a budget that is too small for the area the game touches shows up
+ * as many evictions.
+ *
+ * Pixels of the most recently used tile are read and written without a lock,
+ * and only switching to another tile is synchronized, so parallel queries in
+ * the same area run in parallel. Like every {@link CollisionGrid}, it is read
+ * by several threads or written by one, not both at once.
+ */
+public class PagedCollisionGrid implements CollisionGrid, Disposable {
+
+    /**
+     * Source of the tiles of a {@link PagedCollisionGrid}.
+     *
+     * Tiles are tileWidth * tileHeight encoded pixels in row-major order.
+     * Tile (col, row) starts at pixel (col * tileWidth, row * tileHeight), and
+     * the pixels of edge tiles that are outside of the map are ignored.
+     */
+    public interface TileStore {
+
+        int getTileWidth();
+
+        int getTileHeight();
+
+        /**
+         * Reads tile (col, row) into pixels.
+         */
+        void readTile(int col, int row, int[] pixels);
+
+        /**
+         * Saves the changed pixels of tile (col, row).
+         */
+        void writeTile(int col, int row, int[] pixels);
+    }
+
+    private final int width;
+    private final int height;
+    private final TileStore store;
+    private final int tileWidth;
+    private final int tileHeight;
+    private final int cols;
+    private final int maxResidentTiles;
+
+    // Resident tiles by index, least recently used first.
+    private final LinkedHashMap<Integer, Tile> tiles = new LinkedHashMap<Integer, Tile>(16,
+            0.75f, true);
+
+    // Most recently used tile, which most accesses hit. Read without the
+    // lock, so evicted tiles keep their pixels and new tiles get new arrays.
+    private volatile Tile lastTile;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long writeBacks;
+
+    /**
+     * @param maxResidentBytes
+     *            memory budget for the pixels of resident tiles. At least one
+     *            tile is always resident.
+     */
+    public PagedCollisionGrid(int width, int height, TileStore store, long maxResidentBytes) {
+        this.width = width;
+        this.height = height;
+        this.store = store;
+        this.tileWidth = store.getTileWidth();
+        this.tileHeight = store.getTileHeight();
+        if (tileWidth < 1 || tileHeight < 1) {
+            throw new IllegalArgumentException("Invalid tile size: " + tileWidth + "x"
+                    + tileHeight);
+        }
+        this.cols = (width + tileWidth - 1) / tileWidth;
+        long tileBytes = (long) tileWidth * tileHeight * 4;
+        this.maxResidentTiles = (int) Math.max(1, Math.min(maxResidentBytes / tileBytes,
+                Integer.MAX_VALUE));
+    }
+
+    /**
+     * Writes every pixel of the collision map to the store, e.g. to split a
+     * map into the tiles of a {@link DirectoryTileStore}.
+     */
+    public static void writeTiles(CollisionMap collisionMap, TileStore store) {
+        int tileWidth = store.getTileWidth();
+        int tileHeight = store.getTileHeight();
+        int[] pixels = new int[tileWidth * tileHeight];
+        for (int y0 = 0; y0 < collisionMap.getHeight(); y0 += tileHeight) {
+            for (int x0 = 0; x0 < collisionMap.getWidth(); x0 += tileWidth) {
+                // Pixels outside of the map read as empty.
+                for (int y = 0; y < tileHeight; y++) {
+                    for (int x = 0; x < tileWidth; x++) {
+                        pixels[y * tileWidth + x] = collisionMap.pixel(x0 + x, y0 + y);
+                    }
+                }
+                store.writeTile(x0 / tileWidth, y0 / tileHeight, pixels);
+            }
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    public TileStore getStore() {
+        return store;
+    }
+
+    public int getMaxResidentTiles() {
+        return maxResidentTiles;
+    }
+
+    public synchronized int getResidentTiles() {
+        return tiles.size();
+    }
+
+    /**
+     * Returns the number of times that a pixel in another tile than the last
+     * one was accessed and its tile was resident.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of times that a pixel in another tile than the last
+     * one was accessed and its tile had to be read from the store.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the number of tiles that were evicted to stay within the
+     * budget.
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Returns the number of changed tiles that were written to the store.
+     */
+    public synchronized long getWriteBacks() {
+        return writeBacks;
+    }
+
+    @Override
+    public boolean isSolid(int px, int py) {
+        return (get(px, py) & CollisionMap.SOLID_MASK) != 0;
+    }
+
+    @Override
+    public int get(int px, int py) {
+        Tile tile = tile(px, py);
+        return tile.pixels[(py - tile.y0) * tileWidth + px - tile.x0];
+    }
+
+    @Override
+    public void set(int px, int py, int pixel) {
+        Tile tile = tile(px, py);
+        tile.pixels[(py - tile.y0) * tileWidth + px - tile.x0] = pixel;
+        tile.dirty = true;
+    }
+
+    /**
+     * Writes all changed tiles back to the store. They stay resident.
+     */
+    public synchronized void flush() {
+        for (Tile tile : tiles.values()) {
+            writeBack(tile);
+        }
+    }
+
+    /**
+     * Writes all changed tiles back to the store, drops the resident tiles and
+     * disposes the store if it is {@link Disposable}.
+     */
+    @Override
+    public synchronized void dispose() {
+        flush();
+        tiles.clear();
+        lastTile = null;
+        if (store instanceof Disposable) {
+            ((Disposable) store).dispose();
+        }
+    }
+
+    /**
+     * Returns the tile containing (px, py).
+     */
+    private Tile tile(int px, int py) {
+        int col = px / tileWidth;
+        int row = py / tileHeight;
+        Tile tile = lastTile;
+        if (tile != null && tile.col == col && tile.row == row) {
+            return tile;
+        }
+        return switchTile(col, row);
+    }
+
+    /**
+     * Makes tile (col, row) the most recently used one, reading it from the
+     * store if it isn't resident.
+     */
+    private synchronized Tile switchTile(int col, int row) {
+        Integer index = row * cols + col;
+        Tile tile = tiles.get(index);
+        if (tile != null) {
+            hits++;
+        } else {
+            misses++;
+            if (tiles.size() >= maxResidentTiles) {
+                evict();
+            }
+            int[] pixels = new int[tileWidth * tileHeight];
+            store.readTile(col, row, pixels);
+            tile = new Tile(col, row, col * tileWidth, row * tileHeight, pixels);
+            tiles.put(index, tile);
+        }
+        lastTile = tile;
+        return tile;
+    }
+
+    /**
+     * Writes the least recently used tile back if it was changed, and evicts
+     * it. If writing fails, the tile stays resident with its changes.
+     */
+    private void evict() {
+        Iterator<Tile> iterator = tiles.values().iterator();
+        Tile tile = iterator.next();
+        writeBack(tile);
+        iterator.remove();
+        if (tile == lastTile) {
+            lastTile = null;
+        }
+        evictions++;
+    }
+
+    private void writeBack(Tile tile) {
+        if (tile.dirty) {
+            store.writeTile(tile.col, tile.row, tile.pixels);
+            tile.dirty = false;
+            writeBacks++;
+        }
+    }
+
+    private static class Tile {
+
+        final int col;
+        final int row;
+        final int x0;
+        final int y0;
+        final int[] pixels;
+        boolean dirty;
+
+        Tile(int col, int row, int x0, int y0, int[] pixels) {
+            this.col = col;
+            this.row = row;
+            this.x0 = x0;
+            this.y0 = y0;
+            this.pixels = pixels;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.dounanshi.libgdx.util.destructable;
+
+/**
+ * Structure of arrays holding the state of many particles (debris, sparks,
+ * etc.) so that they can all be resolved against a {@link CollisionMap} in one
+ * pass.
+ *
+ * See {@link CollisionMap#resolve(ParticleBatch)}.
+ */
+public class ParticleBatch {
+
+    // Position and velocity of each particle in level coordinates.
+    public final float[] x;
+    public final float[] y;
+    public final float[] velX;
+    public final float[] velY;
+
+    // Amount of horizontal velocity to keep when bouncing (0 to 1).
+    public final float[] friction;
+
+    // Amount of vertical velocity to keep when bouncing (0 to 1).
+    public final float[] bounce;
+
+    // Whether each particle hit the collision map during the last resolve, and
+    // the surface normal it was projected out of if it did.
+    public final boolean[] hit;
+    public final float[] normalX;
+    public final float[] normalY;
+
+    // Number of particles in use. Particles [0, size) are resolved.
+    public int size;
+
+    public ParticleBatch(int capacity) {
+        x = new float[capacity];
+        y = new float[capacity];
+        velX = new float[capacity];
+        velY = new float[capacity];
+        friction = new float[capacity];
+        bounce = new float[capacity];
+        hit = new boolean[capacity];
+        normalX = new float[capacity];
+        normalY = new float[capacity];
+    }
+
+    public int getCapacity() {
+        return x.length;
+    }
+
+    /**
+     * Adds a particle to the end of the batch.
+     *
+     * @return the index of the new particle.
+     */
+    public int add(float x, float y, float velX, float velY, float friction, float bounce) {
+        if (size == this.x.length) {
+            throw new IllegalStateException("ParticleBatch is full: " + size);
+        }
+        int i = size++;
+        this.x[i] = x;
+        this.y[i] = y;
+        this.velX[i] = velX;
+        this.velY[i] = velY;
+        this.friction[i] = friction;
+        this.bounce[i] = bounce;
+        hit[i] = false;
+        normalX[i] = 0;
+        normalY[i] = 0;
+        return i;
+    }
+
+    /**
+     * Removes the particle at index i by moving the last particle into its
+     * place.
+     */
+    public void remove(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("Particle " + i + " of " + size);
+        }
+        int last = --size;
+        x[i] = x[last];
+        y[i] = y[last];
+        velX[i] = velX[last];
+        velY[i] = velY[last];
+        friction[i] = friction[last];
+        bounce[i] = bounce[last];
+        hit[i] = hit[last];
+        normalX[i] = normalX[last];
+        normalY[i] = normalY[last];
+    }
+
+    public void clear() {
+        size = 0;
+    }
+}
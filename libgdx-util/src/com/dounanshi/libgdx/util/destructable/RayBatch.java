@@ -0,0 +1,71 @@
+package com.dounanshi.libgdx.util.destructable;
+
+/**
+ * Structure of arrays holding many rays (bullets, line of sight checks, etc.)
+ * so that they can all be cast against a {@link CollisionMap} in one pass.
+ *
+ * See {@link CollisionMap#raycast(RayBatch)}.
+ */
+public class RayBatch {
+
+    // Start and end of each ray in level coordinates.
+    public final float[] startX;
+    public final float[] startY;
+    public final float[] endX;
+    public final float[] endY;
+
+    // Radius of the circle swept along each ray, or 0 for a thin ray.
+    public final float[] radius;
+
+    // Whether each ray hit the collision map during the last cast, and if it
+    // did, the fraction along the ray and the surface normal of the hit.
+    public final boolean[] hit;
+    public final float[] fraction;
+    public final float[] normalX;
+    public final float[] normalY;
+
+    // Number of rays in use. Rays [0, size) are cast.
+    public int size;
+
+    public RayBatch(int capacity) {
+        startX = new float[capacity];
+        startY = new float[capacity];
+        endX = new float[capacity];
+        endY = new float[capacity];
+        radius = new float[capacity];
+        hit = new boolean[capacity];
+        fraction = new float[capacity];
+        normalX = new float[capacity];
+        normalY = new float[capacity];
+    }
+
+    public int getCapacity() {
+        return startX.length;
+    }
+
+    /**
+     * Adds a ray to the end of the batch.
+     *
+     * @return the index of the new ray.
+     */
+    public int add(float startX, float startY, float endX, float endY, float radius) {
+        if (size == this.startX.length) {
+            throw new IllegalStateException("RayBatch is full: " + size);
+        }
+        int i = size++;
+        this.startX[i] = startX;
+        this.startY[i] = startY;
+        this.endX[i] = endX;
+        this.endY[i] = endY;
+        this.radius[i] = radius;
+        hit[i] = false;
+        fraction[i] = 1;
+        normalX[i] = 0;
+        normalY[i] = 0;
+        return i;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+}
@@ -0,0 +1,27 @@
+package com.dounanshi.libgdx.util.destructable;
+
+import com.badlogic.gdx.math.Vector2;
+
+/**
+ * Result of a ray or swept circle cast against a {@link CollisionMap}.
+ */
+public class RaycastHit {
+
+    // Fraction of the way from the start to the end of the ray where it hit.
+    public float fraction;
+
+    // Position of the ray (or center of the circle) when it hit, in level
+    // coordinates.
+    public float x;
+    public float y;
+
+    // Level coordinates of the bottom left corner of the solid pixel that was
+    // hit.
+    public int cellX;
+    public int cellY;
+
+    // Surface normal at the hit. Comes from the collision map if the pixel has
+    // one, otherwise it is the normal of the side of the pixel that was hit,
+    // or points back along the ray if it started inside the terrain.
+    public final Vector2 normal = new Vector2();
+}
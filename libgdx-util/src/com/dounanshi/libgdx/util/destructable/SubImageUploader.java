@@ -0,0 +1,89 @@
+package com.dounanshi.libgdx.util.destructable;
+
+import java.nio.ByteBuffer;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.graphics.GL20;
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.Pixmap.Blending;
+import com.badlogic.gdx.graphics.Texture;
+
+/**
+ * Uploads a changed rectangle of a pixmap to the texture made from it with
+ * glTexSubImage2D, instead of uploading and regenerating the whole texture.
+ *
+ * GLES 2 can't upload part of the rows of a bigger image, so the rectangle is
+ * copied into a packed pixmap of its own first. For mipmapped textures, each
+ * mip level gets the texels covering the rectangle from the {@link MipPyramid}
+ * of the pixmap, which has to be up to date.
+ */
+class SubImageUploader {
+
+    private SubImageUploader() {
+    }
+
+    /**
+     * Uploads the pixels [x0, x1) x [y0, y1) of the first level and the
+     * texels above them in the other levels. Level i goes to mip level
+     * firstLevel + i of the texture, at (offsetX, offsetY) shifted down to
+     * that level, so that the levels can be a part of an atlas page.
+     *
+     * @param levels
+     *            pixmaps of the levels, level 0 first.
+     * @param levelCount
+     *            number of levels to upload.
+     * @return the number of bytes uploaded.
+     */
+    static long upload(Texture texture, Pixmap[] levels, int firstLevel, int levelCount,
+            int offsetX, int offsetY, int x0, int y0, int x1, int y1) {
+        x0 = Math.max(x0, 0);
+        y0 = Math.max(y0, 0);
+        x1 = Math.min(x1, levels[0].getWidth());
+        y1 = Math.min(y1, levels[0].getHeight());
+        if (x0 >= x1 || y0 >= y1) {
+            return 0;
+        }
+        long bytes = 0;
+        texture.bind();
+        Gdx.gl.glPixelStorei(GL20.GL_UNPACK_ALIGNMENT, 1);
+        Blending blending = Pixmap.getBlending();
+        Pixmap.setBlending(Blending.None);
+        try {
+            for (int level = 0; level < levelCount; level++) {
+                // Texels above the rectangle.
+                int tx0 = x0 >> level;
+                int ty0 = y0 >> level;
+                int tx1 = ((x1 - 1) >> level) + 1;
+                int ty1 = ((y1 - 1) >> level) + 1;
+                bytes += upload(levels[level], firstLevel + level, offsetX >> level,
+                        offsetY >> level, tx0, ty0, tx1, ty1);
+            }
+        } finally {
+            Pixmap.setBlending(blending);
+        }
+        return bytes;
+    }
+
+    private static long upload(Pixmap levelPixmap, int level, int offsetX, int offsetY, int x0,
+            int y0, int x1, int y1) {
+        if (x0 == 0 && y0 == 0 && x1 == levelPixmap.getWidth()
+                && y1 == levelPixmap.getHeight()) {
+            // The whole level, which needs no copy.
+            ByteBuffer pixels = levelPixmap.getPixels();
+            Gdx.gl.glTexSubImage2D(GL20.GL_TEXTURE_2D, level, offsetX, offsetY, x1, y1,
+                    levelPixmap.getGLFormat(), levelPixmap.getGLType(), pixels);
+            return pixels.capacity();
+        }
+        Pixmap rect = new Pixmap(x1 - x0, y1 - y0, levelPixmap.getFormat());
+        try {
+            rect.drawPixmap(levelPixmap, x0, y0, x1 - x0, y1 - y0, 0, 0, x1 - x0, y1 - y0);
+            ByteBuffer pixels = rect.getPixels();
+            Gdx.gl.glTexSubImage2D(GL20.GL_TEXTURE_2D, level, offsetX + x0, offsetY + y0,
+                    rect.getWidth(), rect.getHeight(), rect.getGLFormat(), rect.getGLType(),
+                    pixels);
+            return pixels.capacity();
+        } finally {
+            rect.dispose();
+        }
+    }
+}